@@ -15,6 +15,6 @@ fi
 JAVA_OPTS=" -server -Xmx4G -Djava.awt.headless=true -Djava.net.preferIPv4Stack=true "
 
 echo 'Starting CeresFS...'
-exec -a CeresFS nohup java -jar ${DEPLOY_DIR}/lib/ceresfs-server-1.0-SNAPSHOT.jar > ${STDOUT_FILE} 2>&1 & 
+exec -a CeresFS nohup java -cp "${LIB_DIR}/*" io.github.huiyu.ceresfs.CeresFS > ${STDOUT_FILE} 2>&1 & 
 echo 'OK!'
 echo "STDOUT: ${STDOUT_FILE}"
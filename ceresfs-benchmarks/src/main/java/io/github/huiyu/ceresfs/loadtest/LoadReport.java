@@ -0,0 +1,110 @@
+package io.github.huiyu.ceresfs.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and outcomes of operations by phase of a load test. Latencies of found and missed
+ * images are recorded in microseconds, failed operations are only counted.
+ *
+ * @author Yu Hui
+ */
+public class LoadReport {
+
+    public enum Phase {
+        WARMUP, STEADY, REBALANCING, REBALANCED
+    }
+
+    public enum Operation {
+        READ, WRITE
+    }
+
+    private static final int PHASES = Phase.values().length;
+    private static final int OPERATIONS = Operation.values().length;
+
+    private final Histogram[] latencies = new Histogram[PHASES * OPERATIONS];
+    private final AtomicLongArray misses = new AtomicLongArray(PHASES * OPERATIONS);
+    private final AtomicLongArray errors = new AtomicLongArray(PHASES * OPERATIONS);
+    private final AtomicLong[] phaseNanos = new AtomicLong[PHASES];
+
+    private volatile Phase phase = Phase.WARMUP;
+    private long phaseStart = System.nanoTime();
+
+    public LoadReport() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new ConcurrentHistogram(3);
+        }
+        for (int i = 0; i < PHASES; i++) {
+            phaseNanos[i] = new AtomicLong();
+        }
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Enter the phase, operations recorded from now on count to it
+     */
+    public synchronized void enter(Phase next) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()].addAndGet(now - phaseStart);
+        phaseStart = now;
+        phase = next;
+    }
+
+    public void recordSuccess(Phase phase, Operation op, long startNanos) {
+        latencies[index(phase, op)].recordValue(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void recordMiss(Phase phase, Operation op, long startNanos) {
+        misses.incrementAndGet(index(phase, op));
+        recordSuccess(phase, op, startNanos);
+    }
+
+    public void recordError(Phase phase, Operation op) {
+        errors.incrementAndGet(index(phase, op));
+    }
+
+    /**
+     * Print throughput and latency percentiles of each operation in each measured phase
+     */
+    public void print(PrintStream out) {
+        enter(phase);
+        out.printf("%-12s %-6s %10s %8s %8s %10s %9s %9s %9s %9s%n", "phase", "op", "count",
+                "misses", "errors", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        for (Phase p : Phase.values()) {
+            long nanos = phaseNanos[p.ordinal()].get();
+            if (p == Phase.WARMUP || nanos == 0) {
+                continue;
+            }
+            for (Operation op : Operation.values()) {
+                int i = index(p, op);
+                Histogram histogram = latencies[i];
+                long count = histogram.getTotalCount();
+                out.printf("%-12s %-6s %10d %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f%n",
+                        p, op, count, misses.get(i), errors.get(i),
+                        count * 1e9 / nanos,
+                        millis(histogram.getValueAtPercentile(50)),
+                        millis(histogram.getValueAtPercentile(99)),
+                        millis(histogram.getValueAtPercentile(99.9)),
+                        millis(histogram.getMaxValue()));
+            }
+            out.printf("%-12s %.1fs%n", "", nanos / 1e9);
+        }
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static int index(Phase phase, Operation op) {
+        return phase.ordinal() * OPERATIONS + op.ordinal();
+    }
+}
@@ -0,0 +1,256 @@
+package io.github.huiyu.ceresfs.loadtest;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.client.CeresFSClient;
+import io.github.huiyu.ceresfs.http.HttpBadResponseException;
+import io.github.huiyu.ceresfs.loadtest.LoadReport.Operation;
+import io.github.huiyu.ceresfs.loadtest.LoadReport.Phase;
+import io.github.huiyu.ceresfs.retry.NeverRetryStrategy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * End to end load test on a local cluster. Starts the servers, drives them by a client from a
+ * number of threads each doing one request at a time, and optionally starts one more server in
+ * the middle of the run to measure the impact of rebalancing. Options, with defaults:
+ * <pre>
+ * --nodes=3              servers started before the run
+ * --duration=60          seconds measured after warmup
+ * --warmup=10            seconds of warmup, which also writes images to read
+ * --join-after=0         seconds after warmup to add a server, 0 never adds
+ * --concurrency=16       client threads
+ * --read-ratio=0.8       share of reads, the rest are writes
+ * --sizes=4096:60,65536:30,1048576:10
+ *                        image sizes in bytes with their weights
+ * --balance-delay=10     seconds servers wait before balancing
+ * --server-heap=512m     max heap of each server
+ * --work-dir=            directory of server disks and logs, a temporary one by default
+ * </pre>
+ * Run it by
+ * <pre>
+ * java -cp ceresfs-benchmarks/target/benchmarks.jar io.github.huiyu.ceresfs.loadtest.LoadTest
+ * </pre>
+ *
+ * @author Yu Hui
+ */
+public class LoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    // ids of written images to read, the oldest are overwritten once full
+    private static final int MAX_IDS = 1 << 20;
+
+    private final CeresFSClient client;
+    private final double readRatio;
+    private final int[] sizes;
+    private final int[] cumulativeWeights;
+    private final Map<Integer, byte[]> dataBySize = new HashMap<>();
+    private final LoadReport report = new LoadReport();
+
+    private final AtomicLongArray ids = new AtomicLongArray(MAX_IDS);
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LoadTest(CeresFSClient client, double readRatio, String sizes) {
+        this.client = client;
+        this.readRatio = readRatio;
+
+        String[] entries = sizes.split(",");
+        this.sizes = new int[entries.length];
+        this.cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] sizeAndWeight = entries[i].trim().split(":");
+            this.sizes[i] = Integer.parseInt(sizeAndWeight[0]);
+            total += sizeAndWeight.length > 1 ? Integer.parseInt(sizeAndWeight[1]) : 1;
+            this.cumulativeWeights[i] = total;
+
+            byte[] data = new byte[this.sizes[i]];
+            ThreadLocalRandom.current().nextBytes(data);
+            dataBySize.put(this.sizes[i], data);
+        }
+    }
+
+    public LoadReport getReport() {
+        return report;
+    }
+
+    public List<Thread> start(int concurrency) {
+        List<Thread> workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(this::work, "load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        return workers;
+    }
+
+    public void stop(List<Thread> workers) throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void work() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            long count = written.get();
+            if (count > 0 && random.nextDouble() < readRatio) {
+                read(ids.get((int) (random.nextLong(Math.min(count, MAX_IDS)))));
+            } else {
+                write(nextSize(random));
+            }
+        }
+    }
+
+    private void read(long id) {
+        Phase phase = report.getPhase();
+        long start = System.nanoTime();
+        try {
+            client.get(id).get();
+            report.recordSuccess(phase, Operation.READ, start);
+        } catch (Exception e) {
+            if (isNotFound(e)) {
+                report.recordMiss(phase, Operation.READ, start);
+            } else {
+                report.recordError(phase, Operation.READ);
+                LOG.debug("Read " + id + " error", e);
+            }
+        }
+    }
+
+    private void write(int size) {
+        Phase phase = report.getPhase();
+        long start = System.nanoTime();
+        try {
+            long id = client.save(ImageType.JPG, dataBySize.get(size)).get().getId();
+            report.recordSuccess(phase, Operation.WRITE, start);
+            ids.set((int) (written.getAndIncrement() % MAX_IDS), id);
+        } catch (Exception e) {
+            report.recordError(phase, Operation.WRITE);
+            LOG.debug("Write error", e);
+        }
+    }
+
+    private int nextSize(ThreadLocalRandom random) {
+        int weight = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (weight < cumulativeWeights[i]) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    private static boolean isNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpBadResponseException) {
+                return HttpResponseStatus.NOT_FOUND.equals(
+                        ((HttpBadResponseException) cause).getResponse().status());
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        long duration = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(options.getOrDefault("duration", "60")));
+        long warmup = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(options.getOrDefault("warmup", "10")));
+        long joinAfter = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(options.getOrDefault("join-after", "0")));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        double readRatio = Double.parseDouble(options.getOrDefault("read-ratio", "0.8"));
+        String sizes = options.getOrDefault("sizes", "4096:60,65536:30,1048576:10");
+        long balanceDelay = Long.parseLong(options.getOrDefault("balance-delay", "10"));
+        String serverHeap = options.getOrDefault("server-heap", "512m");
+        File workDir = options.containsKey("work-dir") ?
+                new File(options.get("work-dir")) :
+                Files.createTempDirectory("ceresfs-load").toFile();
+
+        LocalCluster cluster = new LocalCluster(workDir, serverHeap, balanceDelay);
+        try {
+            for (int i = 0; i < nodes; i++) {
+                cluster.addNode();
+            }
+            try (CeresFSClient client = new CeresFSClient(
+                    cluster.getZookeeperAddress(), new NeverRetryStrategy())) {
+                LoadTest test = new LoadTest(client, readRatio, sizes);
+                LoadReport report = test.getReport();
+                List<Thread> workers = test.start(concurrency);
+
+                Thread.sleep(warmup);
+                report.enter(Phase.STEADY);
+                long end = System.currentTimeMillis() + duration;
+                if (joinAfter > 0 && joinAfter < duration) {
+                    Thread.sleep(joinAfter);
+                    report.enter(Phase.REBALANCING);
+                    long joined = System.currentTimeMillis();
+                    cluster.addNode();
+                    awaitBalanced(cluster, joined, balanceDelay, end);
+                    if (System.currentTimeMillis() < end) {
+                        report.enter(Phase.REBALANCED);
+                    }
+                }
+                Thread.sleep(Math.max(end - System.currentTimeMillis(), 0L));
+
+                test.stop(workers);
+                report.print(System.out);
+            }
+        } finally {
+            cluster.close();
+            if (!options.containsKey("work-dir")) {
+                cluster.clean();
+            }
+        }
+    }
+
+    /**
+     * Wait until the cluster is balanced again after a node joined, or the run ends. Nodes
+     * only turn unbalanced after the balance delay, so balanced nodes count once any node has
+     * been seen unbalanced or the delay has well passed.
+     */
+    private static void awaitBalanced(LocalCluster cluster, long joined, long balanceDelay,
+                                      long end) throws Exception {
+        long settled = joined + TimeUnit.SECONDS.toMillis(balanceDelay) + 5000L;
+        boolean seenUnbalanced = false;
+        while (System.currentTimeMillis() < end) {
+            boolean balanced = cluster.isBalanced();
+            seenUnbalanced |= !balanced;
+            if (balanced && (seenUnbalanced || System.currentTimeMillis() > settled)) {
+                LOG.info("Rebalanced in {}ms", System.currentTimeMillis() - joined);
+                return;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Illegal option " + arg);
+            }
+            int i = arg.indexOf('=');
+            options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        return options;
+    }
+}
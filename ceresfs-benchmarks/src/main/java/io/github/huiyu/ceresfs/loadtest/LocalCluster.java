@@ -0,0 +1,177 @@
+package io.github.huiyu.ceresfs.loadtest;
+
+import io.github.huiyu.ceresfs.CeresFS;
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.util.Codec;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cluster of local server processes on an embedded zookeeper. Servers are started as child
+ * JVMs on the classpath of this one, each with its own ports and disk under the work directory,
+ * where their logs are written too.
+ *
+ * @author Yu Hui
+ */
+public class LocalCluster implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalCluster.class);
+
+    private static final long START_TIMEOUT_MILLS = TimeUnit.SECONDS.toMillis(60);
+
+    private final File workDir;
+    private final String serverHeap;
+    private final long balanceDelay;
+
+    private final TestingServer zookeeper;
+    private final CuratorFramework client;
+    private final List<Process> servers = new ArrayList<>();
+
+    /**
+     * @param balanceDelay seconds the servers wait before balancing on topology changes
+     */
+    public LocalCluster(File workDir, String serverHeap, long balanceDelay) throws Exception {
+        this.workDir = workDir;
+        this.serverHeap = serverHeap;
+        this.balanceDelay = balanceDelay;
+        this.zookeeper = new TestingServer(true);
+        this.client = CuratorFrameworkFactory.newClient(zookeeper.getConnectString(),
+                new ExponentialBackoffRetry(200, 10));
+        this.client.start();
+    }
+
+    public String getZookeeperAddress() {
+        return zookeeper.getConnectString();
+    }
+
+    /**
+     * Start a server with next id, and wait until it's registered and serving.
+     *
+     * @return id of the server
+     */
+    public synchronized short addNode() throws Exception {
+        short id = (short) (servers.size() + 1);
+        File dir = new File(workDir, "node" + id);
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Create " + dir + " failed");
+        }
+        int port = freePort();
+        int internalPort = freePort();
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-Xmx" + serverHeap);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(CeresFS.class.getName());
+        command.add("--ceresfs.id=" + id);
+        command.add("--ceresfs.port=" + port);
+        command.add("--ceresfs.internal-port=" + internalPort);
+        command.add("--ceresfs.zookeeper-address=" + zookeeper.getConnectString());
+        command.add("--ceresfs.balance-delay=" + balanceDelay);
+        command.add("--ceresfs.balance-delay-timeunit=SECONDS");
+        command.add("--ceresfs.disks[0].id=1");
+        command.add("--ceresfs.disks[0].path=" + new File(dir, "disk1").getPath());
+        command.add("--ceresfs.disks[0].weight=1");
+
+        File log = new File(dir, "server.log");
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        servers.add(process);
+        LOG.info("Starting node {} at port {}, log {}", id, port, log);
+
+        awaitServing(id, port, process);
+        LOG.info("Node {} started", id);
+        return id;
+    }
+
+    private void awaitServing(short id, int port, Process process) throws Exception {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLS;
+        String path = Const.makeZKNodePath(id);
+        while (client.checkExists().forPath(path) == null || !accepts(port)) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Node " + id + " exited " + process.exitValue());
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("Node " + id + " not started");
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * @return true if all registered nodes have images on the disks they route to
+     */
+    public boolean isBalanced() throws Exception {
+        for (String child : client.getChildren().forPath(Const.ZK_NODES_PATH)) {
+            byte[] data = client.getData().forPath(ZKPaths.makePath(Const.ZK_NODES_PATH, child));
+            if (!((Node) Codec.decode(data)).isBalanced()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Process server : servers) {
+            server.destroy();
+        }
+        for (Process server : servers) {
+            try {
+                if (!server.waitFor(10, TimeUnit.SECONDS)) {
+                    server.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                server.destroyForcibly();
+            }
+        }
+        servers.clear();
+        client.close();
+        zookeeper.close();
+    }
+
+    /**
+     * Remove the work directory, after the cluster closed
+     */
+    public void clean() {
+        FileSystemUtils.deleteRecursively(workDir);
+    }
+
+    private static boolean accepts(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookups and saves of indexes on a directory preloaded with 100k indexes, for both the MapDB
+ * and the mapped directory.
+ *
+ * @author Yu Hui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    private static final int PRELOADED = 100_000;
+
+    @Param({"mapdb", "mapped"})
+    private String mode;
+
+    private final AtomicLong ids = new AtomicLong(PRELOADED);
+    private File folder;
+    private Disk disk;
+    private Directory directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ceresfs-directory").toFile();
+        disk = new Disk((short) 0, folder.getPath(), 1.0);
+        directory = "mapped".equals(mode) ? new MappedDirectory() : new MapDBDirectory();
+        for (long id = 0; id < PRELOADED; id++) {
+            directory.save(disk, index(id));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (directory instanceof MapDBDirectory) {
+            ((MapDBDirectory) directory).destroy();
+        } else {
+            ((MappedDirectory) directory).destroy();
+        }
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Benchmark
+    public ImageIndex get() {
+        return directory.get(disk, ThreadLocalRandom.current().nextLong(PRELOADED));
+    }
+
+    @Benchmark
+    public void save() {
+        directory.save(disk, index(ids.incrementAndGet()));
+    }
+
+    private static ImageIndex index(long id) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setVolume(id >>> 10);
+        index.setOffset(id * 4096);
+        index.setSize(4032);
+        index.setType(ImageType.JPG);
+        index.setTime(System.currentTimeMillis());
+        index.setExpireTime(-1L);
+        return index;
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random reads of a sealed volume by single and concurrent readers. The volume holds about
+ * 256MB of images, mostly served from the page cache after warmup.
+ *
+ * @author Yu Hui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VolumeReaderBenchmark {
+
+    private static final long VOLUME_SIZE = 256L * 1024 * 1024;
+
+    @Param({"4096", "65536", "1048576"})
+    private int size;
+
+    @Param({"CHANNEL", "MAPPED"})
+    private Volume.ReadMode readMode;
+
+    @Param({"false", "true"})
+    private boolean verify;
+
+    private File folder;
+    private File volume;
+    private long[] positions;
+    private Volume.Reader reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ceresfs-volume").toFile();
+        volume = new File(folder, "1");
+
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        positions = new long[(int) Math.max(VOLUME_SIZE / size, 16)];
+        try (Volume.Writer writer = Volume.createWriter(volume, Volume.FsyncPolicy.NONE)) {
+            for (int i = 0; i < positions.length; i++) {
+                Image image = new Image(new ImageIndex(), data);
+                image.getIndex().setId(i);
+                image.getIndex().setType(ImageType.JPG);
+                image.getIndex().setExpireTime(-1L);
+                writer.write(image);
+                positions[i] = image.getIndex().getOffset();
+            }
+        }
+        reader = Volume.createReader(volume, readMode, verify);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        Volume.getHintFile(volume).delete();
+        volume.delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public Image read() throws IOException {
+        return reader.read(positions[ThreadLocalRandom.current().nextInt(positions.length)]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Image readContended() throws IOException {
+        return reader.read(positions[ThreadLocalRandom.current().nextInt(positions.length)]);
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends to a volume by single and concurrent writers, concurrent appends are group
+ * committed. Volumes are recreated every iteration to keep the disk usage bounded.
+ *
+ * @author Yu Hui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VolumeWriterBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    private int size;
+
+    @Param({"NONE", "BATCH"})
+    private Volume.FsyncPolicy fsyncPolicy;
+
+    private final AtomicLong ids = new AtomicLong();
+    private File folder;
+    private byte[] data;
+    private Volume.Writer writer;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        folder = Files.createTempDirectory("ceresfs-volume").toFile();
+        data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        File volume = new File(folder, "1");
+        Volume.getHintFile(volume).delete();
+        volume.delete();
+        writer = Volume.createWriter(volume, fsyncPolicy);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        writer.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        File volume = new File(folder, "1");
+        Volume.getHintFile(volume).delete();
+        volume.delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        writer.write(ids.incrementAndGet(), ImageType.JPG, data, -1L);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void writeContended() throws IOException {
+        writer.write(ids.incrementAndGet(), ImageType.JPG, data, -1L);
+    }
+}
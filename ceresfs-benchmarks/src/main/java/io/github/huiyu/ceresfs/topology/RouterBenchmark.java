@@ -0,0 +1,85 @@
+package io.github.huiyu.ceresfs.topology;
+
+import com.google.common.primitives.Longs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of random ids on clusters of 4 disks per node, by the id bytes as clients did and by
+ * the primitive id, with and without replicas.
+ *
+ * @author Yu Hui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    private static final int DISKS_PER_NODE = 4;
+
+    @Param({"10", "50"})
+    private int nodeCount;
+
+    @Param({"100", "1000", "10000"})
+    private int vnodeFactor;
+
+    private ConsistentHashingRouter router;
+
+    @Setup
+    public void setUp() {
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        for (short i = 0; i < nodeCount; i++) {
+            Node node = new Node();
+            node.setId(i);
+            List<Disk> disks = new ArrayList<>(DISKS_PER_NODE);
+            for (short j = 0; j < DISKS_PER_NODE; j++) {
+                Disk disk = new Disk(j, "/data" + j, 1.0);
+                disk.setNode(node);
+                disks.add(disk);
+            }
+            node.setDisks(disks);
+            nodes.add(node);
+        }
+        router = new ConsistentHashingRouter(nodes, vnodeFactor);
+    }
+
+    @Benchmark
+    public Disk routeBytes() {
+        return router.route(Longs.toByteArray(ThreadLocalRandom.current().nextLong()));
+    }
+
+    @Benchmark
+    public Disk routeLong() {
+        return router.route(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Disk routeLongContended() {
+        return router.route(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    public List<Disk> routeReplicas() {
+        return router.route(ThreadLocalRandom.current().nextLong(), 3);
+    }
+}
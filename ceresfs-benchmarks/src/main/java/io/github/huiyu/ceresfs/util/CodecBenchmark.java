@@ -0,0 +1,87 @@
+package io.github.huiyu.ceresfs.util;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of image indexes, as saved by the MapDB directory, and of nodes, as
+ * published to zookeeper.
+ *
+ * @author Yu Hui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private ImageIndex index;
+    private byte[] encodedIndex;
+    private Node node;
+    private byte[] encodedNode;
+
+    @Setup
+    public void setUp() {
+        index = new ImageIndex();
+        index.setId(Long.MAX_VALUE);
+        index.setVolume(1L);
+        index.setOffset(4096L);
+        index.setSize(4032);
+        index.setType(ImageType.JPG);
+        index.setTime(System.currentTimeMillis());
+        index.setExpireTime(-1L);
+        encodedIndex = Codec.encode(index);
+
+        node = new Node();
+        node.setId((short) 1);
+        node.setHostAddress("192.168.0.1");
+        node.setPort(9900);
+        List<Disk> disks = new ArrayList<>();
+        for (short i = 0; i < 4; i++) {
+            Disk disk = new Disk(i, "/data" + i, 1.0);
+            disk.setNode(node);
+            disks.add(disk);
+        }
+        node.setDisks(disks);
+        encodedNode = Codec.encode(node);
+    }
+
+    @Benchmark
+    public byte[] encodeIndex() {
+        return Codec.encode(index);
+    }
+
+    @Benchmark
+    public Object decodeIndex() {
+        return Codec.decode(encodedIndex);
+    }
+
+    @Benchmark
+    public byte[] encodeNode() {
+        return Codec.encode(node);
+    }
+
+    @Benchmark
+    public Object decodeNode() {
+        return Codec.decode(encodedNode);
+    }
+}
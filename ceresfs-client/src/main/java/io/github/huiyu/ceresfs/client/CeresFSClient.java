@@ -1,15 +1,19 @@
 package io.github.huiyu.ceresfs.client;
 
-import com.google.common.primitives.Longs;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import io.github.huiyu.ceresfs.Const;
 import io.github.huiyu.ceresfs.ImageType;
 import io.github.huiyu.ceresfs.http.HttpBadResponseException;
 import io.github.huiyu.ceresfs.http.HttpClientPool;
+import io.github.huiyu.ceresfs.http.HttpException;
+import io.github.huiyu.ceresfs.http.ImageBatch;
 import io.github.huiyu.ceresfs.retry.NTimesRetryStrategy;
 import io.github.huiyu.ceresfs.retry.RetryStrategy;
 import io.github.huiyu.ceresfs.retry.RetrySupplier;
+import io.github.huiyu.ceresfs.snowflake.Snowflake;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.ListenableRouter;
 import io.github.huiyu.ceresfs.topology.Node;
@@ -22,9 +26,21 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpMethod;
@@ -41,6 +57,7 @@ public class CeresFSClient implements Closeable {
     private final CuratorFramework client;
     private final ListenableRouter router;
     private final HttpClientPool httpClientPool;
+    private final WorkerIdLease workerIdLease;
 
     private final int replication;
     private final int vnodeFactor;
@@ -63,33 +80,123 @@ public class CeresFSClient implements Closeable {
 
         router = new ListenableRouter(client, vnodeFactor);
         httpClientPool = new HttpClientPool();
+        workerIdLease = new WorkerIdLease(client);
 
         this.retryStrategy = retryStrategy;
     }
 
+    /**
+     * Get the image from one of its replicas, starting from a random one and asking the next one
+     * on each retry.
+     */
     public CompletableFuture<Image> get(long id) {
+        AtomicInteger replica = new AtomicInteger(random.nextInt(Math.max(replication, 1)));
         return CompletableFuture.supplyAsync(new RetrySupplier<>(() -> {
             try {
-                Disk disk = router.route(Longs.toByteArray(id));
-                Node node = disk.getNode();
+                Node node = replicaOf(id, replica.getAndIncrement());
                 FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, "/image?id=" + id);
                 FullHttpResponse resp = httpClientPool
                         .getOrCreate(node.getHostAddress(), node.getPort())
                         .newCall(req)
                         .get();
-                if (!resp.status().equals(HttpResponseStatus.OK))
-                    throw new HttpBadResponseException(resp);
-                return new Image(
-                        id,
-                        ImageType.fromMimeType(resp.headers().get(HTTP_HEADER_CONTENT_TYPE)),
-                        Long.parseLong(resp.headers().get(HTTP_HEADER_EXPIRE_TIME)),
-                        resp.content().array());
+                try {
+                    if (!resp.status().equals(HttpResponseStatus.OK))
+                        throw new HttpBadResponseException(resp);
+                    return new Image(
+                            id,
+                            ImageType.fromMimeType(resp.headers().get(HTTP_HEADER_CONTENT_TYPE)),
+                            Long.parseLong(resp.headers().get(HTTP_HEADER_EXPIRE_TIME)),
+                            ByteBufUtil.getBytes(resp.content()));
+                } finally {
+                    resp.release();
+                }
             } catch (Exception e) {
                 throw new UncheckedExecutionException(e);
             }
         }, retryStrategy));
     }
 
+    private Node replicaOf(long id, int replica) {
+        if (replication <= 1) {
+            return router.route(id).getNode();
+        }
+        List<Disk> replicas = router.route(id, replication);
+        return replicas.get(replica % replicas.size()).getNode();
+    }
+
+    /**
+     * Get images in batches, one request for the ids routed to each node. Images left out of a
+     * batch as too large are got one by one.
+     *
+     * @return found images by id, absent images are left out
+     */
+    public CompletableFuture<Map<Long, Image>> getAll(Collection<Long> ids) {
+        Map<Node, List<Long>> groups = new HashMap<>();
+        for (long id : new LinkedHashSet<>(ids)) {
+            Node node = router.route(id).getNode();
+            groups.computeIfAbsent(node, n -> new ArrayList<>()).add(id);
+        }
+
+        List<CompletableFuture<List<ImageBatch.Entry>>> batches = new ArrayList<>();
+        groups.forEach((node, nodeIds) -> {
+            for (List<Long> batch : Lists.partition(nodeIds, ImageBatch.MAX_SIZE)) {
+                batches.add(CompletableFuture.supplyAsync(
+                        new RetrySupplier<>(() -> getBatch(node, batch), retryStrategy)));
+            }
+        });
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]))
+                .thenCompose(v -> {
+                    Map<Long, Image> images = new ConcurrentHashMap<>();
+                    List<CompletableFuture<Image>> singles = new ArrayList<>();
+                    for (CompletableFuture<List<ImageBatch.Entry>> batch : batches) {
+                        for (ImageBatch.Entry entry : batch.join()) {
+                            if (entry.getStatus() == ImageBatch.FOUND) {
+                                images.put(entry.getId(), new Image(entry.getId(),
+                                        entry.getType(), entry.getExpireTime(), entry.getData()));
+                            } else if (entry.getStatus() == ImageBatch.TOO_LARGE) {
+                                singles.add(get(entry.getId()).thenApply(image -> {
+                                    images.put(image.getId(), image);
+                                    return image;
+                                }));
+                            }
+                        }
+                    }
+                    return CompletableFuture
+                            .allOf(singles.toArray(new CompletableFuture[singles.size()]))
+                            .thenApply(w -> images);
+                });
+    }
+
+    private List<ImageBatch.Entry> getBatch(Node node, List<Long> ids) {
+        try {
+            StringBuilder uri = new StringBuilder("/images?");
+            for (int i = 0; i < ids.size(); i++) {
+                uri.append(i == 0 ? "id=" : "&id=").append(ids.get(i));
+            }
+            FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, uri.toString());
+            FullHttpResponse resp = httpClientPool
+                    .getOrCreate(node.getHostAddress(), node.getPort())
+                    .newCall(req)
+                    .get();
+            List<ImageBatch.Entry> entries;
+            try {
+                if (!resp.status().equals(HttpResponseStatus.OK))
+                    throw new HttpBadResponseException(resp);
+                entries = ImageBatch.decode(resp.content());
+            } finally {
+                resp.release();
+            }
+            // retry the whole batch if any image failed to read
+            for (ImageBatch.Entry entry : entries) {
+                if (entry.getStatus() == ImageBatch.ERROR)
+                    throw new HttpBadResponseException(resp, "Read image " + entry.getId() + " error");
+            }
+            return entries;
+        } catch (Exception e) {
+            throw new UncheckedExecutionException(e);
+        }
+    }
+
     public CompletableFuture<Image> save(long id, ImageType type, byte[] data) {
         return save(id, type, -1L, data);
     }
@@ -104,14 +211,18 @@ public class CeresFSClient implements Closeable {
             try {
                 FullHttpRequest request =
                         HttpUtil.newImageUploadRequest(id, type, replication, expireTime, data);
-                Disk disk = router.route(Longs.toByteArray(id));
+                Disk disk = router.route(id);
                 Node node = disk.getNode();
                 FullHttpResponse resp = httpClientPool
                         .getOrCreate(node.getHostAddress(), node.getPort())
                         .newCall(request)
                         .get();
-                if (!resp.status().equals(HttpResponseStatus.OK))
-                    throw new HttpBadResponseException(resp);
+                try {
+                    if (!resp.status().equals(HttpResponseStatus.OK))
+                        throw new HttpBadResponseException(resp);
+                } finally {
+                    resp.release();
+                }
                 return new Image(id, type, expireTime, data);
             } catch (Exception e) {
                 throw new UncheckedExecutionException(e);
@@ -119,6 +230,57 @@ public class CeresFSClient implements Closeable {
         }, retryStrategy));
     }
 
+    public CompletableFuture<List<Image>> saveAll(Collection<Image> images) {
+        return saveAll(images, replication);
+    }
+
+    /**
+     * Save images in batches, one request for the images routed to each node. Images failed
+     * to save are retried, and images already existing are left out of the result, except
+     * those retried which may be saved by an earlier attempt.
+     *
+     * @param images      images with ids
+     * @param replication must be the cluster's, batches are rejected if it's more than 1, as
+     *                    servers keep a single copy of batch uploads
+     * @return saved images
+     */
+    public CompletableFuture<List<Image>> saveAll(Collection<Image> images, int replication) {
+        Preconditions.checkArgument(replication <= 1,
+                "Replicated images can't be uploaded in batch");
+        Map<Node, List<Image>> groups = new HashMap<>();
+        for (Image image : images) {
+            Node node = router.route(image.getId()).getNode();
+            groups.computeIfAbsent(node, n -> new ArrayList<>()).add(image);
+        }
+
+        List<CompletableFuture<List<Image>>> batches = new ArrayList<>();
+        groups.forEach((node, nodeImages) -> {
+            List<Image> batch = new ArrayList<>();
+            long bytes = 0L;
+            for (Image image : nodeImages) {
+                if (!batch.isEmpty() && (batch.size() >= ImageBatch.MAX_SIZE
+                        || bytes + image.getData().length > ImageBatch.MAX_UPLOAD_BYTES)) {
+                    batches.add(CompletableFuture.supplyAsync(new RetrySupplier<>(
+                            new BatchUpload(node, batch, replication), retryStrategy)));
+                    batch = new ArrayList<>();
+                    bytes = 0L;
+                }
+                batch.add(image);
+                bytes += image.getData().length;
+            }
+            batches.add(CompletableFuture.supplyAsync(new RetrySupplier<>(
+                    new BatchUpload(node, batch, replication), retryStrategy)));
+        });
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]))
+                .thenApply(v -> {
+                    List<Image> saved = new ArrayList<>();
+                    for (CompletableFuture<List<Image>> batch : batches) {
+                        saved.addAll(batch.join());
+                    }
+                    return saved;
+                });
+    }
+
     public CompletableFuture<Image> save(ImageType type, byte[] data) {
         return save(type, -1L, data);
     }
@@ -127,23 +289,37 @@ public class CeresFSClient implements Closeable {
         return save(type, replication, expireTime, data);
     }
 
+    /**
+     * Save an image without id. The id is generated by the client if a worker id is leased, so
+     * the image is uploaded to the node owning it directly, otherwise the id is generated by a
+     * random node, which forwards the image to the owner.
+     */
     public CompletableFuture<Image> save(ImageType type, int replication, long expireTime,
                                          byte[] data) {
+        Snowflake snowflake = workerIdLease.get();
+        if (snowflake != null) {
+            return save(snowflake.nextId(), type, replication, expireTime, data);
+        }
         return CompletableFuture.supplyAsync(new RetrySupplier<>(() -> {
             try {
                 FullHttpRequest request =
                         HttpUtil.newImageUploadRequest(type, replication, expireTime, data);
                 request.headers().set(Const.HTTP_HEADER_MAX_FORWARDS, 1);
-                Disk disk = router.route(Longs.toByteArray(random.nextLong()));
+                Disk disk = router.route(random.nextLong());
                 Node node = disk.getNode();
                 FullHttpResponse resp = httpClientPool
                         .getOrCreate(node.getHostAddress(), node.getPort())
                         .newCall(request)
                         .get();
-                if (!resp.status().equals(HttpResponseStatus.OK)) {
-                    throw new HttpBadResponseException(resp);
+                long id;
+                try {
+                    if (!resp.status().equals(HttpResponseStatus.OK)) {
+                        throw new HttpBadResponseException(resp);
+                    }
+                    id = Long.parseLong(resp.headers().get(HTTP_HEADER_IMAGE_ID));
+                } finally {
+                    resp.release();
                 }
-                long id = Long.parseLong(resp.headers().get(HTTP_HEADER_IMAGE_ID));
                 return new Image(id, type, expireTime, data);
             } catch (Exception e) {
                 throw new UncheckedExecutionException(e);
@@ -163,14 +339,17 @@ public class CeresFSClient implements Closeable {
                 encoder.addBodyAttribute("id", String.valueOf(id));
                 encoder.finalizeRequest();
 
-                Node node = router.route(Longs.toByteArray(id)).getNode();
+                Node node = router.route(id).getNode();
                 FullHttpResponse resp = httpClientPool
                         .getOrCreate(node.getHostAddress(), node.getPort())
                         .newCall(request)
                         .get();
-
-                if (!resp.status().equals(HttpResponseStatus.OK))
-                    throw new HttpBadResponseException(resp);
+                try {
+                    if (!resp.status().equals(HttpResponseStatus.OK))
+                        throw new HttpBadResponseException(resp);
+                } finally {
+                    resp.release();
+                }
                 return null;
             } catch (Exception e) {
                 throw new UncheckedExecutionException(e);
@@ -178,8 +357,78 @@ public class CeresFSClient implements Closeable {
         }, retryStrategy));
     }
 
+    /**
+     * Upload of a batch, each attempt sends the images not saved yet
+     */
+    private class BatchUpload implements Supplier<List<Image>> {
+
+        private final Node node;
+        private final int replication;
+        private final List<Image> saved = new ArrayList<>();
+        private List<Image> remaining;
+        private boolean retried = false;
+
+        BatchUpload(Node node, List<Image> images, int replication) {
+            this.node = node;
+            this.remaining = images;
+            this.replication = replication;
+        }
+
+        @Override
+        public List<Image> get() {
+            boolean retry = retried;
+            retried = true;
+            try {
+                Map<Long, Image> byId = new HashMap<>();
+                List<Long> ids = new ArrayList<>(remaining.size());
+                List<ImageType> types = new ArrayList<>(remaining.size());
+                List<Long> expireTimes = new ArrayList<>(remaining.size());
+                List<ByteBuf> data = new ArrayList<>(remaining.size());
+                for (Image image : remaining) {
+                    byId.put(image.getId(), image);
+                    ids.add(image.getId());
+                    types.add(image.getType());
+                    expireTimes.add(image.getExpireTime());
+                    data.add(Unpooled.wrappedBuffer(image.getData()));
+                }
+                FullHttpRequest request = HttpUtil.newImageBatchUploadRequest(
+                        ids, types, expireTimes, replication, data);
+                FullHttpResponse resp = httpClientPool
+                        .getOrCreate(node.getHostAddress(), node.getPort())
+                        .newCall(request)
+                        .get();
+                List<ImageBatch.Entry> entries;
+                try {
+                    if (!resp.status().equals(HttpResponseStatus.OK))
+                        throw new HttpBadResponseException(resp);
+                    entries = ImageBatch.decode(resp.content());
+                } finally {
+                    resp.release();
+                }
+
+                List<Image> failed = new ArrayList<>();
+                for (ImageBatch.Entry entry : entries) {
+                    Image image = byId.get(entry.getId());
+                    if (entry.getStatus() == ImageBatch.SAVED
+                            || (entry.getStatus() == ImageBatch.EXISTS && retry)) {
+                        saved.add(image);
+                    } else if (entry.getStatus() == ImageBatch.ERROR) {
+                        failed.add(image);
+                    }
+                }
+                remaining = failed;
+                if (!failed.isEmpty())
+                    throw new HttpException(failed.size() + " images failed to save on " + node);
+                return saved;
+            } catch (Exception e) {
+                throw new UncheckedExecutionException(e);
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
+        workerIdLease.close();
         router.close();
         httpClientPool.close();
         client.close();
@@ -0,0 +1,123 @@
+package io.github.huiyu.ceresfs.client;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.snowflake.Snowflake;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A snowflake worker id leased from zookeeper as an ephemeral node under
+ * {@link Const#ZK_WORKERS_PATH}, so ids can be generated by the client and images uploaded
+ * to the node owning them directly. Worker ids of clients are taken from
+ * [{@link Const#MIN_CLIENT_WORKER_ID}, {@link Const#MAX_CLIENT_WORKER_ID}], never overlapping
+ * node ids. The lease is suspended while disconnected, since the worker id may be taken by
+ * another client once the session expires, and renewed on reconnection.
+ *
+ * @author Yu Hui
+ */
+class WorkerIdLease implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerIdLease.class);
+
+    private final CuratorFramework client;
+
+    private volatile int workerId = -1;
+    // snowflake of the worker id, kept across reconnections so ids never go back in sequence
+    private Snowflake leased;
+    // leased snowflake while connected
+    private volatile Snowflake snowflake;
+    private volatile boolean closed = false;
+
+    WorkerIdLease(CuratorFramework client) {
+        this.client = client;
+        client.getConnectionStateListenable().addListener((c, state) -> {
+            if (state == ConnectionState.SUSPENDED || state == ConnectionState.LOST) {
+                snowflake = null;
+            } else if (state == ConnectionState.RECONNECTED) {
+                renew();
+            }
+        });
+        renew();
+    }
+
+    /**
+     * @return snowflake of the leased worker id, or null if not leased at the moment
+     */
+    Snowflake get() {
+        return snowflake;
+    }
+
+    int getWorkerId() {
+        return snowflake == null ? -1 : workerId;
+    }
+
+    /**
+     * Keep the worker id if the session holding it survives, or lease a new one
+     */
+    synchronized void renew() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (workerId >= 0) {
+                Stat stat = client.checkExists().forPath(Const.makeZKWorkerPath(workerId));
+                long session = client.getZookeeperClient().getZooKeeper().getSessionId();
+                if (stat != null && stat.getEphemeralOwner() == session) {
+                    snowflake = leased;
+                    return;
+                }
+            }
+            lease();
+        } catch (Exception e) {
+            LOG.error("Lease worker id error, ids are generated by nodes instead", e);
+        }
+    }
+
+    private void lease() throws Exception {
+        int range = Const.MAX_CLIENT_WORKER_ID - Const.MIN_CLIENT_WORKER_ID + 1;
+        int start = ThreadLocalRandom.current().nextInt(range);
+        for (int i = 0; i < range; i++) {
+            int id = Const.MIN_CLIENT_WORKER_ID + (start + i) % range;
+            try {
+                client.create()
+                        .creatingParentsIfNeeded()
+                        .withMode(CreateMode.EPHEMERAL)
+                        .forPath(Const.makeZKWorkerPath(id));
+            } catch (KeeperException.NodeExistsException e) {
+                continue;
+            }
+            workerId = id;
+            leased = new Snowflake.Builder(id).build();
+            snowflake = leased;
+            LOG.info("Worker id {} leased", id);
+            return;
+        }
+        workerId = -1;
+        leased = null;
+        LOG.warn("All worker ids are leased, ids are generated by nodes instead");
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        // while suspended the worker id may already belong to another client
+        boolean leased = snowflake != null;
+        snowflake = null;
+        if (leased) {
+            try {
+                client.delete().guaranteed().forPath(Const.makeZKWorkerPath(workerId));
+            } catch (Exception e) {
+                LOG.warn("Release worker id " + workerId + " error", e);
+            }
+        }
+    }
+}
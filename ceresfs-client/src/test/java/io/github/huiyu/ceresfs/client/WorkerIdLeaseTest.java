@@ -0,0 +1,80 @@
+package io.github.huiyu.ceresfs.client;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.snowflake.Snowflake;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WorkerIdLeaseTest {
+
+    private TestingServer testingServer;
+    private CuratorFramework zookeeperClient;
+
+    @Before
+    public void setUp() throws Exception {
+        testingServer = new TestingServer(true);
+        ExponentialBackoffRetry retryPolicy = new ExponentialBackoffRetry(200, 10);
+        zookeeperClient = CuratorFrameworkFactory.newClient(
+                testingServer.getConnectString(), retryPolicy);
+        zookeeperClient.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zookeeperClient.close();
+        testingServer.close();
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        WorkerIdLease lease1 = new WorkerIdLease(zookeeperClient);
+        WorkerIdLease lease2 = new WorkerIdLease(zookeeperClient);
+        int id1 = lease1.getWorkerId();
+        int id2 = lease2.getWorkerId();
+        assertTrue(id1 >= Const.MIN_CLIENT_WORKER_ID && id1 <= Const.MAX_CLIENT_WORKER_ID);
+        assertTrue(id2 >= Const.MIN_CLIENT_WORKER_ID && id2 <= Const.MAX_CLIENT_WORKER_ID);
+        assertNotEquals(id1, id2);
+        assertNotEquals(lease1.get().nextId(), lease2.get().nextId());
+
+        lease1.close();
+        assertNull(lease1.get());
+        assertNull(zookeeperClient.checkExists().forPath(Const.makeZKWorkerPath(id1)));
+        assertNotNull(zookeeperClient.checkExists().forPath(Const.makeZKWorkerPath(id2)));
+        lease2.close();
+    }
+
+    @Test
+    public void testRenewSameSession() throws Exception {
+        WorkerIdLease lease = new WorkerIdLease(zookeeperClient);
+        int id = lease.getWorkerId();
+        Snowflake snowflake = lease.get();
+        long last = snowflake.nextId();
+
+        // the session holding the worker id survives, ids go on from the same snowflake
+        lease.renew();
+        assertEquals(id, lease.getWorkerId());
+        assertSame(snowflake, lease.get());
+        assertTrue(lease.get().nextId() > last);
+        lease.close();
+    }
+
+    @Test
+    public void testExhausted() throws Exception {
+        for (int id = Const.MIN_CLIENT_WORKER_ID; id <= Const.MAX_CLIENT_WORKER_ID; id++) {
+            zookeeperClient.create().creatingParentsIfNeeded()
+                    .forPath(Const.makeZKWorkerPath(id));
+        }
+        WorkerIdLease lease = new WorkerIdLease(zookeeperClient);
+        assertNull(lease.get());
+        assertEquals(-1, lease.getWorkerId());
+        lease.close();
+    }
+}
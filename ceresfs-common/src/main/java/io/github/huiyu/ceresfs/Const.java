@@ -12,6 +12,15 @@ public final class Const {
 
     public static final String ZK_CONFIG_PATH = ZK_BASE_PATH + "/configuration";
 
+    public static final String ZK_WORKERS_PATH = ZK_BASE_PATH + "/workers";
+
+    // snowflake worker ids of nodes are their node ids, clients lease ids from the upper half
+    public static final int MAX_NODE_ID = 511;
+
+    public static final int MIN_CLIENT_WORKER_ID = MAX_NODE_ID + 1;
+
+    public static final int MAX_CLIENT_WORKER_ID = 1023;
+
     public static final int MAX_IMAGE_SIZE = 128 * 1024 * 1024;
 
     public static final String HTTP_TOKEN_NAME = "token";
@@ -29,4 +38,8 @@ public final class Const {
     public static String makeZKNodePath(short nodeId) {
         return ZKPaths.makePath(ZK_NODES_PATH, String.valueOf(nodeId));
     }
+
+    public static String makeZKWorkerPath(int workerId) {
+        return ZKPaths.makePath(ZK_WORKERS_PATH, String.valueOf(workerId));
+    }
 }
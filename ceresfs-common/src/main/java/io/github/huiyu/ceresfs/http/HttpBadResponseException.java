@@ -1,19 +1,30 @@
 package io.github.huiyu.ceresfs.http;
 
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpResponse;
 
+/**
+ * Response of unexpected status. Only the status line and headers are kept, as the content of
+ * a full response is released by its owner.
+ */
 public class HttpBadResponseException extends HttpException {
 
     private HttpResponse response;
 
     public HttpBadResponseException(HttpResponse response) {
         super(response.toString());
-        this.response = response;
+        this.response = head(response);
     }
 
     public HttpBadResponseException(HttpResponse response, String message) {
         super(message + "\n" + response.toString());
-        this.response = response;
+        this.response = head(response);
+    }
+
+    private static HttpResponse head(HttpResponse response) {
+        return new DefaultHttpResponse(response.protocolVersion(), response.status(),
+                new DefaultHttpHeaders().set(response.headers()));
     }
 
     public HttpResponse getResponse() {
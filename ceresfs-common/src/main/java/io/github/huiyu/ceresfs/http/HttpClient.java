@@ -1,32 +1,18 @@
 package io.github.huiyu.ceresfs.http;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.util.concurrent.UncheckedExecutionException;
-
-
 import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.util.ChannelPool;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.net.InetSocketAddress;
-import java.util.UUID;
+import java.nio.channels.ClosedChannelException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler;
-import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
@@ -38,72 +24,59 @@ import io.netty.handler.codec.http.HttpResponseDecoder;
 
 import static com.google.common.base.Preconditions.*;
 
+/**
+ * Http client of a host, requests are spread over a fixed number of channels round robin and
+ * pipelined on each channel. Responses are matched to calls by the token header, as servers
+ * may respond out of order, and calls not responded in time fail with
+ * {@link TimeoutException}. Channels are connected lazily and reconnected once closed.
+ * <p>
+ * Requests are released once sent or failed, so requests proxying content of others should
+ * retain it. Responses are not copied, callers own and should release them. Cancelled calls
+ * are still sent, their responses are dropped.
+ */
 public class HttpClient {
 
-    private static final Logger LOG = LoggerFactory.getLogger(HttpClient.class);
-
     private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
 
     private final String host;
     private final int port;
 
-    private volatile EventLoopGroup workerGroup;
-    private volatile Channel channel;
-    private volatile HttpClientHandler clientHandler;
+    private final EventLoopGroup workerGroup;
+    private final boolean sharedGroup;
 
-    private final Cache<String, CompletableFuture<FullHttpResponse>> callbacks;
+    private final ChannelPool<String, FullHttpResponse> channels;
+    private final AtomicLong nextToken = new AtomicLong();
 
-    private HttpClient(String host, int port, long timeoutMills, int aggregatorBufferSize) {
+    private HttpClient(String host, int port, long timeoutMills, int aggregatorBufferSize,
+                       int channels, EventLoopGroup workerGroup) {
+        checkArgument(channels > 0, "Channels must > 0");
         this.host = host;
         this.port = port;
-        this.clientHandler = new HttpClientHandler();
-        this.workerGroup = new NioEventLoopGroup();
-
-        RemovalListener<String, CompletableFuture<FullHttpResponse>> listener = n -> {
-            if (n.getCause().equals(RemovalCause.EXPLICIT)) {
-                return;
-            } else if (n.getCause().equals(RemovalCause.EXPIRED)) {
-                n.getValue().completeExceptionally(new TimeoutException());
-            } else {
-                n.getValue().completeExceptionally(new InterruptedException());
-            }
-        };
-
-        this.callbacks = CacheBuilder.newBuilder()
-                .expireAfterAccess(timeoutMills, TimeUnit.MILLISECONDS)
-                .removalListener(listener)
-                .build();
-
-        try {
-            Bootstrap b = new Bootstrap();
-            b.group(workerGroup);
-            b.channel(NioSocketChannel.class);
-            b.option(ChannelOption.SO_KEEPALIVE, true);
-            b.handler(new ChannelInitializer<SocketChannel>() {
-                @Override
-                public void initChannel(SocketChannel ch) throws Exception {
-                    ch.pipeline().addLast(new HttpResponseDecoder());
-                    ch.pipeline().addLast(new HttpRequestEncoder());
-                    ch.pipeline().addLast(new HttpObjectAggregator(aggregatorBufferSize));
-                    ch.pipeline().addLast(clientHandler);
-                }
-            });
-
-            // Start the client.
-            ChannelFuture f = b.connect(host, port).sync();
-            channel = f.channel();
-        } catch (InterruptedException e) {
-            throw new UncheckedExecutionException(e);
-        }
+        this.sharedGroup = workerGroup != null;
+        this.workerGroup = sharedGroup ? workerGroup : new NioEventLoopGroup();
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(this.workerGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpResponseDecoder());
+                        ch.pipeline().addLast(new HttpRequestEncoder());
+                        ch.pipeline().addLast(new HttpObjectAggregator(aggregatorBufferSize));
+                        ch.pipeline().addLast(new HttpClientHandler());
+                    }
+                });
+        this.channels = new ChannelPool<>(bootstrap, host, port, channels, timeoutMills);
     }
 
     public CompletableFuture<FullHttpResponse> newCall(HttpRequest request) {
-        String token = UUID.randomUUID().toString();
+        checkNotNull(request);
+        String token = Long.toString(nextToken.incrementAndGet());
         request.headers().set(Const.HTTP_TOKEN_NAME, token);
-        CompletableFuture<FullHttpResponse> future = new CompletableFuture<>();
-        this.callbacks.put(token, future);
-        writeAndFlush(request);
-        return future;
+        return channels.call(token, request);
     }
 
     public String getHost() {
@@ -114,14 +87,15 @@ public class HttpClient {
         return port;
     }
 
+    /**
+     * Close all channels, calls in flight fail with {@link ClosedChannelException}. The event
+     * loop group is shut down unless it's shared.
+     */
     public void shutdown() {
-        workerGroup.shutdownGracefully();
-        callbacks.asMap().forEach((String id, CompletableFuture<FullHttpResponse> callback) ->
-                callback.completeExceptionally(new InterruptedException()));
-    }
-
-    protected void writeAndFlush(Object msg) {
-        channel.writeAndFlush(checkNotNull(msg));
+        channels.shutdown();
+        if (!sharedGroup) {
+            workerGroup.shutdownGracefully();
+        }
     }
 
     public static class Builder {
@@ -131,6 +105,8 @@ public class HttpClient {
 
         private long timeout = DEFAULT_TIMEOUT;
         private int aggregateBufferSize = Const.MAX_IMAGE_SIZE + 8192;
+        private int channels = 1;
+        private EventLoopGroup workerGroup;
 
         public Builder(String host, int port) {
             this.host = host;
@@ -147,36 +123,40 @@ public class HttpClient {
             return this;
         }
 
+        public Builder channels(int channels) {
+            this.channels = channels;
+            return this;
+        }
+
+        /**
+         * Share the event loop group with other clients, it's not shut down with the client
+         */
+        public Builder workerGroup(EventLoopGroup workerGroup) {
+            this.workerGroup = workerGroup;
+            return this;
+        }
+
         public HttpClient build() {
-            return new HttpClient(host, port, timeout, aggregateBufferSize);
+            return new HttpClient(host, port, timeout, aggregateBufferSize, channels,
+                    workerGroup);
         }
     }
 
-    @ChannelHandler.Sharable
-    class HttpClientHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+    /**
+     * Calls in flight of a channel, matched by the token header
+     */
+    private static class HttpClientHandler
+            extends ChannelPool.CallHandler<String, FullHttpResponse, FullHttpResponse> {
 
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg)
-                throws Exception {
-            String token = msg.headers().get(Const.HTTP_TOKEN_NAME);
-            if (token == null) {
-                InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
-                LOG.error("No response handler for message from ", address.getHostString());
-            }
-
-            CompletableFuture<FullHttpResponse> future = callbacks.getIfPresent(checkNotNull(token));
-            if (future != null) {
-                callbacks.invalidate(token);
-                future.complete(msg.copy());
-            } else {
-                InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
-                LOG.error("No response handler for message from ", address.getHostString());
-            }
+        protected String key(FullHttpResponse msg) {
+            return msg.headers().get(Const.HTTP_TOKEN_NAME);
         }
 
         @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-            LOG.error("HttpClient internal error", cause);
+        protected FullHttpResponse response(FullHttpResponse msg) {
+            // handed over as is, the caller owns the aggregated response
+            return msg.retain();
         }
     }
 }
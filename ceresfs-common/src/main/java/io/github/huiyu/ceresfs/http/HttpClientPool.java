@@ -17,11 +17,21 @@ import java.io.UncheckedIOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Http clients by host and port, all clients share one event loop group.
+ */
 public class HttpClientPool implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpClientPool.class);
 
-    private int aggregatorBufferSize;
+    private static final int DEFAULT_CHANNELS = 4;
+
+    private final int aggregatorBufferSize;
+    private final int channels;
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
 
     private Cache<String, HttpClient> cache = CacheBuilder.newBuilder()
             .removalListener((RemovalListener<String, HttpClient>) notification -> {
@@ -33,7 +43,15 @@ public class HttpClientPool implements Closeable {
             .build();
 
     public HttpClientPool() {
+        this(DEFAULT_CHANNELS);
+    }
+
+    /**
+     * @param channels number of channels per host
+     */
+    public HttpClientPool(int channels) {
         this.aggregatorBufferSize = Const.MAX_IMAGE_SIZE + 8192;
+        this.channels = channels;
     }
 
     public HttpClient getOrCreate(String host, int port) {
@@ -43,6 +61,8 @@ public class HttpClientPool implements Closeable {
                 LOG.debug("HttpClient[{}] created", key);
                 return new HttpClient.Builder(host, port)
                         .aggregateBufferSize(aggregatorBufferSize)
+                        .channels(channels)
+                        .workerGroup(workerGroup)
                         .build();
             });
         } catch (ExecutionException e) {
@@ -54,9 +74,17 @@ public class HttpClientPool implements Closeable {
         }
     }
 
+    /**
+     * Event loop group of all clients, also fit for scheduling follow-up calls
+     */
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
     @Override
     public void close() throws IOException {
         cache.invalidateAll();
+        workerGroup.shutdownGracefully();
     }
 }
 
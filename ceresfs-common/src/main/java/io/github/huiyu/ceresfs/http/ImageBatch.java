@@ -0,0 +1,200 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.ImageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Body of batch image responses, a sequence of length prefixed entries. Each entry is id (8),
+ * status (1), type (1), expire time (8) and size (4), followed by image data. Every requested id
+ * has exactly one entry, but entries are not in request order, as a server passes on the entries
+ * of other nodes in groups. Entries of batch uploads carry no data.
+ * <p>
+ * Images of a batch read total at most {@link #MAX_READ_BYTES}, images beyond are reported as
+ * {@link #TOO_LARGE} and left to single reads.
+ *
+ * @author Yu Hui
+ */
+public final class ImageBatch {
+
+    public static final String MIME_TYPE = "application/x-ceresfs-batch";
+
+    // max number of ids in a batch request
+    public static final int MAX_SIZE = 1000;
+    // max total image size of a batch upload, leaving room for multipart overhead
+    public static final int MAX_UPLOAD_BYTES = Const.MAX_IMAGE_SIZE / 2;
+    // max total image size of a batch read response
+    public static final int MAX_READ_BYTES = Const.MAX_IMAGE_SIZE / 2;
+
+    public static final byte FOUND = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte ERROR = 2;
+    // status of uploads, saved shares the code with found
+    public static final byte SAVED = FOUND;
+    public static final byte EXISTS = 3;
+    // status of images left out of a batch read, as they would exceed MAX_READ_BYTES
+    public static final byte TOO_LARGE = 4;
+
+    static final int HEADER_LENGTH = 22;
+
+    private ImageBatch() {
+    }
+
+    /**
+     * Encode a found image, image data is wrapped rather than copied
+     */
+    public static ByteBuf encode(long id, ImageType type, long expireTime, byte[] data) {
+        ByteBuf header = Unpooled.buffer(HEADER_LENGTH);
+        header.writeLong(id)
+                .writeByte(FOUND)
+                .writeByte(type.getCode())
+                .writeLong(expireTime)
+                .writeInt(data.length);
+        return Unpooled.wrappedBuffer(header, Unpooled.wrappedBuffer(data));
+    }
+
+    /**
+     * Encode an image which is not found or failed to read
+     */
+    public static ByteBuf encode(long id, byte status) {
+        ByteBuf header = Unpooled.buffer(HEADER_LENGTH);
+        header.writeLong(id)
+                .writeByte(status)
+                .writeByte(0)
+                .writeLong(0L)
+                .writeInt(0);
+        return header;
+    }
+
+    /**
+     * Take the size of an image from the bytes left for a batch read
+     *
+     * @return whether the image fits, the bytes left are untouched if not
+     */
+    public static boolean charge(AtomicLong remaining, int size) {
+        while (true) {
+            long current = remaining.get();
+            if (current < size) {
+                return false;
+            }
+            if (remaining.compareAndSet(current, current - size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Charge found images of encoded entries, images which don't fit are replaced by
+     * {@link #TOO_LARGE} entries. The entries are released, fitting ones are sliced rather than
+     * copied.
+     *
+     * @throws IllegalArgumentException if the buffer ends in the middle of an entry
+     */
+    public static ByteBuf limit(ByteBuf entries, AtomicLong remaining) {
+        CompositeByteBuf limited = Unpooled.compositeBuffer(MAX_SIZE);
+        try {
+            while (entries.isReadable()) {
+                int start = entries.readerIndex();
+                if (entries.readableBytes() < HEADER_LENGTH) {
+                    throw new IllegalArgumentException("Truncated batch entry header");
+                }
+                long id = entries.getLong(start);
+                byte status = entries.getByte(start + 8);
+                int size = entries.getInt(start + HEADER_LENGTH - 4);
+                if (size < 0 || entries.readableBytes() - HEADER_LENGTH < size) {
+                    throw new IllegalArgumentException("Truncated data of image " + id);
+                }
+                if (status == FOUND && !charge(remaining, size)) {
+                    limited.addComponent(true, encode(id, TOO_LARGE));
+                } else {
+                    limited.addComponent(true, entries.retainedSlice(start, HEADER_LENGTH + size));
+                }
+                entries.skipBytes(HEADER_LENGTH + size);
+            }
+            return limited;
+        } catch (RuntimeException e) {
+            limited.release();
+            throw e;
+        } finally {
+            entries.release();
+        }
+    }
+
+    /**
+     * Decode all entries of the buffer, the readable bytes are consumed.
+     *
+     * @throws IllegalArgumentException if the buffer ends in the middle of an entry
+     */
+    public static List<Entry> decode(ByteBuf buffer) {
+        List<Entry> entries = new ArrayList<>();
+        while (buffer.isReadable()) {
+            if (buffer.readableBytes() < HEADER_LENGTH) {
+                throw new IllegalArgumentException("Truncated batch entry header");
+            }
+            long id = buffer.readLong();
+            byte status = buffer.readByte();
+            byte type = buffer.readByte();
+            long expireTime = buffer.readLong();
+            int size = buffer.readInt();
+            if (size < 0 || buffer.readableBytes() < size) {
+                throw new IllegalArgumentException("Truncated data of image " + id);
+            }
+            byte[] data = new byte[size];
+            buffer.readBytes(data);
+            entries.add(new Entry(id, status,
+                    type == 0 ? null : ImageType.fromCode(type), expireTime, data));
+        }
+        return entries;
+    }
+
+    public static final class Entry {
+
+        private final long id;
+        private final byte status;
+        private final ImageType type;
+        private final long expireTime;
+        private final byte[] data;
+
+        Entry(long id, byte status, ImageType type, long expireTime, byte[] data) {
+            this.id = id;
+            this.status = status;
+            this.type = type;
+            this.expireTime = expireTime;
+            this.data = data;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return {@link #FOUND}, {@link #NOT_FOUND}, {@link #ERROR} or {@link #TOO_LARGE}, or
+         * {@link #SAVED}, {@link #EXISTS} or {@link #ERROR} for uploads
+         */
+        public byte getStatus() {
+            return status;
+        }
+
+        /**
+         * @return image type, null if not found or of an upload
+         */
+        public ImageType getType() {
+            return type;
+        }
+
+        public long getExpireTime() {
+            return expireTime;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import io.github.huiyu.ceresfs.util.HashUtil;
 import io.github.huiyu.ceresfs.util.NumericUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -14,6 +15,13 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.*;
 
+/**
+ * Router on a hash circle of virtual nodes of disks. Topology changes are made on the circle
+ * under lock, then published as an immutable {@link Ring} snapshot, so routing is lock free and
+ * only looks up sorted arrays.
+ *
+ * @author Yu Hui
+ */
 public class ConsistentHashingRouter implements Router {
 
     private final Random random = new Random();
@@ -21,6 +29,8 @@ public class ConsistentHashingRouter implements Router {
     private final TreeMap<Long, Disk> hashCircle = new TreeMap<>();
     private final int vnodeFactor;
 
+    private volatile Ring ring = new Ring(new TreeMap<>());
+
     public ConsistentHashingRouter(int vnodeFactor) {
         this.vnodeFactor = vnodeFactor;
     }
@@ -28,8 +38,11 @@ public class ConsistentHashingRouter implements Router {
     protected ConsistentHashingRouter(List<Node> nodes, int vnodeFactor) {
         this.vnodeFactor = vnodeFactor;
         checkNotNull(nodes);
-        for (Node node : nodes) {
-            addNode(node);
+        synchronized (this) {
+            for (Node node : nodes) {
+                addNodeInternal(node);
+            }
+            publish();
         }
     }
 
@@ -54,6 +67,11 @@ public class ConsistentHashingRouter implements Router {
     }
 
     protected synchronized void addNode(Node node) {
+        addNodeInternal(node);
+        publish();
+    }
+
+    private void addNodeInternal(Node node) {
         checkArgument(!nodes.containsKey(node.getId()));
         nodes.put(node.getId(), node);
         List<Disk> disks = node.getDisks();
@@ -69,6 +87,7 @@ public class ConsistentHashingRouter implements Router {
         for (Disk disk : disks) {
             removeDiskInternal(disk);
         }
+        publish();
     }
 
     protected synchronized void addDisk(Disk disk) {
@@ -76,6 +95,7 @@ public class ConsistentHashingRouter implements Router {
         node.getDisks().add(disk);
         disk.setNode(node);
         addDiskInternal(disk);
+        publish();
     }
 
     private synchronized void addDiskInternal(Disk disk) {
@@ -103,6 +123,7 @@ public class ConsistentHashingRouter implements Router {
         if (toDelete != null) {
             node.getDisks().remove(toDelete);
             removeDiskInternal(toDelete);
+            publish();
         }
     }
 
@@ -118,68 +139,110 @@ public class ConsistentHashingRouter implements Router {
         }
     }
 
+    /**
+     * Replace the disk by one of the new weight, published at once so routing never sees the
+     * circle without the disk
+     */
     protected synchronized void changeDiskWeight(Disk disk, double newWeight) {
         Disk original = getDisk(disk.getNode().getId(), disk.getId());
         checkNotNull(original);
         checkArgument(newWeight != original.getWeight());
         Disk updated = new Disk(original.getId(), original.getPath(), newWeight);
-        updated.setNode(original.getNode());
+        Node node = original.getNode();
+        updated.setNode(node);
 
-        removeDisk(original);
-        addDisk(disk);
+        List<Disk> disks = node.getDisks();
+        disks.set(disks.indexOf(original), updated);
+        removeDiskInternal(original);
+        addDiskInternal(updated);
+        publish();
+    }
+
+    private void publish() {
+        ring = new Ring(hashCircle);
     }
 
     @Override
-    public synchronized Disk route(byte[] id) {
-        long hash = HashUtil.murmur(id);
-        return ceiling(hash).getValue();
+    public Disk route(byte[] id) {
+        return ring.route(HashUtil.murmur(id));
     }
 
     @Override
-    public synchronized List<Disk> route(byte[] id, int replication) {
-        long hash = HashUtil.murmur(id);
-        Map.Entry<Long, Disk> firstEntry = ceiling(hash);
-
-        int count = nodes.size() < replication ? nodes.size() : replication;
-        List<Disk> disks = new ArrayList<>(count);
-        disks.add(firstEntry.getValue());
-        // for checking duplicated node
-        Set<Short> nodeIds = new HashSet<>(replication);
-        nodeIds.add(firstEntry.getValue().getNode().getId());
-
-        long currentKey = firstEntry.getKey();
-        for (int i = 0; i < count - 1; i++) {
-            // find next disk with different node
-            while (true) {
-                Map.Entry<Long, Disk> next = higher(currentKey);
-                currentKey = next.getKey();
-                Disk disk = next.getValue();
-                short nodeId = disk.getNode().getId();
-                if (!nodeIds.contains(nodeId)) {
-                    disks.add(disk);
-                    nodeIds.add(nodeId);
-                    break;
-                }
+    public Disk route(long id) {
+        return ring.route(HashUtil.murmur(id));
+    }
+
+    @Override
+    public List<Disk> route(byte[] id, int replication) {
+        return ring.route(HashUtil.murmur(id), replication);
+    }
+
+    @Override
+    public List<Disk> route(long id, int replication) {
+        return ring.route(HashUtil.murmur(id), replication);
+    }
+
+    /**
+     * Immutable snapshot of the hash circle, keys sorted with disks at the same indexes.
+     */
+    private static final class Ring {
+
+        private final long[] keys;
+        private final Disk[] disks;
+        // number of nodes having disks on the circle
+        private final int nodeCount;
+
+        Ring(TreeMap<Long, Disk> hashCircle) {
+            keys = new long[hashCircle.size()];
+            disks = new Disk[hashCircle.size()];
+            Set<Short> nodeIds = new HashSet<>();
+            int i = 0;
+            for (Map.Entry<Long, Disk> entry : hashCircle.entrySet()) {
+                keys[i] = entry.getKey();
+                disks[i] = entry.getValue();
+                nodeIds.add(entry.getValue().getNode().getId());
+                i++;
             }
+            nodeCount = nodeIds.size();
         }
-        return disks;
-    }
 
-    private Map.Entry<Long, Disk> ceiling(long hash) {
-        Map.Entry<Long, Disk> ceiling = hashCircle.ceilingEntry(hash);
-        if (ceiling == null) {
-            return hashCircle.firstEntry();
-        } else {
-            return ceiling;
+        Disk route(long hash) {
+            return disks[ceiling(hash)];
         }
-    }
 
-    private Map.Entry<Long, Disk> higher(long hash) {
-        Map.Entry<Long, Disk> higher = hashCircle.higherEntry(hash);
-        if (higher == null) {
-            return hashCircle.firstEntry();
-        } else {
-            return higher;
+        List<Disk> route(long hash, int replication) {
+            int index = ceiling(hash);
+
+            int count = nodeCount < replication ? nodeCount : replication;
+            List<Disk> result = new ArrayList<>(count);
+            result.add(disks[index]);
+            // for checking duplicated node
+            Set<Short> nodeIds = new HashSet<>(replication);
+            nodeIds.add(disks[index].getNode().getId());
+
+            for (int i = 0; i < count - 1; i++) {
+                // find next disk with different node
+                while (true) {
+                    index = index + 1 == disks.length ? 0 : index + 1;
+                    Disk disk = disks[index];
+                    short nodeId = disk.getNode().getId();
+                    if (!nodeIds.contains(nodeId)) {
+                        result.add(disk);
+                        nodeIds.add(nodeId);
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private int ceiling(long hash) {
+            checkState(keys.length > 0, "No disk to route");
+            int index = Arrays.binarySearch(keys, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == keys.length ? 0 : index;
         }
     }
 }
@@ -183,6 +183,16 @@ public class ListenableRouter implements Router, Closeable {
         return router.route(id, replication);
     }
 
+    @Override
+    public Disk route(long id) {
+        return router.route(id);
+    }
+
+    @Override
+    public List<Disk> route(long id, int replication) {
+        return router.route(id, replication);
+    }
+
     private class ListenerAgency implements TopologyChangeListener {
 
         @Override
@@ -9,6 +9,8 @@ public class Node implements Serializable {
     private String hostName;
     private String hostAddress;
     private int port;
+    // port of the internal protocol between nodes, 0 if not served
+    private int internalPort;
     private boolean balanced;
 
     private List<Disk> disks;
@@ -37,6 +39,14 @@ public class Node implements Serializable {
         this.port = port;
     }
 
+    public int getInternalPort() {
+        return internalPort;
+    }
+
+    public void setInternalPort(int internalPort) {
+        this.internalPort = internalPort;
+    }
+
     public List<Disk> getDisks() {
         return disks;
     }
@@ -68,6 +78,7 @@ public class Node implements Serializable {
                 ", hostName='" + hostName + '\'' +
                 ", hostAddress='" + hostAddress + '\'' +
                 ", port=" + port +
+                ", internalPort=" + internalPort +
                 '}';
     }
 }
@@ -7,4 +7,11 @@ public interface Router {
     Disk route(byte[] id);
 
     List<Disk> route(byte[] id, int replication);
+
+    /**
+     * Same as routing the 8 big-endian bytes of the id, without allocating them
+     */
+    Disk route(long id);
+
+    List<Disk> route(long id, int replication);
 }
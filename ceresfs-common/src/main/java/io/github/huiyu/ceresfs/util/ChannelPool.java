@@ -0,0 +1,206 @@
+package io.github.huiyu.ceresfs.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Channels to a host, calls are spread over a fixed number of channels round robin and
+ * pipelined on each channel, then matched to responses by a key, as servers may respond out of
+ * order. Calls not responded in time fail with {@link TimeoutException}. Channels are connected
+ * lazily and reconnected once closed.
+ * <p>
+ * The pipeline of channels set up by the bootstrap should end with a {@link CallHandler}.
+ * Requests are released once sent or failed.
+ *
+ * @param <K> type of keys matching responses to calls
+ * @param <V> type of responses
+ * @author Yu Hui
+ */
+public class ChannelPool<K, V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPool.class);
+
+    private final String host;
+    private final int port;
+    private final long timeoutMills;
+    private final Bootstrap bootstrap;
+
+    private final AtomicReferenceArray<ChannelFuture> channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    public ChannelPool(Bootstrap bootstrap, String host, int port, int channels,
+                       long timeoutMills) {
+        checkArgument(channels > 0, "Channels must > 0");
+        this.bootstrap = bootstrap;
+        this.host = host;
+        this.port = port;
+        this.timeoutMills = timeoutMills;
+        this.channels = new AtomicReferenceArray<>(channels);
+    }
+
+    /**
+     * Send a request on the next channel, it's responded by the response matched to the key
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> call(K key, Object request) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        if (shutdown) {
+            ReferenceCountUtil.release(request);
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        connection().addListener(f -> {
+            if (!f.isSuccess()) {
+                ReferenceCountUtil.release(request);
+                future.completeExceptionally(f.cause());
+                return;
+            }
+            Channel channel = ((ChannelFuture) f).channel();
+            CallHandler<K, V, ?> handler = channel.pipeline().get(CallHandler.class);
+            if (handler == null) {
+                ReferenceCountUtil.release(request);
+                future.completeExceptionally(new ClosedChannelException());
+                return;
+            }
+            handler.register(channel, key, future, timeoutMills);
+            channel.writeAndFlush(request).addListener(w -> {
+                if (!w.isSuccess()) {
+                    handler.fail(key, w.cause());
+                }
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Next channel round robin, connecting it if not connected or closed
+     */
+    private ChannelFuture connection() {
+        int i = Math.abs(nextChannel.getAndIncrement() % channels.length());
+        while (true) {
+            ChannelFuture current = channels.get(i);
+            if (current != null && (!current.isDone()
+                    || (current.isSuccess() && current.channel().isActive()))) {
+                return current;
+            }
+            ChannelFuture connect = bootstrap.connect(host, port);
+            if (channels.compareAndSet(i, current, connect)) {
+                return connect;
+            }
+            connect.channel().close();
+        }
+    }
+
+    /**
+     * Close all channels, calls in flight fail with {@link ClosedChannelException}
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (int i = 0; i < channels.length(); i++) {
+            ChannelFuture channel = channels.getAndSet(i, null);
+            if (channel != null) {
+                channel.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Calls in flight of a channel, completed by messages read, which are decoded into keys and
+     * responses by subclasses.
+     *
+     * @param <M> type of messages read
+     */
+    public static abstract class CallHandler<K, V, M> extends SimpleChannelInboundHandler<M> {
+
+        private final Map<K, Call<V>> calls = new ConcurrentHashMap<>();
+
+        void register(Channel channel, K key, CompletableFuture<V> future, long timeoutMills) {
+            ScheduledFuture<?> timeout = channel.eventLoop().schedule(
+                    () -> fail(key, new TimeoutException()), timeoutMills, TimeUnit.MILLISECONDS);
+            calls.put(key, new Call<>(future, timeout));
+            if (!channel.isActive()) {
+                fail(key, new ClosedChannelException());
+            }
+        }
+
+        void fail(K key, Throwable cause) {
+            Call<V> call = calls.remove(key);
+            if (call != null) {
+                call.timeout.cancel(false);
+                call.future.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * @return key of the call the message responds, or null if unknown
+         */
+        protected abstract K key(M msg);
+
+        /**
+         * Response of the message, called after {@link #key(Object)}. It's released if the call
+         * has been cancelled.
+         */
+        protected abstract V response(M msg);
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, M msg) throws Exception {
+            K key = key(msg);
+            Call<V> call = key == null ? null : calls.remove(key);
+            if (call != null) {
+                call.timeout.cancel(false);
+                V response = response(msg);
+                if (!call.future.complete(response)) {
+                    ReferenceCountUtil.release(response);
+                }
+            } else {
+                LOG.error("No response handler for message {} from {}", key,
+                        ctx.channel().remoteAddress());
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            for (K key : calls.keySet()) {
+                fail(key, new ClosedChannelException());
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.error("Channel to " + ctx.channel().remoteAddress() + " internal error", cause);
+            ctx.close();
+        }
+    }
+
+    private static class Call<V> {
+
+        final CompletableFuture<V> future;
+        final ScheduledFuture<?> timeout;
+
+        Call(CompletableFuture<V> future, ScheduledFuture<?> timeout) {
+            this.future = future;
+            this.timeout = timeout;
+        }
+    }
+}
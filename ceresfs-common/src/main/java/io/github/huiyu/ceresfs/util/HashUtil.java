@@ -10,4 +10,37 @@ public class HashUtil {
     public static long murmur(byte[] key) {
         return MURMUR.hashBytes(key).asLong();
     }
+
+    /**
+     * Same as {@link #murmur(byte[])} of the 8 big-endian bytes of the key, i.e. murmur3 x64
+     * 128 with seed 0 and only the tail block, computed inline as it's on every route.
+     */
+    public static long murmur(long key) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        final int length = 8;
+
+        // tail bytes are read little-endian
+        long k1 = Long.reverseBytes(key);
+        k1 *= c1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= c2;
+
+        long h1 = k1 ^ length;
+        long h2 = length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
 }
@@ -5,7 +5,9 @@ import io.github.huiyu.ceresfs.ImageType;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.List;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
@@ -98,12 +100,7 @@ public class HttpUtil {
 
         fileUpload.setContent(Unpooled.wrappedBuffer(data));
         encoder.addBodyHttpData(fileUpload);
-        encoder.finalizeRequest();
-        HttpContent content;
-        while ((content = encoder.readChunk((ByteBufAllocator) null)) != null) {
-            request.content().writeBytes(content.content());
-        }
-        return request;
+        return encode(encoder, request);
     }
 
     public static FullHttpRequest newImageUploadRequest(ImageType type,
@@ -125,11 +122,66 @@ public class HttpUtil {
 
         fileUpload.setContent(Unpooled.wrappedBuffer(data));
         encoder.addBodyHttpData(fileUpload);
-        encoder.finalizeRequest();
-        HttpContent content;
-        while ((content = encoder.readChunk((ByteBufAllocator) null)) != null) {
-            request.content().writeBytes(content.content());
+        return encode(encoder, request);
+    }
+
+    /**
+     * Multipart request of a batch upload. Each file is preceded by its id and expire time,
+     * so they are paired in order.
+     *
+     * @param ids         image ids, or null to let the server generate them
+     * @param expireTimes expire time of each image
+     * @param data        image data, which is copied into the request
+     */
+    public static FullHttpRequest newImageBatchUploadRequest(List<Long> ids,
+                                                             List<ImageType> types,
+                                                             List<Long> expireTimes,
+                                                             int replication,
+                                                             List<ByteBuf> data) throws Exception {
+        FullHttpRequest request = newRequest(HttpMethod.POST, "/images");
+        HttpPostRequestEncoder encoder = new HttpPostRequestEncoder(request, true);
+        encoder.addBodyAttribute(Const.HTTP_HEADER_REPLICATION, String.valueOf(replication));
+        for (int i = 0; i < data.size(); i++) {
+            if (ids != null) {
+                encoder.addBodyAttribute(Const.HTTP_HEADER_IMAGE_ID, String.valueOf(ids.get(i)));
+            }
+            encoder.addBodyAttribute(Const.HTTP_HEADER_EXPIRE_TIME,
+                    String.valueOf(expireTimes.get(i)));
+            ImageType type = types.get(i);
+            // distinct names, files of the same name are nested as multipart/mixed
+            FileUpload fileUpload = USE_MEMORY.createFileUpload(
+                    request,
+                    DEFAULT_FILE_NAME + i,
+                    DEFAULT_FILE_NAME + "." + type.getFileSuffix(),
+                    type.getMimeType(),
+                    "binary",
+                    null,
+                    data.get(i).readableBytes());
+            fileUpload.setContent(data.get(i).duplicate());
+            encoder.addBodyHttpData(fileUpload);
+        }
+        return encode(encoder, request);
+    }
+
+    /**
+     * Copy the encoded body into the request content. Chunks hold retained slices of file
+     * contents, which are released once copied, and attributes are cleaned up.
+     */
+    private static FullHttpRequest encode(HttpPostRequestEncoder encoder, FullHttpRequest request)
+            throws Exception {
+        try {
+            encoder.finalizeRequest();
+            HttpContent content;
+            while ((content = encoder.readChunk((ByteBufAllocator) null)) != null) {
+                try {
+                    request.content().writeBytes(content.content());
+                } finally {
+                    content.release();
+                }
+            }
+            return request;
+        } finally {
+            encoder.cleanFiles();
         }
-        return request;
     }
 }
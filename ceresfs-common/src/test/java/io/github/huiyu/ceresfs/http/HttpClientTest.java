@@ -0,0 +1,174 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.Const;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import static org.junit.Assert.*;
+
+public class HttpClientTest {
+
+    private EventLoopGroup serverGroup;
+    private Channel serverChannel;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        serverGroup = new NioEventLoopGroup(1);
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                        ch.pipeline().addLast(new DelayedEchoHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverChannel.close().sync();
+        serverGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        HttpClient client = new HttpClient.Builder("127.0.0.1", port).channels(2).build();
+        try {
+            // earlier requests are responded later
+            List<CompletableFuture<FullHttpResponse>> calls = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                calls.add(client.newCall(request("/?delay=" + (200 - i * 10) + "&body=" + i)));
+            }
+            for (int i = 0; i < calls.size(); i++) {
+                FullHttpResponse resp = calls.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals(String.valueOf(i), resp.content().toString(StandardCharsets.UTF_8));
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        HttpClient client = new HttpClient.Builder("127.0.0.1", port)
+                .timeout(200, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            CompletableFuture<FullHttpResponse> dropped = client.newCall(request("/?delay=-1"));
+            CompletableFuture<FullHttpResponse> ok = client.newCall(request("/?body=ok"));
+            assertEquals("ok", ok.get(5, TimeUnit.SECONDS).content()
+                    .toString(StandardCharsets.UTF_8));
+            try {
+                dropped.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testProxyRequest() throws Exception {
+        HttpClient client = new HttpClient.Builder("127.0.0.1", port).build();
+        try {
+            FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST,
+                    "/?body=ok", Unpooled.copiedBuffer("content", StandardCharsets.UTF_8));
+            req.headers().set(HttpHeaderNames.CONTENT_LENGTH, req.content().readableBytes());
+            FullHttpResponse resp = client.newCall(req.retainedDuplicate())
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals("ok", resp.content().toString(StandardCharsets.UTF_8));
+            // the proxy is released once written out, the original is untouched
+            assertEquals(1, req.refCnt());
+            assertEquals("content", req.content().toString(StandardCharsets.UTF_8));
+            resp.release();
+            req.release();
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testConnectFailure() throws Exception {
+        serverChannel.close().sync();
+        HttpClient client = new HttpClient.Builder("127.0.0.1", port).build();
+        FullHttpRequest req = request("/");
+        try {
+            client.newCall(req).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(0, req.refCnt());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private static FullHttpRequest request(String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    /**
+     * Responds body after delay milliseconds with the token, never responds if delay < 0
+     */
+    private static class DelayedEchoHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+            long delay = decoder.parameters().containsKey("delay") ?
+                    Long.parseLong(decoder.parameters().get("delay").get(0)) : 0L;
+            if (delay < 0) {
+                return;
+            }
+            String body = decoder.parameters().containsKey("body") ?
+                    decoder.parameters().get("body").get(0) : "";
+            FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+            resp.headers()
+                    .set(HttpHeaderNames.CONTENT_LENGTH, resp.content().readableBytes())
+                    .set(Const.HTTP_TOKEN_NAME, req.headers().get(Const.HTTP_TOKEN_NAME));
+            ctx.executor().schedule(() -> ctx.writeAndFlush(resp), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -98,6 +98,43 @@ public class ConsistentHashingRouterTest {
         assertArrayEquals(expect, actual);
     }
 
+    @Test
+    public void testChangeDiskWeight() {
+        List<Node> nodes = randomNodes(5);
+        ConsistentHashingRouter router = new ConsistentHashingRouter(nodes, 1000);
+        Disk disk = nodes.get(0).getDisks().get(0);
+        router.changeDiskWeight(disk, disk.getWeight() + 1.0);
+
+        Disk updated = router.getDisk(disk.getNode().getId(), disk.getId());
+        assertNotSame(disk, updated);
+        assertEquals(disk.getWeight() + 1.0, updated.getWeight(), 0.0);
+        assertSame(updated, nodes.get(0).getDisks().get(0));
+
+        // routes as a router built with the new weight
+        ConsistentHashingRouter expected = new ConsistentHashingRouter(nodes, 1000);
+        boolean routed = false;
+        for (int i = 0; i < 10000; i++) {
+            Disk actual = router.route(i);
+            assertSame(expected.route(i), actual);
+            assertNotSame(disk, actual);
+            routed |= actual == updated;
+        }
+        assertTrue(routed);
+    }
+
+    @Test
+    public void testRouteLong() {
+        List<Node> nodes = randomNodes(10);
+        ConsistentHashingRouter router = new ConsistentHashingRouter(nodes, 1000);
+
+        Random random = new Random();
+        for (int i = 0; i < 1000; i++) {
+            long id = random.nextLong();
+            assertSame(router.route(Longs.toByteArray(id)), router.route(id));
+            assertEquals(router.route(Longs.toByteArray(id), 3), router.route(id, 3));
+        }
+    }
+
     @Test
     public void testRouteUniformDistribution() {
         // TODO
@@ -0,0 +1,26 @@
+package io.github.huiyu.ceresfs.util;
+
+import com.google.common.primitives.Longs;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HashUtilTest {
+
+    @Test
+    public void testMurmurLong() {
+        long[] edges = {0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long key : edges) {
+            assertEquals(HashUtil.murmur(Longs.toByteArray(key)), HashUtil.murmur(key));
+        }
+
+        Random random = new Random();
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            assertEquals(HashUtil.murmur(Longs.toByteArray(key)), HashUtil.murmur(key));
+        }
+    }
+}
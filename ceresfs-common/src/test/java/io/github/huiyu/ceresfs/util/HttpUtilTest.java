@@ -0,0 +1,34 @@
+package io.github.huiyu.ceresfs.util;
+
+import io.github.huiyu.ceresfs.ImageType;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpRequest;
+
+import static org.junit.Assert.*;
+
+public class HttpUtilTest {
+
+    @Test
+    public void testBatchUploadReleasesChunks() throws Exception {
+        ByteBuf data = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+        FullHttpRequest request = HttpUtil.newImageBatchUploadRequest(
+                Collections.singletonList(1L), Collections.singletonList(ImageType.PNG),
+                Collections.singletonList(-1L), 1, Arrays.asList(data));
+        try {
+            // copied into the request, nothing left retained by the encoder
+            assertEquals(1, data.refCnt());
+            assertEquals(3, data.readableBytes());
+            assertTrue(request.content().readableBytes() > 3);
+        } finally {
+            request.release();
+            data.release();
+        }
+    }
+}
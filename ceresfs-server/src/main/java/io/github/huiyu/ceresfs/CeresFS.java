@@ -1,5 +1,7 @@
 package io.github.huiyu.ceresfs;
 
+import io.github.huiyu.ceresfs.internal.InternalServer;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
@@ -26,6 +28,7 @@ public class CeresFS implements CommandLineRunner {
 
     @Override
     public void run(String... args) throws Exception {
+        context.getBean(InternalServer.class).start();
         context.getBean(CeresFSServer.class).start();
     }
 }
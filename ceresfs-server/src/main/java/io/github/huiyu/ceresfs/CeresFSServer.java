@@ -1,6 +1,9 @@
 package io.github.huiyu.ceresfs;
 
 import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.http.ImageStoreResponder;
+import io.github.huiyu.ceresfs.metrics.HttpMetricsHandler;
+import io.github.huiyu.ceresfs.metrics.Metrics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,12 +32,21 @@ public class CeresFSServer {
     private final EventLoopGroup bossGroup = new NioEventLoopGroup();
     private final EventLoopGroup workerGroup = new NioEventLoopGroup();
     private final int aggregatorSize;
+    private final ImageStoreResponder imageStoreResponder;
+    private final boolean streamingUpload;
+    private final Metrics metrics;
 
     @Autowired
-    public CeresFSServer(Configuration configuration, CeresFSServerHandler handler) {
+    public CeresFSServer(Configuration configuration,
+                         CeresFSServerHandler handler,
+                         ImageStoreResponder imageStoreResponder,
+                         Metrics metrics) {
         this.port = configuration.getPort();
         this.handler = handler;
         this.aggregatorSize = Const.MAX_IMAGE_SIZE + 8192;
+        this.imageStoreResponder = imageStoreResponder;
+        this.streamingUpload = configuration.isImageStreamingUpload();
+        this.metrics = metrics;
     }
 
     public void start() throws InterruptedException {
@@ -47,6 +59,13 @@ public class CeresFSServer {
                         ch.pipeline()
                                 .addLast("encoder", new HttpResponseEncoder())
                                 .addLast("decoder", new HttpRequestDecoder())
+                                .addLast("metrics", new HttpMetricsHandler(metrics,
+                                        handler::isRouted));
+                        if (streamingUpload) {
+                            // local uploads never reach the aggregator
+                            ch.pipeline().addLast("upload", imageStoreResponder.newUploadHandler());
+                        }
+                        ch.pipeline()
                                 .addLast("aggregator", new HttpObjectAggregator(aggregatorSize))
                                 .addLast(handler);
                     }
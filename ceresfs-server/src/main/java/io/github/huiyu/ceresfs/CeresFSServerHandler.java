@@ -51,12 +51,23 @@ public class CeresFSServerHandler extends SimpleChannelInboundHandler<FullHttpRe
         if (requestHandler == null) {
             // 404
             HttpResponse response = HttpUtil.newResponse(NOT_FOUND, NOT_FOUND.reasonPhrase());
+            String token = msg.headers().get(Const.HTTP_TOKEN_NAME);
+            if (token != null) {
+                response.headers().set(Const.HTTP_TOKEN_NAME, token);
+            }
             ctx.writeAndFlush(response);
         } else {
             requestHandler.handle(ctx, msg);
         }
     }
 
+    /**
+     * @return whether any responder serves the path
+     */
+    public boolean isRouted(String path) {
+        return routeTable.containsRow(path);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         LOG.error("Internal server error, ", cause);
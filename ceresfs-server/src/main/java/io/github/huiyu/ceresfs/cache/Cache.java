@@ -9,4 +9,6 @@ public interface Cache {
     void put(Image image);
 
     void evict(long id);
+
+    CacheStats getStats();
 }
@@ -1,28 +1,156 @@
 package io.github.huiyu.ceresfs.cache;
 
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
 import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
 
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.event.EventType;
+import org.ehcache.spi.serialization.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Two tier image cache based on ehcache, a heap tier backed by a larger off-heap tier. Both
+ * tiers are bounded by bytes.
+ *
+ * @author Yu Hui
+ */
 @Component
 @ConditionalOnProperty(prefix = "ceresfs.cache", name = "mode", havingValue = "ehcache")
-public class EhCache implements Cache {
+public class EhCache implements Cache, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(EhCache.class);
 
+    private static final String CACHE_NAME = "image";
+
+    private final CacheManager cacheManager;
+    private final org.ehcache.Cache<Long, Image> cache;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    @Autowired
+    public EhCache(Configuration config) {
+        this(config.getCacheHeapSize(), config.getCacheOffheapSize());
+    }
+
+    public EhCache(long heapSize, long offheapSize) {
+        ResourcePoolsBuilder resourcePools = ResourcePoolsBuilder.newResourcePoolsBuilder()
+                .heap(heapSize, MemoryUnit.B);
+        if (offheapSize > 0) {
+            resourcePools = resourcePools.offheap(offheapSize, MemoryUnit.B);
+        }
+        LOG.info("Create image cache, heap {} bytes, offheap {} bytes", heapSize, offheapSize);
+
+        this.cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+                .withCache(CACHE_NAME, CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(Long.class, Image.class, resourcePools)
+                        .withValueSerializer(new ImageSerializer())
+                        // image, index, type and data
+                        .withSizeOfMaxObjectGraph(16)
+                        .add(CacheEventListenerConfigurationBuilder
+                                .newEventListenerConfiguration(
+                                        event -> evictionCount.increment(), EventType.EVICTED)
+                                .unordered()
+                                .asynchronous()))
+                .build(true);
+        this.cache = cacheManager.getCache(CACHE_NAME, Long.class, Image.class);
+    }
+
     @Override
     public Image get(long id) {
-        return null;
+        Image image = cache.get(id);
+        if (image == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return image;
     }
 
     @Override
     public void put(Image image) {
+        cache.put(image.getIndex().getId(), image);
     }
 
     @Override
     public void evict(long id) {
+        cache.remove(id);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        cacheManager.close();
+    }
+
+    /**
+     * Serialize image for the off-heap tier, index fields followed by image data
+     */
+    static final class ImageSerializer implements Serializer<Image> {
+
+        // id, volume, offset, time, expire time, size, flag, type, replication
+        private static final int INDEX_LENGTH = 8 * 5 + 4 + 3;
+
+        @Override
+        public ByteBuffer serialize(Image image) {
+            ImageIndex index = image.getIndex();
+            byte[] data = image.getData();
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_LENGTH + data.length);
+            buffer.putLong(index.getId());
+            buffer.putLong(index.getVolume());
+            buffer.putLong(index.getOffset());
+            buffer.putLong(index.getTime());
+            buffer.putLong(index.getExpireTime());
+            buffer.putInt(index.getSize());
+            buffer.put(index.getFlag());
+            buffer.put(index.getType() == null ? 0 : index.getType().getCode());
+            buffer.put(index.getReplication());
+            buffer.put(data);
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public Image read(ByteBuffer buffer) {
+            ImageIndex index = new ImageIndex();
+            index.setId(buffer.getLong());
+            index.setVolume(buffer.getLong());
+            index.setOffset(buffer.getLong());
+            index.setTime(buffer.getLong());
+            index.setExpireTime(buffer.getLong());
+            index.setSize(buffer.getInt());
+            index.setFlag(buffer.get());
+            byte type = buffer.get();
+            index.setType(type == 0 ? null : ImageType.fromCode(type));
+            index.setReplication(buffer.get());
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return new Image(index, data);
+        }
+
+        @Override
+        public boolean equals(Image image, ByteBuffer buffer) {
+            return serialize(image).equals(buffer);
+        }
     }
 }
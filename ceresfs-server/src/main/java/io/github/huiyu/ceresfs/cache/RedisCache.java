@@ -23,4 +23,9 @@ public class RedisCache implements Cache {
     public void evict(long id) {
 
     }
+
+    @Override
+    public CacheStats getStats() {
+        return CacheStats.empty();
+    }
 }
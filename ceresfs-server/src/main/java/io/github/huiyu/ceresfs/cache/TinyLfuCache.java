@@ -0,0 +1,284 @@
+package io.github.huiyu.ceresfs.cache;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.storage.Image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Heap image cache bounded by bytes, with TinyLFU admission in front of a segmented LRU. A new
+ * image is admitted only if it was requested more often than the image it would evict, so a
+ * scan of one-hit images never flushes the hot set.
+ *
+ * @author Yu Hui
+ */
+@Component
+@ConditionalOnProperty(prefix = "ceresfs.cache", name = "mode", havingValue = "tinylfu")
+public class TinyLfuCache implements Cache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TinyLfuCache.class);
+
+    // rough heap cost of an entry besides image data
+    private static final int ENTRY_OVERHEAD = 128;
+    // average image size used to size the sketch
+    private static final int AVERAGE_IMAGE_SIZE = 16 * 1024;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<Long, Image> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Image> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    @Autowired
+    public TinyLfuCache(Configuration config) {
+        this(config.getCacheHeapSize());
+    }
+
+    public TinyLfuCache(long maxBytes) {
+        this.maxWeight = maxBytes;
+        this.maxProtectedWeight = (long) (maxBytes * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24,
+                Math.max(1024L, maxBytes / AVERAGE_IMAGE_SIZE)));
+        LOG.info("Create TinyLFU image cache, {} bytes", maxBytes);
+    }
+
+    private static long weigh(Image image) {
+        return image.getData().length + ENTRY_OVERHEAD;
+    }
+
+    @Override
+    public Image get(long id) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            sketch.increment(id);
+            Image image = protect.get(id);
+            if (image == null) {
+                image = probation.remove(id);
+                if (image != null) {
+                    // second hit, promote to protected segment
+                    probationWeight -= weigh(image);
+                    protect.put(id, image);
+                    protectedWeight += weigh(image);
+                    demote();
+                }
+            }
+            if (image == null) {
+                missCount.increment();
+            } else {
+                hitCount.increment();
+            }
+            return image;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Image image) {
+        final long id = image.getIndex().getId();
+        final long weight = weigh(image);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            // the access is counted by the get missing it
+            evict(id);
+            if (weight > maxWeight - maxProtectedWeight) {
+                // larger than probation segment
+                return;
+            }
+            // compare candidate with victims, the least recently used probation images first
+            int frequency = sketch.frequency(id);
+            long required = probationWeight + protectedWeight + weight - maxWeight;
+            if (required > 0) {
+                long freed = 0L;
+                for (Map.Entry<Long, Image> victim : probation.entrySet()) {
+                    if (freed >= required) {
+                        break;
+                    }
+                    if (sketch.frequency(victim.getKey()) >= frequency) {
+                        // not admitted
+                        return;
+                    }
+                    freed += weigh(victim.getValue());
+                }
+                if (freed < required) {
+                    return;
+                }
+                Iterator<Image> it = probation.values().iterator();
+                while (probationWeight + protectedWeight + weight > maxWeight) {
+                    probationWeight -= weigh(it.next());
+                    it.remove();
+                    evictionCount.increment();
+                }
+            }
+            probation.put(id, image);
+            probationWeight += weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void evict(long id) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Image image = probation.remove(id);
+            if (image != null) {
+                probationWeight -= weigh(image);
+            }
+            image = protect.remove(id);
+            if (image != null) {
+                protectedWeight -= weigh(image);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move the least recently used protected images back to probation segment
+     */
+    private void demote() {
+        Iterator<Map.Entry<Long, Image>> it = protect.entrySet().iterator();
+        while (protectedWeight > maxProtectedWeight && it.hasNext()) {
+            Map.Entry<Long, Image> entry = it.next();
+            it.remove();
+            long weight = weigh(entry.getValue());
+            protectedWeight -= weight;
+            probation.put(entry.getKey(), entry.getValue());
+            probationWeight += weight;
+        }
+    }
+
+    /**
+     * @return estimated number of recent requests of the image
+     */
+    int frequency(long id) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return sketch.frequency(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes taken by cached images, including entry overhead
+     */
+    public long weightedSize() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return probationWeight + protectedWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four counters of an id share one long. All counters
+     * are halved periodically so that old popularity fades.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedSize) {
+            int size = Integer.highestOneBit(Math.max(64, expectedSize) - 1) << 1;
+            this.table = new long[size];
+            this.tableMask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        int frequency(long id) {
+            int hash = spread(id);
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(long id) {
+            int hash = spread(id);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int i, int j) {
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+            if ((table[i] & mask) != mask) {
+                table[i] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            int count = 0;
+            for (int i = 0; i < table.length; i++) {
+                count += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions = (additions >>> 1) - (count >>> 2);
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(long id) {
+            int x = (int) (id ^ (id >>> 32));
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package io.github.huiyu.ceresfs.compact;
 
 import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.metrics.Metrics;
 import io.github.huiyu.ceresfs.retry.NTimesRetryStrategy;
 import io.github.huiyu.ceresfs.storage.Image;
 import io.github.huiyu.ceresfs.storage.Directory;
@@ -21,7 +22,10 @@ import org.springframework.stereotype.Component;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,17 +45,38 @@ public class MarkCopyVolumeCompactor implements VolumeCompactor, InitializingBea
 
     private final ReentrantLock lock = new ReentrantLock();
 
-    @Autowired
+    private final Metrics.Counter scanned;
+    private final Metrics.Counter compacted;
+    private final Metrics.Counter reclaimed;
+
     public MarkCopyVolumeCompactor(Configuration config,
                                    Topology topology,
                                    VolumeContainer volumeContainer,
                                    Directory directory,
                                    Store store) {
+        this(config, topology, volumeContainer, directory, store, new Metrics());
+    }
+
+    @Autowired
+    public MarkCopyVolumeCompactor(Configuration config,
+                                   Topology topology,
+                                   VolumeContainer volumeContainer,
+                                   Directory directory,
+                                   Store store,
+                                   Metrics metrics) {
         this.config = config;
         this.topology = topology;
         this.volumeContainer = volumeContainer;
         this.directory = directory;
         this.store = store;
+        this.scanned = metrics.counter("ceresfs_compactor_scanned_volumes_total",
+                "Volumes scanned for dead space");
+        this.compacted = metrics.counter("ceresfs_compactor_compacted_volumes_total",
+                "Volumes compacted and deleted");
+        this.reclaimed = metrics.counter("ceresfs_compactor_reclaimed_bytes_total",
+                "Dead space reclaimed by compacting");
+        metrics.gauge("ceresfs_compactor_running", "Whether the compactor is running",
+                () -> lock.isLocked() ? 1 : 0);
     }
 
     public void compact() {
@@ -70,11 +95,15 @@ public class MarkCopyVolumeCompactor implements VolumeCompactor, InitializingBea
                 volumes.parallelStream().forEach(volume -> {
                     // count dead space
                     long dead = mark(currentTime, disk, volume);
+                    scanned.inc();
                     // do compact
                     if (dead > config.getVolumeMaxSize() * (1.0 - config.getVolumeCompactThreshold())) {
                         LOG.info("Volume {} has {} dead space, start compacting...",
                                 volume.getName(), dead);
-                        compact(currentTime, disk, volume);
+                        if (compact(currentTime, disk, volume)) {
+                            compacted.inc();
+                            reclaimed.add(dead);
+                        }
                         LOG.info("Volume {} compacting completed",
                                 volume.getName(), dead);
                     } else {
@@ -89,68 +118,70 @@ public class MarkCopyVolumeCompactor implements VolumeCompactor, InitializingBea
     }
 
     protected long mark(long currentTime, Disk disk, File volume) {
-        final Volume.Reader reader = volumeContainer.getReader(volume);
-        final ReentrantLock readLock = reader.getLock();
-        readLock.lock();
-        long invalid = 0;
+        // count by hints, image data is never read
+        long[] invalid = {0L};
         try {
-            reader.seek(0L);
-            Image image;
-            while ((image = reader.next()) != null) {
-                ImageIndex index = image.getIndex();
-
+            Volume.forEachIndex(volume, index -> {
                 if (isDeleted(index)) {
-                    invalid = invalid + ImageIndex.FIXED_LENGTH + index.getSize();
+                    invalid[0] = invalid[0] + ImageIndex.FIXED_LENGTH + index.getSize();
                 }
                 // delete index of expired image
                 if (isExpired(currentTime, index)) {
-                    invalid = invalid + ImageIndex.FIXED_LENGTH + index.getSize();
+                    invalid[0] = invalid[0] + ImageIndex.FIXED_LENGTH + index.getSize();
                     directory.delete(disk, index.getId());
                 }
-            }
+            });
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } finally {
-            readLock.unlock();
         }
-        return invalid;
+        return invalid[0];
     }
 
-    protected void compact(long currentTime, Disk disk, File volume) {
-        final Volume.Reader reader = volumeContainer.getReader(volume);
-        final Volume.Writer writer = volumeContainer.getWriter(volume);
-        final ReentrantLock writeLock = writer.getLock();
-        writeLock.lock();
+    /**
+     * @return whether the volume is deleted, it's kept if any image fails to redistribute
+     */
+    protected boolean compact(long currentTime, Disk disk, File volume) {
+        // disable write first, images appended since then fail and get retried elsewhere
+        volumeContainer.closeWriter(volume);
+        Volume.Reader reader;
+        do {
+            reader = volumeContainer.getReader(volume);
+        } while (!reader.retain());
         try {
-            // disable write first
-            volumeContainer.closeWriter(volume);
             reader.seek(0L);
+            List<CompletableFuture<Void>> saves = new ArrayList<>();
             Image image;
             while ((image = reader.next()) != null) {
                 ImageIndex index = image.getIndex();
                 if (!isDeleted(index) && !isExpired(currentTime, index)) {
-                    store.save(
+                    saves.add(store.save(
                             disk,
                             index.getId(),
                             index.getType(),
                             image.getData(),
                             index.getExpireTime(),
                             new NTimesRetryStrategy(5, 1000L)
-                    ).whenComplete((i, e) -> {
-                        if (e != null) {
-                            LOG.error("Redistribute error", e);
-                        } else {
-                            directory.save(disk, i.getIndex());
-                        }
-                    });
+                    ).thenAccept(i -> directory.save(disk, i.getIndex())));
                 }
             }
+            // wait until all images are durable in other volumes
+            try {
+                CompletableFuture.allOf(saves.toArray(new CompletableFuture[saves.size()])).join();
+            } catch (CompletionException e) {
+                LOG.error("Redistribute " + volume + " error, volume is kept", e.getCause());
+                return false;
+            }
             // disable & delete volume after all
             volumeContainer.deleteVolume(volume);
+            return true;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         } finally {
-            writeLock.unlock();
+            try {
+                reader.release();
+            } catch (IOException e) {
+                LOG.error("Close reader of " + volume + " error", e);
+            }
         }
     }
 
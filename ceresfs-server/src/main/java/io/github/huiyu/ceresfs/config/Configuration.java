@@ -1,5 +1,7 @@
 package io.github.huiyu.ceresfs.config;
 
+import io.github.huiyu.ceresfs.storage.Replicator;
+import io.github.huiyu.ceresfs.storage.Volume;
 import io.github.huiyu.ceresfs.topology.Disk;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -18,7 +20,39 @@ public interface Configuration {
     long getVolumeMaxSize();
     
     int getVolumeWriteParallelism();
+
+    Volume.ReadMode getVolumeReadMode();
+
+    Volume.FsyncPolicy getVolumeFsyncPolicy();
+
+    long getVolumeFsyncInterval();
+
+    TimeUnit getVolumeFsyncIntervalTimeUnit();
+
+    int getImageZeroCopyThreshold();
+
+    boolean isImageStreamingUpload();
+
+    int getHttpClientChannels();
+
+    int getInternalPort();
+
+    long getBroadcastHedgeDelay();
     
+    boolean isDirectoryRebuild();
+
+    long getCacheHeapSize();
+
+    long getCacheOffheapSize();
+
+    boolean isVolumeVerifyOnRead();
+
+    long getVolumeScrubRate();
+
+    long getVolumeScrubPeriod();
+
+    TimeUnit getVolumeScrubPeriodTimeUnit();
+
     double getVolumeCompactThreshold();
     
     long getVolumeCompactPeriod();
@@ -36,8 +70,16 @@ public interface Configuration {
     byte getReplication();
 
     void setReplication(byte replication) throws Exception;
+
+    Replicator.WriteQuorum getReplicationWriteQuorum();
+
+    boolean isReplicationAsync();
     
     long getBalanceDelay();
     
     TimeUnit getBalanceDelayTimeUnit();
+
+    long getMigrationExpire();
+
+    TimeUnit getMigrationExpireTimeUnit();
 }
@@ -2,6 +2,9 @@ package io.github.huiyu.ceresfs.config;
 
 import io.github.huiyu.ceresfs.Const;
 import io.github.huiyu.ceresfs.http.HttpClientPool;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.storage.Replicator;
+import io.github.huiyu.ceresfs.storage.Volume;
 import io.github.huiyu.ceresfs.topology.Disk;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -62,6 +65,86 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
         return localConfig.getVolumeWriteParallelism();
     }
 
+    @Override
+    public Volume.ReadMode getVolumeReadMode() {
+        return Volume.ReadMode.valueOf(localConfig.getVolumeReadMode().toUpperCase());
+    }
+
+    @Override
+    public Volume.FsyncPolicy getVolumeFsyncPolicy() {
+        return Volume.FsyncPolicy.valueOf(localConfig.getVolumeFsyncPolicy().toUpperCase());
+    }
+
+    @Override
+    public long getVolumeFsyncInterval() {
+        return localConfig.getVolumeFsyncInterval();
+    }
+
+    @Override
+    public TimeUnit getVolumeFsyncIntervalTimeUnit() {
+        return TimeUnit.valueOf(localConfig.getVolumeFsyncIntervalTimeunit().toUpperCase());
+    }
+
+    @Override
+    public int getImageZeroCopyThreshold() {
+        return localConfig.getImageZeroCopyThreshold();
+    }
+
+    @Override
+    public boolean isImageStreamingUpload() {
+        return localConfig.isImageStreamingUpload();
+    }
+
+    @Override
+    public int getHttpClientChannels() {
+        return localConfig.getHttpClientChannels();
+    }
+
+    @Override
+    public int getInternalPort() {
+        return localConfig.getInternalPort();
+    }
+
+    @Override
+    public long getBroadcastHedgeDelay() {
+        return localConfig.getBroadcastHedgeDelay();
+    }
+
+    @Override
+    public boolean isDirectoryRebuild() {
+        return localConfig.isDirectoryRebuild();
+    }
+
+    @Override
+    public long getCacheHeapSize() {
+        return localConfig.getCache().getHeapSize();
+    }
+
+    @Override
+    public long getCacheOffheapSize() {
+        return localConfig.getCache().getOffheapSize();
+    }
+
+    @Override
+    public boolean isVolumeVerifyOnRead() {
+        return localConfig.isVolumeVerifyOnRead();
+    }
+
+    @Override
+    public long getVolumeScrubRate() {
+        return localConfig.getVolumeScrubRate();
+    }
+
+    @Override
+    public long getVolumeScrubPeriod() {
+        return localConfig.getVolumeScrubPeriod();
+    }
+
+    @Override
+    public TimeUnit getVolumeScrubPeriodTimeUnit() {
+        return TimeUnit.valueOf(localConfig.getVolumeScrubPeriodTimeunit().toUpperCase());
+    }
+
     @Override
     public double getVolumeCompactThreshold() {
         return localConfig.getVolumeCompactThreshold();
@@ -110,6 +193,17 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
         checkAndWriteGlobalConfig(globalConfig);
     }
 
+    @Override
+    public Replicator.WriteQuorum getReplicationWriteQuorum() {
+        return Replicator.WriteQuorum.valueOf(
+                localConfig.getReplicationWriteQuorum().toUpperCase());
+    }
+
+    @Override
+    public boolean isReplicationAsync() {
+        return localConfig.isReplicationAsync();
+    }
+
     @Override
     public long getBalanceDelay() {
         return localConfig.getBalanceDelay();
@@ -120,6 +214,16 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
         return TimeUnit.valueOf(localConfig.getBalanceDelayTimeunit().toUpperCase());
     }
 
+    @Override
+    public long getMigrationExpire() {
+        return localConfig.getMigrationExpire();
+    }
+
+    @Override
+    public TimeUnit getMigrationExpireTimeUnit() {
+        return TimeUnit.valueOf(localConfig.getMigrationExpireTimeunit().toUpperCase());
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         // create and start zookeeper client
@@ -216,7 +320,12 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
 
     @Bean
     public HttpClientPool httpClientPool() {
-        return new HttpClientPool();
+        return new HttpClientPool(getHttpClientChannels());
+    }
+
+    @Bean
+    public InternalClientPool internalClientPool() {
+        return new InternalClientPool(getHttpClientChannels());
     }
 
     @ConfigurationProperties("ceresfs")
@@ -268,14 +377,33 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
         private double diskDefaultWeight;
         private long volumeMaxSize;
         private int volumeWriteParallelism;
+        private String volumeReadMode = "channel";
+        private String volumeFsyncPolicy = "batch";
+        private long volumeFsyncInterval = 1000L;
+        private String volumeFsyncIntervalTimeunit = "MILLISECONDS";
+        private boolean volumeVerifyOnRead = false;
+        private long volumeScrubRate = 10L * 1024 * 1024;
+        private long volumeScrubPeriod = 24L;
+        private String volumeScrubPeriodTimeunit = "HOURS";
         private double volumeCompactThreshold;
         private String volumeCompactPeriodTimeunit;
         private long volumeCompactPeriod;
         private int imageMaxSize;
+        private int imageZeroCopyThreshold = 64 * 1024;
+        private boolean imageStreamingUpload = true;
+        private int httpClientChannels = 4;
+        private int internalPort;
+        private long broadcastHedgeDelay = 0L;
+        private String replicationWriteQuorum = "majority";
+        private boolean replicationAsync = false;
         private List<Disk> disks;
+        private boolean directoryRebuild = false;
+        private CacheConfig cache = new CacheConfig();
 
         private long balanceDelay;
         private String balanceDelayTimeunit;
+        private long migrationExpire = 24;
+        private String migrationExpireTimeunit = "HOURS";
 
         public short getId() {
             return id;
@@ -325,6 +453,70 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
             this.volumeWriteParallelism = volumeWriteParallelism;
         }
 
+        public String getVolumeReadMode() {
+            return volumeReadMode;
+        }
+
+        public void setVolumeReadMode(String volumeReadMode) {
+            this.volumeReadMode = volumeReadMode;
+        }
+
+        public String getVolumeFsyncPolicy() {
+            return volumeFsyncPolicy;
+        }
+
+        public void setVolumeFsyncPolicy(String volumeFsyncPolicy) {
+            this.volumeFsyncPolicy = volumeFsyncPolicy;
+        }
+
+        public long getVolumeFsyncInterval() {
+            return volumeFsyncInterval;
+        }
+
+        public void setVolumeFsyncInterval(long volumeFsyncInterval) {
+            this.volumeFsyncInterval = volumeFsyncInterval;
+        }
+
+        public String getVolumeFsyncIntervalTimeunit() {
+            return volumeFsyncIntervalTimeunit;
+        }
+
+        public void setVolumeFsyncIntervalTimeunit(String volumeFsyncIntervalTimeunit) {
+            this.volumeFsyncIntervalTimeunit = volumeFsyncIntervalTimeunit;
+        }
+
+        public boolean isVolumeVerifyOnRead() {
+            return volumeVerifyOnRead;
+        }
+
+        public void setVolumeVerifyOnRead(boolean volumeVerifyOnRead) {
+            this.volumeVerifyOnRead = volumeVerifyOnRead;
+        }
+
+        public long getVolumeScrubRate() {
+            return volumeScrubRate;
+        }
+
+        public void setVolumeScrubRate(long volumeScrubRate) {
+            this.volumeScrubRate = volumeScrubRate;
+        }
+
+        public long getVolumeScrubPeriod() {
+            return volumeScrubPeriod;
+        }
+
+        public void setVolumeScrubPeriod(long volumeScrubPeriod) {
+            this.volumeScrubPeriod = volumeScrubPeriod;
+        }
+
+        public String getVolumeScrubPeriodTimeunit() {
+            return volumeScrubPeriodTimeunit;
+        }
+
+        public void setVolumeScrubPeriodTimeunit(String volumeScrubPeriodTimeunit) {
+            this.volumeScrubPeriodTimeunit = volumeScrubPeriodTimeunit;
+        }
+
         public double getVolumeCompactThreshold() {
             return volumeCompactThreshold;
         }
@@ -357,6 +549,62 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
             this.imageMaxSize = imageMaxSize;
         }
 
+        public int getImageZeroCopyThreshold() {
+            return imageZeroCopyThreshold;
+        }
+
+        public void setImageZeroCopyThreshold(int imageZeroCopyThreshold) {
+            this.imageZeroCopyThreshold = imageZeroCopyThreshold;
+        }
+
+        public boolean isImageStreamingUpload() {
+            return imageStreamingUpload;
+        }
+
+        public void setImageStreamingUpload(boolean imageStreamingUpload) {
+            this.imageStreamingUpload = imageStreamingUpload;
+        }
+
+        public int getHttpClientChannels() {
+            return httpClientChannels;
+        }
+
+        public void setHttpClientChannels(int httpClientChannels) {
+            this.httpClientChannels = httpClientChannels;
+        }
+
+        public int getInternalPort() {
+            return internalPort;
+        }
+
+        public void setInternalPort(int internalPort) {
+            this.internalPort = internalPort;
+        }
+
+        public long getBroadcastHedgeDelay() {
+            return broadcastHedgeDelay;
+        }
+
+        public void setBroadcastHedgeDelay(long broadcastHedgeDelay) {
+            this.broadcastHedgeDelay = broadcastHedgeDelay;
+        }
+
+        public String getReplicationWriteQuorum() {
+            return replicationWriteQuorum;
+        }
+
+        public void setReplicationWriteQuorum(String replicationWriteQuorum) {
+            this.replicationWriteQuorum = replicationWriteQuorum;
+        }
+
+        public boolean isReplicationAsync() {
+            return replicationAsync;
+        }
+
+        public void setReplicationAsync(boolean replicationAsync) {
+            this.replicationAsync = replicationAsync;
+        }
+
         public List<Disk> getDisks() {
             return disks;
         }
@@ -366,6 +614,22 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
         }
 
 
+        public boolean isDirectoryRebuild() {
+            return directoryRebuild;
+        }
+
+        public void setDirectoryRebuild(boolean directoryRebuild) {
+            this.directoryRebuild = directoryRebuild;
+        }
+
+        public CacheConfig getCache() {
+            return cache;
+        }
+
+        public void setCache(CacheConfig cache) {
+            this.cache = cache;
+        }
+
         public long getBalanceDelay() {
             return balanceDelay;
         }
@@ -382,6 +646,22 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
             this.balanceDelayTimeunit = balanceDelayTimeunit;
         }
 
+        public long getMigrationExpire() {
+            return migrationExpire;
+        }
+
+        public void setMigrationExpire(long migrationExpire) {
+            this.migrationExpire = migrationExpire;
+        }
+
+        public String getMigrationExpireTimeunit() {
+            return migrationExpireTimeunit;
+        }
+
+        public void setMigrationExpireTimeunit(String migrationExpireTimeunit) {
+            this.migrationExpireTimeunit = migrationExpireTimeunit;
+        }
+
         @Override
         public String toString() {
             return "LocalConfig{" +
@@ -390,15 +670,72 @@ public class ConfigurationService implements Configuration, InitializingBean, Di
                     ", zookeeperAddress='" + zookeeperAddress + '\'' +
                     ", diskDefaultWeight=" + diskDefaultWeight +
                     ", volumeMaxSize=" + volumeMaxSize +
+                    ", volumeReadMode='" + volumeReadMode + '\'' +
+                    ", volumeFsyncPolicy='" + volumeFsyncPolicy + '\'' +
+                    ", volumeFsyncInterval=" + volumeFsyncInterval +
+                    ", volumeFsyncIntervalTimeunit='" + volumeFsyncIntervalTimeunit + '\'' +
+                    ", volumeVerifyOnRead=" + volumeVerifyOnRead +
+                    ", volumeScrubRate=" + volumeScrubRate +
+                    ", volumeScrubPeriod=" + volumeScrubPeriod +
+                    ", volumeScrubPeriodTimeunit='" + volumeScrubPeriodTimeunit + '\'' +
                     ", volumeCompactThreshold=" + volumeCompactThreshold +
                     ", volumeCompactPeriodTimeunit='" + volumeCompactPeriodTimeunit + '\'' +
                     ", volumeCompactPeriod=" + volumeCompactPeriod +
                     ", imageMaxSize=" + imageMaxSize +
+                    ", imageZeroCopyThreshold=" + imageZeroCopyThreshold +
+                    ", imageStreamingUpload=" + imageStreamingUpload +
+                    ", httpClientChannels=" + httpClientChannels +
+                    ", internalPort=" + internalPort +
+                    ", broadcastHedgeDelay=" + broadcastHedgeDelay +
+                    ", replicationWriteQuorum='" + replicationWriteQuorum + '\'' +
+                    ", replicationAsync=" + replicationAsync +
                     ", disks=" + disks +
+                    ", directoryRebuild=" + directoryRebuild +
+                    ", cache=" + cache +
                     ", balanceDelay=" + balanceDelay +
                     ", balanceDelayTimeunit='" + balanceDelayTimeunit + '\'' +
+                    ", migrationExpire=" + migrationExpire +
+                    ", migrationExpireTimeunit='" + migrationExpireTimeunit + '\'' +
                     '}';
         }
     }
-}
 
+    protected static class CacheConfig implements Serializable {
+        private String mode = "none";
+        private long heapSize = 64L * 1024 * 1024;
+        private long offheapSize = 0L;
+
+        public String getMode() {
+            return mode;
+        }
+
+        public void setMode(String mode) {
+            this.mode = mode;
+        }
+
+        public long getHeapSize() {
+            return heapSize;
+        }
+
+        public void setHeapSize(long heapSize) {
+            this.heapSize = heapSize;
+        }
+
+        public long getOffheapSize() {
+            return offheapSize;
+        }
+
+        public void setOffheapSize(long offheapSize) {
+            this.offheapSize = offheapSize;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheConfig{" +
+                    "mode='" + mode + '\'' +
+                    ", heapSize=" + heapSize +
+                    ", offheapSize=" + offheapSize +
+                    '}';
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package io.github.huiyu.ceresfs.http;
 
 import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.internal.InternalClient;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.internal.InternalResponse;
+import io.github.huiyu.ceresfs.metrics.Metrics;
 import io.github.huiyu.ceresfs.topology.Node;
 import io.github.huiyu.ceresfs.util.HttpUtil;
 
@@ -8,12 +14,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -32,20 +40,27 @@ public abstract class AbstractAsyncHttpResponder implements HttpResponder {
     @Autowired
     protected HttpClientPool httpClientPool;
 
+    @Autowired(required = false)
+    protected InternalClientPool internalClientPool;
+
+    @Autowired(required = false)
+    protected Configuration config;
+
+    @Autowired(required = false)
+    protected Metrics metrics;
+
     @Override
     public void handle(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        String token = req.headers().get(Const.HTTP_TOKEN_NAME);
         this.getResponse(req).whenComplete((resp, ex) -> {
             if (ex != null) {
                 LOG.error("Internal server error", ex);
-                ctx.writeAndFlush(HttpUtil.newResponse(
-                        HttpResponseStatus.INTERNAL_SERVER_ERROR, ex));
-            } else {
-                String token = req.headers().get(Const.HTTP_TOKEN_NAME);
-                if (token != null) {
-                    resp.headers().set(Const.HTTP_TOKEN_NAME, token);
-                }
-                ctx.writeAndFlush(resp);
+                resp = HttpUtil.newResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR, ex);
             }
+            if (token != null) {
+                resp.headers().set(Const.HTTP_TOKEN_NAME, token);
+            }
+            ctx.writeAndFlush(resp);
         });
     }
 
@@ -56,9 +71,79 @@ public abstract class AbstractAsyncHttpResponder implements HttpResponder {
             return CompletableFuture.completedFuture(resp);
         }
 
-        FullHttpRequest copy = req.copy();
-        copy.headers().set(Const.HTTP_HEADER_MAX_FORWARDS, maxForwards - 1);
-        return httpClientPool.getOrCreate(node.getHostAddress(), node.getPort()).newCall(copy);
+        return timed(proxy(node, proxyOf(req, maxForwards - 1)), "http");
+    }
+
+    /**
+     * Request relaying the content of the original one rather than a copy of it. Only headers
+     * are copied, the content is a retained duplicate released once the proxy is sent.
+     */
+    protected FullHttpRequest proxyOf(FullHttpRequest req, int maxForwards) {
+        FullHttpRequest proxy = req.retainedDuplicate();
+        proxy.headers().set(Const.HTTP_HEADER_MAX_FORWARDS, maxForwards);
+        return proxy;
+    }
+
+    private CompletableFuture<FullHttpResponse> proxy(Node node, FullHttpRequest proxy) {
+        return httpClientPool.getOrCreate(node.getHostAddress(), node.getPort()).newCall(proxy);
+    }
+
+    /**
+     * @return client of the internal protocol of the node, or null if the node doesn't serve it
+     */
+    protected InternalClient internalClientOf(Node node) {
+        if (internalClientPool == null || node.getInternalPort() <= 0) {
+            return null;
+        }
+        return internalClientPool.getOrCreate(node.getHostAddress(), node.getInternalPort());
+    }
+
+    /**
+     * Forward by the internal protocol if the node serves it, or by http otherwise. Requests
+     * refused as the node doesn't own the image are forwarded by http, which routes again.
+     *
+     * @param call     internal call of the request
+     * @param response converts internal responses other than {@link InternalProtocol#NOT_OWNER}
+     */
+    protected CompletableFuture<FullHttpResponse> forward(
+            Node node, FullHttpRequest req,
+            Function<InternalClient, CompletableFuture<InternalResponse>> call,
+            Function<InternalResponse, FullHttpResponse> response) {
+        InternalClient client = internalClientOf(node);
+        if (client == null || maxForwardOf(req, 1) <= 0) {
+            return forward(node, req);
+        }
+        CompletableFuture<InternalResponse> future = timed(call.apply(client), "internal");
+        // kept for falling back to http
+        req.retain();
+        return future.thenCompose(resp -> {
+            if (resp.getStatus() != InternalProtocol.NOT_OWNER) {
+                return CompletableFuture.completedFuture(response.apply(resp));
+            }
+            LOG.debug("{} refused forwarded request, forward by http", node);
+            return forward(node, req);
+        }).whenComplete((resp, ex) -> req.release());
+    }
+
+    /**
+     * Record latency of the forward by the protocol once it completes
+     */
+    private <T> CompletableFuture<T> timed(CompletableFuture<T> future, String protocol) {
+        if (metrics != null) {
+            long start = System.nanoTime();
+            Metrics.Timer timer = metrics.timer("ceresfs_forward_seconds",
+                    "Latency of requests forwarded to other nodes", "protocol", protocol);
+            future.whenComplete((resp, ex) -> timer.recordSince(start));
+        }
+        return future;
+    }
+
+    /**
+     * @return replicas kept by the cluster, which images are read and deleted from. Uploads
+     * asking for other replicas are rejected, as they couldn't be found by reads.
+     */
+    protected int replication() {
+        return config == null ? 1 : Math.max(1, config.getReplication());
     }
 
     protected int maxForwardOf(FullHttpRequest req, int defaultValue) {
@@ -70,61 +155,129 @@ public abstract class AbstractAsyncHttpResponder implements HttpResponder {
         return maxForwards;
     }
 
+    /**
+     * Send the request to nodes until one of them responds OK, calls still in flight are
+     * cancelled then. Nodes are asked in order, the next one once the hedge delay passes or all
+     * nodes asked have failed, or all at once if the delay is 0.
+     *
+     * @return the first OK response, or NOT_FOUND if no node responds OK
+     */
     protected CompletableFuture<FullHttpResponse> broadcast(Collection<Node> nodes,
                                                             FullHttpRequest req) {
         // check http max-forward
-        int maxForwardOf = maxForwardOf(req, 1);
-        if (maxForwardOf <= 0) {
+        int maxForwards = maxForwardOf(req, 1);
+        if (maxForwards <= 0) {
             FullHttpResponse resp = HttpUtil.newResponse(FORBIDDEN, MSG_FORWARD_FORBIDDEN);
             return CompletableFuture.completedFuture(resp);
         }
 
-        // copy request
-        final int size = nodes.size();
-        final ConcurrentLinkedQueue<FullHttpRequest> requests = new ConcurrentLinkedQueue<>();
-        for (int i = 0; i < size; i++) {
-            requests.offer(req.copy());
+        long hedgeDelay = config == null ? 0L : config.getBroadcastHedgeDelay();
+        Broadcast broadcast = new Broadcast(nodes, req, maxForwards - 1, hedgeDelay);
+        broadcast.next();
+        return broadcast.result;
+    }
+
+    /**
+     * State of a broadcast, guarded by itself as responses complete on event loops
+     */
+    private final class Broadcast {
+
+        private final Iterator<Node> nodes;
+        private final FullHttpRequest req;
+        private final int maxForwards;
+        private final long hedgeDelay;
+
+        private final List<CompletableFuture<FullHttpResponse>> calls = new ArrayList<>();
+        private final CompletableFuture<FullHttpResponse> result = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+        private int asked = 0;
+        private int pending = 0;
+
+        Broadcast(Collection<Node> nodes, FullHttpRequest req, int maxForwards, long hedgeDelay) {
+            this.nodes = new ArrayList<>(nodes).iterator();
+            // proxied by calls until the broadcast completes
+            this.req = req.retain();
+            this.maxForwards = maxForwards;
+            this.hedgeDelay = hedgeDelay;
+            if (metrics != null) {
+                result.whenComplete((resp, ex) -> record(resp));
+            }
+        }
+
+        /**
+         * Record latency and nodes asked, which are the hops taken to find the image
+         */
+        private void record(FullHttpResponse resp) {
+            String found = String.valueOf(
+                    resp != null && resp.status().equals(HttpResponseStatus.OK));
+            metrics.timer("ceresfs_broadcast_seconds", "Latency of broadcasts",
+                    "found", found).recordSince(start);
+            metrics.summary("ceresfs_broadcast_hops", "Nodes asked by broadcasts",
+                    "found", found).record(asked);
         }
-        // do broadcast
-        final ForkJoinPool pool = ForkJoinPool.commonPool();
-        return CompletableFuture.supplyAsync(() -> {
-            final AtomicReference<FullHttpResponse> ref = new AtomicReference<>();
-            final CountDownLatch completeOne = new CountDownLatch(1);
-            pool.submit(() -> {
-                final CountDownLatch completeAll = new CountDownLatch(size);
-                for (Node node : nodes) {
-                    try {
-                        CompletableFuture<FullHttpResponse> forward = forward(node, requests.poll());
-                        FullHttpResponse response = forward.get();
-                        ref.set(response);
-                        completeOne.countDown();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    } finally {
-                        completeAll.countDown();
-                    }
-                }
-                try {
-                    completeAll.await();
-                } catch (InterruptedException e) {
-                } finally {
-                    completeOne.countDown();
+
+        synchronized void next() {
+            if (result.isDone()) {
+                return;
+            }
+            if (!nodes.hasNext()) {
+                if (pending == 0) {
+                    complete(HttpUtil.newResponse(NOT_FOUND));
                 }
-            });
+                return;
+            }
 
-            try {
-                completeOne.await();
-            } catch (InterruptedException e) {
+            Node node = nodes.next();
+            asked++;
+            pending++;
+            CompletableFuture<FullHttpResponse> call = proxy(node, proxyOf(req, maxForwards));
+            calls.add(call);
+            call.whenComplete((resp, ex) -> onResponse(node, resp, ex));
+
+            if (hedgeDelay <= 0) {
+                next();
+            } else if (nodes.hasNext()) {
+                int hedged = asked;
+                httpClientPool.getWorkerGroup().schedule(() -> hedge(hedged), hedgeDelay,
+                        TimeUnit.MILLISECONDS);
             }
+        }
 
-            FullHttpResponse response = ref.get();
-            if (response == null) {
-                response = HttpUtil.newResponse(NOT_FOUND);
+        /**
+         * Ask the next node unless it has been asked since scheduled
+         */
+        private synchronized void hedge(int hedged) {
+            if (asked == hedged) {
+                next();
             }
-            return response;
-        });
-    }
+        }
+
+        private synchronized void onResponse(Node node, FullHttpResponse resp, Throwable ex) {
+            pending--;
+            if (ex != null) {
+                if (!(ex instanceof CancellationException)) {
+                    LOG.warn("Broadcast to " + node + " error", ex);
+                }
+            } else if (!resp.status().equals(HttpResponseStatus.OK) || !complete(resp)) {
+                resp.release();
+            }
+            // all nodes asked have failed, don't wait for the hedge delay
+            if (pending == 0) {
+                next();
+            }
+        }
 
+        private boolean complete(FullHttpResponse resp) {
+            if (!result.complete(resp)) {
+                return false;
+            }
+            for (CompletableFuture<FullHttpResponse> call : calls) {
+                call.cancel(false);
+            }
+            req.release();
+            return true;
+        }
+    }
 
     protected abstract CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req);
 }
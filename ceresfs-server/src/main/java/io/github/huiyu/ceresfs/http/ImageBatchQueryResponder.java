@@ -0,0 +1,247 @@
+package io.github.huiyu.ceresfs.http;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.internal.InternalClient;
+import io.github.huiyu.ceresfs.internal.InternalResponse;
+import io.github.huiyu.ceresfs.storage.Facade;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+
+/**
+ * Batch read of images, GET /images?id=1&id=2... Ids are grouped by the node they route to,
+ * local images are read in parallel and each remote node gets one sub request for its ids. The
+ * response is encoded by {@link ImageBatch} and sent once all entries are read, as one full
+ * response, so responses pipelined on the connection never interleave with it. Entries of each
+ * remote node come first as a group, followed by local ones in request order.
+ * <p>
+ * The response is held on the heap, so images total at most {@link ImageBatch#MAX_READ_BYTES},
+ * images beyond are not loaded and reported as {@link ImageBatch#TOO_LARGE}. While nodes are
+ * rebalancing, local images are scanned on all local disks, but images in flight between nodes
+ * may be reported as not found.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class ImageBatchQueryResponder extends AbstractAsyncHttpResponder
+        implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageBatchQueryResponder.class);
+
+    // local reads may load whole images, keep them off the event loops and the common pool
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    private Topology topology;
+    private Facade facade;
+
+    @Autowired
+    public ImageBatchQueryResponder(Topology topology, Facade facade) {
+        this.topology = topology;
+        this.facade = facade;
+    }
+
+    @Override
+    public String[] paths() {
+        return new String[]{"/images"};
+    }
+
+    @Override
+    public HttpMethod[] methods() {
+        return new HttpMethod[]{HttpMethod.GET};
+    }
+
+    /**
+     * @return distinct ids in request order, or null if the request is bad
+     */
+    private Set<Long> parseIds(FullHttpRequest req) {
+        List<String> ids = new QueryStringDecoder(req.uri()).parameters().get("id");
+        if (CollectionUtils.isEmpty(ids) || ids.size() > ImageBatch.MAX_SIZE) {
+            return null;
+        }
+        Set<Long> result = new LinkedHashSet<>();
+        try {
+            for (String id : ids) {
+                result.add(Long.parseLong(id));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return result;
+    }
+
+    private ByteBuf readLocal(long id, boolean balanced, AtomicLong remaining) {
+        try {
+            Facade.ReadResult result = balanced ?
+                    facade.read(topology.route(id), id) : facade.scan(id);
+            if (result == null) {
+                return ImageBatch.encode(id, ImageBatch.NOT_FOUND);
+            }
+            ImageIndex index = result.getIndex();
+            if (!ImageBatch.charge(remaining, index.getSize())) {
+                return ImageBatch.encode(id, ImageBatch.TOO_LARGE);
+            }
+            // large images are loaded, as the body is aggregated
+            byte[] data = result.isRegion() ?
+                    result.getRegion().load() : result.getImage().getData();
+            return ImageBatch.encode(id, index.getType(), index.getExpireTime(), data);
+        } catch (Exception e) {
+            LOG.error("Read image " + id + " error", e);
+            return ImageBatch.encode(id, ImageBatch.ERROR);
+        }
+    }
+
+    /**
+     * One sub request for all ids of the node, by the internal protocol if the node serves it.
+     * Entries of the remote response are passed on as is but charged, all ids are reported as
+     * error if the sub request fails.
+     */
+    private CompletableFuture<ByteBuf> readRemote(Node node, List<Long> ids, FullHttpRequest req,
+                                                  AtomicLong remaining) {
+        InternalClient client = internalClientOf(node);
+        CompletableFuture<ByteBuf> future;
+        if (client != null && maxForwardOf(req, 1) > 0) {
+            future = client.getAll(ids).thenApply(InternalResponse::getContent);
+        } else {
+            future = forwardBatch(node, ids, req);
+        }
+        future = future.thenApply(content -> ImageBatch.limit(content, remaining));
+        return future.exceptionally(ex -> {
+            LOG.error("Batch read from " + node + " error", ex);
+            CompositeByteBuf errors = Unpooled.compositeBuffer(ids.size());
+            for (long id : ids) {
+                errors.addComponent(true, ImageBatch.encode(id, ImageBatch.ERROR));
+            }
+            return errors;
+        });
+    }
+
+    private CompletableFuture<ByteBuf> forwardBatch(Node node, List<Long> ids,
+                                                    FullHttpRequest req) {
+        StringBuilder uri = new StringBuilder("/images?");
+        for (int i = 0; i < ids.size(); i++) {
+            uri.append(i == 0 ? "id=" : "&id=").append(ids.get(i));
+        }
+        FullHttpRequest sub = HttpUtil.newRequest(HttpMethod.GET, uri.toString());
+        String maxForwards = req.headers().get(Const.HTTP_HEADER_MAX_FORWARDS);
+        if (maxForwards != null) {
+            sub.headers().set(Const.HTTP_HEADER_MAX_FORWARDS, maxForwards);
+        }
+        CompletableFuture<FullHttpResponse> future;
+        try {
+            future = forward(node, sub);
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        } finally {
+            // proxied by a retained duplicate
+            sub.release();
+        }
+        return future.thenApply(resp -> {
+            if (!resp.status().equals(OK)) {
+                resp.release();
+                throw new UncheckedExecutionException(new HttpBadResponseException(resp));
+            }
+            return resp.content();
+        });
+    }
+
+    @Override
+    protected CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req) {
+        Set<Long> ids = parseIds(req);
+        if (ids == null) {
+            return CompletableFuture.completedFuture(badRequest(req));
+        }
+
+        // group by owner
+        boolean balanced = topology.getUnbalancedNodes().isEmpty();
+        List<Long> local = new ArrayList<>();
+        Map<Node, List<Long>> remote = new HashMap<>();
+        for (long id : ids) {
+            Disk disk = topology.route(id);
+            Node node = disk.getNode();
+            if (topology.isLocalNode(node)) {
+                local.add(id);
+            } else {
+                remote.computeIfAbsent(node, n -> new ArrayList<>()).add(id);
+            }
+        }
+
+        AtomicLong remaining = new AtomicLong(ImageBatch.MAX_READ_BYTES);
+        List<CompletableFuture<ByteBuf>> reads = new ArrayList<>();
+        remote.forEach((node, nodeIds) -> reads.add(readRemote(node, nodeIds, req, remaining)));
+        for (long id : local) {
+            reads.add(CompletableFuture.supplyAsync(
+                    () -> readLocal(id, balanced, remaining), executor));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[reads.size()]))
+                .thenApply(v -> {
+                    CompositeByteBuf content = Unpooled.compositeBuffer(reads.size());
+                    for (CompletableFuture<ByteBuf> read : reads) {
+                        content.addComponent(true, read.join());
+                    }
+                    FullHttpResponse resp =
+                            new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, OK, content);
+                    resp.headers()
+                            .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
+                            .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                            .set(HttpHeaderNames.CONTENT_TYPE, ImageBatch.MIME_TYPE);
+                    return resp;
+                });
+    }
+
+    private FullHttpResponse badRequest(FullHttpRequest req) {
+        List<String> ids = new QueryStringDecoder(req.uri()).parameters().get("id");
+        String message;
+        if (CollectionUtils.isEmpty(ids)) {
+            message = "Image id is not provided.";
+        } else if (ids.size() > ImageBatch.MAX_SIZE) {
+            message = "At most " + ImageBatch.MAX_SIZE + " images in a batch.";
+        } else {
+            message = "Image id can't cast to long.";
+        }
+        return HttpUtil.newResponse(BAD_REQUEST, message);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+}
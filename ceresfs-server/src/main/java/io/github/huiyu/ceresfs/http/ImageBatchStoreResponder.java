@@ -0,0 +1,340 @@
+package io.github.huiyu.ceresfs.http;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.internal.InternalClient;
+import io.github.huiyu.ceresfs.internal.InternalResponse;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+
+/**
+ * Batch upload of images, POST /images with a multipart body of files, each preceded by its
+ * optional id and expire time. Images are grouped by the node they route to, each remote node
+ * gets one sub request for its images, and the images of each local disk are appended to a
+ * volume as one group and saved to directory in one pass. The response is encoded by
+ * {@link ImageBatch}, with an entry per image telling whether it's saved.
+ * <p>
+ * Images of a batch are kept as a single copy, so batches are rejected if the cluster keeps
+ * more replicas, or if they ask for replicas other than the cluster's.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class ImageBatchStoreResponder extends AbstractAsyncHttpResponder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageBatchStoreResponder.class);
+
+    private static final DefaultHttpDataFactory USE_MEMORY = new DefaultHttpDataFactory(false);
+
+    private final Topology topology;
+    private final Directory directory;
+    private final Store store;
+    private final ImageStoreResponder storeResponder;
+
+    @Autowired
+    public ImageBatchStoreResponder(Topology topology, Directory directory, Store store,
+                                    ImageStoreResponder storeResponder) {
+        this.topology = topology;
+        this.directory = directory;
+        this.store = store;
+        this.storeResponder = storeResponder;
+    }
+
+    @Override
+    public String[] paths() {
+        return new String[]{"/images"};
+    }
+
+    @Override
+    public HttpMethod[] methods() {
+        return new HttpMethod[]{HttpMethod.POST};
+    }
+
+    @Override
+    protected CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req) {
+        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(USE_MEMORY, req);
+        try {
+            Batch batch = new Batch(replication());
+            String error = batch.resolve(decoder);
+            if (error != null) {
+                return CompletableFuture.completedFuture(HttpUtil.newResponse(BAD_REQUEST, error));
+            }
+
+            // group by owner
+            Map<Disk, List<Integer>> local = new HashMap<>();
+            Map<Node, List<Integer>> remote = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                Disk disk = topology.route(batch.ids.get(i));
+                if (topology.isLocalNode(disk.getNode())) {
+                    local.computeIfAbsent(disk, d -> new ArrayList<>()).add(i);
+                } else {
+                    remote.computeIfAbsent(disk.getNode(), n -> new ArrayList<>()).add(i);
+                }
+            }
+
+            List<CompletableFuture<ByteBuf>> results = new ArrayList<>();
+            remote.forEach((node, images) -> results.add(saveRemote(node, batch, images, req)));
+            local.forEach((disk, images) -> results.add(saveLocal(disk, batch, images)));
+            return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                    .thenApply(v -> {
+                        CompositeByteBuf content = Unpooled.compositeBuffer(results.size());
+                        for (CompletableFuture<ByteBuf> result : results) {
+                            content.addComponent(true, result.join());
+                        }
+                        FullHttpResponse resp =
+                                new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, OK, content);
+                        resp.headers()
+                                .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
+                                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                                .set(HttpHeaderNames.CONTENT_TYPE, ImageBatch.MIME_TYPE);
+                        return resp;
+                    });
+        } catch (Exception e) {
+            CompletableFuture<FullHttpResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            decoder.destroy();
+        }
+    }
+
+    /**
+     * Append images of a disk as one group, images already existing are skipped
+     */
+    private CompletableFuture<ByteBuf> saveLocal(Disk disk, Batch batch, List<Integer> images) {
+        CompositeByteBuf entries = Unpooled.compositeBuffer(images.size());
+        List<ImageIndex> indexes = new ArrayList<>(images.size());
+        List<ByteBuf> contents = new ArrayList<>(images.size());
+        List<ByteBuffer> data = new ArrayList<>(images.size());
+        for (int i : images) {
+            long id = batch.ids.get(i);
+            if (directory.contains(disk, id)) {
+                entries.addComponent(true, ImageBatch.encode(id, ImageBatch.EXISTS));
+                continue;
+            }
+            ImageIndex index = new ImageIndex();
+            index.setId(id);
+            index.setType(batch.types.get(i));
+            index.setExpireTime(batch.expireTimes.get(i));
+            indexes.add(index);
+            // written from the upload buffers, which outlive the decoder until saved
+            ByteBuf content = batch.contents.get(i).retain();
+            contents.add(content);
+            data.add(content.nioBuffer());
+        }
+        if (indexes.isEmpty()) {
+            return CompletableFuture.completedFuture(entries);
+        }
+        return store.saveAll(disk, indexes, data).handle((saved, ex) -> {
+            contents.forEach(ByteBuf::release);
+            byte status = ImageBatch.SAVED;
+            if (ex == null) {
+                directory.saveAll(disk, saved);
+            } else {
+                LOG.error("Save " + indexes.size() + " images to " + disk + " error", ex);
+                status = ImageBatch.ERROR;
+            }
+            for (ImageIndex index : indexes) {
+                entries.addComponent(true, ImageBatch.encode(index.getId(), status));
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * One sub request for all images of the node, by the internal protocol if the node serves
+     * it. Entries of the response are passed on as is.
+     */
+    private CompletableFuture<ByteBuf> saveRemote(Node node, Batch batch, List<Integer> images,
+                                                  FullHttpRequest req) {
+        List<Long> ids = new ArrayList<>(images.size());
+        List<ImageType> types = new ArrayList<>(images.size());
+        List<Long> expireTimes = new ArrayList<>(images.size());
+        List<ByteBuf> contents = new ArrayList<>(images.size());
+        for (int i : images) {
+            ids.add(batch.ids.get(i));
+            types.add(batch.types.get(i));
+            expireTimes.add(batch.expireTimes.get(i));
+            contents.add(batch.contents.get(i));
+        }
+        InternalClient client = internalClientOf(node);
+        CompletableFuture<ByteBuf> future;
+        if (client != null && maxForwardOf(req, 1) > 0) {
+            // images the node doesn't own are reported as error by the node
+            future = client.putAll(ids, types, expireTimes, batch.replication, contents)
+                    .thenApply(InternalResponse::getContent);
+        } else {
+            future = forwardBatch(node, ids, types, expireTimes, batch.replication, contents,
+                    req);
+        }
+        return future.exceptionally(ex -> {
+            LOG.error("Batch upload to " + node + " error", ex);
+            CompositeByteBuf errors = Unpooled.compositeBuffer(ids.size());
+            for (long id : ids) {
+                errors.addComponent(true, ImageBatch.encode(id, ImageBatch.ERROR));
+            }
+            return errors;
+        });
+    }
+
+    private CompletableFuture<ByteBuf> forwardBatch(Node node, List<Long> ids,
+                                                    List<ImageType> types, List<Long> expireTimes,
+                                                    int replication, List<ByteBuf> contents,
+                                                    FullHttpRequest req) {
+        CompletableFuture<FullHttpResponse> future;
+        FullHttpRequest sub = null;
+        try {
+            sub = HttpUtil.newImageBatchUploadRequest(
+                    ids, types, expireTimes, replication, contents);
+            String maxForwards = req.headers().get(Const.HTTP_HEADER_MAX_FORWARDS);
+            if (maxForwards != null) {
+                sub.headers().set(Const.HTTP_HEADER_MAX_FORWARDS, maxForwards);
+            }
+            future = forward(node, sub);
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        } finally {
+            // proxied by a retained duplicate
+            if (sub != null) {
+                sub.release();
+            }
+        }
+        return future.thenApply(resp -> {
+            if (!resp.status().equals(OK)) {
+                resp.release();
+                throw new UncheckedExecutionException(new HttpBadResponseException(resp));
+            }
+            return resp.content();
+        });
+    }
+
+    /**
+     * Images of a batch upload request
+     */
+    private class Batch {
+
+        final List<Long> ids = new ArrayList<>();
+        final List<ImageType> types = new ArrayList<>();
+        final List<Long> expireTimes = new ArrayList<>();
+        final List<ByteBuf> contents = new ArrayList<>();
+        // replicas kept by the cluster
+        final int clusterReplication;
+        int replication;
+
+        Batch(int clusterReplication) {
+            this.clusterReplication = clusterReplication;
+            this.replication = clusterReplication;
+        }
+
+        /**
+         * @return error message, or null if resolved
+         */
+        String resolve(HttpPostRequestDecoder decoder) throws Exception {
+            long bytes = 0L;
+            for (InterfaceHttpData data : decoder.getBodyHttpDatas()) {
+                if (data instanceof FileUpload) {
+                    FileUpload file = (FileUpload) data;
+                    try {
+                        types.add(ImageType.fromFileName(file.getFilename()));
+                    } catch (IllegalArgumentException e) {
+                        return "File " + file.getFilename() + " is not a image.";
+                    }
+                    contents.add(file.getByteBuf());
+                    bytes += file.length();
+                } else if (data instanceof Attribute) {
+                    Attribute attribute = (Attribute) data;
+                    String name = attribute.getName();
+                    try {
+                        if (Const.HTTP_HEADER_IMAGE_ID.equals(name)) {
+                            ids.add(Long.parseLong(attribute.getValue()));
+                        } else if (Const.HTTP_HEADER_EXPIRE_TIME.equals(name)) {
+                            expireTimes.add(Long.parseLong(attribute.getValue()));
+                        } else if (Const.HTTP_HEADER_REPLICATION.equals(name)) {
+                            replication = Math.max(1, Integer.parseInt(attribute.getValue()));
+                        }
+                    } catch (NumberFormatException e) {
+                        return name + " " + attribute.getValue() + " is not a number.";
+                    }
+                }
+            }
+
+            if (replication != clusterReplication) {
+                return "Replication " + replication + " differs from " + clusterReplication
+                        + " of the cluster.";
+            }
+            if (replication > 1) {
+                return "Replicated images can't be uploaded in batch.";
+            }
+            int size = contents.size();
+            if (size == 0) {
+                return "No image file.";
+            }
+            if (size > ImageBatch.MAX_SIZE || bytes > ImageBatch.MAX_UPLOAD_BYTES) {
+                return "At most " + ImageBatch.MAX_SIZE + " images and "
+                        + ImageBatch.MAX_UPLOAD_BYTES + " bytes in a batch.";
+            }
+            if (ids.isEmpty()) {
+                for (int i = 0; i < size; i++) {
+                    ids.add(storeResponder.nextId());
+                }
+            } else if (ids.size() != size) {
+                return "Image ids don't match files.";
+            }
+            if (expireTimes.isEmpty()) {
+                // -1 means never expire
+                expireTimes.add(-1L);
+            }
+            if (expireTimes.size() == 1) {
+                for (int i = 1; i < size; i++) {
+                    expireTimes.add(expireTimes.get(0));
+                }
+            } else if (expireTimes.size() != size) {
+                return "Expire times don't match files.";
+            }
+            return null;
+        }
+
+        int size() {
+            return contents.size();
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package io.github.huiyu.ceresfs.http;
 
-import io.github.huiyu.ceresfs.storage.Directory;
-import io.github.huiyu.ceresfs.storage.ImageIndex;
-import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.storage.Facade;
+import io.github.huiyu.ceresfs.storage.Replicator;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.Node;
 import io.github.huiyu.ceresfs.topology.Topology;
@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -24,6 +25,7 @@ import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 
 @Component
@@ -34,14 +36,15 @@ public class ImageDeletionResponder extends AbstractAsyncHttpResponder {
     private static final DefaultHttpDataFactory USE_MEMORY = new DefaultHttpDataFactory(false);
 
     private final Topology topology;
-    private final Directory directory;
-    private final Store store;
+    private final Facade facade;
+
+    @Autowired(required = false)
+    private Replicator replicator;
 
     @Autowired
-    public ImageDeletionResponder(Topology topology, Directory directory, Store store) {
+    public ImageDeletionResponder(Topology topology, Facade facade) {
         this.topology = topology;
-        this.directory = directory;
-        this.store = store;
+        this.facade = facade;
     }
 
     @Override
@@ -72,17 +75,24 @@ public class ImageDeletionResponder extends AbstractAsyncHttpResponder {
 
             try {
                 long id = Long.parseLong(((Attribute) idData).getValue());
+                int replication = replication();
+                if (replicator != null && replication > 1) {
+                    return deleteReplicas(req, id, replication);
+                }
 
                 Disk disk = this.topology.route(id);
                 Node node = disk.getNode();
 
                 if (!topology.isLocalNode(node)) {
-                    return forward(node, req);
+                    return forward(node, req, client -> client.delete(id),
+                            resp -> resp.getStatus() == InternalProtocol.OK ?
+                                    HttpUtil.newResponse(OK) :
+                                    HttpUtil.newResponse(INTERNAL_SERVER_ERROR,
+                                            "Delete image " + id + " on " + node + " error"));
                 }
 
-                ImageIndex index = directory.get(disk, id);
-                store.delete(disk, index);
-                directory.delete(disk, id);
+                // delete index and evict cache
+                facade.delete(disk, id);
                 return CompletableFuture.completedFuture(HttpUtil.newResponse(OK));
             } catch (NumberFormatException e) {
                 return CompletableFuture.completedFuture(HttpUtil.newResponse(
@@ -96,4 +106,24 @@ public class ImageDeletionResponder extends AbstractAsyncHttpResponder {
             decoder.destroy();
         }
     }
+
+    /**
+     * Delete the image from its replicas if a replica is local, otherwise forward the request by
+     * http to the first replica
+     */
+    private CompletableFuture<FullHttpResponse> deleteReplicas(FullHttpRequest req, long id,
+                                                               int replication) {
+        List<Disk> replicas = Replicator.route(topology, id, replication);
+        if (Replicator.localOf(topology, replicas) == null) {
+            return forward(replicas.get(0).getNode(), req);
+        }
+        return replicator.delete(replicas, id).handle((v, ex) -> {
+            if (ex != null) {
+                LOG.error("Delete image " + id + " error", ex);
+                return HttpUtil.newResponse(INTERNAL_SERVER_ERROR,
+                        "Delete image " + id + " on replicas error");
+            }
+            return HttpUtil.newResponse(OK);
+        });
+    }
 }
@@ -1,45 +1,62 @@
 package io.github.huiyu.ceresfs.http;
 
-import io.github.huiyu.ceresfs.storage.Image;
-import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.storage.Facade;
 import io.github.huiyu.ceresfs.storage.ImageIndex;
-import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.storage.ImageRegion;
+import io.github.huiyu.ceresfs.storage.LocationHints;
+import io.github.huiyu.ceresfs.storage.Replicator;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.Node;
 import io.github.huiyu.ceresfs.topology.Topology;
 import io.github.huiyu.ceresfs.util.HttpUtil;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 
 @Component
 public class ImageQueryResponder extends AbstractAsyncHttpResponder {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ImageQueryResponder.class);
+
     private Topology topology;
-    private Directory directory;
-    private Store store;
+    private Facade facade;
+    private LocationHints locationHints;
 
     @Autowired
-    public ImageQueryResponder(Topology topology, Directory directory, Store store) {
+    public ImageQueryResponder(Topology topology, Facade facade, LocationHints locationHints) {
         this.topology = topology;
-        this.directory = directory;
-        this.store = store;
+        this.facade = facade;
+        this.locationHints = locationHints;
     }
 
     @Override
@@ -52,6 +69,77 @@ public class ImageQueryResponder extends AbstractAsyncHttpResponder {
         return new HttpMethod[]{HttpMethod.GET};
     }
 
+    @Override
+    public void handle(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        Facade.ReadResult result;
+        try {
+            result = readLocal(req);
+        } catch (Exception e) {
+            LOG.error("Internal server error", e);
+            ctx.writeAndFlush(HttpUtil.newResponse(INTERNAL_SERVER_ERROR, e));
+            return;
+        }
+        if (result == null) {
+            // bad request, remote or absent image
+            super.handle(ctx, req);
+            return;
+        }
+
+        ImageIndex index = result.getIndex();
+        HttpResponse resp;
+        if (result.isRegion()) {
+            resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, OK);
+            resp.headers()
+                    .set(HttpHeaderNames.CONTENT_LENGTH, index.getSize())
+                    .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                    .set(HttpHeaderNames.CONTENT_TYPE, index.getType().getMimeType());
+        } else {
+            resp = HttpUtil.newResponse(OK, index.getType().getMimeType(),
+                    result.getImage().getData());
+        }
+        resp.headers().set(Const.HTTP_HEADER_EXPIRE_TIME, index.getExpireTime());
+        String token = req.headers().get(Const.HTTP_TOKEN_NAME);
+        if (token != null) {
+            resp.headers().set(Const.HTTP_TOKEN_NAME, token);
+        }
+
+        if (result.isRegion()) {
+            // send image data from volume file to socket directly
+            ImageRegion region = result.getRegion();
+            ctx.write(resp);
+            ctx.write(new DefaultFileRegion(region.getVolume(), region.getPosition(), region.getSize()));
+            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else {
+            ctx.writeAndFlush(resp);
+        }
+    }
+
+    /**
+     * Read image of local disks through facade, the only read path of local images.
+     *
+     * @return read result, or null if the request should be served by {@link #getResponse}
+     */
+    private Facade.ReadResult readLocal(FullHttpRequest req) {
+        List<String> ids = new QueryStringDecoder(req.uri()).parameters().get("id");
+        if (ids == null || ids.size() != 1) {
+            return null;
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(ids.get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (!topology.getUnbalancedNodes().isEmpty() && !topology.getLocalNode().isBalanced()) {
+            // full scan disks
+            return facade.scan(id);
+        }
+        Disk disk = Replicator.localOf(topology, Replicator.route(topology, id, replication()));
+        return disk == null ? null : facade.read(disk, id);
+    }
+
     @Override
     protected CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req) {
         QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
@@ -64,7 +152,7 @@ public class ImageQueryResponder extends AbstractAsyncHttpResponder {
 
         if (ids.size() > 1) {
             FullHttpResponse resp = HttpUtil.newResponse(
-                    BAD_REQUEST, "Image id is not explicitly specified.");
+                    BAD_REQUEST, "Image id is not explicitly specified, use /images for batch reads.");
             return CompletableFuture.completedFuture(resp);
         }
 
@@ -74,40 +162,45 @@ public class ImageQueryResponder extends AbstractAsyncHttpResponder {
             Disk disk = topology.route(id);
             Node node = disk.getNode();
 
+            // local images have been read by handle
             List<Node> unbalancedNodes = topology.getUnbalancedNodes();
             if (unbalancedNodes.isEmpty()) {
-                
+                int replication = replication();
+                if (replication > 1) {
+                    return readReplicas(id, req, replication);
+                }
                 if (!topology.isLocalNode(node)) {
-                    return forward(node, req);
+                    return forwardGet(node, id, req);
                 }
+                return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
+            }
 
-                ImageIndex index = directory.get(disk, id);
-                if (index == null) {
-                    return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
-                }
-                Image image = store.get(disk, index);
-                String mimeType = image.getIndex().getType().getMimeType();
-                FullHttpResponse resp = HttpUtil.newResponse(OK, mimeType, image.getData());
-                return CompletableFuture.completedFuture(resp);
-            } else if (!topology.getLocalNode().isBalanced()) {
-                // full scan disks
-                for (Disk d : topology.getLocalNode().getDisks()) {
-                    ImageIndex index = directory.get(d, id);
-                    if (index != null) {
-                        Image image = store.get(d, index);
-                        String mimeType = image.getIndex().getType().getMimeType();
-                        FullHttpResponse resp = HttpUtil.newResponse(OK, mimeType, image.getData());
-                        return CompletableFuture.completedFuture(resp);
-                    }
-                }
+            // forwarded requests are only looked up locally, the sender asks the others
+            if (maxForwardOf(req, 1) <= 0) {
+                return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
+            }
+            Node movedTo = locationHints.movedTo(id);
+            if (movedTo != null && !topology.isLocalNode(movedTo)) {
+                return forward(movedTo, req);
             }
 
-            Set<Node> nodes = new HashSet<>(unbalancedNodes);
-            nodes.remove(topology.getLocalNode());
+            // ask the owner first, images moved or saved lately are there, then unbalanced
+            // nodes which may still hold the image by their filters
+            List<Node> holders = new ArrayList<>();
+            for (Node unbalanced : unbalancedNodes) {
+                if (!topology.isLocalNode(unbalanced) && unbalanced.getId() != node.getId()) {
+                    holders.add(unbalanced);
+                }
+            }
+            List<Node> nodes = new ArrayList<>();
+            if (!topology.isLocalNode(node)) {
+                nodes.add(node);
+            }
+            nodes.addAll(locationHints.mayHold(id, holders));
             if (nodes.isEmpty()) {
                 return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
             } else if (nodes.size() == 1) {
-                return forward(node, req);
+                return forward(nodes.get(0), req);
             } else {
                 return broadcast(nodes, req);
             }
@@ -121,4 +214,64 @@ public class ImageQueryResponder extends AbstractAsyncHttpResponder {
             return future;
         }
     }
+
+    private CompletableFuture<FullHttpResponse> forwardGet(Node node, long id,
+                                                           FullHttpRequest req) {
+        return forward(node, req, client -> client.get(id), resp -> {
+            if (resp.getStatus() == InternalProtocol.NOT_FOUND) {
+                return HttpUtil.newResponse(NOT_FOUND);
+            } else if (resp.getStatus() != InternalProtocol.OK) {
+                return HttpUtil.newResponse(INTERNAL_SERVER_ERROR,
+                        "Read image " + id + " on " + node + " error");
+            }
+            FullHttpResponse found = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, OK, resp.getData());
+            found.headers()
+                    .set(HttpHeaderNames.CONTENT_LENGTH, found.content().readableBytes())
+                    .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE)
+                    .set(HttpHeaderNames.CONTENT_TYPE, resp.getType().getMimeType())
+                    .set(Const.HTTP_HEADER_EXPIRE_TIME, resp.getExpireTime());
+            return found;
+        });
+    }
+
+    /**
+     * Read the image from other replicas in order until one of them has it, the local replica
+     * has been read by handle
+     */
+    private CompletableFuture<FullHttpResponse> readReplicas(long id, FullHttpRequest req,
+                                                             int replication) {
+        // forwarded requests are only looked up locally, the sender asks the other replicas
+        if (maxForwardOf(req, 1) <= 0) {
+            return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (Disk disk : topology.route(id, replication)) {
+            if (!topology.isLocalNode(disk.getNode())) {
+                nodes.add(disk.getNode());
+            }
+        }
+        // forwarded to each replica until one responds
+        req.retain();
+        return readFirst(nodes.iterator(), id, req).whenComplete((resp, ex) -> req.release());
+    }
+
+    private CompletableFuture<FullHttpResponse> readFirst(Iterator<Node> nodes, long id,
+                                                          FullHttpRequest req) {
+        if (!nodes.hasNext()) {
+            return CompletableFuture.completedFuture(HttpUtil.newResponse(NOT_FOUND));
+        }
+        Node node = nodes.next();
+        return forwardGet(node, id, req).handle((resp, ex) -> {
+            if (ex == null && resp.status().equals(OK)) {
+                return CompletableFuture.completedFuture(resp);
+            }
+            if (ex != null) {
+                LOG.warn("Read image " + id + " from " + node + " error", ex);
+            } else {
+                resp.release();
+            }
+            return readFirst(nodes, id, req);
+        }).thenCompose(future -> future);
+    }
 }
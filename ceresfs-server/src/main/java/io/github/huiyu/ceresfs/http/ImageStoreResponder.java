@@ -1,12 +1,15 @@
 package io.github.huiyu.ceresfs.http;
 
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import io.github.huiyu.ceresfs.Const;
 import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
 import io.github.huiyu.ceresfs.snowflake.Snowflake;
 import io.github.huiyu.ceresfs.storage.Directory;
-import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.ImageUpload;
+import io.github.huiyu.ceresfs.storage.Replicator;
 import io.github.huiyu.ceresfs.storage.Store;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.Node;
@@ -15,9 +18,11 @@ import io.github.huiyu.ceresfs.util.HttpUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import io.netty.buffer.ByteBuf;
@@ -33,6 +38,7 @@ import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 
 @Component
@@ -53,11 +59,58 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
     private final Store store;
     private final Snowflake snowflake;
 
+    @Autowired(required = false)
+    private Replicator replicator;
+
     public ImageStoreResponder(Topology topology, Directory directory, Store store) {
         this.topology = topology;
         this.directory = directory;
         this.store = store;
-        this.snowflake = new Snowflake.Builder(topology.getLocalNode().getId()).build();
+        short nodeId = topology.getLocalNode().getId();
+        // worker ids above are leased by clients
+        Preconditions.checkArgument(nodeId >= 0 && nodeId <= Const.MAX_NODE_ID,
+                "Node id must >= 0 and <= " + Const.MAX_NODE_ID);
+        this.snowflake = new Snowflake.Builder(nodeId).build();
+    }
+
+    /**
+     * Create a handler streaming image uploads of a connection into volumes
+     */
+    public ImageUploadHandler newUploadHandler() {
+        return new ImageUploadHandler(this);
+    }
+
+    long nextId() {
+        return snowflake.nextId();
+    }
+
+    /**
+     * @return the local disk for a new image, or null if the image routes to another node or
+     * already exists
+     */
+    Disk routeLocal(long id) {
+        Disk disk = topology.route(id);
+        if (!topology.isLocalNode(disk.getNode()) || directory.contains(disk, id)) {
+            return null;
+        }
+        return disk;
+    }
+
+    ImageUpload upload(Disk disk, long id, ImageType type, int capacity) {
+        return store.upload(disk, id, type, capacity);
+    }
+
+    /**
+     * Commit a streamed image and save its index
+     */
+    CompletableFuture<FullHttpResponse> complete(Disk disk, ImageUpload upload, long expireTime) {
+        return upload.commit(expireTime).thenApply(index -> {
+            directory.save(disk, index);
+            FullHttpResponse resp = HttpUtil.newResponse(OK);
+            resp.headers().set(Const.HTTP_HEADER_IMAGE_ID, index.getId());
+            resp.headers().set(Const.HTTP_HEADER_EXPIRE_TIME, index.getExpireTime());
+            return resp;
+        });
     }
 
     @Override
@@ -74,10 +127,14 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
     protected CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req) {
         HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(USE_MEMORY, req);
         try {
-            ImageStoreRequestResolver resolver = new ImageStoreRequestResolver(decoder, snowflake);
+            ImageStoreRequestResolver resolver = new ImageStoreRequestResolver(decoder, snowflake,
+                    replication());
             if (resolver.hasError()) {
                 return CompletableFuture.completedFuture(resolver.getErrorResponse());
             }
+            if (replicator != null && resolver.getImageReplication() > 1) {
+                return replicate(req, resolver);
+            }
 
             Disk disk = topology.route(resolver.getImageId());
             Node node = disk.getNode();
@@ -88,7 +145,25 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
             }
 
             if (!topology.isLocalNode(node)) { // not local, forward request
-                return forward(node, req);
+                long id = resolver.getImageId();
+                long expireTime = resolver.getImageExpireTime();
+                return forward(node, req,
+                        client -> client.put(id, resolver.getImageType(),
+                                resolver.getImageReplication(), expireTime,
+                                resolver.getImageContent()),
+                        resp -> {
+                            if (resp.getStatus() == InternalProtocol.EXISTS) {
+                                return HttpUtil.newResponse(BAD_REQUEST,
+                                        "Image[id=" + id + "] already exist");
+                            } else if (resp.getStatus() != InternalProtocol.OK) {
+                                return HttpUtil.newResponse(INTERNAL_SERVER_ERROR,
+                                        "Save image " + id + " on " + node + " error");
+                            }
+                            FullHttpResponse ok = HttpUtil.newResponse(OK);
+                            ok.headers().set(Const.HTTP_HEADER_IMAGE_ID, id);
+                            ok.headers().set(Const.HTTP_HEADER_EXPIRE_TIME, expireTime);
+                            return ok;
+                        });
             }
 
             // image id existence check
@@ -98,17 +173,19 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
                 return CompletableFuture.completedFuture(resp);
             }
 
+            // written from the upload buffer, which outlives the decoder until saved
+            ByteBuf content = resolver.getImageContent().retain();
             return store.save(
                     disk,
                     resolver.getImageId(),
                     resolver.getImageType(),
-                    resolver.getImageData(),
+                    content.nioBuffer(),
                     resolver.getImageExpireTime()
-            ).handle((image, ex) -> {
+            ).handle((index, ex) -> {
+                content.release();
                 if (ex != null) {
                     throw new UncheckedExecutionException(ex);
                 }
-                ImageIndex index = image.getIndex();
                 directory.save(disk, index);
                 FullHttpResponse resp = HttpUtil.newResponse(OK);
                 resp.headers().set(Const.HTTP_HEADER_IMAGE_ID, index.getId());
@@ -124,6 +201,40 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
         }
     }
 
+    /**
+     * Write the image to its replicas if a replica is local, otherwise forward the request by
+     * http to the first replica, which coordinates the write
+     */
+    private CompletableFuture<FullHttpResponse> replicate(FullHttpRequest req,
+                                                          ImageStoreRequestResolver resolver) {
+        long id = resolver.getImageId();
+        int replication = resolver.getImageReplication();
+        List<Disk> replicas = Replicator.route(topology, id, replication);
+        Disk disk = Replicator.localOf(topology, replicas);
+        if (disk == null) {
+            return forward(replicas.get(0).getNode(), req);
+        }
+        if (directory.contains(disk, id)) {
+            FullHttpResponse resp = HttpUtil.newResponse(BAD_REQUEST,
+                    "Image[id=" + id + "] already exist");
+            return CompletableFuture.completedFuture(resp);
+        }
+
+        long expireTime = resolver.getImageExpireTime();
+        ByteBuf content = resolver.getImageContent().retain();
+        return replicator.write(replicas, id, resolver.getImageType(), expireTime, replication,
+                content).handle((v, ex) -> {
+            content.release();
+            if (ex != null) {
+                throw new UncheckedExecutionException(ex);
+            }
+            FullHttpResponse resp = HttpUtil.newResponse(OK);
+            resp.headers().set(Const.HTTP_HEADER_IMAGE_ID, id);
+            resp.headers().set(Const.HTTP_HEADER_EXPIRE_TIME, expireTime);
+            return resp;
+        });
+    }
+
     private static class ImageStoreRequestResolver {
 
         private FullHttpResponse errorResponse;
@@ -131,10 +242,11 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
         private long imageId;
         private ImageType imageType;
         private long imageExpireTime;
-        private byte[] imageData;
+        private int imageReplication;
+        private ByteBuf imageContent;
 
-        public ImageStoreRequestResolver(HttpPostRequestDecoder decoder, Snowflake snowflake)
-                throws IOException {
+        public ImageStoreRequestResolver(HttpPostRequestDecoder decoder, Snowflake snowflake,
+                                         int replication) throws IOException {
 
             InterfaceHttpData idData = decoder.getBodyHttpData("id");
             if (idData == null) {
@@ -173,11 +285,13 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
                         "File " + ((FileUpload) fileData).getFilename() + "is not a image.");
             }
 
-            ByteBuf byteBuf = fileUpload.getByteBuf();
-            this.imageData = byteBuf.array();
+            this.imageContent = fileUpload.getByteBuf();
 
             // check expire time
-            InterfaceHttpData expireTimeData = decoder.getBodyHttpData("expireTimeData");
+            InterfaceHttpData expireTimeData = decoder.getBodyHttpData(Const.HTTP_HEADER_EXPIRE_TIME);
+            if (expireTimeData == null) {
+                expireTimeData = decoder.getBodyHttpData("expireTimeData");
+            }
             if (expireTimeData == null) {
                 // -1 means never expire
                 imageExpireTime = -1L;
@@ -193,6 +307,26 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
                     return;
                 }
             }
+
+            imageReplication = replication;
+            InterfaceHttpData replicationData = decoder.getBodyHttpData(Const.HTTP_HEADER_REPLICATION);
+            if (replicationData instanceof Attribute) {
+                try {
+                    imageReplication = Math.max(1,
+                            Integer.parseInt(((Attribute) replicationData).getValue()));
+                } catch (NumberFormatException e) {
+                    this.errorResponse = HttpUtil.newResponse(
+                            BAD_REQUEST,
+                            "Replication " + ((Attribute) replicationData).getValue()
+                                    + " is not a number.");
+                    return;
+                }
+                if (imageReplication != replication) {
+                    this.errorResponse = HttpUtil.newResponse(BAD_REQUEST,
+                            "Replication " + imageReplication + " differs from " + replication
+                                    + " of the cluster.");
+                }
+            }
         }
 
         public boolean hasError() {
@@ -211,12 +345,16 @@ public class ImageStoreResponder extends AbstractAsyncHttpResponder {
             return imageType;
         }
 
-        public byte[] getImageData() {
-            return imageData;
+        public ByteBuf getImageContent() {
+            return imageContent;
         }
 
         public long getImageExpireTime() {
             return imageExpireTime;
         }
+
+        public int getImageReplication() {
+            return imageReplication;
+        }
     }
 }
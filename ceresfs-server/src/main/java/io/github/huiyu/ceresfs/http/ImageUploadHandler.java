@@ -0,0 +1,463 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.storage.ImageUpload;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpUtil.getContentLength;
+import static io.netty.handler.codec.http.HttpUtil.is100ContinueExpected;
+import static io.netty.handler.codec.http.HttpUtil.isContentLengthSet;
+
+/**
+ * Streams image uploads into volumes chunk by chunk, so that memory of an upload is bounded by
+ * a small buffer instead of the whole image. It sits in front of the {@link
+ * io.netty.handler.codec.http.HttpObjectAggregator} of a connection, and is not sharable.
+ * <p>
+ * Form fields before the file are held until the file starts, then the image is routed. If it
+ * belongs to a local disk, a slot of the request content length is reserved in an active volume
+ * and the file is written into the slot as it arrives. Anything else, like images of other
+ * nodes, replicated images, chunked requests or malformed ones, is passed on to the aggregator
+ * unchanged, and handled by {@link ImageStoreResponder}.
+ * <p>
+ * Disk is never touched on the event loop, the file is handed to an {@link ImageUpload} a buffer
+ * at a time. Reading the connection pauses while too many buffers are being written.
+ *
+ * @author Yu Hui
+ */
+public class ImageUploadHandler extends ChannelInboundHandlerAdapter
+        implements MultipartStreamDecoder.Listener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageUploadHandler.class);
+
+    // max request bytes held before the file field starts
+    private static final int MAX_PREFETCH_SIZE = 64 * 1024;
+    private static final int MAX_ATTRIBUTE_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // buffers being written before reading the connection pauses
+    private static final int MAX_PENDING_WRITES = 4;
+
+    private static final String FILE_FIELD = "file";
+    private static final String LEGACY_EXPIRE_TIME_FIELD = "expireTimeData";
+
+    private enum Mode {
+        /**
+         * Pass messages on to the aggregator
+         */
+        PASS,
+        /**
+         * Hold request until the file field starts
+         */
+        PREFETCH,
+        /**
+         * Write the file into a reserved slot
+         */
+        STREAM,
+        /**
+         * Drop the rest of the request and response an error at last
+         */
+        DISCARD
+    }
+
+    private final ImageStoreResponder responder;
+
+    private ChannelHandlerContext ctx;
+    private Mode mode = Mode.PASS;
+    private boolean fallback;
+    private HttpRequest request;
+    private long contentLength;
+    private final List<HttpContent> prefetched = new ArrayList<>();
+    private long prefetchedBytes;
+    private MultipartStreamDecoder decoder;
+    private final Map<String, String> attributes = new HashMap<>();
+    private ByteArrayOutputStream attribute;
+    private Disk disk;
+    private ImageUpload upload;
+    private boolean fileCompleted;
+    // buffer being filled, and free ones reused by uploads of the connection
+    private ByteBuffer buffer;
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private int pendingWrites;
+    private FullHttpResponse errorResponse;
+
+    public ImageUploadHandler(ImageStoreResponder responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            reset();
+            HttpRequest req = (HttpRequest) msg;
+            if (!(msg instanceof HttpContent) && isStreamable(req)) {
+                this.request = req;
+                this.mode = Mode.PREFETCH;
+                this.decoder = new MultipartStreamDecoder(
+                        MultipartStreamDecoder.getBoundary(req), this);
+                this.contentLength = getContentLength(req);
+                if (is100ContinueExpected(req)) {
+                    // answered here, so that the aggregator won't answer again after fallback
+                    req.headers().remove(HttpHeaderNames.EXPECT);
+                    ctx.writeAndFlush(new DefaultFullHttpResponse(
+                            HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+                }
+                return;
+            }
+            mode = Mode.PASS;
+        }
+
+        if (!(msg instanceof HttpContent) || mode == Mode.PASS) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        HttpContent content = (HttpContent) msg;
+        boolean last = content instanceof LastHttpContent;
+        switch (mode) {
+            case PREFETCH:
+                prefetched.add(content);
+                prefetchedBytes += content.content().readableBytes();
+                decode(content.content().duplicate());
+                if (mode == Mode.PREFETCH && (last || prefetchedBytes > MAX_PREFETCH_SIZE)) {
+                    fallback = true;
+                }
+                if (fallback) {
+                    replay(ctx);
+                    return;
+                }
+                releasePrefetched();
+                break;
+            case STREAM:
+                try {
+                    decode(content.content());
+                } finally {
+                    content.release();
+                }
+                break;
+            default:
+                content.release();
+                break;
+        }
+
+        if (last) {
+            complete(ctx);
+        }
+    }
+
+    private boolean isStreamable(HttpRequest req) {
+        if (req.decoderResult().isFailure()
+                || !HttpMethod.POST.equals(req.method())
+                || !"/image".equals(new QueryStringDecoder(req.uri()).path())
+                || MultipartStreamDecoder.getBoundary(req) == null
+                || !isContentLengthSet(req)) {
+            return false;
+        }
+        long length = getContentLength(req, -1L);
+        return length > 0 && length <= Const.MAX_IMAGE_SIZE;
+    }
+
+    private void decode(ByteBuf chunk) {
+        try {
+            decoder.offer(chunk);
+        } catch (Exception e) {
+            fail(BAD_REQUEST, e);
+        }
+    }
+
+    /**
+     * Pass the held request on, as if it never reached here
+     */
+    private void replay(ChannelHandlerContext ctx) {
+        HttpRequest req = request;
+        List<HttpContent> contents = new ArrayList<>(prefetched);
+        prefetched.clear();
+        reset();
+        ctx.fireChannelRead(req);
+        for (HttpContent content : contents) {
+            ctx.fireChannelRead(content);
+        }
+    }
+
+    private void complete(ChannelHandlerContext ctx) {
+        final HttpRequest req = request;
+        if (mode == Mode.STREAM && !(fileCompleted && decoder.isEnd())) {
+            fail(BAD_REQUEST, "Incomplete multipart request.");
+        }
+        long expireTime = mode == Mode.STREAM ? parseExpireTime() : -1L;
+
+        CompletableFuture<FullHttpResponse> future;
+        if (mode == Mode.STREAM) {
+            final ImageUpload upload = this.upload;
+            this.upload = null;
+            future = responder.complete(disk, upload, expireTime);
+        } else {
+            future = CompletableFuture.completedFuture(errorResponse);
+            this.errorResponse = null;
+        }
+        reset();
+        future.whenComplete((resp, ex) -> {
+            if (ex != null) {
+                LOG.error("Internal server error", ex);
+                resp = HttpUtil.newResponse(INTERNAL_SERVER_ERROR, ex);
+            }
+            writeResponse(ctx, req, resp);
+        });
+    }
+
+    private long parseExpireTime() {
+        String value = attributes.get(Const.HTTP_HEADER_EXPIRE_TIME);
+        if (value == null) {
+            value = attributes.get(LEGACY_EXPIRE_TIME_FIELD);
+        }
+        if (value == null) {
+            // -1 means never expire
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            fail(BAD_REQUEST, "Expire time " + value + " is not unix time stamp.");
+            return -1L;
+        }
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, HttpRequest req, FullHttpResponse resp) {
+        String token = req.headers().get(Const.HTTP_TOKEN_NAME);
+        if (token != null) {
+            resp.headers().set(Const.HTTP_TOKEN_NAME, token);
+        }
+        ctx.writeAndFlush(resp);
+    }
+
+    private boolean isDecoding() {
+        return !fallback && (mode == Mode.PREFETCH || mode == Mode.STREAM);
+    }
+
+    @Override
+    public void onPartStart(String name, String fileName) throws Exception {
+        if (!isDecoding()) {
+            return;
+        }
+        if (fileName == null) {
+            attribute = new ByteArrayOutputStream();
+            return;
+        }
+        if (!FILE_FIELD.equals(name)) {
+            return;
+        }
+        if (mode == Mode.STREAM) {
+            fail(BAD_REQUEST, "Multiple image files.");
+            return;
+        }
+        reserve(fileName);
+    }
+
+    /**
+     * Reserve slot for the file if the image routes to local, otherwise fallback
+     */
+    private void reserve(String fileName) {
+        ImageType type;
+        long id;
+        try {
+            type = ImageType.fromFileName(fileName);
+            String value = attributes.get(Const.HTTP_HEADER_IMAGE_ID);
+            id = value == null ? responder.nextId() : Long.parseLong(value);
+            value = attributes.get(Const.HTTP_HEADER_REPLICATION);
+            if (responder.replication() > 1 || (value != null && Integer.parseInt(value) > 1)) {
+                // replicated, or rejected as not the cluster's, by the responder
+                fallback = true;
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // let the responder report it
+            fallback = true;
+            return;
+        }
+        disk = responder.routeLocal(id);
+        if (disk == null) {
+            fallback = true;
+            return;
+        }
+        upload = responder.upload(disk, id, type, (int) contentLength);
+        buffer = nextBuffer();
+        mode = Mode.STREAM;
+    }
+
+    @Override
+    public void onPartData(ByteBuf data) throws Exception {
+        if (!isDecoding()) {
+            return;
+        }
+        if (attribute != null) {
+            if (attribute.size() + data.readableBytes() > MAX_ATTRIBUTE_SIZE) {
+                fail(BAD_REQUEST, "Form field too large.");
+                return;
+            }
+            data.readBytes(attribute, data.readableBytes());
+        } else if (upload != null && !fileCompleted) {
+            // bytes of the image file, written into the slot a buffer at a time
+            while (data.isReadable()) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), data.readableBytes()));
+                data.readBytes(buffer);
+                buffer.limit(limit);
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onPartEnd(String name, String fileName) throws Exception {
+        if (!isDecoding()) {
+            return;
+        }
+        if (attribute != null) {
+            String value = new String(attribute.toByteArray(), StandardCharsets.UTF_8);
+            attribute = null;
+            if (upload != null && Const.HTTP_HEADER_IMAGE_ID.equals(name)) {
+                fail(BAD_REQUEST, "Image id must precede image file.");
+                return;
+            }
+            attributes.put(name, value);
+        } else if (upload != null && FILE_FIELD.equals(name)) {
+            flush();
+            fileCompleted = true;
+        }
+    }
+
+    @Override
+    public void onEnd() throws Exception {
+    }
+
+    /**
+     * Hand the filled buffer to the upload, errors of writes are reported by the commit
+     */
+    private void flush() {
+        ByteBuffer data = buffer;
+        data.flip();
+        buffer = nextBuffer();
+        if (++pendingWrites >= MAX_PENDING_WRITES) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        upload.write(data).whenComplete((v, ex) -> ctx.executor().execute(() -> {
+            buffers.push(data);
+            if (--pendingWrites < MAX_PENDING_WRITES) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }));
+    }
+
+    private ByteBuffer nextBuffer() {
+        ByteBuffer next = buffers.poll();
+        if (next == null) {
+            // direct, so that the channel writes it without a temporary copy
+            next = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        next.clear();
+        return next;
+    }
+
+    private void fail(HttpResponseStatus status, String message) {
+        fail(HttpUtil.newResponse(status, message));
+    }
+
+    private void fail(HttpResponseStatus status, Throwable cause) {
+        LOG.error("Stream image upload error", cause);
+        fail(HttpUtil.newResponse(status, cause));
+    }
+
+    private void fail(FullHttpResponse resp) {
+        if (errorResponse == null) {
+            errorResponse = resp;
+        } else {
+            resp.release();
+        }
+        abort();
+        mode = Mode.DISCARD;
+    }
+
+    private void abort() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (buffer != null) {
+            buffers.push(buffer);
+            buffer = null;
+        }
+    }
+
+    private void releasePrefetched() {
+        for (HttpContent content : prefetched) {
+            ReferenceCountUtil.release(content);
+        }
+        prefetched.clear();
+        prefetchedBytes = 0L;
+    }
+
+    private void reset() {
+        abort();
+        releasePrefetched();
+        if (decoder != null) {
+            decoder.destroy();
+            decoder = null;
+        }
+        if (errorResponse != null) {
+            ReferenceCountUtil.release(errorResponse);
+            errorResponse = null;
+        }
+        mode = Mode.PASS;
+        fallback = false;
+        request = null;
+        contentLength = 0L;
+        attributes.clear();
+        attribute = null;
+        disk = null;
+        fileCompleted = false;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        reset();
+        super.channelInactive(ctx);
+    }
+}
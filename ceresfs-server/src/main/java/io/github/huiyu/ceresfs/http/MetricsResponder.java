@@ -0,0 +1,58 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.metrics.Metrics;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+
+/**
+ * Metrics of this node in the Prometheus text format
+ *
+ * @author Yu Hui
+ */
+@Component
+public class MetricsResponder implements HttpResponder {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Metrics metrics;
+
+    @Autowired
+    public MetricsResponder(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String[] paths() {
+        return new String[]{"/metrics"};
+    }
+
+    @Override
+    public HttpMethod[] methods() {
+        return new HttpMethod[]{HttpMethod.GET};
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        StringBuilder sb = new StringBuilder(8192);
+        metrics.write(sb);
+        FullHttpResponse resp = HttpUtil.newResponse(OK, CONTENT_TYPE,
+                sb.toString().getBytes(StandardCharsets.UTF_8));
+        String token = req.headers().get(Const.HTTP_TOKEN_NAME);
+        if (token != null) {
+            resp.headers().set(Const.HTTP_TOKEN_NAME, token);
+        }
+        ctx.writeAndFlush(resp);
+    }
+}
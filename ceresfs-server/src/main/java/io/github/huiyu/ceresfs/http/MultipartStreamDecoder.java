@@ -0,0 +1,238 @@
+package io.github.huiyu.ceresfs.http;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.ErrorDataDecoderException;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+
+/**
+ * Incremental multipart/form-data decoder. Unlike {@link
+ * io.netty.handler.codec.http.multipart.HttpPostRequestDecoder}, part bodies are never
+ * accumulated, they are passed to the {@link Listener} as soon as they are known not to be part
+ * of the boundary. Only part headers and a tail as long as the boundary are buffered.
+ *
+ * @author Yu Hui
+ */
+public class MultipartStreamDecoder {
+
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private enum State {
+        DELIMITER, AFTER_DELIMITER, HEADERS, BODY, EPILOGUE
+    }
+
+    private final Listener listener;
+    // CRLF--boundary
+    private final byte[] delimiter;
+    private final ByteBuf buffer = Unpooled.buffer();
+    private State state = State.DELIMITER;
+    private String partName;
+    private String fileName;
+
+    public MultipartStreamDecoder(String boundary, Listener listener) {
+        this.listener = listener;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // the first delimiter has no leading CRLF
+        buffer.writeBytes(CRLF);
+    }
+
+    /**
+     * Boundary of a multipart/form-data request
+     *
+     * @return the boundary, or null if not a multipart request
+     */
+    public static String getBoundary(HttpRequest req) {
+        String contentType = req.headers().get(CONTENT_TYPE);
+        if (contentType == null) {
+            return null;
+        }
+        String[] params = contentType.split(";");
+        if (!params[0].trim().equalsIgnoreCase(HttpHeaderValues.MULTIPART_FORM_DATA.toString())) {
+            return null;
+        }
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = unquote(param.substring(9).trim());
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode a chunk of request body, the readable bytes are consumed.
+     */
+    public void offer(ByteBuf chunk) throws Exception {
+        buffer.writeBytes(chunk);
+        boolean progress = true;
+        while (progress) {
+            switch (state) {
+                case DELIMITER:
+                    progress = skipPreamble();
+                    break;
+                case AFTER_DELIMITER:
+                    progress = afterDelimiter();
+                    break;
+                case HEADERS:
+                    progress = readHeader();
+                    break;
+                case BODY:
+                    progress = readBody();
+                    break;
+                default:
+                    buffer.skipBytes(buffer.readableBytes());
+                    progress = false;
+                    break;
+            }
+        }
+        buffer.discardReadBytes();
+    }
+
+    /**
+     * @return true if the closing delimiter is decoded
+     */
+    public boolean isEnd() {
+        return state == State.EPILOGUE;
+    }
+
+    public void destroy() {
+        buffer.release();
+    }
+
+    private boolean skipPreamble() {
+        int index = indexOf(delimiter);
+        if (index < 0) {
+            // keep the tail which may be a part of delimiter
+            int keep = Math.min(buffer.readableBytes(), delimiter.length - 1);
+            buffer.skipBytes(buffer.readableBytes() - keep);
+            return false;
+        }
+        buffer.readerIndex(index + delimiter.length);
+        state = State.AFTER_DELIMITER;
+        return true;
+    }
+
+    private boolean afterDelimiter() throws Exception {
+        if (buffer.readableBytes() < 2) {
+            return false;
+        }
+        byte b0 = buffer.getByte(buffer.readerIndex());
+        byte b1 = buffer.getByte(buffer.readerIndex() + 1);
+        if (b0 == '-' && b1 == '-') {
+            buffer.skipBytes(2);
+            state = State.EPILOGUE;
+            listener.onEnd();
+            return true;
+        }
+        if (b0 == '\r' && b1 == '\n') {
+            buffer.skipBytes(2);
+            partName = null;
+            fileName = null;
+            state = State.HEADERS;
+            return true;
+        }
+        throw new ErrorDataDecoderException("Malformed multipart delimiter");
+    }
+
+    private boolean readHeader() throws Exception {
+        int index = indexOf(CRLF);
+        if (index < 0) {
+            if (buffer.readableBytes() > MAX_HEADER_SIZE) {
+                throw new ErrorDataDecoderException("Multipart header too large");
+            }
+            return false;
+        }
+        String line = buffer.toString(buffer.readerIndex(), index - buffer.readerIndex(),
+                StandardCharsets.UTF_8);
+        buffer.readerIndex(index + CRLF.length);
+        if (line.isEmpty()) {
+            if (partName == null) {
+                throw new ErrorDataDecoderException("No name of multipart part");
+            }
+            state = State.BODY;
+            listener.onPartStart(partName, fileName);
+            return true;
+        }
+        int colon = line.indexOf(':');
+        if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+            for (String param : line.substring(colon + 1).split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "name=", 0, 5)) {
+                    partName = unquote(param.substring(5));
+                } else if (param.regionMatches(true, 0, "filename=", 0, 9)) {
+                    fileName = unquote(param.substring(9));
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean readBody() throws Exception {
+        int index = indexOf(delimiter);
+        if (index < 0) {
+            int length = buffer.readableBytes() - (delimiter.length - 1);
+            if (length > 0) {
+                listener.onPartData(buffer.readSlice(length));
+            }
+            return false;
+        }
+        int length = index - buffer.readerIndex();
+        if (length > 0) {
+            listener.onPartData(buffer.readSlice(length));
+        }
+        buffer.readerIndex(index + delimiter.length);
+        state = State.AFTER_DELIMITER;
+        listener.onPartEnd(partName, fileName);
+        return true;
+    }
+
+    private int indexOf(byte[] pattern) {
+        int end = buffer.writerIndex() - pattern.length;
+        for (int i = buffer.readerIndex(); i <= end; i++) {
+            int j = 0;
+            while (j < pattern.length && buffer.getByte(i + j) == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * Callbacks of decoded parts, called in order by {@link #offer(ByteBuf)}
+     */
+    public interface Listener {
+
+        /**
+         * @param name     name of the form field
+         * @param fileName file name, or null if not a file field
+         */
+        void onPartStart(String name, String fileName) throws Exception;
+
+        /**
+         * A piece of part body, which is only valid during the call
+         */
+        void onPartData(ByteBuf data) throws Exception;
+
+        void onPartEnd(String name, String fileName) throws Exception;
+
+        void onEnd() throws Exception;
+    }
+}
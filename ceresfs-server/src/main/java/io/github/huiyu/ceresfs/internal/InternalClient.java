@@ -0,0 +1,186 @@
+package io.github.huiyu.ceresfs.internal;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.util.ChannelPool;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import static io.github.huiyu.ceresfs.internal.InternalProtocol.*;
+
+/**
+ * Client of the internal protocol of a node. Like {@link io.github.huiyu.ceresfs.http.HttpClient},
+ * requests are spread over a {@link ChannelPool} and pipelined, and matched to responses by
+ * sequence. Image data is written as is rather than copied into requests.
+ *
+ * @author Yu Hui
+ */
+public class InternalClient {
+
+    private final String host;
+    private final int port;
+
+    private final ChannelPool<Long, InternalResponse> channels;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    InternalClient(String host, int port, int channels, long timeoutMills,
+                   EventLoopGroup workerGroup) {
+        this.host = host;
+        this.port = port;
+        Bootstrap bootstrap = new Bootstrap()
+                .group(workerGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast(newFrameDecoder())
+                                .addLast(new InternalClientHandler());
+                    }
+                });
+        this.channels = new ChannelPool<>(bootstrap, host, port, channels, timeoutMills);
+    }
+
+    /**
+     * Save an image, the data buffer is not consumed
+     *
+     * @return response of {@link InternalProtocol#OK}, {@link InternalProtocol#EXISTS},
+     * {@link InternalProtocol#NOT_OWNER} or {@link InternalProtocol#ERROR}
+     */
+    public CompletableFuture<InternalResponse> put(long id, ImageType type, int replication,
+                                                   long expireTime, ByteBuf data) {
+        long sequence = nextSequence.incrementAndGet();
+        ByteBuf header = header(sequence, OP_PUT, 18 + data.readableBytes(), 18)
+                .writeLong(id)
+                .writeByte(type.getCode())
+                .writeByte(replication)
+                .writeLong(expireTime);
+        return call(sequence, Unpooled.wrappedBuffer(header, data.retainedDuplicate()));
+    }
+
+    /**
+     * @return response of {@link InternalProtocol#OK} with the image, or
+     * {@link InternalProtocol#NOT_FOUND}, {@link InternalProtocol#NOT_OWNER} or
+     * {@link InternalProtocol#ERROR}
+     */
+    public CompletableFuture<InternalResponse> get(long id) {
+        return callById(OP_GET, id);
+    }
+
+    /**
+     * @return response of {@link InternalProtocol#OK}, {@link InternalProtocol#NOT_OWNER} or
+     * {@link InternalProtocol#ERROR}
+     */
+    public CompletableFuture<InternalResponse> delete(long id) {
+        return callById(OP_DELETE, id);
+    }
+
+    /**
+     * Save images in one request, data buffers are not consumed
+     *
+     * @return response of {@link InternalProtocol#OK} with batch entries of all images
+     */
+    public CompletableFuture<InternalResponse> putAll(List<Long> ids, List<ImageType> types,
+                                                      List<Long> expireTimes, int replication,
+                                                      List<ByteBuf> data) {
+        long sequence = nextSequence.incrementAndGet();
+        int size = ids.size();
+        CompositeByteBuf request = Unpooled.compositeBuffer(size * 2 + 1);
+        int bodyLength = 1;
+        for (ByteBuf buf : data) {
+            bodyLength += 21 + buf.readableBytes();
+        }
+        request.addComponent(true, header(sequence, OP_BATCH_PUT, bodyLength, 1)
+                .writeByte(replication));
+        for (int i = 0; i < size; i++) {
+            ByteBuf buf = data.get(i);
+            ByteBuf image = Unpooled.buffer(21)
+                    .writeLong(ids.get(i))
+                    .writeByte(types.get(i).getCode())
+                    .writeLong(expireTimes.get(i))
+                    .writeInt(buf.readableBytes());
+            request.addComponent(true, image);
+            request.addComponent(true, buf.retainedDuplicate());
+        }
+        return call(sequence, request);
+    }
+
+    /**
+     * Get images in one request
+     *
+     * @return response of {@link InternalProtocol#OK} with batch entries of all ids
+     */
+    public CompletableFuture<InternalResponse> getAll(List<Long> ids) {
+        long sequence = nextSequence.incrementAndGet();
+        ByteBuf request = header(sequence, OP_BATCH_GET, ids.size() * 8, ids.size() * 8);
+        for (long id : ids) {
+            request.writeLong(id);
+        }
+        return call(sequence, request);
+    }
+
+    /**
+     * @return response of {@link InternalProtocol#OK} with the Bloom filter of image ids held by
+     * the node, or {@link InternalProtocol#ERROR}
+     */
+    public CompletableFuture<InternalResponse> filter() {
+        long sequence = nextSequence.incrementAndGet();
+        return call(sequence, header(sequence, OP_FILTER, 0, 0));
+    }
+
+    private CompletableFuture<InternalResponse> callById(byte op, long id) {
+        long sequence = nextSequence.incrementAndGet();
+        return call(sequence, header(sequence, op, 8, 8).writeLong(id));
+    }
+
+    private CompletableFuture<InternalResponse> call(long sequence, ByteBuf request) {
+        return channels.call(sequence, request);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Close all channels, calls in flight fail with {@link ClosedChannelException}
+     */
+    public void shutdown() {
+        channels.shutdown();
+    }
+
+    /**
+     * Calls in flight of a channel, matched by sequence
+     */
+    private static class InternalClientHandler
+            extends ChannelPool.CallHandler<Long, InternalResponse, ByteBuf> {
+
+        @Override
+        protected Long key(ByteBuf msg) {
+            return msg.readLong();
+        }
+
+        @Override
+        protected InternalResponse response(ByteBuf msg) {
+            byte status = msg.readByte();
+            return new InternalResponse(status, Unpooled.copiedBuffer(msg));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.huiyu.ceresfs.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Internal clients by host and port, all clients share one event loop group.
+ *
+ * @author Yu Hui
+ */
+public class InternalClientPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InternalClientPool.class);
+
+    private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+
+    private final int channels;
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+
+    private final Cache<String, InternalClient> cache = CacheBuilder.newBuilder()
+            .removalListener((RemovalListener<String, InternalClient>) notification -> {
+                LOG.debug("InternalClient[{}] expired", notification.getKey());
+                notification.getValue().shutdown();
+            })
+            .expireAfterAccess(5, TimeUnit.MINUTES)
+            .concurrencyLevel(4)
+            .build();
+
+    /**
+     * @param channels number of channels per host
+     */
+    public InternalClientPool(int channels) {
+        this.channels = channels;
+    }
+
+    public InternalClient getOrCreate(String host, int port) {
+        try {
+            String key = host + ":" + port;
+            return cache.get(key, () -> {
+                LOG.debug("InternalClient[{}] created", key);
+                return new InternalClient(host, port, channels, DEFAULT_TIMEOUT, workerGroup);
+            });
+        } catch (ExecutionException e) {
+            throw new UncheckedExecutionException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.invalidateAll();
+        workerGroup.shutdownGracefully();
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.huiyu.ceresfs.internal;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.http.ImageBatch;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Binary protocol between nodes. Each frame is length (4) of the rest, sequence (8), then op
+ * (1) for requests or status (1) for responses, followed by the body. Responses carry the
+ * sequence of their requests and may be out of order.
+ * <p>
+ * Request bodies:
+ * <ul>
+ * <li>{@link #OP_PUT}: id (8), type (1), replication (1), expire time (8), data</li>
+ * <li>{@link #OP_GET}, {@link #OP_DELETE}: id (8)</li>
+ * <li>{@link #OP_BATCH_PUT}: replication (1), then id (8), type (1), expire time (8),
+ * size (4) and data of each image</li>
+ * <li>{@link #OP_BATCH_GET}: ids (8 each)</li>
+ * <li>{@link #OP_FILTER}: no body</li>
+ * </ul>
+ * Responses of get are type (1), expire time (8) and data if found, responses of batches are
+ * encoded by {@link ImageBatch}, responses of filter are serialized Bloom filters of image ids
+ * the node holds, others have no body. Nodes only serve images they own, other
+ * requests are answered by {@link #NOT_OWNER}, or by {@link #ERROR} entries of batches.
+ *
+ * @author Yu Hui
+ */
+public final class InternalProtocol {
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_GET = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_BATCH_PUT = 4;
+    public static final byte OP_BATCH_GET = 5;
+    public static final byte OP_FILTER = 6;
+
+    // statuses share codes with batch entries
+    public static final byte OK = ImageBatch.FOUND;
+    public static final byte NOT_FOUND = ImageBatch.NOT_FOUND;
+    public static final byte ERROR = ImageBatch.ERROR;
+    public static final byte EXISTS = ImageBatch.EXISTS;
+    public static final byte NOT_OWNER = 4;
+
+    static final int MAX_FRAME_LENGTH = Const.MAX_IMAGE_SIZE + 8192;
+    // length, sequence and op or status
+    static final int HEADER_LENGTH = 4 + 8 + 1;
+
+    private InternalProtocol() {
+    }
+
+    /**
+     * Frame decoder stripping the length field
+     */
+    static LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4);
+    }
+
+    /**
+     * Header of a frame, with room for the fixed fields of the body
+     *
+     * @param bodyLength total length of the body following the header
+     * @param fixedLength length of fixed fields to be written to the returned buffer
+     */
+    static ByteBuf header(long sequence, byte code, int bodyLength, int fixedLength) {
+        ByteBuf header = Unpooled.buffer(HEADER_LENGTH + fixedLength);
+        return header.writeInt(8 + 1 + bodyLength)
+                .writeLong(sequence)
+                .writeByte(code);
+    }
+
+    static ByteBuf response(long sequence, byte status) {
+        return header(sequence, status, 0, 0);
+    }
+
+    static ByteBuf response(long sequence, byte status, ByteBuf body) {
+        return Unpooled.wrappedBuffer(
+                header(sequence, status, body.readableBytes(), 0), body);
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.huiyu.ceresfs.internal;
+
+import io.github.huiyu.ceresfs.ImageType;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Response of the internal protocol, the content is a heap buffer owned by the receiver.
+ *
+ * @author Yu Hui
+ */
+public class InternalResponse {
+
+    private final byte status;
+    private final ByteBuf content;
+
+    InternalResponse(byte status, ByteBuf content) {
+        this.status = status;
+        this.content = content;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    /**
+     * @return body of the response, without the header
+     */
+    public ByteBuf getContent() {
+        return content;
+    }
+
+    /**
+     * @return type of the image got, only valid for found images
+     */
+    public ImageType getType() {
+        return ImageType.fromCode(content.getByte(content.readerIndex()));
+    }
+
+    /**
+     * @return expire time of the image got, only valid for found images
+     */
+    public long getExpireTime() {
+        return content.getLong(content.readerIndex() + 1);
+    }
+
+    /**
+     * @return data of the image got, only valid for found images
+     */
+    public ByteBuf getData() {
+        return content.slice(content.readerIndex() + 9, content.readableBytes() - 9);
+    }
+
+    @Override
+    public String toString() {
+        return "InternalResponse{" +
+                "status=" + status +
+                ", length=" + content.readableBytes() +
+                '}';
+    }
+}
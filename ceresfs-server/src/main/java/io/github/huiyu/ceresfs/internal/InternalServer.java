@@ -0,0 +1,72 @@
+package io.github.huiyu.ceresfs.internal;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+/**
+ * Server of the internal protocol between nodes, on its own port beside the http server.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class InternalServer implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InternalServer.class);
+
+    private final int port;
+    private final InternalServerHandler handler;
+    private final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+
+    @Autowired
+    public InternalServer(Configuration configuration, InternalServerHandler handler) {
+        this.port = configuration.getInternalPort();
+        this.handler = handler;
+    }
+
+    /**
+     * Bind the internal port without waiting for close, nothing is served if the port is 0
+     */
+    public void start() throws InterruptedException {
+        if (port <= 0) {
+            LOG.info("Internal protocol is disabled");
+            return;
+        }
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast("decoder", InternalProtocol.newFrameDecoder())
+                                .addLast(handler);
+                    }
+                })
+                .option(ChannelOption.SO_BACKLOG, 128)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true);
+
+        bootstrap.bind(port).sync();
+        LOG.info("Internal protocol started at port {}", port);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        workerGroup.shutdownGracefully();
+        bossGroup.shutdownGracefully();
+    }
+}
@@ -0,0 +1,330 @@
+package io.github.huiyu.ceresfs.internal;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.http.ImageBatch;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.Facade;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.ImageRegion;
+import io.github.huiyu.ceresfs.storage.LocationHints;
+import io.github.huiyu.ceresfs.storage.Replicator;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import static io.github.huiyu.ceresfs.internal.InternalProtocol.*;
+
+/**
+ * Serves requests of the internal protocol from local disks. Requests are never forwarded,
+ * images not owned by this node are refused, so the sender can fall back to http. A node owns
+ * the images it holds a replica of.
+ *
+ * @author Yu Hui
+ */
+@Component
+@ChannelHandler.Sharable
+public class InternalServerHandler extends SimpleChannelInboundHandler<ByteBuf>
+        implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InternalServerHandler.class);
+
+    // batch reads may load whole images, keep them off the event loops and the common pool
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    private final Topology topology;
+    private final Facade facade;
+    private final Directory directory;
+    private final Store store;
+    private final LocationHints locationHints;
+
+    @Autowired(required = false)
+    private Configuration config;
+
+    @Autowired
+    public InternalServerHandler(Topology topology, Facade facade, Directory directory,
+                                 Store store, LocationHints locationHints) {
+        this.topology = topology;
+        this.facade = facade;
+        this.directory = directory;
+        this.store = store;
+        this.locationHints = locationHints;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        long sequence = msg.readLong();
+        byte op = msg.readByte();
+        try {
+            switch (op) {
+                case OP_PUT:
+                    put(ctx, sequence, msg);
+                    break;
+                case OP_GET:
+                    get(ctx, sequence, msg.readLong());
+                    break;
+                case OP_DELETE:
+                    delete(ctx, sequence, msg.readLong());
+                    break;
+                case OP_BATCH_PUT:
+                    putAll(ctx, sequence, msg);
+                    break;
+                case OP_BATCH_GET:
+                    getAll(ctx, sequence, msg);
+                    break;
+                case OP_FILTER:
+                    filter(ctx, sequence);
+                    break;
+                default:
+                    LOG.error("Unknown internal op {}", op);
+                    ctx.writeAndFlush(response(sequence, ERROR));
+            }
+        } catch (Exception e) {
+            LOG.error("Internal op " + op + " error", e);
+            ctx.writeAndFlush(response(sequence, ERROR));
+        }
+    }
+
+    private void put(ChannelHandlerContext ctx, long sequence, ByteBuf msg) {
+        long id = msg.readLong();
+        ImageType type = ImageType.fromCode(msg.readByte());
+        int replication = Math.max(1, msg.readByte());
+        long expireTime = msg.readLong();
+
+        Disk disk = localReplica(id, replication);
+        if (disk == null) {
+            ctx.writeAndFlush(response(sequence, NOT_OWNER));
+            return;
+        }
+        if (directory.contains(disk, id)) {
+            ctx.writeAndFlush(response(sequence, EXISTS));
+            return;
+        }
+        // written from the frame, which outlives this read until saved
+        msg.retain();
+        CompletableFuture<ImageIndex> future =
+                store.save(disk, id, type, msg.nioBuffer(), expireTime, replication);
+        future.whenComplete((index, ex) -> {
+            msg.release();
+            byte status = OK;
+            if (ex == null) {
+                directory.save(disk, index);
+            } else {
+                LOG.error("Save image " + id + " error", ex);
+                status = ERROR;
+            }
+            ctx.writeAndFlush(response(sequence, status));
+        });
+    }
+
+    private void get(ChannelHandlerContext ctx, long sequence, long id) {
+        Facade.ReadResult result;
+        if (topology.getUnbalancedNodes().isEmpty()) {
+            Disk disk = localReplica(id, replication());
+            if (disk == null) {
+                ctx.writeAndFlush(response(sequence, NOT_OWNER));
+                return;
+            }
+            result = facade.read(disk, id);
+        } else {
+            result = facade.scan(id);
+        }
+        if (result == null) {
+            ctx.writeAndFlush(response(sequence, NOT_FOUND));
+            return;
+        }
+
+        ImageIndex index = result.getIndex();
+        int size = result.isRegion() ? result.getRegion().getSize()
+                : result.getImage().getData().length;
+        ByteBuf header = header(sequence, OK, 9 + size, 9)
+                .writeByte(index.getType().getCode())
+                .writeLong(index.getExpireTime());
+        if (result.isRegion()) {
+            // send image data from volume file to socket directly
+            ImageRegion region = result.getRegion();
+            ctx.write(header);
+            ctx.writeAndFlush(new DefaultFileRegion(region.getVolume(), region.getPosition(),
+                    region.getSize()));
+        } else {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(header,
+                    Unpooled.wrappedBuffer(result.getImage().getData())));
+        }
+    }
+
+    private void delete(ChannelHandlerContext ctx, long sequence, long id) {
+        Disk disk = localReplica(id, replication());
+        if (disk == null) {
+            ctx.writeAndFlush(response(sequence, NOT_OWNER));
+            return;
+        }
+        facade.delete(disk, id);
+        ctx.writeAndFlush(response(sequence, OK));
+    }
+
+    /**
+     * Images of each local disk are appended as one group, images not owned are reported as
+     * error and images already existing are skipped
+     */
+    private void putAll(ChannelHandlerContext ctx, long sequence, ByteBuf msg) {
+        msg.readByte(); // replication
+        CompositeByteBuf entries = Unpooled.compositeBuffer();
+        Map<Disk, List<ImageIndex>> indexes = new HashMap<>();
+        Map<Disk, List<ByteBuffer>> data = new HashMap<>();
+        while (msg.isReadable()) {
+            long id = msg.readLong();
+            ImageType type = ImageType.fromCode(msg.readByte());
+            long expireTime = msg.readLong();
+            int size = msg.readInt();
+            ByteBuffer content = msg.nioBuffer(msg.readerIndex(), size);
+            msg.skipBytes(size);
+
+            Disk disk = topology.route(id);
+            if (!topology.isLocalNode(disk.getNode())) {
+                entries.addComponent(true, ImageBatch.encode(id, ImageBatch.ERROR));
+            } else if (directory.contains(disk, id)) {
+                entries.addComponent(true, ImageBatch.encode(id, ImageBatch.EXISTS));
+            } else {
+                ImageIndex index = new ImageIndex();
+                index.setId(id);
+                index.setType(type);
+                index.setExpireTime(expireTime);
+                indexes.computeIfAbsent(disk, d -> new ArrayList<>()).add(index);
+                data.computeIfAbsent(disk, d -> new ArrayList<>()).add(content);
+            }
+        }
+
+        List<CompletableFuture<ByteBuf>> results = new ArrayList<>();
+        indexes.forEach((disk, diskIndexes) -> {
+            msg.retain();
+            results.add(store.saveAll(disk, diskIndexes, data.get(disk)).handle((saved, ex) -> {
+                msg.release();
+                byte status = ImageBatch.SAVED;
+                if (ex == null) {
+                    directory.saveAll(disk, saved);
+                } else {
+                    LOG.error("Save " + diskIndexes.size() + " images to " + disk + " error", ex);
+                    status = ImageBatch.ERROR;
+                }
+                CompositeByteBuf diskEntries = Unpooled.compositeBuffer(diskIndexes.size());
+                for (ImageIndex index : diskIndexes) {
+                    diskEntries.addComponent(true, ImageBatch.encode(index.getId(), status));
+                }
+                return diskEntries;
+            }));
+        });
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                .whenComplete((v, ex) -> {
+                    for (CompletableFuture<ByteBuf> result : results) {
+                        entries.addComponent(true, result.join());
+                    }
+                    ctx.writeAndFlush(response(sequence, OK, entries));
+                });
+    }
+
+    private void getAll(ChannelHandlerContext ctx, long sequence, ByteBuf msg) {
+        boolean balanced = topology.getUnbalancedNodes().isEmpty();
+        AtomicLong remaining = new AtomicLong(ImageBatch.MAX_READ_BYTES);
+        List<CompletableFuture<ByteBuf>> results = new ArrayList<>();
+        while (msg.isReadable()) {
+            long id = msg.readLong();
+            results.add(CompletableFuture.supplyAsync(
+                    () -> readLocal(id, balanced, remaining), executor));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                .whenComplete((v, ex) -> {
+                    CompositeByteBuf entries = Unpooled.compositeBuffer(results.size());
+                    for (CompletableFuture<ByteBuf> result : results) {
+                        entries.addComponent(true, result.join());
+                    }
+                    ctx.writeAndFlush(response(sequence, OK, entries));
+                });
+    }
+
+    private ByteBuf readLocal(long id, boolean balanced, AtomicLong remaining) {
+        try {
+            Facade.ReadResult result;
+            if (balanced) {
+                Disk disk = localReplica(id, replication());
+                if (disk == null) {
+                    return ImageBatch.encode(id, ImageBatch.ERROR);
+                }
+                result = facade.read(disk, id);
+            } else {
+                result = facade.scan(id);
+            }
+            if (result == null) {
+                return ImageBatch.encode(id, ImageBatch.NOT_FOUND);
+            }
+            ImageIndex index = result.getIndex();
+            if (!ImageBatch.charge(remaining, index.getSize())) {
+                return ImageBatch.encode(id, ImageBatch.TOO_LARGE);
+            }
+            byte[] data = result.isRegion() ?
+                    result.getRegion().load() : result.getImage().getData();
+            return ImageBatch.encode(id, index.getType(), index.getExpireTime(), data);
+        } catch (Exception e) {
+            LOG.error("Read image " + id + " error", e);
+            return ImageBatch.encode(id, ImageBatch.ERROR);
+        }
+    }
+
+    /**
+     * @return the local disk of a replica of the image, or null if this node doesn't own it
+     */
+    private Disk localReplica(long id, int replication) {
+        return Replicator.localOf(topology, Replicator.route(topology, id, replication));
+    }
+
+    // replicas kept by the cluster, which images are read and deleted from
+    private int replication() {
+        return config == null ? 1 : Math.max(1, config.getReplication());
+    }
+
+    private void filter(ChannelHandlerContext ctx, long sequence) {
+        locationHints.localFilter().whenComplete((filter, ex) -> {
+            if (ex != null) {
+                LOG.error("Build filter error", ex);
+                ctx.writeAndFlush(response(sequence, ERROR));
+            } else {
+                ctx.writeAndFlush(response(sequence, OK, Unpooled.wrappedBuffer(filter)));
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        LOG.error("Internal server error", cause);
+        ctx.close();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import io.github.huiyu.ceresfs.Const;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.function.Predicate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * Records latency, status and bytes of http requests of a connection. It sits right after the
+ * request decoder, so it sees requests in pieces before any aggregation and responses before
+ * encoding. Responses are matched to requests by the token header they echo, as pipelined
+ * requests may be answered out of order. A response without token, such as one written by the
+ * aggregator or on an exception, is matched to the request being read if it's written while
+ * reading, or else to the earliest request without token. Latency is taken when the last piece
+ * of the response is written.
+ *
+ * @author Yu Hui
+ */
+public class HttpMetricsHandler extends ChannelDuplexHandler {
+
+    static final String UNKNOWN_ROUTE = "unknown";
+
+    private final Metrics metrics;
+    private final Predicate<String> routed;
+    private final Queue<Exchange> exchanges = new ArrayDeque<>();
+
+    // request being received
+    private Exchange receiving;
+    // response being sent
+    private Exchange sending;
+    // whether a request piece is being passed on, responses written meanwhile are of it
+    private boolean reading;
+
+    /**
+     * @param routed whether a request path is served, others are labelled unknown so paths
+     *               requested at random never grow the registry
+     */
+    public HttpMetricsHandler(Metrics metrics, Predicate<String> routed) {
+        this.metrics = metrics;
+        this.routed = routed;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest) msg;
+            String path = new QueryStringDecoder(req.uri()).path();
+            receiving = new Exchange(routed.test(path) ? path : UNKNOWN_ROUTE,
+                    req.method().name(), req.headers().get(Const.HTTP_TOKEN_NAME));
+            exchanges.add(receiving);
+        }
+        if (receiving != null) {
+            receiving.received += sizeOf(msg);
+        }
+        reading = true;
+        try {
+            ctx.fireChannelRead(msg);
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse resp = (HttpResponse) msg;
+            // 100 Continue is followed by the final response
+            if (resp.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                ctx.write(msg, promise);
+                return;
+            }
+            sending = match(resp.headers().get(Const.HTTP_TOKEN_NAME));
+            if (sending != null) {
+                sending.status = resp.status().code();
+            }
+        }
+        Exchange exchange = sending;
+        if (exchange != null) {
+            exchange.sent += sizeOf(msg);
+            if (msg instanceof LastHttpContent) {
+                sending = null;
+                if (exchange == receiving) {
+                    receiving = null;
+                }
+                record(exchange);
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Take the exchange of the token. Without token, take the one being read if any, or the
+     * earliest one without token, never one waiting for the response of its token.
+     */
+    private Exchange match(String token) {
+        if (token == null && reading && receiving != null && exchanges.remove(receiving)) {
+            return receiving;
+        }
+        for (Iterator<Exchange> it = exchanges.iterator(); it.hasNext(); ) {
+            Exchange exchange = it.next();
+            if (Objects.equals(token, exchange.token)) {
+                it.remove();
+                return exchange;
+            }
+        }
+        return null;
+    }
+
+    private void record(Exchange exchange) {
+        metrics.timer("ceresfs_http_request_seconds", "Latency of http requests",
+                "route", exchange.route, "method", exchange.method)
+                .recordSince(exchange.start);
+        metrics.counter("ceresfs_http_responses_total", "Http responses by status",
+                "route", exchange.route, "status", String.valueOf(exchange.status))
+                .inc();
+        metrics.counter("ceresfs_http_received_bytes_total", "Bytes of http request content",
+                "route", exchange.route)
+                .add(exchange.received);
+        metrics.counter("ceresfs_http_sent_bytes_total", "Bytes of http response content",
+                "route", exchange.route)
+                .add(exchange.sent);
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0L;
+    }
+
+    private static final class Exchange {
+
+        final long start = System.nanoTime();
+        final String route;
+        final String method;
+        final String token;
+        long received;
+        long sent;
+        int status;
+
+        Exchange(String route, String method, String token) {
+            this.route = route;
+            this.method = method;
+            this.token = token;
+        }
+    }
+}
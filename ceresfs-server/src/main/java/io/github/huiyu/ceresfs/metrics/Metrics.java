@@ -0,0 +1,234 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of server metrics, written in the Prometheus text format by {@link #write}. Metrics
+ * are identified by name and label pairs, getting a registered one again returns the same
+ * instance, so callers may either keep them or look them up per use.
+ * <p>
+ * Counters are {@link LongAdder}s, summaries record into HdrHistogram {@link Recorder}s, which
+ * never block recording threads. Quantiles of a summary cover values recorded since the last
+ * scrape, while its count and sum are cumulative.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param labels label names and values in pairs
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER)
+                .metrics.computeIfAbsent(labelsOf(labels), l -> new Counter());
+    }
+
+    /**
+     * Summary of values in microseconds, written in seconds
+     */
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, Type.SUMMARY)
+                .metrics.computeIfAbsent(labelsOf(labels), l -> new Timer());
+    }
+
+    public Summary summary(String name, String help, String... labels) {
+        return (Summary) family(name, help, Type.SUMMARY)
+                .metrics.computeIfAbsent(labelsOf(labels), l -> new Summary(1.0));
+    }
+
+    /**
+     * Gauge reading the value on scrapes, registered again it's replaced
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).metrics.put(labelsOf(labels), value);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelsOf(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            escape(labels[i + 1], sb);
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static void escape(String value, StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format 0.0.4
+     */
+    public void write(StringBuilder sb) {
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ')
+                    .append(family.type.name().toLowerCase()).append('\n');
+            for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                switch (family.type) {
+                    case COUNTER:
+                        sample(sb, family.name, labels, ((Counter) metric).get());
+                        break;
+                    case GAUGE:
+                        sample(sb, family.name, labels, ((DoubleSupplier) metric).getAsDouble());
+                        break;
+                    default:
+                        ((Summary) metric).write(sb, family.name, labels);
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, SUMMARY
+    }
+
+    private static final class Family {
+
+        final String name;
+        final String help;
+        final Type type;
+        // labels -> counter, gauge supplier or summary
+        final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static final class Counter {
+
+        private final LongAdder adder = new LongAdder();
+
+        public void inc() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    public static class Summary {
+
+        private final Recorder recorder = new Recorder(2);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        // values recorded per unit written
+        private final double unit;
+        // recycled by scrapes, guarded by the summary
+        private Histogram interval;
+
+        Summary(double unit) {
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            value = Math.max(value, 0L);
+            recorder.recordValue(value);
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        synchronized void write(StringBuilder sb, String name, String labels) {
+            interval = recorder.getIntervalHistogram(interval);
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                double value = interval.getTotalCount() == 0 ?
+                        Double.NaN : interval.getValueAtPercentile(quantile * 100) / unit;
+                sample(sb, name, prefix + "quantile=\"" + quantile + "\"", value);
+            }
+            sample(sb, name + "_sum", labels, sum.sum() / unit);
+            sample(sb, name + "_count", labels, count.sum());
+        }
+    }
+
+    public static final class Timer extends Summary {
+
+        Timer() {
+            super(1e6);
+        }
+
+        public void recordNanos(long nanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        /**
+         * @param start start time by {@link System#nanoTime()}
+         */
+        public void recordSince(long start) {
+            recordNanos(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import io.github.huiyu.ceresfs.cache.Cache;
+import io.github.huiyu.ceresfs.storage.Directory;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Instruments beans which don't know about metrics: directories are wrapped by
+ * {@link TimedDirectory}, and caches are read by gauges of their stats. Wrapped directories
+ * are still destroyed by their own callbacks.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class MetricsPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+    private BeanFactory beanFactory;
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        this.beanFactory = beanFactory;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName)
+            throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName)
+            throws BeansException {
+        if (bean instanceof Directory && !(bean instanceof TimedDirectory)) {
+            return new TimedDirectory((Directory) bean, metrics());
+        }
+        if (bean instanceof Cache) {
+            bindCache((Cache) bean, metrics());
+        }
+        return bean;
+    }
+
+    // looked up lazily, so metrics is processed like other beans
+    private Metrics metrics() {
+        return beanFactory.getBean(Metrics.class);
+    }
+
+    static void bindCache(Cache cache, Metrics metrics) {
+        metrics.gauge("ceresfs_cache_hits", "Cache hits",
+                () -> cache.getStats().getHitCount());
+        metrics.gauge("ceresfs_cache_misses", "Cache misses",
+                () -> cache.getStats().getMissCount());
+        metrics.gauge("ceresfs_cache_evictions", "Cache evictions",
+                () -> cache.getStats().getEvictionCount());
+        metrics.gauge("ceresfs_cache_hit_ratio", "Cache hit ratio, 1 if no request",
+                () -> cache.getStats().getHitRatio());
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Directory recording latency of lookups and updates of the one it wraps. Traversals are
+ * bulk operations bounded by their consumers, so they're not timed.
+ *
+ * @author Yu Hui
+ */
+public class TimedDirectory implements Directory {
+
+    private static final String NAME = "ceresfs_directory_seconds";
+    private static final String HELP = "Latency of directory operations";
+
+    private final Directory directory;
+    private final Metrics.Timer containsTime;
+    private final Metrics.Timer getTime;
+    private final Metrics.Timer saveTime;
+    private final Metrics.Timer saveAllTime;
+    private final Metrics.Timer deleteTime;
+
+    public TimedDirectory(Directory directory, Metrics metrics) {
+        this.directory = directory;
+        this.containsTime = metrics.timer(NAME, HELP, "operation", "contains");
+        this.getTime = metrics.timer(NAME, HELP, "operation", "get");
+        this.saveTime = metrics.timer(NAME, HELP, "operation", "save");
+        this.saveAllTime = metrics.timer(NAME, HELP, "operation", "save_all");
+        this.deleteTime = metrics.timer(NAME, HELP, "operation", "delete");
+    }
+
+    @Override
+    public boolean contains(Disk disk, long id) {
+        long start = System.nanoTime();
+        try {
+            return directory.contains(disk, id);
+        } finally {
+            containsTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public ImageIndex get(Disk disk, long id) {
+        long start = System.nanoTime();
+        try {
+            return directory.get(disk, id);
+        } finally {
+            getTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public void save(Disk disk, ImageIndex index) {
+        long start = System.nanoTime();
+        try {
+            directory.save(disk, index);
+        } finally {
+            saveTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public void saveAll(Disk disk, Collection<ImageIndex> indexes) {
+        long start = System.nanoTime();
+        try {
+            directory.saveAll(disk, indexes);
+        } finally {
+            saveAllTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public void delete(Disk disk, long id) {
+        long start = System.nanoTime();
+        try {
+            directory.delete(disk, id);
+        } finally {
+            deleteTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public void forEachId(Disk disk, Consumer<Long> consumer) {
+        directory.forEachId(disk, consumer);
+    }
+
+    @Override
+    public void forEachIndex(Disk disk, Consumer<ImageIndex> consumer) {
+        directory.forEachIndex(disk, consumer);
+    }
+
+    public Directory getDirectory() {
+        return directory;
+    }
+}
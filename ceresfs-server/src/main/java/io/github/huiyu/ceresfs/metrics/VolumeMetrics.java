@@ -0,0 +1,56 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import io.github.huiyu.ceresfs.storage.Volume;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Latency and bytes of volume writes, forces and reads
+ *
+ * @author Yu Hui
+ */
+@Component
+public class VolumeMetrics implements Volume.Listener {
+
+    private final Metrics.Timer writeTime;
+    private final Metrics.Counter writtenImages;
+    private final Metrics.Counter writtenBytes;
+    private final Metrics.Timer forceTime;
+    private final Metrics.Timer readTime;
+    private final Metrics.Counter readBytes;
+
+    @Autowired
+    public VolumeMetrics(Metrics metrics) {
+        this.writeTime = metrics.timer("ceresfs_volume_write_seconds",
+                "Latency of volume batch writes, excluding forces");
+        this.writtenImages = metrics.counter("ceresfs_volume_written_images_total",
+                "Images written to volumes");
+        this.writtenBytes = metrics.counter("ceresfs_volume_written_bytes_total",
+                "Image bytes written to volumes");
+        this.forceTime = metrics.timer("ceresfs_volume_force_seconds",
+                "Latency of forcing volumes to storage devices");
+        this.readTime = metrics.timer("ceresfs_volume_read_seconds",
+                "Latency of image reads from volumes");
+        this.readBytes = metrics.counter("ceresfs_volume_read_bytes_total",
+                "Image bytes read from volumes");
+    }
+
+    @Override
+    public void onWrite(int images, long bytes, long nanos) {
+        writeTime.recordNanos(nanos);
+        writtenImages.add(images);
+        writtenBytes.add(bytes);
+    }
+
+    @Override
+    public void onForce(long nanos) {
+        forceTime.recordNanos(nanos);
+    }
+
+    @Override
+    public void onRead(long bytes, long nanos) {
+        readTime.recordNanos(nanos);
+        readBytes.add(bytes);
+    }
+}
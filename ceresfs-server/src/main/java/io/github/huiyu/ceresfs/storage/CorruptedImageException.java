@@ -0,0 +1,35 @@
+package io.github.huiyu.ceresfs.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when the checksum of an image record mismatches its bytes in volume
+ *
+ * @author Yu Hui
+ */
+public class CorruptedImageException extends IOException {
+
+    private final File volume;
+    private final long position;
+    private final long id;
+
+    public CorruptedImageException(File volume, long position, long id, String message) {
+        super("Image " + id + " at " + volume + ":" + position + " is corrupted, " + message);
+        this.volume = volume;
+        this.position = position;
+        this.id = id;
+    }
+
+    public File getVolume() {
+        return volume;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getId() {
+        return id;
+    }
+}
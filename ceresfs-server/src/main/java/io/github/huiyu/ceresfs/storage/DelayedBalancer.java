@@ -4,6 +4,9 @@ import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import io.github.huiyu.ceresfs.http.HttpClientPool;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.metrics.Metrics;
 import io.github.huiyu.ceresfs.retry.NTimesRetryStrategy;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.Node;
@@ -22,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 
@@ -35,8 +39,14 @@ public class DelayedBalancer implements Balancer {
 
     private final Topology topology;
     private final HttpClientPool httpClientPool;
+    private final InternalClientPool internalClientPool;
     private final Directory directory;
     private final Store store;
+    private final MigrationTable migrationTable;
+
+    private final Metrics.Counter movedLocal;
+    private final Metrics.Counter movedRemote;
+    private final Metrics.Counter failures;
 
     private final ReentrantLock lock = new ReentrantLock();
     private final Condition cancelled = lock.newCondition();
@@ -45,13 +55,37 @@ public class DelayedBalancer implements Balancer {
 
     public DelayedBalancer(Topology topology,
                            HttpClientPool httpClientPool,
+                           InternalClientPool internalClientPool,
+                           Directory directory,
+                           Store store,
+                           MigrationTable migrationTable
+    ) {
+        this(topology, httpClientPool, internalClientPool, directory, store, migrationTable,
+                new Metrics());
+    }
+
+    public DelayedBalancer(Topology topology,
+                           HttpClientPool httpClientPool,
+                           InternalClientPool internalClientPool,
                            Directory directory,
-                           Store store
+                           Store store,
+                           MigrationTable migrationTable,
+                           Metrics metrics
     ) {
         this.topology = topology;
         this.httpClientPool = httpClientPool;
+        this.internalClientPool = internalClientPool;
         this.directory = directory;
         this.store = store;
+        this.migrationTable = migrationTable;
+        this.movedLocal = metrics.counter("ceresfs_balancer_moved_images_total",
+                "Images moved by the balancer", "to", "local");
+        this.movedRemote = metrics.counter("ceresfs_balancer_moved_images_total",
+                "Images moved by the balancer", "to", "remote");
+        this.failures = metrics.counter("ceresfs_balancer_failures_total",
+                "Failed image moves, each cancels the balancer");
+        metrics.gauge("ceresfs_balancer_running", "Whether the balancer is running",
+                () -> isRunning() ? 1 : 0);
     }
 
     @Override
@@ -133,7 +167,12 @@ public class DelayedBalancer implements Balancer {
             }
             Disk route = topology.route(id);
             if (route.getNode().getId() != localNode.getId()) { // not local 
-                toRemote(route, getImageById(disk, id));
+                Disk replica = localReplicaOf(disk, id);
+                if (replica == null) {
+                    toRemote(route, getImageById(disk, id));
+                } else if (replica.getId() != disk.getId()) { // replica in another disk
+                    toLocal(replica, getImageById(disk, id));
+                }
             } else if (route.getId() != disk.getId()) { // local but in another disk
                 toLocal(route, getImageById(disk, id));
             }
@@ -141,6 +180,18 @@ public class DelayedBalancer implements Balancer {
         }));
     }
 
+    /**
+     * @return the local disk of a replica of the image, or null if the image isn't replicated
+     * or has no replica on this node
+     */
+    private Disk localReplicaOf(Disk disk, long id) {
+        ImageIndex index = directory.get(disk, id);
+        if (index == null || index.getReplication() <= 1) {
+            return null;
+        }
+        return Replicator.localOf(topology, topology.route(id, index.getReplication()));
+    }
+
     protected Image getImageById(Disk disk, long id) {
         try {
             ImageIndex index = directory.get(disk, id);
@@ -169,6 +220,7 @@ public class DelayedBalancer implements Balancer {
                 if (ex != null) {
                     // FIXME: roughly interrupt
                     LOG.error("Save to " + disk.toString() + " error", ex);
+                    failures.inc();
                     cancel();
                     return;
                 }
@@ -176,9 +228,11 @@ public class DelayedBalancer implements Balancer {
                 try {
                     store.delete(disk, index);
                     directory.delete(disk, index.getId());
+                    movedLocal.inc();
                 } catch (Exception e) {
                     // FIXME: roughly interrupt
                     LOG.error("Delete image " + image.toString() + " error", e);
+                    failures.inc();
                     cancel();
                 }
             });
@@ -195,42 +249,69 @@ public class DelayedBalancer implements Balancer {
 
         Node node = disk.getNode();
         ImageIndex index = image.getIndex();
-        FullHttpRequest req;
-        try {
-            req = HttpUtil.newImageUploadRequest(
-                    index.getId(),
-                    index.getType(),
-                    index.getReplication(),
-                    index.getExpireTime(),
-                    image.getData());
-        } catch (Exception e) {
-            throw new UncheckedExecutionException(e);
+        CompletableFuture<String> moved;
+        if (internalClientPool != null && node.getInternalPort() > 0) {
+            // an image already on the node is moved by an earlier attempt
+            moved = internalClientPool.getOrCreate(node.getHostAddress(), node.getInternalPort())
+                    .put(index.getId(),
+                            index.getType(),
+                            index.getReplication(),
+                            index.getExpireTime(),
+                            Unpooled.wrappedBuffer(image.getData()))
+                    .thenApply(resp -> resp.getStatus() == InternalProtocol.OK
+                            || resp.getStatus() == InternalProtocol.EXISTS ?
+                            null : resp.toString());
+        } else {
+            FullHttpRequest req;
+            try {
+                req = HttpUtil.newImageUploadRequest(
+                        index.getId(),
+                        index.getType(),
+                        index.getReplication(),
+                        index.getExpireTime(),
+                        image.getData());
+            } catch (Exception e) {
+                throw new UncheckedExecutionException(e);
+            }
+            moved = httpClientPool.getOrCreate(node.getHostAddress(), node.getPort())
+                    .newCall(req)
+                    .thenApply(resp -> {
+                        String failure = resp.status().equals(HttpResponseStatus.OK) ?
+                                null : resp.toString();
+                        resp.release();
+                        return failure;
+                    });
         }
 
-        httpClientPool.getOrCreate(node.getHostAddress(), node.getPort())
-                .newCall(req)
-                .whenComplete((resp, ex) -> {
-                    if (ex != null) {
-                        // FIXME: roughly interrupt
-                        LOG.error("Redistribute to " + node.toString() + " error", ex);
-                        cancel();
-                        return;
-                    }
+        moved.whenComplete((failure, ex) -> {
+            if (ex != null) {
+                // FIXME: roughly interrupt
+                LOG.error("Redistribute to " + node.toString() + " error", ex);
+                failures.inc();
+                cancel();
+                return;
+            }
 
-                    if (resp.status().equals(HttpResponseStatus.OK)) {
-                        try {
-                            store.delete(disk, index);
-                            directory.delete(disk, index.getId());
-                        } catch (Exception e) {
-                            // FIXME: roughly interrupt
-                            LOG.error("Delete " + index + " failed \n {}", e);
-                            cancel();
-                        }
-                    } else {
-                        // FIXME: roughly interrupt
-                        LOG.error("Redistribute to {} failed \n {}", node, resp.toString());
-                        cancel();
+            if (failure == null) {
+                try {
+                    if (migrationTable != null) {
+                        migrationTable.record(index.getId(), disk);
                     }
-                });
+                    store.delete(disk, index);
+                    directory.delete(disk, index.getId());
+                    movedRemote.inc();
+                } catch (Exception e) {
+                    // FIXME: roughly interrupt
+                    LOG.error("Delete " + index + " failed \n {}", e);
+                    failures.inc();
+                    cancel();
+                }
+            } else {
+                // FIXME: roughly interrupt
+                LOG.error("Redistribute to {} failed \n {}", node, failure);
+                failures.inc();
+                cancel();
+            }
+        });
     }
 }
@@ -2,6 +2,7 @@ package io.github.huiyu.ceresfs.storage;
 
 import io.github.huiyu.ceresfs.topology.Disk;
 
+import java.util.Collection;
 import java.util.function.Consumer;
 
 /**
@@ -37,6 +38,18 @@ public interface Directory {
      */
     void save(Disk disk, ImageIndex index);
 
+    /**
+     * Save indexes of images written together, implementations may save them in one pass
+     *
+     * @param disk    the disk image files located
+     * @param indexes image indexes
+     */
+    default void saveAll(Disk disk, Collection<ImageIndex> indexes) {
+        for (ImageIndex index : indexes) {
+            save(disk, index);
+        }
+    }
+
     /**
      * Delete image index
      *
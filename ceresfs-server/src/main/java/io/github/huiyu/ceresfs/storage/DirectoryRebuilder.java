@@ -0,0 +1,189 @@
+package io.github.huiyu.ceresfs.storage;
+
+import com.google.common.util.concurrent.Striped;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Rebuild directory from hint files and headers of all volumes, volumes of all disks are
+ * scanned in parallel. When an image appears in multiple volumes the latest one wins, compared
+ * by {@link ImageIndex#getTime()}. Rebuilding runs before the node joins the cluster if
+ * ceresfs.directory-rebuild is enabled. A volume failed to scan doesn't stop the others, but
+ * fails the rebuild once all are scanned, as images of the volume would be missing.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class DirectoryRebuilder implements InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryRebuilder.class);
+
+    private static final long REPORT_PERIOD_SECONDS = 5L;
+
+    private final Configuration config;
+    private final VolumeContainer volumeContainer;
+    private final Directory directory;
+
+    private final Striped<Lock> locks = Striped.lock(1024);
+    // time of deleted images, so that older copies are not brought back
+    private final Map<Long, Long> deleted = new ConcurrentHashMap<>();
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong volumes = new AtomicLong();
+    private final Queue<File> failed = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public DirectoryRebuilder(Configuration config,
+                              VolumeContainer volumeContainer,
+                              Directory directory) {
+        this.config = config;
+        this.volumeContainer = volumeContainer;
+        this.directory = directory;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (config.isDirectoryRebuild()) {
+            rebuild(config.getDisks());
+        }
+    }
+
+    /**
+     * Rebuild directory of the disks, blocks until all volumes are scanned.
+     *
+     * @throws IOException if any volume failed to scan, naming the volumes skipped
+     */
+    public void rebuild(List<Disk> disks) throws Exception {
+        List<Task> tasks = new ArrayList<>();
+        for (Disk disk : disks) {
+            List<File> files = volumeContainer.getAllVolumes(disk.getPath());
+            if (files != null) {
+                files.forEach(volume -> tasks.add(new Task(disk, volume)));
+            }
+        }
+        LOG.info("Rebuilding directory from {} volumes of {} disks", tasks.size(), disks.size());
+
+        records.set(0L);
+        bytes.set(0L);
+        volumes.set(0L);
+        deleted.clear();
+        failed.clear();
+
+        final long startTime = System.nanoTime();
+        int parallelism = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report(startTime, tasks.size()),
+                REPORT_PERIOD_SECONDS, REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Task task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            reporter.shutdownNow();
+            executor.shutdown();
+            deleted.clear();
+        }
+        report(startTime, tasks.size());
+        if (!failed.isEmpty()) {
+            List<File> skipped = new ArrayList<>(failed);
+            failed.clear();
+            throw new IOException("Directory rebuilding failed, " + skipped.size()
+                    + " volumes skipped: " + skipped);
+        }
+        LOG.info("Directory rebuilding completed");
+    }
+
+    private void report(long startTime, int total) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+        LOG.info("Scanned {}/{} volumes, {} images, {} MB in {}s, {} images/s, {} MB/s",
+                volumes.get(), total, records.get(), bytes.get() >> 20,
+                String.format("%.1f", seconds),
+                (long) (records.get() / seconds),
+                String.format("%.1f", bytes.get() / seconds / (1 << 20)));
+    }
+
+    private void scan(Disk disk, File volume) throws IOException {
+        Volume.forEachIndex(volume, index -> {
+            merge(disk, index);
+            records.incrementAndGet();
+            bytes.addAndGet(ImageIndex.FIXED_LENGTH + index.getSize());
+        });
+        volumes.incrementAndGet();
+    }
+
+    private void merge(Disk disk, ImageIndex index) {
+        long id = index.getId();
+        Lock lock = locks.get(id);
+        lock.lock();
+        try {
+            Long deletedTime = deleted.get(id);
+            if (deletedTime != null && deletedTime >= index.getTime()) {
+                return;
+            }
+            ImageIndex current = directory.get(disk, id);
+            if (current != null && current.getTime() >= index.getTime()) {
+                return;
+            }
+            if (index.getFlag() == ImageIndex.FLAG_DELETED) {
+                deleted.put(id, index.getTime());
+                if (current != null) {
+                    directory.delete(disk, id);
+                }
+            } else {
+                directory.save(disk, index);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Task implements Runnable {
+
+        final Disk disk;
+        final File volume;
+
+        Task(Disk disk, File volume) {
+            this.disk = disk;
+            this.volume = volume;
+        }
+
+        @Override
+        public void run() {
+            try {
+                scan(disk, volume);
+            } catch (IOException e) {
+                LOG.error("Scan " + volume + " error", e);
+                failed.add(volume);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import io.github.huiyu.ceresfs.ImageType;
 import io.github.huiyu.ceresfs.cache.Cache;
+import io.github.huiyu.ceresfs.config.Configuration;
 import io.github.huiyu.ceresfs.retry.RetryStrategy;
 import io.github.huiyu.ceresfs.topology.Disk;
 import io.github.huiyu.ceresfs.topology.Topology;
@@ -22,13 +23,63 @@ public class Facade {
     private final Cache cache;
     private final Directory directory;
     private final Store store;
+    private final int zeroCopyThreshold;
 
     @Autowired
-    public Facade(Topology topology, Cache cache, Directory directory, Store store) {
+    public Facade(Configuration config, Topology topology, Cache cache, Directory directory,
+                  Store store) {
         this.cache = cache;
         this.topology = topology;
         this.directory = directory;
         this.store = store;
+        this.zeroCopyThreshold = config.getImageZeroCopyThreshold();
+    }
+
+    /**
+     * Read image from local disk through cache. Large images which are not cached are located
+     * rather than loaded, so they can be sent by zero copy without polluting the cache.
+     *
+     * @return read result, or null if image not found
+     */
+    public ReadResult read(Disk disk, long id) {
+        Image image = cache.get(id);
+        if (image != null) {
+            return new ReadResult(image, null);
+        }
+
+        ImageIndex index = directory.get(disk, id);
+        if (index == null) {
+            return null;
+        }
+        try {
+            if (zeroCopyThreshold >= 0 && index.getSize() >= zeroCopyThreshold) {
+                ImageRegion region = store.locate(disk, index);
+                return region == null ? null : new ReadResult(null, region);
+            }
+            image = store.get(disk, index);
+            if (image == null) {
+                return null;
+            }
+            cache.put(image);
+            return new ReadResult(image, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read image from all local disks, used while images are not on the disks they route to.
+     *
+     * @return read result, or null if image not found
+     */
+    public ReadResult scan(long id) {
+        for (Disk disk : topology.getLocalNode().getDisks()) {
+            ReadResult result = read(disk, id);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
     }
 
     public Image get(Disk disk, long id) {
@@ -101,6 +152,7 @@ public class Facade {
         if (index != null) {
             try {
                 store.delete(disk, index);
+                directory.delete(disk, id);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             } finally {
@@ -108,4 +160,40 @@ public class Facade {
             }
         }
     }
+
+    /**
+     * Image read from local disk, either loaded or located for zero copy
+     */
+    public static final class ReadResult {
+
+        private final Image image;
+        private final ImageRegion region;
+
+        ReadResult(Image image, ImageRegion region) {
+            this.image = image;
+            this.region = region;
+        }
+
+        public boolean isRegion() {
+            return region != null;
+        }
+
+        public ImageIndex getIndex() {
+            return region != null ? region.getIndex() : image.getIndex();
+        }
+
+        /**
+         * @return loaded image, null if located only
+         */
+        public Image getImage() {
+            return image;
+        }
+
+        /**
+         * @return image region, null if loaded
+         */
+        public ImageRegion getRegion() {
+            return region;
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package io.github.huiyu.ceresfs.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Region of a volume file holding the data of an image, used to transfer image without
+ * copying it into heap.
+ *
+ * @author Yu Hui
+ */
+public class ImageRegion {
+
+    private final ImageIndex index;
+    private final File volume;
+
+    public ImageRegion(ImageIndex index, File volume) {
+        this.index = index;
+        this.volume = volume;
+    }
+
+    public ImageIndex getIndex() {
+        return index;
+    }
+
+    public File getVolume() {
+        return volume;
+    }
+
+    public long getPosition() {
+        return index.getOffset() + ImageIndex.FIXED_LENGTH;
+    }
+
+    public int getSize() {
+        return index.getSize();
+    }
+
+    /**
+     * Load image data into heap bypassing the cache, for large images which can't be sent by
+     * zero copy, e.g. in batches.
+     */
+    public byte[] load() throws IOException {
+        byte[] data = new byte[getSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try (RandomAccessFile raf = new RandomAccessFile(volume, "r")) {
+            FileChannel channel = raf.getChannel();
+            long position = getPosition();
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + volume);
+                }
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageRegion{" +
+                "index=" + index +
+                ", volume=" + volume +
+                '}';
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.huiyu.ceresfs.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An image streamed into a {@link Volume.Slot}. Reserving, writes and commit run in order on the
+ * given executor, so callers never block on disk. If the volume gets sealed in between, the data
+ * written so far is copied into a slot reserved again, and the operation goes on there.
+ * <p>
+ * Not thread safe, operations should be issued by one thread. Once an operation fails, all later
+ * ones fail with the same cause.
+ *
+ * @author Yu Hui
+ */
+public class ImageUpload {
+
+    private static final int MAX_MOVE_ATTEMPTS = 3;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Reserves a slot in an active volume
+     */
+    public interface Reserver {
+
+        Volume.Slot reserve() throws IOException;
+    }
+
+    private interface Operation {
+
+        Volume.Slot apply(Volume.Slot slot) throws IOException;
+    }
+
+    private final Reserver reserver;
+    private final Executor executor;
+    // slot after the last operation issued
+    private CompletableFuture<Volume.Slot> tail;
+
+    public ImageUpload(Reserver reserver, Executor executor) {
+        this.reserver = reserver;
+        this.executor = executor;
+        this.tail = CompletableFuture.completedFuture(null);
+        then(slot -> reserver.reserve());
+    }
+
+    /**
+     * Append image data, the remaining bytes of the buffer are written as is, so it must stay
+     * untouched until the returned future completes
+     */
+    public CompletableFuture<Void> write(ByteBuffer data) {
+        return then(slot -> {
+            for (int i = 0; ; i++) {
+                try {
+                    slot.write(data.duplicate());
+                    return slot;
+                } catch (ClosedChannelException e) {
+                    slot = move(slot, e, i);
+                }
+            }
+        }).thenApply(slot -> (Void) null);
+    }
+
+    /**
+     * Make the image visible in volume, see {@link Volume.Slot#commit()}
+     *
+     * @return an instance of <code>CompletableFuture</code> of the committed index
+     */
+    public CompletableFuture<ImageIndex> commit(long expireTime) {
+        return then(slot -> {
+            for (int i = 0; ; i++) {
+                slot.getIndex().setExpireTime(expireTime);
+                try {
+                    slot.commit();
+                    return slot;
+                } catch (ClosedChannelException e) {
+                    slot = move(slot, e, i);
+                }
+            }
+        }).thenApply(Volume.Slot::getIndex);
+    }
+
+    /**
+     * Give up the image, the slot stays in volume as a deleted image
+     */
+    public void abort() {
+        then(slot -> {
+            slot.abort();
+            return slot;
+        });
+    }
+
+    private CompletableFuture<Volume.Slot> then(Operation operation) {
+        CompletableFuture<Volume.Slot> next = new CompletableFuture<>();
+        tail.whenComplete((slot, ex) -> {
+            if (ex != null) {
+                next.completeExceptionally(ex);
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        next.complete(operation.apply(slot));
+                    } catch (Throwable e) {
+                        next.completeExceptionally(e);
+                    }
+                });
+            } catch (Throwable e) {
+                next.completeExceptionally(e);
+            }
+        });
+        tail = next;
+        return next;
+    }
+
+    /**
+     * Reserve again and copy the data written so far, as the volume of the slot is sealed
+     */
+    private Volume.Slot move(Volume.Slot slot, ClosedChannelException cause, int attempts)
+            throws IOException {
+        if (attempts >= MAX_MOVE_ATTEMPTS) {
+            throw cause;
+        }
+        slot.abort();
+        Volume.Slot moved = reserver.reserve();
+        ImageIndex index = slot.getIndex();
+        moved.getIndex().setExpireTime(index.getExpireTime());
+        try (FileChannel channel = FileChannel.open(slot.getWriter().getVolume().toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(COPY_BUFFER_SIZE,
+                    Math.max(slot.getSize(), 1)));
+            long position = index.getOffset() + ImageIndex.FIXED_LENGTH;
+            long end = position + slot.getSize();
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + slot.getWriter().getVolume());
+                    }
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                moved.write(buffer);
+            }
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,190 @@
+package io.github.huiyu.ceresfs.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBufInputStream;
+
+/**
+ * Hints on where images are while the cluster is unbalanced, so lookups go to the nodes likely
+ * holding them rather than all unbalanced nodes. Images moved away from this node are found by
+ * the {@link MigrationTable}. Images on other nodes are guessed by Bloom filters of ids held by
+ * the nodes, fetched by the internal protocol. Filters are built from directories and may be
+ * a bit stale, as images keep moving away, so they're rebuilt and fetched again periodically.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class LocationHints implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationHints.class);
+
+    private static final long FILTER_EXPIRE_MILLS = TimeUnit.MINUTES.toMillis(1);
+    private static final double FILTER_FPP = 0.01;
+
+    private final Topology topology;
+    private final Directory directory;
+    private final MigrationTable migrationTable;
+    private final InternalClientPool internalClientPool;
+
+    // filters are built by walking directories of all local disks, one at a time
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // serialized filter of local images
+    private CompletableFuture<byte[]> localFilter;
+    private long localFilterTime;
+
+    private final Cache<Short, CompletableFuture<BloomFilter<Long>>> peerFilters =
+            CacheBuilder.newBuilder()
+                    .expireAfterWrite(FILTER_EXPIRE_MILLS, TimeUnit.MILLISECONDS)
+                    .build();
+
+    @Autowired
+    public LocationHints(Topology topology, Directory directory, MigrationTable migrationTable,
+                         InternalClientPool internalClientPool) {
+        this.topology = topology;
+        this.directory = directory;
+        this.migrationTable = migrationTable;
+        this.internalClientPool = internalClientPool;
+    }
+
+    /**
+     * @return node the image has been moved to from this node, or null if not moved lately
+     */
+    public Node movedTo(long id) {
+        MigrationTable.Location location = migrationTable.locate(id);
+        if (location == null) {
+            return null;
+        }
+        for (Node node : topology.getAllNodes()) {
+            if (node.getId() == location.getNodeId()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Nodes which may hold the image by their filters. Nodes with filters not fetched yet are
+     * all kept, the filters are fetched for later lookups.
+     */
+    public List<Node> mayHold(long id, Collection<Node> nodes) {
+        List<Node> result = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            BloomFilter<Long> filter = peerFilter(node);
+            if (filter == null || filter.mightContain(id)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return serialized Bloom filter of ids of images on local disks
+     */
+    public synchronized CompletableFuture<byte[]> localFilter() {
+        long now = System.currentTimeMillis();
+        if (localFilter == null || localFilter.isCompletedExceptionally()
+                || (localFilter.isDone() && now - localFilterTime > FILTER_EXPIRE_MILLS)) {
+            localFilterTime = now;
+            localFilter = CompletableFuture.supplyAsync(this::buildLocalFilter, executor);
+        }
+        return localFilter;
+    }
+
+    private byte[] buildLocalFilter() {
+        List<Disk> disks = topology.getLocalNode().getDisks();
+        AtomicLong count = new AtomicLong();
+        for (Disk disk : disks) {
+            directory.forEachId(disk, id -> count.incrementAndGet());
+        }
+        // sized to images counted, images saved since only raise false positives a bit
+        BloomFilter<Long> filter = BloomFilter.create(Funnels.longFunnel(),
+                Math.max(count.get(), 1024L), FILTER_FPP);
+        for (Disk disk : disks) {
+            directory.forEachId(disk, filter::put);
+        }
+        LOG.info("Built filter of {} images", count.get());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            filter.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return filter of the node, or null if not fetched yet or unavailable
+     */
+    private BloomFilter<Long> peerFilter(Node node) {
+        if (internalClientPool == null || node.getInternalPort() <= 0) {
+            return null;
+        }
+        CompletableFuture<BloomFilter<Long>> filter;
+        try {
+            filter = peerFilters.get(node.getId(), () -> fetchFilter(node));
+        } catch (ExecutionException e) {
+            LOG.error("Fetch filter of " + node + " error", e);
+            return null;
+        }
+        return filter.isDone() && !filter.isCompletedExceptionally() ? filter.join() : null;
+    }
+
+    private CompletableFuture<BloomFilter<Long>> fetchFilter(Node node) {
+        CompletableFuture<BloomFilter<Long>> filter = internalClientPool
+                .getOrCreate(node.getHostAddress(), node.getInternalPort())
+                .filter()
+                .thenApply(resp -> {
+                    if (resp.getStatus() != InternalProtocol.OK) {
+                        throw new IllegalStateException("Status " + resp.getStatus());
+                    }
+                    try {
+                        return BloomFilter.readFrom(new ByteBufInputStream(resp.getContent()),
+                                Funnels.longFunnel());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        // failed filters are taken as unknown until expired
+        filter.whenComplete((f, ex) -> {
+            if (ex != null) {
+                LOG.warn("Fetch filter of " + node + " error", ex);
+            }
+        });
+        return filter;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Consumer;
@@ -57,6 +58,15 @@ public class MapDBDirectory implements Directory, DisposableBean {
         indexMap.put(index.getId(), data);
     }
 
+    @Override
+    public void saveAll(Disk disk, Collection<ImageIndex> indexes) {
+        Map<Long, byte[]> data = new HashMap<>();
+        for (ImageIndex index : indexes) {
+            data.put(index.getId(), Codec.encode(index));
+        }
+        getOrCreate(disk).putAll(data);
+    }
+
     private HTreeMap<Long, byte[]> getOrCreate(Disk disk) {
         HTreeMap<Long, byte[]> indexMap = indexByPath.get(disk.getPath());
         if (indexMap == null) {
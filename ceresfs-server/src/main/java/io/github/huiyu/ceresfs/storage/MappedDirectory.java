@@ -0,0 +1,450 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Directory keeps fixed-width index records in an open-addressing hash table keyed by image id.
+ * The table of each disk lives in a memory-mapped file, so lookups touch neither the java heap
+ * nor a serializer.
+ *
+ * @author Yu Hui
+ */
+@Component
+@ConditionalOnProperty(
+        prefix = "ceresfs",
+        name = "directory.mode",
+        havingValue = "mapped"
+)
+public class MappedDirectory implements Directory, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedDirectory.class);
+
+    private static final String INDEX_FILE = ".index";
+    private static final String INDEX_TEMP_FILE = ".index.tmp";
+
+    private final Map<String, Table> tableByPath = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean contains(Disk disk, long id) {
+        return getOrCreate(disk).get(id) != null;
+    }
+
+    @Override
+    public ImageIndex get(Disk disk, long id) {
+        return getOrCreate(disk).get(id);
+    }
+
+    @Override
+    public void save(Disk disk, ImageIndex index) {
+        getOrCreate(disk).put(index);
+    }
+
+    @Override
+    public void saveAll(Disk disk, Collection<ImageIndex> indexes) {
+        getOrCreate(disk).putAll(indexes);
+    }
+
+    @Override
+    public void delete(Disk disk, long id) {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Delete index {} at {}", id, disk.getPath());
+        }
+        getOrCreate(disk).remove(id);
+    }
+
+    @Override
+    public void forEachId(Disk disk, Consumer<Long> consumer) {
+        getOrCreate(disk).forEach(index -> consumer.accept(index.getId()));
+    }
+
+    @Override
+    public void forEachIndex(Disk disk, Consumer<ImageIndex> consumer) {
+        getOrCreate(disk).forEach(consumer);
+    }
+
+    /**
+     * @return number of indexes saved in the disk
+     */
+    public long size(Disk disk) {
+        return getOrCreate(disk).size();
+    }
+
+    private Table getOrCreate(Disk disk) {
+        return tableByPath.computeIfAbsent(disk.getPath(), path -> {
+            LOG.info("Open mapped index for {}", path);
+            try {
+                return new Table(new File(path, INDEX_FILE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (Table table : tableByPath.values()) {
+            table.close();
+        }
+        tableByPath.clear();
+    }
+
+    /**
+     * Linear probing hash table on a memory-mapped file. The file starts with a 64 bytes
+     * header, followed by capacity slots of {@link #SLOT_LENGTH} bytes. Resizing rehashes into
+     * a temporary file which then replaces the original one.
+     */
+    static final class Table implements Closeable {
+
+        static final int MAGIC = 0xCE5E51DE;
+        static final int VERSION = 1;
+        static final int HEADER_LENGTH = 64;
+        static final long DEFAULT_CAPACITY = 1L << 16;
+        static final double LOAD_FACTOR = 0.75;
+
+        // slot: id 8, volume 8, offset 8, time 8, expire 8, size 4, type 1, flag 1,
+        // replication 1, state 1
+        static final int SLOT_LENGTH = 48;
+        static final int ID = 0;
+        static final int VOLUME = 8;
+        static final int OFFSET = 16;
+        static final int TIME = 24;
+        static final int EXPIRE = 32;
+        static final int SIZE = 40;
+        static final int TYPE = 44;
+        static final int FLAG = 45;
+        static final int REPLICATION = 46;
+        static final int STATE = 47;
+
+        static final byte EMPTY = 0;
+        static final byte USED = 1;
+        static final byte REMOVED = 2;
+
+        // slots of a mapped segment, a mapped buffer can't exceed 2GB
+        static final int SEGMENT_SHIFT = 24;
+        static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final File file;
+
+        private MappedByteBuffer header;
+        private MappedByteBuffer[] segments;
+        private long capacity;
+        private long size;
+        // used and removed slots, which both stop a probe from finishing early
+        private long occupied;
+
+        Table(File file) throws IOException {
+            this.file = file;
+            if (file.exists() && file.length() >= HEADER_LENGTH) {
+                load(file);
+            } else {
+                create(file, DEFAULT_CAPACITY);
+            }
+        }
+
+        private void load(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("Illegal index file " + file);
+                }
+                this.capacity = header.getLong(8);
+                this.size = header.getLong(16);
+                this.occupied = header.getLong(24);
+                if (channel.size() < HEADER_LENGTH + capacity * SLOT_LENGTH) {
+                    throw new IOException("Index file " + file + " truncated");
+                }
+                this.segments = map(channel, capacity);
+            }
+        }
+
+        private void create(File file, long capacity) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                // new file is sparse and filled with zeros, which means empty slots
+                raf.setLength(HEADER_LENGTH + capacity * SLOT_LENGTH);
+                this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+                this.header.putInt(0, MAGIC);
+                this.header.putInt(4, VERSION);
+                this.capacity = capacity;
+                this.size = 0L;
+                this.occupied = 0L;
+                writeHeader();
+                this.segments = map(channel, capacity);
+            }
+        }
+
+        private static MappedByteBuffer[] map(FileChannel channel, long capacity) throws IOException {
+            int count = (int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long first = (long) i << SEGMENT_SHIFT;
+                long slots = Math.min(1L << SEGMENT_SHIFT, capacity - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_LENGTH + first * SLOT_LENGTH, slots * SLOT_LENGTH);
+            }
+            return segments;
+        }
+
+        private void writeHeader() {
+            header.putLong(8, capacity);
+            header.putLong(16, size);
+            header.putLong(24, occupied);
+        }
+
+        ImageIndex get(long id) {
+            lock.readLock().lock();
+            try {
+                long slot = find(id);
+                return slot < 0 ? null : read(slot);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(ImageIndex index) {
+            putAll(Collections.singletonList(index));
+        }
+
+        /**
+         * Put indexes under one lock, resizing at most once
+         */
+        void putAll(Collection<ImageIndex> indexes) {
+            lock.writeLock().lock();
+            try {
+                int count = indexes.size();
+                if (occupied + count > capacity * LOAD_FACTOR) {
+                    // grow only if live indexes need it, otherwise just purge removed slots
+                    long newCapacity = capacity;
+                    while (size + count > newCapacity * LOAD_FACTOR / 2) {
+                        newCapacity <<= 1;
+                    }
+                    resize(newCapacity);
+                }
+                for (ImageIndex index : indexes) {
+                    long slot = find(index.getId());
+                    if (slot < 0) {
+                        slot = insert(index.getId());
+                    }
+                    write(slot, index);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long id) {
+            lock.writeLock().lock();
+            try {
+                long slot = find(id);
+                if (slot >= 0) {
+                    segment(slot).put(position(slot) + STATE, REMOVED);
+                    size--;
+                    writeHeader();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        long size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Traverse indexes segment by segment, the consumer is called out of the lock so it can
+         * modify this table. Modifications made during traversal may be missed.
+         */
+        void forEach(Consumer<ImageIndex> consumer) {
+            for (long first = 0; ; first += 1L << SEGMENT_SHIFT) {
+                List<ImageIndex> indexes = new ArrayList<>();
+                lock.readLock().lock();
+                try {
+                    if (first >= capacity) {
+                        return;
+                    }
+                    long last = Math.min(capacity, first + (1L << SEGMENT_SHIFT));
+                    for (long slot = first; slot < last; slot++) {
+                        if (segment(slot).get(position(slot) + STATE) == USED) {
+                            indexes.add(read(slot));
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                indexes.forEach(consumer);
+            }
+        }
+
+        /**
+         * @return slot of the id, or -1 if absent
+         */
+        private long find(long id) {
+            long mask = capacity - 1;
+            for (long slot = hash(id) & mask, n = 0; n < capacity; slot = (slot + 1) & mask, n++) {
+                MappedByteBuffer segment = segment(slot);
+                int position = position(slot);
+                byte state = segment.get(position + STATE);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == USED && segment.getLong(position + ID) == id) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Take the first free slot of the probe sequence for an absent id
+         */
+        private long insert(long id) {
+            long mask = capacity - 1;
+            for (long slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+                byte state = segment(slot).get(position(slot) + STATE);
+                if (state != USED) {
+                    if (state == EMPTY) {
+                        occupied++;
+                    }
+                    size++;
+                    return slot;
+                }
+            }
+        }
+
+        private ImageIndex read(long slot) {
+            MappedByteBuffer segment = segment(slot);
+            int position = position(slot);
+            ImageIndex index = new ImageIndex();
+            index.setId(segment.getLong(position + ID));
+            index.setVolume(segment.getLong(position + VOLUME));
+            index.setOffset(segment.getLong(position + OFFSET));
+            index.setTime(segment.getLong(position + TIME));
+            index.setExpireTime(segment.getLong(position + EXPIRE));
+            index.setSize(segment.getInt(position + SIZE));
+            byte type = segment.get(position + TYPE);
+            index.setType(type == 0 ? null : ImageType.fromCode(type));
+            index.setFlag(segment.get(position + FLAG));
+            index.setReplication(segment.get(position + REPLICATION));
+            return index;
+        }
+
+        private void write(long slot, ImageIndex index) {
+            MappedByteBuffer segment = segment(slot);
+            int position = position(slot);
+            segment.putLong(position + ID, index.getId());
+            segment.putLong(position + VOLUME, index.getVolume());
+            segment.putLong(position + OFFSET, index.getOffset());
+            segment.putLong(position + TIME, index.getTime());
+            segment.putLong(position + EXPIRE, index.getExpireTime());
+            segment.putInt(position + SIZE, index.getSize());
+            segment.put(position + TYPE, index.getType() == null ? 0 : index.getType().getCode());
+            segment.put(position + FLAG, index.getFlag());
+            segment.put(position + REPLICATION, index.getReplication());
+            // state goes last, so readers of the mapping never see a new slot before its content.
+            // Pages are not forced here, so after a crash of the machine, or of the process in
+            // the middle of overwriting a slot, the table may hold partial records, which are
+            // recovered by rebuilding the directory from volumes.
+            segment.put(position + STATE, USED);
+            writeHeader();
+        }
+
+        private void resize(long newCapacity) throws IOException {
+            LOG.info("Resize {} from {} to {} slots, {} indexes", file, capacity, newCapacity, size);
+            File temp = new File(file.getParentFile(), INDEX_TEMP_FILE);
+            Files.deleteIfExists(temp.toPath());
+
+            MappedByteBuffer[] oldSegments = this.segments;
+            long oldCapacity = this.capacity;
+            create(temp, newCapacity);
+            for (long slot = 0; slot < oldCapacity; slot++) {
+                MappedByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_SHIFT)];
+                int position = (int) ((slot & SEGMENT_MASK) * SLOT_LENGTH);
+                if (segment.get(position + STATE) == USED) {
+                    long id = segment.getLong(position + ID);
+                    long newSlot = insert(id);
+                    // copy the whole slot
+                    MappedByteBuffer target = segment(newSlot);
+                    int targetPosition = position(newSlot);
+                    for (int i = 0; i < SLOT_LENGTH; i++) {
+                        target.put(targetPosition + i, segment.get(position + i));
+                    }
+                }
+            }
+            writeHeader();
+            force();
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private MappedByteBuffer segment(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)];
+        }
+
+        private static int position(long slot) {
+            return (int) ((slot & SEGMENT_MASK) * SLOT_LENGTH);
+        }
+
+        private static long hash(long id) {
+            // murmur3 fmix64, spreads sequential snowflake ids
+            id ^= id >>> 33;
+            id *= 0xff51afd7ed558ccdL;
+            id ^= id >>> 33;
+            id *= 0xc4ceb9fe1a85ec53L;
+            id ^= id >>> 33;
+            return id;
+        }
+
+        private void force() {
+            header.force();
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                // mapped buffers are released by GC
+                force();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
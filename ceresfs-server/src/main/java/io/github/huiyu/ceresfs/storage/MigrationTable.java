@@ -0,0 +1,105 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+
+/**
+ * Locations of images moved away from this node by the balancer. Lookups of moved images, e.g.
+ * by clients not aware of the new topology yet, go straight to their new nodes rather than
+ * being broadcast. The table is saved along with the directory of the first disk, entries
+ * expire after the configured time.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class MigrationTable implements InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MigrationTable.class);
+
+    private static final String TABLE_FILE = ".migration";
+    private static final String MAP_MIGRATION = "migration";
+
+    private final Configuration config;
+    private final long expireMills;
+
+    private DB db;
+    // id -> node id, disk id and moved time
+    private HTreeMap<Long, long[]> table;
+
+    @Autowired
+    public MigrationTable(Configuration config) {
+        this.config = config;
+        this.expireMills = config.getMigrationExpireTimeUnit().toMillis(config.getMigrationExpire());
+    }
+
+    /**
+     * Record the image has been moved to the disk
+     */
+    public void record(long id, Disk disk) {
+        long[] location = {disk.getNode().getId(), disk.getId(), System.currentTimeMillis()};
+        table.put(id, location);
+    }
+
+    /**
+     * @return location the image has been moved to, or null if not moved or expired
+     */
+    public Location locate(long id) {
+        long[] location = table.get(id);
+        if (location == null || System.currentTimeMillis() - location[2] > expireMills) {
+            return null;
+        }
+        return new Location((short) location[0], (short) location[1]);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        File file = new File(config.getDisks().get(0).getPath(), TABLE_FILE);
+        LOG.info("Open migration table {}", file);
+        db = DBMaker
+                .fileDB(file)
+                .fileMmapEnable()
+                .closeOnJvmShutdown()
+                .make();
+        table = db.hashMap(MAP_MIGRATION, Serializer.LONG, Serializer.LONG_ARRAY)
+                .expireAfterCreate(expireMills)
+                .createOrOpen();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        table.close();
+        db.close();
+    }
+
+    public static final class Location {
+
+        private final short nodeId;
+        private final short diskId;
+
+        Location(short nodeId, short diskId) {
+            this.nodeId = nodeId;
+            this.diskId = diskId;
+        }
+
+        public short getNodeId() {
+            return nodeId;
+        }
+
+        public short getDiskId() {
+            return diskId;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import io.github.huiyu.ceresfs.config.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
@@ -17,6 +18,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -24,26 +26,61 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Component
-public class PooledVolumeContainer implements VolumeContainer {
+public class PooledVolumeContainer implements VolumeContainer, DisposableBean {
 
     // 5 minute rule
     private static final int EXPIRE_TIME = 5;
     private static final TimeUnit EXPIRE_TIME_UNIT = TimeUnit.SECONDS;
+    // mapping is costly and unmapped only by GC, keep mapped readers of sealed volumes longer
+    private static final int MAPPED_EXPIRE_TIME = 5;
+    private static final TimeUnit MAPPED_EXPIRE_TIME_UNIT = TimeUnit.MINUTES;
 
     private static final Logger LOG = LoggerFactory.getLogger(PooledVolumeContainer.class);
 
     protected CommonPool<Volume.Writer> writerPool;
     protected CommonPool<Volume.Reader> readerPool;
+    protected CommonPool<Volume.Reader> mappedReaderPool;
     protected ActiveWriterPool activeWriterPool;
+    protected Volume.ReadMode readMode;
+    protected Volume.FsyncPolicy fsyncPolicy;
+    protected boolean verifyOnRead;
+    protected Volume.Listener listener;
+    protected ScheduledExecutorService syncExecutor;
 
-    @Autowired
     public PooledVolumeContainer(Configuration config) {
+        this(config, Volume.Listener.NONE);
+    }
+
+    /**
+     * @param listener listener of all volumes opened by the container
+     */
+    @Autowired
+    public PooledVolumeContainer(Configuration config, Volume.Listener listener) {
+        this.readMode = config.getVolumeReadMode() == null ?
+                Volume.ReadMode.CHANNEL : config.getVolumeReadMode();
+        this.fsyncPolicy = config.getVolumeFsyncPolicy() == null ?
+                Volume.FsyncPolicy.BATCH : config.getVolumeFsyncPolicy();
+        this.verifyOnRead = config.isVolumeVerifyOnRead();
+        this.listener = listener;
         this.writerPool = new CommonPool<>(EXPIRE_TIME, EXPIRE_TIME_UNIT);
         this.readerPool = new CommonPool<>(EXPIRE_TIME, EXPIRE_TIME_UNIT);
-        this.activeWriterPool = new ActiveWriterPool(config.getVolumeWriteParallelism(), config.getVolumeMaxSize());
+        this.mappedReaderPool = new CommonPool<>(MAPPED_EXPIRE_TIME, MAPPED_EXPIRE_TIME_UNIT);
+        this.activeWriterPool = new ActiveWriterPool(config.getVolumeWriteParallelism(),
+                config.getVolumeMaxSize(), fsyncPolicy, listener, this::onSealed);
+
+        if (fsyncPolicy == Volume.FsyncPolicy.INTERVAL) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor();
+            this.syncExecutor.scheduleWithFixedDelay(this::sync,
+                    config.getVolumeFsyncInterval(),
+                    config.getVolumeFsyncInterval(),
+                    config.getVolumeFsyncIntervalTimeUnit());
+        }
     }
 
     private static void closeSilently(Closeable closeable) {
@@ -67,7 +104,7 @@ public class PooledVolumeContainer implements VolumeContainer {
         Volume.Writer writer = activeWriterPool.get(volume);
         if (writer == null) {
             writer = writerPool.computeIfAbsent(volume.getAbsolutePath(),
-                    () -> Volume.createWriter(volume));
+                    () -> Volume.createWriter(volume, fsyncPolicy, listener));
         }
         return writer;
     }
@@ -77,8 +114,29 @@ public class PooledVolumeContainer implements VolumeContainer {
         if (!volume.exists()) {
             return null;
         }
-        return readerPool.computeIfAbsent(volume.getAbsolutePath(),
-                () -> Volume.createReader(volume));
+        // active volumes are still growing, never map them
+        if (readMode == Volume.ReadMode.CHANNEL || activeWriterPool.get(volume) != null) {
+            return readerPool.computeIfAbsent(volume.getAbsolutePath(),
+                    () -> Volume.createReader(volume, Volume.ReadMode.CHANNEL, verifyOnRead,
+                            listener));
+        }
+        return mappedReaderPool.computeIfAbsent(volume.getAbsolutePath(),
+                () -> Volume.createReader(volume, readMode, verifyOnRead, listener));
+    }
+
+    /**
+     * Readers opened while the volume was active read by channel, drop them once it's sealed as
+     * later reads go to mapped readers. Reads in flight on them still complete.
+     */
+    private void onSealed(File volume) {
+        if (readMode != Volume.ReadMode.CHANNEL) {
+            readerPool.close(volume.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public boolean isActive(File volume) {
+        return activeWriterPool.get(volume) != null;
     }
 
     @Override
@@ -108,6 +166,7 @@ public class PooledVolumeContainer implements VolumeContainer {
     @Override
     public void closeReader(File volume) {
         readerPool.close(volume.getAbsolutePath());
+        mappedReaderPool.close(volume.getAbsolutePath());
     }
 
     @Override
@@ -117,6 +176,39 @@ public class PooledVolumeContainer implements VolumeContainer {
         if (!delete) {
             throw new UncheckedIOException(new IOException("File " + volume + " delete failed"));
         }
+        File hint = Volume.getHintFile(volume);
+        if (hint.exists() && !hint.delete()) {
+            LOG.warn("Hint file {} delete failed", hint);
+        }
+    }
+
+    /**
+     * Force all writers which have written since last sync
+     */
+    public void sync() {
+        List<Volume.Writer> writers = new ArrayList<>(writerPool.cache.asMap().values());
+        writers.addAll(activeWriterPool.getAll());
+        for (Volume.Writer writer : writers) {
+            if (writer.isClosed()) {
+                continue;
+            }
+            try {
+                writer.sync();
+            } catch (IOException e) {
+                LOG.error("Sync " + writer.getVolume() + " error", e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        activeWriterPool.close();
+        writerPool.close();
+        readerPool.close();
+        mappedReaderPool.close();
     }
 
     /**
@@ -166,12 +258,36 @@ public class PooledVolumeContainer implements VolumeContainer {
 
         final int size;
         final long maxVolumeSize;
+        final Volume.FsyncPolicy fsyncPolicy;
+        final Volume.Listener listener;
+        final Consumer<File> sealedListener;
         final Map<String, Volume.Writer[]> writersByDisk;
         final Random random = new Random(47);
 
         public ActiveWriterPool(int size, long maxVolumeSize) {
+            this(size, maxVolumeSize, Volume.FsyncPolicy.BATCH);
+        }
+
+        public ActiveWriterPool(int size, long maxVolumeSize, Volume.FsyncPolicy fsyncPolicy) {
+            this(size, maxVolumeSize, fsyncPolicy, Volume.Listener.NONE);
+        }
+
+        public ActiveWriterPool(int size, long maxVolumeSize, Volume.FsyncPolicy fsyncPolicy,
+                                Volume.Listener listener) {
+            this(size, maxVolumeSize, fsyncPolicy, listener, volume -> {
+            });
+        }
+
+        /**
+         * @param sealedListener called with volumes no longer active once their writers close
+         */
+        public ActiveWriterPool(int size, long maxVolumeSize, Volume.FsyncPolicy fsyncPolicy,
+                                Volume.Listener listener, Consumer<File> sealedListener) {
             this.size = size;
             this.maxVolumeSize = maxVolumeSize;
+            this.fsyncPolicy = fsyncPolicy;
+            this.listener = listener;
+            this.sealedListener = sealedListener;
             this.writersByDisk = new HashMap<>();
         }
 
@@ -189,12 +305,23 @@ public class PooledVolumeContainer implements VolumeContainer {
             int next = random.nextInt(size);
             Volume.Writer writer = writers[next];
             if (writer.length() > maxVolumeSize) {
+                // images queued before closing are still written, later ones get retried
+                closeSilently(writer);
+                sealedListener.accept(writer.getVolume());
                 writer = newWriter(disk);
                 writers[next] = writer;
             }
             return writer;
         }
 
+        public synchronized List<Volume.Writer> getAll() {
+            List<Volume.Writer> all = new ArrayList<>();
+            for (Volume.Writer[] writers : writersByDisk.values()) {
+                all.addAll(Arrays.asList(writers));
+            }
+            return all;
+        }
+
         public Volume.Writer get(File volume) {
             String disk = volume.getParent();
             Volume.Writer[] writers = writersByDisk.get(disk);
@@ -222,6 +349,7 @@ public class PooledVolumeContainer implements VolumeContainer {
                 Volume.Writer w = writers[i];
                 if (w.getVolume().equals(volume)) {
                     closeSilently(w);
+                    sealedListener.accept(volume);
                     w = newWriter(disk);
                     writers[i] = w;
                     break;
@@ -238,7 +366,7 @@ public class PooledVolumeContainer implements VolumeContainer {
                     if (!file.createNewFile()) {
                         throw new IOException("Create new file " + file.getName() + " error");
                     }
-                    Volume.Writer writer = Volume.createWriter(file);
+                    Volume.Writer writer = Volume.createWriter(file, fsyncPolicy, listener);
                     return writer;
                 }
             } catch (IOException e) {
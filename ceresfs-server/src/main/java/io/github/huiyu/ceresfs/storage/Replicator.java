@@ -0,0 +1,284 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.internal.InternalClient;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.internal.InternalResponse;
+import io.github.huiyu.ceresfs.metrics.Metrics;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writes and deletes images on all of their replicas, routed by
+ * {@link Topology#route(long, int)}. The node coordinating a write holds one of the replicas,
+ * it writes its own copy locally and sends the others by the internal protocol in parallel. A
+ * write succeeds once the copies required by the {@link WriteQuorum} are written, or fails once
+ * the quorum can't be reached, copies still in flight complete in background. In async mode a
+ * write succeeds once the local copy is written, the other copies are retried in background.
+ * Deletes succeed once all copies are deleted.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class Replicator implements DisposableBean {
+
+    public enum WriteQuorum {
+        ONE, MAJORITY, ALL;
+
+        /**
+         * @return copies to write out of the replicas
+         */
+        public int required(int replicas) {
+            switch (this) {
+                case ONE:
+                    return 1;
+                case MAJORITY:
+                    return replicas / 2 + 1;
+                default:
+                    return replicas;
+            }
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(Replicator.class);
+
+    private static final int ASYNC_ATTEMPTS = 5;
+    private static final long ASYNC_RETRY_DELAY_MILLS = 1000L;
+
+    private final ScheduledExecutorService retryExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Topology topology;
+    private final Facade facade;
+    private final Directory directory;
+    private final Store store;
+    private final InternalClientPool internalClientPool;
+    private final WriteQuorum quorum;
+    private final boolean async;
+
+    private final Metrics.Counter copiesWritten;
+    private final Metrics.Counter copiesFailed;
+
+    @Autowired
+    public Replicator(Configuration config,
+                      Topology topology,
+                      Facade facade,
+                      Directory directory,
+                      Store store,
+                      InternalClientPool internalClientPool,
+                      Metrics metrics) {
+        this.topology = topology;
+        this.facade = facade;
+        this.directory = directory;
+        this.store = store;
+        this.internalClientPool = internalClientPool;
+        this.quorum = config.getReplicationWriteQuorum() == null ?
+                WriteQuorum.MAJORITY : config.getReplicationWriteQuorum();
+        this.async = config.isReplicationAsync();
+        this.copiesWritten = metrics.counter("ceresfs_replica_writes_total",
+                "Copies written to other replicas", "result", "ok");
+        this.copiesFailed = metrics.counter("ceresfs_replica_writes_total",
+                "Copies written to other replicas", "result", "failed");
+    }
+
+    /**
+     * Replicas of the image, the disk routed by {@link Topology#route(long)} only if the image
+     * isn't replicated
+     */
+    public static List<Disk> route(Topology topology, long id, int replication) {
+        if (replication <= 1) {
+            return Collections.singletonList(topology.route(id));
+        }
+        return topology.route(id, replication);
+    }
+
+    /**
+     * @return the replica on this node, or null if this node holds no replica
+     */
+    public static Disk localOf(Topology topology, List<Disk> replicas) {
+        for (Disk disk : replicas) {
+            if (topology.isLocalNode(disk.getNode())) {
+                return disk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the image to its replicas, one of which is on this node and checked not holding
+     * the image by the caller.
+     *
+     * @param replicas    replicas routed by {@link #route(Topology, long, int)}
+     * @param replication number of replicas kept in the index of each copy
+     * @param data        image data, which must stay untouched until the future completes. It's
+     *                    retained for copies still written after that.
+     */
+    public CompletableFuture<Void> write(List<Disk> replicas, long id, ImageType type,
+                                         long expireTime, int replication, ByteBuf data) {
+        Ack ack = new Ack(id, async ? 1 : replicas.size(),
+                async ? 1 : quorum.required(replicas.size()));
+        List<CompletableFuture<Void>> copies = new ArrayList<>(replicas.size());
+        data.retain();
+        for (Disk disk : replicas) {
+            CompletableFuture<Void> copy;
+            boolean local = topology.isLocalNode(disk.getNode());
+            if (local) {
+                copy = store.save(disk, id, type, data.nioBuffer(), expireTime, replication)
+                        .thenAccept(index -> directory.save(disk, index));
+            } else {
+                copy = retry(() -> writeRemote(disk.getNode(), id, type, expireTime,
+                        replication, data), async ? ASYNC_ATTEMPTS : 1);
+                copy.whenComplete((v, ex) -> {
+                    if (ex == null) {
+                        copiesWritten.inc();
+                    } else {
+                        copiesFailed.inc();
+                        LOG.warn("Write image " + id + " to " + disk.getNode() + " error", ex);
+                    }
+                });
+            }
+            if (local || !async) {
+                copy.whenComplete((v, ex) -> ack.onCopy(ex));
+            }
+            copies.add(copy);
+        }
+        CompletableFuture.allOf(copies.toArray(new CompletableFuture[copies.size()]))
+                .whenComplete((v, ex) -> data.release());
+        return ack.result;
+    }
+
+    private CompletableFuture<Void> writeRemote(Node node, long id, ImageType type,
+                                                long expireTime, int replication, ByteBuf data) {
+        // copies written by an earlier attempt exist
+        return callRemote(node, client -> client.put(id, type, replication, expireTime, data),
+                status -> status == InternalProtocol.OK || status == InternalProtocol.EXISTS);
+    }
+
+    /**
+     * Delete the image from all of its replicas
+     */
+    public CompletableFuture<Void> delete(List<Disk> replicas, long id) {
+        List<CompletableFuture<Void>> copies = new ArrayList<>(replicas.size());
+        for (Disk disk : replicas) {
+            if (topology.isLocalNode(disk.getNode())) {
+                CompletableFuture<Void> copy = new CompletableFuture<>();
+                try {
+                    facade.delete(disk, id);
+                    copy.complete(null);
+                } catch (Exception e) {
+                    copy.completeExceptionally(e);
+                }
+                copies.add(copy);
+            } else {
+                copies.add(callRemote(disk.getNode(), client -> client.delete(id),
+                        status -> status == InternalProtocol.OK));
+            }
+        }
+        return CompletableFuture.allOf(copies.toArray(new CompletableFuture[copies.size()]));
+    }
+
+    private CompletableFuture<Void> callRemote(
+            Node node,
+            Function<InternalClient, CompletableFuture<InternalResponse>> call,
+            Predicate<Byte> success) {
+        if (internalClientPool == null || node.getInternalPort() <= 0) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException(
+                    node + " doesn't serve the internal protocol"));
+            return future;
+        }
+        return call.apply(internalClientPool.getOrCreate(node.getHostAddress(),
+                node.getInternalPort()))
+                .thenAccept(resp -> {
+                    if (!success.test(resp.getStatus())) {
+                        throw new IllegalStateException(node + " responded " + resp);
+                    }
+                });
+    }
+
+    private CompletableFuture<Void> retry(Supplier<CompletableFuture<Void>> call, int attempts) {
+        CompletableFuture<Void> future = call.get();
+        if (attempts <= 1) {
+            return future;
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        future.whenComplete((v, ex) -> {
+            if (ex == null) {
+                result.complete(null);
+                return;
+            }
+            try {
+                retryExecutor.schedule(() -> retry(call, attempts - 1).whenComplete((v1, ex1) -> {
+                    if (ex1 == null) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(ex1);
+                    }
+                }), ASYNC_RETRY_DELAY_MILLS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        retryExecutor.shutdownNow();
+    }
+
+    /**
+     * Acknowledgements of copies counted for a write, guarded by itself
+     */
+    private static final class Ack {
+
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private final long id;
+        private final int total;
+        private final int required;
+        private int written = 0;
+        private int failed = 0;
+
+        Ack(long id, int total, int required) {
+            this.id = id;
+            this.total = total;
+            this.required = required;
+        }
+
+        synchronized void onCopy(Throwable ex) {
+            if (ex == null) {
+                if (++written == required) {
+                    result.complete(null);
+                }
+            } else if (total - ++failed < required && !result.isDone()) {
+                result.completeExceptionally(new IllegalStateException("Image " + id
+                        + " written to " + written + " of " + total + " replicas, "
+                        + required + " required", ex));
+            }
+        }
+    }
+}
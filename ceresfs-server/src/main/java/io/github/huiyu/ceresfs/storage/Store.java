@@ -5,6 +5,8 @@ import io.github.huiyu.ceresfs.retry.RetryStrategy;
 import io.github.huiyu.ceresfs.topology.Disk;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -23,6 +25,17 @@ public interface Store {
      */
     Image get(Disk disk, ImageIndex index) throws IOException;
 
+    /**
+     * Locate image data in volume without reading it, the image header on disk is validated
+     * against the index first.
+     *
+     * @param disk  the disk image located
+     * @param index image index
+     * @return region of the image data, or null if the image is deleted
+     * @throws IOException if the image header mismatches the index
+     */
+    ImageRegion locate(Disk disk, ImageIndex index) throws IOException;
+
     /**
      * Save image permanently using default retry strategy
      *
@@ -78,6 +91,55 @@ public interface Store {
     CompletableFuture<Image> save(Disk disk, long id, ImageType type, byte[] data, long expireTime,
                                   RetryStrategy retryStrategy);
 
+    /**
+     * Save image data held in a buffer using default retry strategy. The remaining bytes of data
+     * are written as is, a direct buffer is never copied to heap, so it must stay untouched until
+     * the returned future completes.
+     *
+     * @param disk       the disk image located
+     * @param id         image id
+     * @param type       image type
+     * @param data       image data
+     * @param expireTime the image expire timestamp
+     * @return an instance of <code>CompletableFuture</code> of the saved image index
+     */
+    CompletableFuture<ImageIndex> save(Disk disk, long id, ImageType type, ByteBuffer data,
+                                       long expireTime);
+
+    /**
+     * Save image data held in a buffer as one of its replicas, see
+     * {@link #save(Disk, long, ImageType, ByteBuffer, long)}.
+     *
+     * @param replication number of replicas of the image, kept in its index
+     */
+    CompletableFuture<ImageIndex> save(Disk disk, long id, ImageType type, ByteBuffer data,
+                                       long expireTime, int replication);
+
+    /**
+     * Save images as one group in a single volume, see
+     * {@link Volume.Writer#appendAll(List, List)}. Directory is not updated.
+     *
+     * @param disk    the disk images located
+     * @param indexes indexes with id, type and expire time
+     * @param data    image data of each index, must stay untouched until the future completes
+     * @return an instance of <code>CompletableFuture</code> of the saved indexes
+     */
+    CompletableFuture<List<ImageIndex>> saveAll(Disk disk, List<ImageIndex> indexes,
+                                                List<ByteBuffer> data);
+
+    /**
+     * Stream an image into an active volume, space is reserved by
+     * {@link Volume.Writer#reserve(ImageIndex, int)} and the image is written and committed by
+     * the threads writing images. Directory is not updated.
+     *
+     * @param disk       the disk image located
+     * @param id         image id
+     * @param type       image type
+     * @param capacity   max size of image data
+     * @return the upload to write image data into
+     */
+    ImageUpload upload(Disk disk, long id, ImageType type, int capacity);
+
     /**
      * Delete image data
      *
@@ -1,94 +1,489 @@
 package io.github.huiyu.ceresfs.storage;
 
+import com.google.common.base.Throwables;
+
 import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.util.Crc32c;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class Volume {
 
+    // mapped reader maps volume in segments, since a MappedByteBuffer can't exceed 2GB
+    private static final long MAPPED_SEGMENT_SIZE = 1L << 30;
+
+    static final int HINT_LENGTH = 40;
+    // offset of the flag in a hint record
+    private static final int HINT_FLAG = 20;
+    private static final String HINT_SUFFIX = ".hint";
+
+    // version of record format in header, 0 for records written without checksum
+    static final byte RECORD_VERSION = 1;
+    private static final int FLAG_OFFSET = 16;
+    private static final int VERSION_OFFSET = 47;
+    private static final int CHECKSUM_OFFSET = 48;
+
     private Volume() {
     }
 
-    public static Reader createReader(File volume) throws FileNotFoundException {
-        return new Reader(volume);
+    public static Reader createReader(File volume) throws IOException {
+        return new Reader(volume, ReadMode.CHANNEL, false, Listener.NONE);
+    }
+
+    public static Reader createReader(File volume, ReadMode mode) throws IOException {
+        return new Reader(volume, mode, false, Listener.NONE);
+    }
+
+    /**
+     * @param verify verify checksum of images read by {@link Reader#read(long)}
+     */
+    public static Reader createReader(File volume, ReadMode mode, boolean verify)
+            throws IOException {
+        return new Reader(volume, mode, verify, Listener.NONE);
+    }
+
+    public static Reader createReader(File volume, ReadMode mode, boolean verify,
+                                      Listener listener) throws IOException {
+        return new Reader(volume, mode, verify, listener);
+    }
+
+    public static Writer createWriter(File volume) throws IOException {
+        return new Writer(volume, FsyncPolicy.BATCH, Listener.NONE);
+    }
+
+    public static Writer createWriter(File volume, FsyncPolicy fsyncPolicy) throws IOException {
+        return new Writer(volume, fsyncPolicy, Listener.NONE);
+    }
+
+    public static Writer createWriter(File volume, FsyncPolicy fsyncPolicy, Listener listener)
+            throws IOException {
+        return new Writer(volume, fsyncPolicy, listener);
+    }
+
+    /**
+     * Hint file of the volume, which holds a 40 bytes record for each image: id, offset, size,
+     * flag, type, replication, time and expire time. Traversing indexes by hints avoids reading
+     * image data.
+     */
+    public static File getHintFile(File volume) {
+        return new File(volume.getPath() + HINT_SUFFIX);
     }
 
-    public static Writer createWriter(File volume) throws FileNotFoundException {
-        return new Writer(volume);
+    /**
+     * Traverse indexes of all images in the volume. Indexes are read from the hint file, and
+     * images not covered by hints yet are read from the volume headers.
+     */
+    public static void forEachIndex(File volume, Consumer<ImageIndex> consumer) throws IOException {
+        long volumeId = Long.valueOf(volume.getName());
+        long length = volume.length();
+        long end = 0L;
+        File hint = getHintFile(volume);
+        if (hint.exists()) {
+            long records = hint.length() / HINT_LENGTH;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(hint), 64 * 1024))) {
+                byte[] record = new byte[HINT_LENGTH];
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                for (long i = 0; i < records; i++) {
+                    in.readFully(record);
+                    buffer.clear();
+                    ImageIndex index = decodeHint(buffer, volumeId);
+                    long next = index.getOffset() + ImageIndex.FIXED_LENGTH + index.getSize();
+                    if (index.getOffset() < end || index.getSize() < 0 || next > length) {
+                        // broken hint, scan the rest from volume
+                        break;
+                    }
+                    consumer.accept(index);
+                    end = next;
+                }
+            }
+        }
+        if (end + ImageIndex.FIXED_LENGTH <= length) {
+            try (Reader reader = new Reader(volume, ReadMode.CHANNEL, false, Listener.NONE)) {
+                scanHeaders(reader, volumeId, end, length, consumer);
+            }
+        }
     }
 
+    /**
+     * Read image headers one by one, skipping image data
+     *
+     * @return end position of the last valid image
+     */
+    private static long scanHeaders(Reader reader, long volumeId, long pos, long length,
+                                    Consumer<ImageIndex> consumer) throws IOException {
+        while (pos + ImageIndex.FIXED_LENGTH <= length) {
+            ImageIndex index = reader.readIndex(pos);
+            if (index == null
+                    || index.getVolume() != volumeId
+                    || index.getOffset() != pos
+                    || index.getSize() < 0
+                    || pos + ImageIndex.FIXED_LENGTH + index.getSize() > length) {
+                break;
+            }
+            consumer.accept(index);
+            pos += ImageIndex.FIXED_LENGTH + index.getSize();
+        }
+        return pos;
+    }
+
+    /**
+     * Checksum of a record, the CRC32C of image data followed by header bytes before the
+     * checksum. The flag is excluded since it's updated in place.
+     *
+     * @param crc    checksum of image data
+     * @param header buffer holding the header at start
+     */
+    private static int checksum(Crc32c crc, ByteBuffer header, int start) {
+        ByteBuffer part = header.duplicate();
+        part.limit(start + FLAG_OFFSET).position(start);
+        crc.update(part);
+        part.limit(start + CHECKSUM_OFFSET).position(start + FLAG_OFFSET + 1);
+        crc.update(part);
+        return (int) crc.getValue();
+    }
+
+    static ByteBuffer encodeHint(ImageIndex index) {
+        ByteBuffer buffer = ByteBuffer.allocate(HINT_LENGTH);
+        encodeHint(index, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void encodeHint(ImageIndex index, ByteBuffer buffer) {
+        buffer.putLong(index.getId());
+        buffer.putLong(index.getOffset());
+        buffer.putInt(index.getSize());
+        buffer.put(index.getFlag());
+        buffer.put(index.getType() == null ? 0 : index.getType().getCode());
+        buffer.put(index.getReplication());
+        buffer.put((byte) 0);
+        buffer.putLong(index.getTime());
+        buffer.putLong(index.getExpireTime());
+    }
+
+    static ImageIndex decodeHint(ByteBuffer buffer, long volumeId) {
+        ImageIndex index = new ImageIndex();
+        index.setId(buffer.getLong());
+        index.setVolume(volumeId);
+        index.setOffset(buffer.getLong());
+        index.setSize(buffer.getInt());
+        index.setFlag(buffer.get());
+        byte type = buffer.get();
+        index.setType(type == 0 ? null : ImageType.fromCode(type));
+        index.setReplication(buffer.get());
+        buffer.get();
+        index.setTime(buffer.getLong());
+        index.setExpireTime(buffer.getLong());
+        return index;
+    }
+
+    static ImageIndex decodeIndex(ByteBuffer buffer) {
+        ImageIndex index = new ImageIndex();
+        index.setId(buffer.getLong());
+        index.setVolume(buffer.getLong());
+        index.setFlag(buffer.get());
+        index.setOffset(buffer.getLong());
+        index.setSize(buffer.getInt());
+        index.setType(ImageType.fromCode(buffer.get()));
+        index.setTime(buffer.getLong());
+        index.setExpireTime(buffer.getLong());
+        index.setReplication(buffer.get());
+        return index;
+    }
+
+    /**
+     * Timings of volume operations, called by the threads doing them, so they must be cheap
+     */
+    public interface Listener {
+
+        Listener NONE = new Listener() {
+        };
+
+        /**
+         * A batch of images is written, before forced
+         */
+        default void onWrite(int images, long bytes, long nanos) {
+        }
+
+        /**
+         * Volume and hints are forced to the storage device
+         */
+        default void onForce(long nanos) {
+        }
+
+        /**
+         * An image is read by {@link Reader#read(long)}
+         */
+        default void onRead(long bytes, long nanos) {
+        }
+    }
+
+    public enum ReadMode {
+        /**
+         * Positional reads through file channel, works for both active and sealed volumes
+         */
+        CHANNEL,
+        /**
+         * Memory mapped reads, for sealed volumes only. Records beyond the mapped range are
+         * read through file channel.
+         */
+        MAPPED
+    }
+
+    public enum FsyncPolicy {
+        /**
+         * Never force, leave it to the operating system
+         */
+        NONE,
+        /**
+         * Force periodically by {@link Writer#sync()}
+         */
+        INTERVAL,
+        /**
+         * Force once per group commit batch before acknowledging it
+         */
+        BATCH
+    }
+
+    /**
+     * Volume reader. Random reads by {@link #read(long)} are positional and lock free, so any
+     * number of threads can read the same volume in parallel. The lock only guards the cursor
+     * used by {@link #seek(long)} and {@link #next()}. Images are checked against their
+     * checksums if the reader verifies, records written before checksums are never checked.
+     * <p>
+     * Reads in flight hold references of the reader, so closing it doesn't fail them, the file is
+     * closed once the last one completes. Reads started after closing fail with
+     * {@link ClosedChannelException}.
+     */
     public static final class Reader implements Closeable {
 
         private final ReentrantLock lock = new ReentrantLock();
+        // one held by the owner until closed, plus one per read in flight
+        private final AtomicInteger refs = new AtomicInteger(1);
         private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer[] segments;
         private final File volume;
+        private final boolean verify;
+        private final Listener listener;
+        private long position = 0L;
         private volatile boolean closed = false;
 
-        private Reader(File volume) throws FileNotFoundException {
+        private Reader(File volume, ReadMode mode, boolean verify, Listener listener)
+                throws IOException {
             this.volume = volume;
+            this.verify = verify;
+            this.listener = listener;
             this.raf = new RandomAccessFile(volume, "r");
+            this.channel = raf.getChannel();
+            try {
+                this.segments = mode == ReadMode.MAPPED ? map(channel) : null;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private static ByteBuffer[] map(FileChannel channel) throws IOException {
+            long size = channel.size();
+            int count = (int) ((size + MAPPED_SEGMENT_SIZE - 1) / MAPPED_SEGMENT_SIZE);
+            ByteBuffer[] segments = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * MAPPED_SEGMENT_SIZE;
+                long length = Math.min(MAPPED_SEGMENT_SIZE, size - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            return segments;
         }
 
         public void seek(long pos) throws IOException {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
-                raf.seek(pos);
+                this.position = pos;
             } finally {
                 lock.unlock();
             }
         }
 
+        /**
+         * @throws CorruptedImageException if the reader verifies and checksum mismatches
+         */
         public Image read(long pos) throws IOException {
-            final ReentrantLock lock = this.lock;
-            lock.lock();
+            final long start = System.nanoTime();
+            acquire();
             try {
-                seek(pos);
-                return next();
+                ByteBuffer head = readHeader(pos);
+                if (head == null) {
+                    return null;
+                }
+                ImageIndex index = decodeIndex(head.duplicate());
+                // read image data
+                ByteBuffer data = ByteBuffer.allocate(index.getSize());
+                if (!readFully(data, pos + ImageIndex.FIXED_LENGTH)) {
+                    return null;
+                }
+                if (verify && head.get(VERSION_OFFSET) != 0) {
+                    data.flip();
+                    Crc32c crc = new Crc32c();
+                    crc.update(data);
+                    verify(head, crc, index, pos);
+                }
+                listener.onRead(index.getSize(), System.nanoTime() - start);
+                return new Image(index, data.array());
             } finally {
-                lock.unlock();
+                release();
             }
         }
 
+        /**
+         * Read the 64 bytes image header only
+         *
+         * @param pos position of the image in volume
+         * @return image index, or null if end of volume reached
+         */
+        public ImageIndex readIndex(long pos) throws IOException {
+            acquire();
+            try {
+                ByteBuffer head = readHeader(pos);
+                return head == null ? null : decodeIndex(head);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Verify checksum of the image regardless of whether the reader verifies. Image data is
+         * read in pieces through the buffer, so memory is bounded for large images.
+         *
+         * @param pos      position of the image in volume
+         * @param buffer   buffer for reading image data
+         * @param throttle called with the number of bytes before each read
+         * @return image index, or null if end of volume reached
+         * @throws CorruptedImageException if checksum mismatches
+         */
+        public ImageIndex verify(long pos, ByteBuffer buffer, IntConsumer throttle)
+                throws IOException {
+            acquire();
+            try {
+                ByteBuffer head = readHeader(pos);
+                if (head == null) {
+                    return null;
+                }
+                ImageIndex index = decodeIndex(head.duplicate());
+                if (head.get(VERSION_OFFSET) == 0) {
+                    return index;
+                }
+                Crc32c crc = new Crc32c();
+                long position = pos + ImageIndex.FIXED_LENGTH;
+                long remaining = index.getSize();
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+                    throttle.accept(buffer.remaining());
+                    if (!readFully(buffer, position)) {
+                        return null;
+                    }
+                    buffer.flip();
+                    position += buffer.remaining();
+                    remaining -= buffer.remaining();
+                    crc.update(buffer);
+                }
+                verify(head, crc, index, pos);
+                return index;
+            } finally {
+                release();
+            }
+        }
+
+        private void verify(ByteBuffer head, Crc32c crc, ImageIndex index, long pos)
+                throws CorruptedImageException {
+            byte version = head.get(VERSION_OFFSET);
+            if (version != RECORD_VERSION) {
+                throw new CorruptedImageException(volume, pos, index.getId(),
+                        "unknown record version " + version);
+            }
+            if (checksum(crc, head, 0) != head.getInt(CHECKSUM_OFFSET)) {
+                throw new CorruptedImageException(volume, pos, index.getId(),
+                        "checksum mismatched");
+            }
+        }
+
+        private ByteBuffer readHeader(long pos) throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(ImageIndex.FIXED_LENGTH);
+            if (!readFully(head, pos)) {
+                return null;
+            }
+            head.flip();
+            return head;
+        }
+
         public Image next() throws IOException {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
-                // read index
-                byte[] head = new byte[ImageIndex.FIXED_LENGTH];
-                int bytesRead = raf.read(head);
-                if (bytesRead < ImageIndex.FIXED_LENGTH) {
-                    return null;
+                Image image = read(position);
+                if (image != null) {
+                    position += ImageIndex.FIXED_LENGTH + image.getIndex().getSize();
                 }
-                ByteBuffer buffer = ByteBuffer.wrap(head);
-                ImageIndex index = new ImageIndex();
-                index.setId(buffer.getLong());
-                index.setVolume(buffer.getLong());
-                index.setFlag(buffer.get());
-                index.setOffset(buffer.getLong());
-                index.setSize(buffer.getInt());
-                index.setType(ImageType.fromCode(buffer.get()));
-                index.setTime(buffer.getLong());
-                index.setExpireTime(buffer.getLong());
-                index.setReplication(buffer.get());
-                // read image data
-                byte[] data = new byte[index.getSize()];
-                raf.read(data);
-                Image image = new Image(index, data);
                 return image;
             } finally {
                 lock.unlock();
             }
         }
 
+        /**
+         * Fill the buffer with bytes starting at the given position.
+         *
+         * @return false if end of volume reached before the buffer is filled
+         */
+        private boolean readFully(ByteBuffer dst, long pos) throws IOException {
+            if (segments != null) {
+                int segment = (int) (pos / MAPPED_SEGMENT_SIZE);
+                int offset = (int) (pos % MAPPED_SEGMENT_SIZE);
+                if (segment < segments.length
+                        && offset + dst.remaining() <= segments[segment].capacity()) {
+                    ByteBuffer src = segments[segment].duplicate();
+                    src.position(offset).limit(offset + dst.remaining());
+                    dst.put(src);
+                    return true;
+                }
+                // across segments or beyond the mapped range, fall through
+            }
+            while (dst.hasRemaining()) {
+                int bytesRead = channel.read(dst, pos);
+                if (bytesRead < 0) {
+                    return false;
+                }
+                pos += bytesRead;
+            }
+            return true;
+        }
+
         public File getVolume() {
             return volume;
         }
@@ -97,81 +492,333 @@ public class Volume {
             return lock;
         }
 
+        public boolean isMapped() {
+            return segments != null;
+        }
+
+        public boolean isVerify() {
+            return verify;
+        }
+
         public boolean isClosed() {
             return closed;
         }
 
+        /**
+         * Hold a reference so the file stays open until {@link #release()}, for scans spanning
+         * many reads.
+         *
+         * @return false if the reader has been closed
+         */
+        public boolean retain() {
+            while (true) {
+                int current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() throws IOException {
+            if (refs.decrementAndGet() == 0) {
+                // mapped segments are released by GC
+                raf.close();
+            }
+        }
+
+        private void acquire() throws ClosedChannelException {
+            if (!retain()) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        /**
+         * Reads in flight still complete, the file is closed once they're done
+         */
         @Override
         public void close() throws IOException {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
+                if (closed) {
+                    return;
+                }
                 this.closed = true;
-                this.raf.close();
             } finally {
                 lock.unlock();
             }
+            release();
         }
     }
 
+    /**
+     * Volume writer with group commit. Concurrent {@link #append(Image)} calls are queued, and
+     * whichever thread gets the lock writes all the queued images with a single gathering write,
+     * forces the channel once according to {@link FsyncPolicy}, then completes their futures.
+     * Headers and hints of a batch are encoded into direct buffers owned by the writer, and
+     * image data is written from the caller's buffer as is, so a write allocates nothing in
+     * proportion to the image size.
+     */
     public static final class Writer implements Closeable {
 
         private static final byte[] PADDING = {
-                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
         };
 
+        // max images per batch, header and data take two buffers each
+        private static final int MAX_BATCH_SIZE = 512;
+
         private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<PendingWrite<?>> pending = new ConcurrentLinkedQueue<>();
+        // reused by every batch under the lock
+        private final ByteBuffer headerBuffer =
+                ByteBuffer.allocateDirect(MAX_BATCH_SIZE * ImageIndex.FIXED_LENGTH);
+        private final ByteBuffer hintBuffer = ByteBuffer.allocateDirect(MAX_BATCH_SIZE * HINT_LENGTH);
+        private final AtomicBoolean dirty = new AtomicBoolean(false);
         private final RandomAccessFile raf;
-        private final BufferedOutputStream out;
+        private final FileChannel channel;
+        private final RandomAccessFile hintRaf;
+        private final FileChannel hintChannel;
+        private final FsyncPolicy fsyncPolicy;
+        private final Listener listener;
         private final File volume;
         private final long volumeId;
         private volatile long size;
+        // number of hint records
+        private long hints;
         private volatile boolean closed = false;
 
-        private Writer(File volume) throws FileNotFoundException {
+        private Writer(File volume, FsyncPolicy fsyncPolicy, Listener listener)
+                throws IOException {
             this.volume = volume;
             this.volumeId = Long.valueOf(volume.getName());
-            // FIXME: combine out and raf into a single BufferedRandomAccessFile
-            this.out = new BufferedOutputStream(new FileOutputStream(volume, true));
+            this.fsyncPolicy = fsyncPolicy;
+            this.listener = listener;
             this.raf = new RandomAccessFile(volume, "rw");
+            this.channel = raf.getChannel();
+            try {
+                this.hintRaf = new RandomAccessFile(getHintFile(volume), "rw");
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            this.hintChannel = hintRaf.getChannel();
+            try {
+                // append to the end of an existing volume
+                this.size = channel.size();
+                channel.position(size);
+                recoverHints();
+            } catch (IOException e) {
+                raf.close();
+                hintRaf.close();
+                throw e;
+            }
         }
 
-        public void write(Image image) throws IOException {
+        /**
+         * Hints are written after images, append hints of images written before a crash.
+         */
+        private void recoverHints() throws IOException {
+            long records = hintChannel.size() / HINT_LENGTH;
+            long end = 0L;
+            if (records > 0) {
+                ByteBuffer last = ByteBuffer.allocate(HINT_LENGTH);
+                hintChannel.read(last, (records - 1) * HINT_LENGTH);
+                last.flip();
+                ImageIndex index = decodeHint(last, volumeId);
+                end = index.getOffset() + ImageIndex.FIXED_LENGTH + index.getSize();
+                if (end > size) {
+                    // volume is shorter than hints, rebuild all hints
+                    records = 0L;
+                    end = 0L;
+                }
+            }
+            // drop partial record
+            hintChannel.truncate(records * HINT_LENGTH);
+            hintChannel.position(records * HINT_LENGTH);
+            this.hints = records;
+
+            if (end + ImageIndex.FIXED_LENGTH <= size) {
+                List<ByteBuffer> buffers = new ArrayList<>();
+                try (Reader reader = new Reader(volume, ReadMode.CHANNEL, false, Listener.NONE)) {
+                    scanHeaders(reader, volumeId, end, size, index -> buffers.add(encodeHint(index)));
+                }
+                writeFully(hintChannel, buffers.toArray(new ByteBuffer[buffers.size()]));
+                this.hints += buffers.size();
+            }
+        }
+
+        /**
+         * Append image to the volume asynchronously. The returned future completes after the
+         * batch containing the image is written and forced, or completes exceptionally with
+         * {@link ClosedChannelException} if the writer is closed before that.
+         */
+        public CompletableFuture<Image> append(Image image) {
+            PendingWrite<Image> write = new PendingWrite<>(
+                    image.getIndex(), ByteBuffer.wrap(image.getData()), image);
+            pending.add(write);
+            commit();
+            return write.future;
+        }
+
+        /**
+         * Append image data in a buffer, which may be direct, to the volume asynchronously. The
+         * remaining bytes of data are written without copying, so the buffer must stay untouched
+         * until the returned future completes.
+         *
+         * @see #append(Image)
+         */
+        public CompletableFuture<ImageIndex> append(ImageIndex index, ByteBuffer data) {
+            PendingWrite<ImageIndex> write = new PendingWrite<>(index, data.duplicate(), index);
+            pending.add(write);
+            commit();
+            return write.future;
+        }
+
+        /**
+         * Append images as one group, which is never interleaved with other appends. The group
+         * is written by gathering writes of up to 512 images and forced once per write, so the
+         * caller can update the directory in a single pass. Checksums are computed by the
+         * calling thread before the lock is taken. If any write fails, the whole group is
+         * dropped from the volume, so retrying the group never duplicates images.
+         *
+         * @param indexes indexes with id, type and expire time
+         * @param data    image data of each index, written without copying
+         * @return future of the given indexes, completed exceptionally with
+         * {@link ClosedChannelException} if the writer is closed
+         */
+        public CompletableFuture<List<ImageIndex>> appendAll(List<ImageIndex> indexes,
+                                                             List<ByteBuffer> data) {
+            List<PendingWrite<ImageIndex>> writes = new ArrayList<>(indexes.size());
+            for (int i = 0; i < indexes.size(); i++) {
+                ImageIndex index = indexes.get(i);
+                writes.add(new PendingWrite<>(index, data.get(i).duplicate(), index));
+            }
+            CompletableFuture<List<ImageIndex>> future = new CompletableFuture<>();
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
-                ImageIndex index = image.getIndex(); // 46 bytes, padding to 64 bytes
-                byte[] data = image.getData();
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                long groupSize = size;
+                long groupHints = hints;
+                try {
+                    for (int i = 0; i < writes.size(); i += MAX_BATCH_SIZE) {
+                        writeBatch(writes.subList(i, Math.min(i + MAX_BATCH_SIZE, writes.size())));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    truncate(groupSize, groupHints, e);
+                    throw e;
+                }
+                future.complete(indexes);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                lock.unlock();
+            }
+            // images queued while the group was being written
+            commit();
+            return future;
+        }
 
-                // offset and total size
-                index.setOffset(size);
-                index.setSize(data.length);
-                index.setVolume(volumeId);
-                // set time
+        /**
+         * Reserve space for an image whose size is unknown yet but no larger than capacity, the
+         * image data is then written through the returned {@link Slot} without holding it in
+         * memory. Two deleted records are written at once, the slot and a filler behind it, so
+         * the volume stays walkable whether the slot is committed, aborted or never finished.
+         * Committing shrinks the slot to the actual size and moves the filler right behind it.
+         *
+         * @param index    image index with id, type and expire time
+         * @param capacity max size of the image data
+         * @throws ClosedChannelException if the writer is closed
+         */
+        public Slot reserve(ImageIndex index, int capacity) throws IOException {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                long offset = size;
+                index.setOffset(offset);
+                index.setSize(capacity);
                 index.setTime(System.currentTimeMillis());
-                // set volume file name
                 index.setVolume(volumeId);
+                index.setFlag(ImageIndex.FLAG_DELETED);
+                ImageIndex filler = newFiller(index, offset + ImageIndex.FIXED_LENGTH + capacity, 0);
+                long end = filler.getOffset() + ImageIndex.FIXED_LENGTH;
+                try {
+                    // the data area in between is left as a hole
+                    writeFully(channel, encodeIndex(index, null), offset);
+                    writeFully(channel, encodeIndex(filler, null), filler.getOffset());
+                    channel.position(end);
+                    writeFully(hintChannel, new ByteBuffer[]{encodeHint(index), encodeHint(filler)});
+                } catch (IOException e) {
+                    truncate(size, hints, e);
+                    throw e;
+                }
+                Slot slot = new Slot(this, index, hints, capacity);
+                size = end;
+                hints += 2;
+                return slot;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                int capacity = 64 + image.getData().length;
-                ByteBuffer buffer = ByteBuffer.allocate(capacity);
-                // put index
-                buffer.putLong(index.getId());
-                buffer.putLong(index.getVolume());
-                buffer.put(index.getFlag());
-                buffer.putLong(index.getOffset());
-                buffer.putInt(index.getSize());
-                buffer.put(index.getType().getCode());
-                buffer.putLong(index.getTime());
-                buffer.putLong(index.getExpireTime());
-                buffer.put(index.getReplication());
-                buffer.put(PADDING);
-                // put data
-                buffer.put(data);
-                out.write(buffer.array());
-                size += capacity;
+        private void commit(Slot slot) throws IOException {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                ImageIndex index = slot.index;
+                ImageIndex filler = newFiller(index,
+                        index.getOffset() + ImageIndex.FIXED_LENGTH + slot.size,
+                        slot.capacity - slot.size);
+                index.setSize(slot.size);
+                index.setTime(System.currentTimeMillis());
+                index.setFlag(ImageIndex.FLAG_NORMAL);
+                // filler first, so a crash in between leaves the old layout intact
+                writeFully(channel, encodeIndex(filler, null), filler.getOffset());
+                writeFully(channel, encodeIndex(index, slot.crc), index.getOffset());
+                writeFully(hintChannel, encodeHint(index), slot.hint * HINT_LENGTH);
+                writeFully(hintChannel, encodeHint(filler), (slot.hint + 1) * HINT_LENGTH);
+                force();
             } finally {
                 lock.unlock();
             }
+            commit();
+        }
+
+        private static ImageIndex newFiller(ImageIndex index, long offset, int size) {
+            ImageIndex filler = new ImageIndex();
+            filler.setId(0L);
+            filler.setVolume(index.getVolume());
+            filler.setFlag(ImageIndex.FLAG_DELETED);
+            filler.setOffset(offset);
+            filler.setSize(size);
+            filler.setType(index.getType());
+            filler.setTime(index.getTime());
+            filler.setExpireTime(-1L);
+            return filler;
+        }
+
+        public void write(Image image) throws IOException {
+            try {
+                append(image).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new IOException(e.getCause());
+            }
         }
 
         public void write(long id, ImageType type, byte[] data, long expireTime) throws IOException {
@@ -183,36 +830,32 @@ public class Volume {
             write(image);
         }
 
+        /**
+         * Force all written images to the storage device regardless of fsync policy.
+         */
         public void flush() throws IOException {
-            final ReentrantLock lock = this.lock;
-            lock.lock();
-            try {
-                out.flush();
-            } finally {
-                lock.unlock();
-            }
+            dirty.set(false);
+            forceNow();
         }
 
         public void writeAndFlush(Image image) throws IOException {
-            final ReentrantLock lock = this.lock;
-            lock.lock();
-            try {
-                write(image);
-                out.flush();
-            } finally {
-                lock.unlock();
-            }
+            write(image);
+            flush();
         }
 
         public void writeAndFlush(long id, ImageType type, byte[] data, long expireTime)
                 throws IOException {
-            final ReentrantLock lock = this.lock;
-            lock.lock();
-            try {
-                write(id, type, data, expireTime);
-                out.flush();
-            } finally {
-                lock.unlock();
+            write(id, type, data, expireTime);
+            flush();
+        }
+
+        /**
+         * Force written images if there are any since last sync, used by
+         * {@link FsyncPolicy#INTERVAL}.
+         */
+        public void sync() throws IOException {
+            if (dirty.getAndSet(false)) {
+                forceNow();
             }
         }
 
@@ -228,21 +871,217 @@ public class Volume {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
-                raf.seek(pos + 16);
-                raf.writeByte(flag);
+                ByteBuffer buffer = ByteBuffer.allocate(1);
+                buffer.put(flag).flip();
+                channel.write(buffer, pos + 16);
+                markHint(pos, flag);
+                force();
             } finally {
                 lock.unlock();
             }
+            commit();
         }
 
-        public ReentrantLock getLock() {
-            return lock;
+        /**
+         * Drain pending writes while the lock is free. The lock holder checks the queue again
+         * after unlocking, so an image queued while the lock is held is never left behind.
+         */
+        private void commit() {
+            final ReentrantLock lock = this.lock;
+            while (!pending.isEmpty() && lock.tryLock()) {
+                List<PendingWrite<?>> batch = new ArrayList<>();
+                Throwable error = null;
+                try {
+                    PendingWrite<?> write;
+                    while (batch.size() < MAX_BATCH_SIZE && (write = pending.poll()) != null) {
+                        batch.add(write);
+                    }
+                    if (closed) {
+                        error = new ClosedChannelException();
+                    } else {
+                        writeBatch(batch);
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    lock.unlock();
+                }
+                // complete futures out of the lock, so callbacks never block the next batch
+                for (PendingWrite<?> write : batch) {
+                    write.complete(error);
+                }
+            }
+        }
+
+        private void writeBatch(List<? extends PendingWrite<?>> batch) throws IOException {
+            final long time = System.currentTimeMillis();
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+            headerBuffer.clear();
+            hintBuffer.clear();
+            long position = size;
+            for (int i = 0; i < batch.size(); i++) {
+                PendingWrite<?> write = batch.get(i);
+                ImageIndex index = write.index; // 46 bytes, padding to 64 bytes
+                ByteBuffer data = write.data.duplicate();
+
+                // offset and total size
+                index.setOffset(position);
+                index.setSize(data.remaining());
+                // set time
+                index.setTime(time);
+                // set volume file name
+                index.setVolume(volumeId);
+
+                int start = headerBuffer.position();
+                encodeIndex(index, headerBuffer, write.crc);
+                buffers[2 * i] = slice(headerBuffer, start);
+                buffers[2 * i + 1] = data;
+                encodeHint(index, hintBuffer);
+                position += ImageIndex.FIXED_LENGTH + index.getSize();
+            }
+            hintBuffer.flip();
+
+            final long start = System.nanoTime();
+            try {
+                writeFully(channel, buffers);
+                writeFully(hintChannel, new ByteBuffer[]{hintBuffer});
+                listener.onWrite(batch.size(), position - size, System.nanoTime() - start);
+                // a failed force fails the batch too, which is then retried
+                force();
+            } catch (IOException | RuntimeException e) {
+                // drop the partially written batch, so following images keep valid offsets
+                truncate(size, hints, e);
+                throw e;
+            }
+            size = position;
+            hints += batch.size();
+        }
+
+        /**
+         * Drop everything written behind the volume size and hint count, which become the
+         * current ones. Errors of dropping are added to the cause.
+         */
+        private void truncate(long size, long hints, Throwable cause) {
+            try {
+                channel.truncate(size);
+                channel.position(size);
+                hintChannel.truncate(hints * HINT_LENGTH);
+                hintChannel.position(hints * HINT_LENGTH);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+            this.size = size;
+            this.hints = hints;
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+            long remaining = 0L;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Update flag of the hint record, hints are sorted by offset
+         */
+        private void markHint(long pos, byte flag) throws IOException {
+            ByteBuffer offset = ByteBuffer.allocate(8);
+            long low = 0L;
+            long high = hints - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                offset.clear();
+                hintChannel.read(offset, mid * HINT_LENGTH + 8);
+                offset.flip();
+                long midOffset = offset.getLong();
+                if (midOffset < pos) {
+                    low = mid + 1;
+                } else if (midOffset > pos) {
+                    high = mid - 1;
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate(1);
+                    buffer.put(flag).flip();
+                    hintChannel.write(buffer, mid * HINT_LENGTH + HINT_FLAG);
+                    return;
+                }
+            }
+        }
+
+        private void force() throws IOException {
+            switch (fsyncPolicy) {
+                case BATCH:
+                    forceNow();
+                    break;
+                case INTERVAL:
+                    dirty.set(true);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void forceNow() throws IOException {
+            final long start = System.nanoTime();
+            channel.force(false);
+            hintChannel.force(false);
+            listener.onForce(System.nanoTime() - start);
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int start) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(start).limit(buffer.position());
+            return slice;
+        }
+
+        private static ByteBuffer encodeIndex(ImageIndex index, Crc32c crc) {
+            ByteBuffer buffer = ByteBuffer.allocate(ImageIndex.FIXED_LENGTH);
+            encodeIndex(index, buffer, crc);
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Encode record header, with checksum if checksum of image data is given
+         */
+        private static void encodeIndex(ImageIndex index, ByteBuffer buffer, Crc32c crc) {
+            int start = buffer.position();
+            buffer.putLong(index.getId());
+            buffer.putLong(index.getVolume());
+            buffer.put(index.getFlag());
+            buffer.putLong(index.getOffset());
+            buffer.putInt(index.getSize());
+            buffer.put(index.getType().getCode());
+            buffer.putLong(index.getTime());
+            buffer.putLong(index.getExpireTime());
+            buffer.put(index.getReplication());
+            if (crc == null) {
+                buffer.put((byte) 0);
+                buffer.putInt(0);
+            } else {
+                buffer.put(RECORD_VERSION);
+                buffer.putInt(checksum(crc, buffer, start));
+            }
+            buffer.put(PADDING);
         }
 
         public File getVolume() {
             return volume;
         }
 
+        public FsyncPolicy getFsyncPolicy() {
+            return fsyncPolicy;
+        }
+
         public long length() {
             return size;
         }
@@ -251,16 +1090,134 @@ public class Volume {
             return closed;
         }
 
+        /**
+         * Close the writer, images queued before closing are still written, images appended
+         * since then fail with {@link ClosedChannelException}.
+         */
         @Override
         public void close() throws IOException {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
+                if (closed) {
+                    return;
+                }
+                commit();
                 this.closed = true;
-                this.out.close();
+                if (fsyncPolicy != FsyncPolicy.NONE) {
+                    this.channel.force(false);
+                    this.hintChannel.force(false);
+                }
+                this.raf.close();
+                this.hintRaf.close();
             } finally {
                 lock.unlock();
             }
+            // fail images queued while closing
+            commit();
+        }
+
+        private static final class PendingWrite<T> {
+
+            final ImageIndex index;
+            final ByteBuffer data;
+            final T result;
+            // checksum of data, computed by the appending thread out of the lock
+            final Crc32c crc = new Crc32c();
+            final CompletableFuture<T> future = new CompletableFuture<>();
+
+            PendingWrite(ImageIndex index, ByteBuffer data, T result) {
+                this.index = index;
+                this.data = data;
+                this.result = result;
+                crc.update(data.duplicate());
+            }
+
+            void complete(Throwable error) {
+                if (error == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Space reserved by {@link Writer#reserve(ImageIndex, int)}. Image data is appended by
+     * {@link #write(ByteBuffer)} with positional writes, and becomes visible after
+     * {@link #commit()}. An aborted slot stays in the volume as a deleted image. Slots are not
+     * thread safe.
+     */
+    public static final class Slot {
+
+        private final Writer writer;
+        private final ImageIndex index;
+        // position of the slot in hint file, the filler hint follows
+        private final long hint;
+        private final int capacity;
+        private final Crc32c crc = new Crc32c();
+        private int size;
+        private boolean done;
+
+        private Slot(Writer writer, ImageIndex index, long hint, int capacity) {
+            this.writer = writer;
+            this.index = index;
+            this.hint = hint;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Append bytes of image data
+         *
+         * @throws IOException if capacity exceeded, or the writer is closed
+         */
+        public void write(ByteBuffer src) throws IOException {
+            if (done) {
+                throw new IllegalStateException("Slot is committed or aborted");
+            }
+            if (src.remaining() > capacity - size) {
+                throw new IOException("Image exceeds reserved " + capacity + " bytes");
+            }
+            long position = index.getOffset() + ImageIndex.FIXED_LENGTH + size;
+            int length = src.remaining();
+            crc.update(src.duplicate());
+            Writer.writeFully(writer.channel, src, position);
+            size += length;
+        }
+
+        /**
+         * Make the image visible in volume, it's forced according to {@link FsyncPolicy}.
+         *
+         * @return index of the image
+         */
+        public ImageIndex commit() throws IOException {
+            if (done) {
+                throw new IllegalStateException("Slot is committed or aborted");
+            }
+            done = true;
+            writer.commit(this);
+            return index;
+        }
+
+        public void abort() {
+            done = true;
+        }
+
+        public ImageIndex getIndex() {
+            return index;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public Writer getWriter() {
+            return writer;
         }
     }
 }
@@ -16,6 +16,11 @@ public interface VolumeContainer {
 
     Volume.Reader getReader(File volume);
 
+    /**
+     * @return true if the volume is still being appended by an active writer
+     */
+    boolean isActive(File volume);
+
     List<File> getAllVolumes(String disk);
 
     void closeVolume(File volume);
@@ -0,0 +1,140 @@
+package io.github.huiyu.ceresfs.storage;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background scrubber, which verifies checksums of all images in sealed volumes of the local
+ * node. Reading is throttled to the configured bytes per second, so scrubbing doesn't compete
+ * with serving. Corrupted images are only reported, repairing is left to replicas.
+ *
+ * @author Yu Hui
+ */
+@Component
+public class VolumeScrubber implements InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VolumeScrubber.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+
+    private final Configuration config;
+    private final Topology topology;
+    private final VolumeContainer volumeContainer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong corrupted = new AtomicLong();
+
+    @Autowired
+    public VolumeScrubber(Configuration config, Topology topology, VolumeContainer volumeContainer) {
+        this.config = config;
+        this.topology = topology;
+        this.volumeContainer = volumeContainer;
+    }
+
+    public void scrub() {
+        lock.lock();
+        try {
+            RateLimiter limiter = RateLimiter.create(config.getVolumeScrubRate());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (Disk disk : topology.getLocalNode().getDisks()) {
+                List<File> volumes = volumeContainer.getAllVolumes(disk.getPath());
+                if (volumes == null) {
+                    continue;
+                }
+                for (File volume : volumes) {
+                    // active volumes are still growing
+                    if (volumeContainer.isActive(volume)) {
+                        continue;
+                    }
+                    try {
+                        scrub(volume, buffer, limiter);
+                    } catch (IOException | UncheckedIOException e) {
+                        LOG.error("Scrub " + volume + " error", e);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Verify all images in the volume, indexes are taken from hints
+     *
+     * @return number of corrupted images
+     */
+    protected int scrub(File volume, ByteBuffer buffer, RateLimiter limiter) throws IOException {
+        LOG.info("Scrubbing {}", volume);
+        int[] count = {0};
+        try (Volume.Reader reader = Volume.createReader(volume)) {
+            Volume.forEachIndex(volume, index -> {
+                if (index.getFlag() == ImageIndex.FLAG_DELETED) {
+                    return;
+                }
+                try {
+                    if (reader.verify(index.getOffset(), buffer, limiter::acquire) == null) {
+                        throw new CorruptedImageException(volume, index.getOffset(),
+                                index.getId(), "volume truncated");
+                    }
+                } catch (CorruptedImageException e) {
+                    LOG.error(e.getMessage());
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        corrupted.addAndGet(count[0]);
+        return count[0];
+    }
+
+    /**
+     * @return number of corrupted images found since started
+     */
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    public boolean isRunning() {
+        return lock.isLocked();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (config.getVolumeScrubRate() <= 0) {
+            LOG.info("Volume scrubbing disabled");
+            return;
+        }
+        executor.scheduleWithFixedDelay(this::scrub,
+                config.getVolumeScrubPeriod(),
+                config.getVolumeScrubPeriod(),
+                config.getVolumeScrubPeriodTimeUnit());
+    }
+}
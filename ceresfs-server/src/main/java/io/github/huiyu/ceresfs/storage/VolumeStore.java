@@ -3,23 +3,33 @@ package io.github.huiyu.ceresfs.storage;
 import io.github.huiyu.ceresfs.ImageType;
 import io.github.huiyu.ceresfs.retry.OneTimeRetryStrategy;
 import io.github.huiyu.ceresfs.retry.RetryStrategy;
-import io.github.huiyu.ceresfs.retry.RetrySupplier;
 import io.github.huiyu.ceresfs.topology.Disk;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 @Component
 public class VolumeStore implements Store, DisposableBean {
 
+    private static final Logger LOG = LoggerFactory.getLogger(VolumeStore.class);
+
+    private static final int MAX_RESERVE_ATTEMPTS = 3;
+
     private final VolumeContainer container;
     private final ExecutorService executor;
 
@@ -32,7 +42,47 @@ public class VolumeStore implements Store, DisposableBean {
     @Override
     public Image get(Disk disk, ImageIndex index) throws IOException {
         File volume = new File(disk.getPath(), String.valueOf(index.getVolume()));
-        return container.getReader(volume).read(index.getOffset());
+        while (true) {
+            Volume.Reader reader = container.getReader(volume);
+            try {
+                return reader.read(index.getOffset());
+            } catch (ClosedChannelException e) {
+                // pooled readers may be swapped once looked up, e.g. as the volume gets sealed
+                if (!reader.isClosed()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ImageRegion locate(Disk disk, ImageIndex index) throws IOException {
+        File volume = new File(disk.getPath(), String.valueOf(index.getVolume()));
+        ImageIndex head;
+        while (true) {
+            Volume.Reader reader = container.getReader(volume);
+            if (reader == null) {
+                throw new FileNotFoundException(volume.getPath());
+            }
+            try {
+                head = reader.readIndex(index.getOffset());
+                break;
+            } catch (ClosedChannelException e) {
+                if (!reader.isClosed()) {
+                    throw e;
+                }
+            }
+        }
+        if (head == null
+                || head.getId() != index.getId()
+                || head.getOffset() != index.getOffset()
+                || head.getSize() != index.getSize()) {
+            throw new IOException("Image header mismatched, expect " + index + " but was " + head);
+        }
+        if (head.getFlag() == ImageIndex.FLAG_DELETED) {
+            return null;
+        }
+        return new ImageRegion(head, volume);
     }
 
     @Override
@@ -55,21 +105,101 @@ public class VolumeStore implements Store, DisposableBean {
     @Override
     public CompletableFuture<Image> save(Disk disk, long id, ImageType type, byte[] data,
                                          long expireTime, RetryStrategy retryStrategy) {
-        return CompletableFuture.supplyAsync(
-                new RetrySupplier<>(() -> {
-                    try {
-                        ImageIndex index = new ImageIndex();
-                        index.setId(id);
-                        index.setType(type);
-                        index.setExpireTime(expireTime);
-                        Image image = new Image(index, data);
-                        container.getActiveWriter(disk.getPath()).write(image);
-                        return image;
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
-                }, retryStrategy)
-                , executor);
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setType(type);
+        index.setExpireTime(expireTime);
+        Image image = new Image(index, data);
+
+        CompletableFuture<Image> future = new CompletableFuture<>();
+        executor.execute(() -> append("image " + id, writer -> writer.append(image),
+                disk, retryStrategy, future));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<ImageIndex> save(Disk disk, long id, ImageType type, ByteBuffer data,
+                                              long expireTime) {
+        return save(disk, id, type, data, expireTime, 1);
+    }
+
+    @Override
+    public CompletableFuture<ImageIndex> save(Disk disk, long id, ImageType type, ByteBuffer data,
+                                              long expireTime, int replication) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setType(type);
+        index.setExpireTime(expireTime);
+        index.setReplication((byte) replication);
+        ByteBuffer buffer = data.duplicate();
+
+        CompletableFuture<ImageIndex> future = new CompletableFuture<>();
+        RetryStrategy retryStrategy = new OneTimeRetryStrategy(1000L);
+        executor.execute(() -> append("image " + id, writer -> writer.append(index, buffer),
+                disk, retryStrategy, future));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<List<ImageIndex>> saveAll(Disk disk, List<ImageIndex> indexes,
+                                                       List<ByteBuffer> data) {
+        List<ByteBuffer> buffers = new ArrayList<>(data.size());
+        for (ByteBuffer buffer : data) {
+            buffers.add(buffer.duplicate());
+        }
+
+        CompletableFuture<List<ImageIndex>> future = new CompletableFuture<>();
+        RetryStrategy retryStrategy = new OneTimeRetryStrategy(1000L);
+        executor.execute(() -> append(indexes.size() + " images",
+                writer -> writer.appendAll(indexes, buffers), disk, retryStrategy, future));
+        return future;
+    }
+
+    private <T> void append(String target, Function<Volume.Writer, CompletableFuture<T>> appender,
+                            Disk disk, RetryStrategy retryStrategy, CompletableFuture<T> future) {
+        CompletableFuture<T> appended;
+        try {
+            appended = appender.apply(container.getActiveWriter(disk.getPath()));
+        } catch (Exception e) {
+            appended = new CompletableFuture<>();
+            appended.completeExceptionally(e);
+        }
+        appended.whenCompleteAsync((i, e) -> {
+            if (e == null) {
+                future.complete(i);
+            } else if (e instanceof ClosedChannelException) {
+                // active writer rotated, select another one
+                append(target, appender, disk, retryStrategy, future);
+            } else if (retryStrategy.allowRetry()) {
+                LOG.error("Save " + target + " error, retrying", e);
+                append(target, appender, disk, retryStrategy, future);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public ImageUpload upload(Disk disk, long id, ImageType type, int capacity) {
+        return new ImageUpload(() -> reserve(disk, id, type, capacity), executor);
+    }
+
+    private Volume.Slot reserve(Disk disk, long id, ImageType type, int capacity)
+            throws IOException {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setType(type);
+        index.setExpireTime(-1L);
+        for (int i = 0; ; i++) {
+            try {
+                return container.getActiveWriter(disk.getPath()).reserve(index, capacity);
+            } catch (ClosedChannelException e) {
+                // active writer rotated, select another one
+                if (i >= MAX_RESERVE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
     }
 
     @Override
@@ -1,12 +1,13 @@
 package io.github.huiyu.ceresfs.topology;
 
-import com.google.common.primitives.Longs;
-
 import io.github.huiyu.ceresfs.config.Configuration;
 import io.github.huiyu.ceresfs.http.HttpClientPool;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.metrics.Metrics;
 import io.github.huiyu.ceresfs.storage.Balancer;
 import io.github.huiyu.ceresfs.storage.DelayedBalancer;
 import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.MigrationTable;
 import io.github.huiyu.ceresfs.storage.Store;
 import io.github.huiyu.ceresfs.util.Codec;
 import io.github.huiyu.ceresfs.util.NetUtil;
@@ -21,6 +22,7 @@ import org.springframework.beans.BeanInstantiationException;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
@@ -33,6 +35,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Component
+@DependsOn("directoryRebuilder")
 public class DistributedTopology implements Topology, InitializingBean, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(DistributedTopology.class);
@@ -58,11 +61,15 @@ public class DistributedTopology implements Topology, InitializingBean, Disposab
     @Autowired
     public DistributedTopology(Configuration config,
                                HttpClientPool httpClientPool,
+                               InternalClientPool internalClientPool,
                                Directory directory,
-                               Store store
+                               Store store,
+                               MigrationTable migrationTable,
+                               Metrics metrics
     ) {
         this.config = config;
-        this.balancer = new DelayedBalancer(this, httpClientPool, directory, store);
+        this.balancer = new DelayedBalancer(this, httpClientPool, internalClientPool, directory,
+                store, migrationTable, metrics);
     }
 
     @Override
@@ -92,20 +99,31 @@ public class DistributedTopology implements Topology, InitializingBean, Disposab
 
     @Override
     public Disk route(long id) {
-        return router.route(Longs.toByteArray(id));
+        return router.route(id);
+    }
+
+    @Override
+    public List<Disk> route(long id, int replication) {
+        return router.route(id, replication);
     }
 
     public void startBalancer() {
         if (balancer.isRunning()) {
             stopBalancer();
         }
+        // images are moving away, other nodes should look for them here until balanced
+        if (localNode.isBalanced()) {
+            try {
+                publishBalanced(false);
+            } catch (Exception e) {
+                LOG.error("Publish unbalanced error ", e);
+            }
+        }
         balancer.start(config.getBalanceDelay(), config.getBalanceDelayTimeUnit())
                 .whenComplete((v, ex) -> {
                     if (ex == null) {
-                        Node node = this.localNode;
-                        node.setBalanced(true);
                         try {
-                            register.setData(Codec.encode(node));
+                            publishBalanced(true);
                         } catch (Exception e) {
                             // FIXME
                             ex = e;
@@ -117,6 +135,12 @@ public class DistributedTopology implements Topology, InitializingBean, Disposab
                 });
     }
 
+    private void publishBalanced(boolean balanced) throws Exception {
+        Node node = this.localNode;
+        node.setBalanced(balanced);
+        register.setData(Codec.encode(node));
+    }
+
     public void stopBalancer() {
         balancer.cancel();
     }
@@ -234,6 +258,7 @@ public class DistributedTopology implements Topology, InitializingBean, Disposab
         node.setBalanced(false);
         node.setId(config.getId());
         node.setPort(config.getPort());
+        node.setInternalPort(config.getInternalPort());
         InetAddress localHost = NetUtil.getLocalAddressFromZookeeper(config.getZookeeperClient());
         node.setHostAddress(localHost.getHostAddress());
         node.setHostName(localHost.getHostName());
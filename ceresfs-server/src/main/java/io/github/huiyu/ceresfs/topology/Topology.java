@@ -15,4 +15,10 @@ public interface Topology {
     Disk route(byte[] id);
 
     Disk route(long id);
+
+    /**
+     * Disks of distinct nodes holding replicas of the image, the first one is routed by
+     * {@link #route(long)}. Fewer disks are returned if there aren't enough nodes.
+     */
+    List<Disk> route(long id, int replication);
 }
@@ -0,0 +1,134 @@
+package io.github.huiyu.ceresfs.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum. On Java 9 or later it delegates to java.util.zip.CRC32C, which is
+ * compiled to the CRC32 instructions of SSE 4.2 or ARMv8, otherwise a table driven
+ * implementation is used.
+ *
+ * @author Yu Hui
+ */
+public final class Crc32c implements Checksum {
+
+    // reversed Castagnoli polynomial
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+
+    private static final MethodHandle CONSTRUCTOR;
+    private static final MethodHandle UPDATE_BUFFER;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(Checksum.class, "update",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            // java 8
+            constructor = null;
+            update = null;
+        }
+        CONSTRUCTOR = constructor;
+        UPDATE_BUFFER = update;
+    }
+
+    private final Checksum intrinsic;
+    private int crc = 0xFFFFFFFF;
+
+    public Crc32c() {
+        Checksum checksum = null;
+        if (CONSTRUCTOR != null) {
+            try {
+                checksum = (Checksum) CONSTRUCTOR.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.intrinsic = checksum;
+    }
+
+    /**
+     * @return true if hardware accelerated java.util.zip.CRC32C is used
+     */
+    public static boolean isIntrinsic() {
+        return CONSTRUCTOR != null;
+    }
+
+    @Override
+    public void update(int b) {
+        if (intrinsic != null) {
+            intrinsic.update(b);
+        } else {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (intrinsic != null) {
+            intrinsic.update(b, off, len);
+            return;
+        }
+        int c = crc;
+        for (int i = off; i < off + len; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+        }
+        crc = c;
+    }
+
+    /**
+     * Update with the remaining bytes of the buffer, the position is moved to limit.
+     */
+    public void update(ByteBuffer buffer) {
+        if (intrinsic != null) {
+            try {
+                UPDATE_BUFFER.invokeExact(intrinsic, buffer);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        } else if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            int c = crc;
+            while (buffer.hasRemaining()) {
+                c = (c >>> 8) ^ TABLE[(c ^ buffer.get()) & 0xff];
+            }
+            crc = c;
+        }
+    }
+
+    @Override
+    public long getValue() {
+        if (intrinsic != null) {
+            return intrinsic.getValue();
+        }
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        if (intrinsic != null) {
+            intrinsic.reset();
+        } else {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.huiyu.ceresfs.cache;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EhCacheTest {
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        EhCache cache = new EhCache(1024L * 1024L, 4L * 1024L * 1024L);
+        try {
+            assertNull(cache.get(1L));
+            cache.put(createImage(1L, 1024));
+
+            Image image = cache.get(1L);
+            assertNotNull(image);
+            assertEquals(1L, image.getIndex().getId());
+            assertEquals(ImageType.JPG, image.getIndex().getType());
+            assertArrayEquals(createImage(1L, 1024).getData(), image.getData());
+
+            cache.evict(1L);
+            assertNull(cache.get(1L));
+
+            CacheStats stats = cache.getStats();
+            assertEquals(1L, stats.getHitCount());
+            assertEquals(2L, stats.getMissCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        EhCache cache = new EhCache(1024L * 1024L, 2L * 1024L * 1024L);
+        try {
+            // 8MB of images never fit in 3MB
+            for (long id = 0; id < 128; id++) {
+                cache.put(createImage(id, 64 * 1024));
+            }
+            int cached = 0;
+            for (long id = 0; id < 128; id++) {
+                Image image = cache.get(id);
+                if (image != null) {
+                    assertEquals(64 * 1024, image.getData().length);
+                    cached++;
+                }
+            }
+            assertTrue(cached > 0);
+            assertTrue(cached < 48);
+            assertEquals(128L, cache.getStats().getRequestCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    private Image createImage(long id, int size) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setType(ImageType.JPG);
+        index.setSize(size);
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) id);
+        return new Image(index, data);
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.huiyu.ceresfs.cache;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TinyLfuCacheTest {
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        TinyLfuCache cache = new TinyLfuCache(1024L * 1024L);
+        assertNull(cache.get(1L));
+        cache.put(createImage(1L, 1024));
+
+        Image image = cache.get(1L);
+        assertNotNull(image);
+        assertEquals(1L, image.getIndex().getId());
+        assertArrayEquals(createImage(1L, 1024).getData(), image.getData());
+        // hit again from protected segment
+        assertNotNull(cache.get(1L));
+
+        cache.evict(1L);
+        assertNull(cache.get(1L));
+        assertEquals(0L, cache.weightedSize());
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2L, stats.getHitCount());
+        assertEquals(2L, stats.getMissCount());
+    }
+
+    @Test
+    public void testMissCountedOnce() throws Exception {
+        TinyLfuCache cache = new TinyLfuCache(1024L * 1024L);
+        assertNull(cache.get(1L));
+        cache.put(createImage(1L, 1024));
+        assertEquals(1, cache.frequency(1L));
+
+        assertNotNull(cache.get(1L));
+        assertEquals(2, cache.frequency(1L));
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        long maxBytes = 1024L * 1024L;
+        TinyLfuCache cache = new TinyLfuCache(maxBytes);
+        for (long id = 0; id < 128; id++) {
+            cache.put(createImage(id, 64 * 1024));
+            assertTrue(cache.weightedSize() <= maxBytes);
+        }
+        // larger than probation segment
+        cache.put(createImage(1000L, 512 * 1024));
+        assertNull(cache.get(1000L));
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        TinyLfuCache cache = new TinyLfuCache(1024L * 1024L);
+        // hot set takes half of the cache
+        for (long id = 0; id < 32; id++) {
+            if (cache.get(id) == null) {
+                cache.put(createImage(id, 16 * 1024));
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            for (long id = 0; id < 32; id++) {
+                assertNotNull(cache.get(id));
+            }
+        }
+
+        // one-hit images, 8 times the cache size
+        for (long id = 10000; id < 10512; id++) {
+            if (cache.get(id) == null) {
+                cache.put(createImage(id, 16 * 1024));
+            }
+        }
+
+        for (long id = 0; id < 32; id++) {
+            assertNotNull(cache.get(id));
+        }
+        assertTrue(cache.getStats().getHitRatio() > 0.2);
+    }
+
+    private Image createImage(long id, int size) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setType(ImageType.JPG);
+        index.setSize(size);
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) id);
+        return new Image(index, data);
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AbstractAsyncHttpResponderTest {
+
+    private EventLoopGroup group;
+    private List<Node> nodes;
+    private List<CompletableFuture<FullHttpResponse>> calls;
+    private List<HttpClient> clients;
+    private AbstractAsyncHttpResponder responder;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new DefaultEventLoopGroup(1);
+        responder = new AbstractAsyncHttpResponder() {
+            @Override
+            protected CompletableFuture<FullHttpResponse> getResponse(FullHttpRequest req) {
+                return broadcast(nodes, req);
+            }
+
+            @Override
+            public String[] paths() {
+                return new String[]{"/"};
+            }
+        };
+        responder.httpClientPool = mock(HttpClientPool.class);
+        when(responder.httpClientPool.getWorkerGroup()).thenReturn(group);
+
+        nodes = new ArrayList<>();
+        calls = new ArrayList<>();
+        clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Node node = new Node();
+            node.setId((short) i);
+            node.setHostAddress("10.0.0." + i);
+            node.setPort(9900);
+            nodes.add(node);
+            CompletableFuture<FullHttpResponse> call = new CompletableFuture<>();
+            calls.add(call);
+            HttpClient client = mock(HttpClient.class);
+            when(client.newCall(any(HttpRequest.class))).then(invocation -> {
+                // released once sent like the real client
+                ReferenceCountUtil.release(invocation.getArguments()[0]);
+                return call;
+            });
+            clients.add(client);
+            when(responder.httpClientPool.getOrCreate("10.0.0." + i, 9900)).thenReturn(client);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testFirstSuccess() throws Exception {
+        FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        CompletableFuture<FullHttpResponse> result = responder.getResponse(req);
+        for (HttpClient client : clients) {
+            verify(client).newCall(any(HttpRequest.class));
+        }
+
+        FullHttpResponse notFound = HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND);
+        calls.get(1).complete(notFound);
+        assertFalse(result.isDone());
+        FullHttpResponse ok = HttpUtil.newResponse(HttpResponseStatus.OK);
+        calls.get(2).complete(ok);
+
+        assertSame(ok, result.get(1, TimeUnit.SECONDS));
+        assertTrue(calls.get(0).isCancelled());
+        assertEquals(0, notFound.refCnt());
+        assertEquals(1, req.refCnt());
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        CompletableFuture<FullHttpResponse> result = responder.getResponse(req);
+        calls.get(0).complete(HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND));
+        calls.get(1).completeExceptionally(new RuntimeException());
+        assertFalse(result.isDone());
+        calls.get(2).complete(HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND));
+
+        assertEquals(HttpResponseStatus.NOT_FOUND, result.get(1, TimeUnit.SECONDS).status());
+        assertEquals(1, req.refCnt());
+    }
+
+    @Test
+    public void testHedge() throws Exception {
+        responder.config = mock(Configuration.class);
+        when(responder.config.getBroadcastHedgeDelay()).thenReturn(200L);
+
+        FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        CompletableFuture<FullHttpResponse> result = responder.getResponse(req);
+        verify(clients.get(0)).newCall(any(HttpRequest.class));
+        verify(clients.get(1), never()).newCall(any(HttpRequest.class));
+
+        // the second node is asked once the first is late
+        verify(clients.get(1), timeout(1000)).newCall(any(HttpRequest.class));
+        FullHttpResponse ok = HttpUtil.newResponse(HttpResponseStatus.OK);
+        calls.get(1).complete(ok);
+        assertSame(ok, result.get(1, TimeUnit.SECONDS));
+        assertTrue(calls.get(0).isCancelled());
+
+        // no more nodes are asked after success
+        Thread.sleep(500);
+        verify(clients.get(2), never()).newCall(any(HttpRequest.class));
+    }
+
+    @Test
+    public void testHedgeOnFailure() throws Exception {
+        responder.config = mock(Configuration.class);
+        when(responder.config.getBroadcastHedgeDelay()).thenReturn(10000L);
+
+        FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        CompletableFuture<FullHttpResponse> result = responder.getResponse(req);
+        // the next node is asked right away once all asked have failed
+        calls.get(0).complete(HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND));
+        verify(clients.get(1)).newCall(any(HttpRequest.class));
+        calls.get(1).completeExceptionally(new RuntimeException());
+        verify(clients.get(2)).newCall(any(HttpRequest.class));
+        calls.get(2).complete(HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND));
+
+        assertEquals(HttpResponseStatus.NOT_FOUND, result.get(1, TimeUnit.SECONDS).status());
+    }
+}
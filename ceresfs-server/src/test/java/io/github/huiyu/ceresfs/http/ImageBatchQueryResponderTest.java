@@ -0,0 +1,149 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.cache.Cache;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.Facade;
+import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ImageBatchQueryResponderTest {
+
+    private Node localNode;
+    private Node remoteNode;
+    private Cache cache;
+    private HttpClient client;
+    private ImageBatchQueryResponder responder;
+
+    @Before
+    public void setUp() throws Exception {
+        localNode = new Node();
+        localNode.setId((short) 1);
+        Disk localDisk = new Disk((short) 0, "/tmp", 1.0);
+        localDisk.setNode(localNode);
+        remoteNode = new Node();
+        remoteNode.setId((short) 2);
+        Disk remoteDisk = new Disk((short) 0, "/tmp", 1.0);
+        remoteDisk.setNode(remoteNode);
+
+        Topology topology = mock(Topology.class);
+        when(topology.getLocalNode()).thenReturn(localNode);
+        when(topology.isLocalNode(localNode)).thenReturn(true);
+        when(topology.route(anyLong())).thenReturn(localDisk);
+        when(topology.route(3L)).thenReturn(remoteDisk);
+
+        cache = mock(Cache.class);
+        Configuration config = mock(Configuration.class);
+        when(config.getImageZeroCopyThreshold()).thenReturn(-1);
+        Facade facade = new Facade(config, topology, cache, mock(Directory.class),
+                mock(Store.class));
+
+        client = mock(HttpClient.class);
+        responder = new ImageBatchQueryResponder(topology, facade);
+        responder.httpClientPool = mock(HttpClientPool.class);
+        when(responder.httpClientPool.getOrCreate(any(), anyInt())).thenReturn(client);
+    }
+
+    @Test
+    public void testBatchRead() throws Exception {
+        ImageIndex index = new ImageIndex();
+        index.setId(1L);
+        index.setType(ImageType.PNG);
+        index.setExpireTime(1000L);
+        when(cache.get(1L)).thenReturn(new Image(index, new byte[]{1, 2, 3}));
+        ByteBuf remote = ImageBatch.encode(3L, ImageType.JPG, -1L, new byte[]{4});
+        when(client.newCall(any())).thenReturn(CompletableFuture.completedFuture(
+                HttpUtil.newResponse(HttpResponseStatus.OK, ImageBatch.MIME_TYPE,
+                        Unpooled.copiedBuffer(remote).array())));
+
+        FullHttpResponse resp = respond("/images?id=1&id=2&id=3&id=1");
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        assertEquals(ImageBatch.MIME_TYPE, resp.headers().get("Content-Type"));
+        ByteBuf body = resp.content();
+        Map<Long, ImageBatch.Entry> entries = new HashMap<>();
+        for (ImageBatch.Entry entry : ImageBatch.decode(body)) {
+            assertNull(entries.put(entry.getId(), entry));
+        }
+        assertEquals(3, entries.size());
+        assertEquals(ImageBatch.FOUND, entries.get(1L).getStatus());
+        assertEquals(ImageType.PNG, entries.get(1L).getType());
+        assertEquals(1000L, entries.get(1L).getExpireTime());
+        assertArrayEquals(new byte[]{1, 2, 3}, entries.get(1L).getData());
+        assertEquals(ImageBatch.NOT_FOUND, entries.get(2L).getStatus());
+        assertEquals(ImageBatch.FOUND, entries.get(3L).getStatus());
+        assertArrayEquals(new byte[]{4}, entries.get(3L).getData());
+        resp.release();
+
+        // one sub request for the remote node
+        ArgumentCaptor<HttpRequest> sub = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).newCall(sub.capture());
+        assertEquals("/images?id=3", sub.getValue().uri());
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        ImageIndex index = new ImageIndex();
+        index.setId(1L);
+        index.setType(ImageType.PNG);
+        index.setSize(ImageBatch.MAX_READ_BYTES);
+        when(cache.get(1L)).thenReturn(new Image(index, new byte[]{1, 2, 3}));
+        ByteBuf remote = ImageBatch.encode(3L, ImageType.JPG, -1L, new byte[]{4});
+        when(client.newCall(any())).thenReturn(CompletableFuture.completedFuture(
+                HttpUtil.newResponse(HttpResponseStatus.OK, ImageBatch.MIME_TYPE,
+                        Unpooled.copiedBuffer(remote).array())));
+
+        // the remote image is charged first, the local one doesn't fit any more
+        FullHttpResponse resp = respond("/images?id=1&id=3");
+        List<ImageBatch.Entry> entries = ImageBatch.decode(resp.content());
+        assertEquals(2, entries.size());
+        assertEquals(3L, entries.get(0).getId());
+        assertEquals(ImageBatch.FOUND, entries.get(0).getStatus());
+        assertArrayEquals(new byte[]{4}, entries.get(0).getData());
+        assertEquals(1L, entries.get(1).getId());
+        assertEquals(ImageBatch.TOO_LARGE, entries.get(1).getStatus());
+        assertEquals(0, entries.get(1).getData().length);
+        resp.release();
+    }
+
+    @Test
+    public void testBadRequest() throws Exception {
+        StringBuilder uri = new StringBuilder("/images?id=0");
+        for (int i = 1; i <= ImageBatch.MAX_SIZE; i++) {
+            uri.append("&id=").append(i);
+        }
+        assertEquals(HttpResponseStatus.BAD_REQUEST, respond(uri.toString()).status());
+        assertEquals(HttpResponseStatus.BAD_REQUEST, respond("/images?id=a").status());
+        assertEquals(HttpResponseStatus.BAD_REQUEST, respond("/images").status());
+    }
+
+    private FullHttpResponse respond(String uri) throws Exception {
+        FullHttpRequest req = HttpUtil.newRequest(HttpMethod.GET, uri);
+        return responder.getResponse(req).get();
+    }
+}
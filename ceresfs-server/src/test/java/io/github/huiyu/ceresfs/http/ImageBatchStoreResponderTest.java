@@ -0,0 +1,171 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ImageBatchStoreResponderTest {
+
+    private Disk localDisk;
+    private Directory directory;
+    private Store store;
+    private HttpClient client;
+    private ImageBatchStoreResponder responder;
+
+    @Before
+    public void setUp() throws Exception {
+        Node localNode = new Node();
+        localNode.setId((short) 1);
+        localDisk = new Disk((short) 0, "/tmp", 1.0);
+        localDisk.setNode(localNode);
+        Node remoteNode = new Node();
+        remoteNode.setId((short) 2);
+        Disk remoteDisk = new Disk((short) 0, "/tmp", 1.0);
+        remoteDisk.setNode(remoteNode);
+
+        Topology topology = mock(Topology.class);
+        when(topology.isLocalNode(localNode)).thenReturn(true);
+        when(topology.route(anyLong())).thenReturn(localDisk);
+        when(topology.route(3L)).thenReturn(remoteDisk);
+
+        directory = mock(Directory.class);
+        when(directory.contains(localDisk, 2L)).thenReturn(true);
+        store = mock(Store.class);
+        when(store.saveAll(eq(localDisk), any(), any())).then(invocation ->
+                CompletableFuture.completedFuture(invocation.getArguments()[1]));
+        ImageStoreResponder storeResponder = mock(ImageStoreResponder.class);
+        when(storeResponder.nextId()).thenReturn(10L, 11L);
+
+        client = mock(HttpClient.class);
+        responder = new ImageBatchStoreResponder(topology, directory, store, storeResponder);
+        responder.httpClientPool = mock(HttpClientPool.class);
+        when(responder.httpClientPool.getOrCreate(any(), anyInt())).thenReturn(client);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchUpload() throws Exception {
+        ByteBuf remote = ImageBatch.encode(3L, ImageBatch.SAVED);
+        when(client.newCall(any())).thenReturn(CompletableFuture.completedFuture(
+                HttpUtil.newResponse(HttpResponseStatus.OK, ImageBatch.MIME_TYPE,
+                        Unpooled.copiedBuffer(remote).array())));
+
+        FullHttpRequest req = HttpUtil.newImageBatchUploadRequest(
+                Arrays.asList(1L, 2L, 3L),
+                Arrays.asList(ImageType.PNG, ImageType.JPG, ImageType.GIF),
+                Arrays.asList(100L, -1L, -1L),
+                1,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1}),
+                        Unpooled.wrappedBuffer(new byte[]{2, 2}),
+                        Unpooled.wrappedBuffer(new byte[]{3, 3, 3})));
+        Map<Long, Byte> statuses = statuses(responder.getResponse(req).get());
+        assertEquals(3, statuses.size());
+        assertEquals(ImageBatch.SAVED, (byte) statuses.get(1L));
+        assertEquals(ImageBatch.EXISTS, (byte) statuses.get(2L));
+        assertEquals(ImageBatch.SAVED, (byte) statuses.get(3L));
+
+        // local images appended as one group, existing one skipped
+        ArgumentCaptor<List> indexes = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List> data = ArgumentCaptor.forClass(List.class);
+        verify(store).saveAll(eq(localDisk), indexes.capture(), data.capture());
+        assertEquals(1, indexes.getValue().size());
+        ImageIndex index = (ImageIndex) indexes.getValue().get(0);
+        assertEquals(1L, index.getId());
+        assertEquals(ImageType.PNG, index.getType());
+        assertEquals(100L, index.getExpireTime());
+        assertEquals(ByteBuffer.wrap(new byte[]{1}), data.getValue().get(0));
+        ArgumentCaptor<Collection> saved = ArgumentCaptor.forClass(Collection.class);
+        verify(directory).saveAll(eq(localDisk), saved.capture());
+        assertEquals(1, saved.getValue().size());
+
+        // one sub request for the remote image
+        verify(client, times(1)).newCall(any());
+    }
+
+    @Test
+    public void testGenerateIds() throws Exception {
+        FullHttpRequest req = HttpUtil.newImageBatchUploadRequest(
+                null,
+                Arrays.asList(ImageType.PNG, ImageType.PNG),
+                Arrays.asList(-1L, -1L),
+                1,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1}),
+                        Unpooled.wrappedBuffer(new byte[]{2})));
+        Map<Long, Byte> statuses = statuses(responder.getResponse(req).get());
+        assertEquals(ImageBatch.SAVED, (byte) statuses.get(10L));
+        assertEquals(ImageBatch.SAVED, (byte) statuses.get(11L));
+    }
+
+    @Test
+    public void testStoreError() throws Exception {
+        CompletableFuture<List<ImageIndex>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException());
+        when(store.saveAll(eq(localDisk), any(), any())).thenReturn(failed);
+        FullHttpRequest req = HttpUtil.newImageBatchUploadRequest(
+                Arrays.asList(1L, 4L),
+                Arrays.asList(ImageType.PNG, ImageType.PNG),
+                Arrays.asList(-1L, -1L),
+                1,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1}),
+                        Unpooled.wrappedBuffer(new byte[]{2})));
+        Map<Long, Byte> statuses = statuses(responder.getResponse(req).get());
+        assertEquals(ImageBatch.ERROR, (byte) statuses.get(1L));
+        assertEquals(ImageBatch.ERROR, (byte) statuses.get(4L));
+        verify(directory, never()).saveAll(any(), any());
+    }
+
+    @Test
+    public void testRejectReplication() throws Exception {
+        // differs from the cluster
+        FullHttpRequest req = HttpUtil.newImageBatchUploadRequest(
+                Arrays.asList(1L), Arrays.asList(ImageType.PNG), Arrays.asList(-1L), 2,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1})));
+        assertEquals(HttpResponseStatus.BAD_REQUEST, responder.getResponse(req).get().status());
+
+        // batches are never replicated
+        responder.config = mock(Configuration.class);
+        when(responder.config.getReplication()).thenReturn((byte) 2);
+        req = HttpUtil.newImageBatchUploadRequest(
+                Arrays.asList(1L), Arrays.asList(ImageType.PNG), Arrays.asList(-1L), 2,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1})));
+        assertEquals(HttpResponseStatus.BAD_REQUEST, responder.getResponse(req).get().status());
+        verify(store, never()).saveAll(any(), any(), any());
+    }
+
+    private static Map<Long, Byte> statuses(FullHttpResponse resp) {
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        Map<Long, Byte> statuses = new HashMap<>();
+        for (ImageBatch.Entry entry : ImageBatch.decode(resp.content())) {
+            assertNull(statuses.put(entry.getId(), entry.getStatus()));
+        }
+        return statuses;
+    }
+}
@@ -0,0 +1,251 @@
+package io.github.huiyu.ceresfs.http;
+
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.ImageUpload;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.storage.Volume;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ImageUploadHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Topology topology;
+    private Directory directory;
+    private Store store;
+    private Disk disk;
+    private Volume.Writer writer;
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        Node node = new Node();
+        node.setId((short) 1);
+        disk = new Disk((short) 0, folder.getRoot().getPath(), 1.0);
+        disk.setNode(node);
+        topology = mock(Topology.class);
+        when(topology.getLocalNode()).thenReturn(node);
+        when(topology.route(anyLong())).thenReturn(disk);
+        directory = mock(Directory.class);
+        store = mock(Store.class);
+
+        writer = Volume.createWriter(new File(folder.getRoot(), "1"));
+        when(store.upload(eq(disk), anyLong(), any(), anyInt())).then(invocation -> {
+            ImageIndex index = new ImageIndex();
+            index.setId(invocation.getArgumentAt(1, Long.class));
+            index.setType(invocation.getArgumentAt(2, ImageType.class));
+            int capacity = invocation.getArgumentAt(3, Integer.class);
+            // run by the test thread, like the event loop of the embedded channel
+            return new ImageUpload(() -> writer.reserve(index, capacity), tasks::add);
+        });
+
+        ImageStoreResponder responder = new ImageStoreResponder(topology, directory, store);
+        channel = new EmbeddedChannel(responder.newUploadHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        writer.close();
+    }
+
+    @Test
+    public void testStreamLocalImage() throws Exception {
+        when(topology.isLocalNode(any())).thenReturn(true);
+        byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 3);
+
+        writeInChunks(HttpUtil.newImageUploadRequest(42L, ImageType.PNG, 1, 1000L, data), 1000);
+        // nothing passed to the aggregator
+        assertNull(channel.readInbound());
+
+        FullHttpResponse resp = readResponse();
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        assertEquals("42", resp.headers().get(Const.HTTP_HEADER_IMAGE_ID));
+        assertEquals("1000", resp.headers().get(Const.HTTP_HEADER_EXPIRE_TIME));
+        verify(directory).save(eq(disk), any());
+
+        try (Volume.Reader reader = Volume.createReader(writer.getVolume())) {
+            Image image = reader.read(0L);
+            assertEquals(42L, image.getIndex().getId());
+            assertEquals(ImageType.PNG, image.getIndex().getType());
+            assertEquals(ImageIndex.FLAG_NORMAL, image.getIndex().getFlag());
+            assertArrayEquals(data, image.getData());
+        }
+    }
+
+    @Test
+    public void testFallbackRemoteImage() throws Exception {
+        when(topology.isLocalNode(any())).thenReturn(false);
+        FullHttpRequest req = HttpUtil.newImageUploadRequest(42L, ImageType.PNG, 1, 1000L,
+                new byte[10000]);
+        int length = req.content().readableBytes();
+
+        writeInChunks(req, 1000);
+        verify(store, never()).upload(any(), anyLong(), any(), anyInt());
+
+        // request passed on as is
+        Object msg = channel.readInbound();
+        assertTrue(msg instanceof HttpRequest);
+        int received = 0;
+        while ((msg = channel.readInbound()) != null) {
+            HttpContent content = (HttpContent) msg;
+            received += content.content().readableBytes();
+            content.release();
+            if (content instanceof LastHttpContent) {
+                break;
+            }
+        }
+        assertEquals(length, received);
+        assertEquals(0L, writer.length());
+    }
+
+    @Test
+    public void testIncompleteRequest() throws Exception {
+        when(topology.isLocalNode(any())).thenReturn(true);
+        FullHttpRequest req = HttpUtil.newImageUploadRequest(42L, ImageType.PNG, 1, 1000L,
+                new byte[10000]);
+        // lose the closing delimiter
+        req.content().writerIndex(req.content().writerIndex() - 100);
+
+        writeInChunks(req, 1000);
+        assertEquals(HttpResponseStatus.BAD_REQUEST, readResponse().status());
+        verify(directory, never()).save(any(), any());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        when(topology.isLocalNode(any())).thenReturn(true);
+        byte[] data = new byte[1024 * 1024];
+        Arrays.fill(data, (byte) 5);
+
+        FullHttpRequest req = HttpUtil.newImageUploadRequest(42L, ImageType.PNG, 1, 1000L, data);
+        writeHead(req);
+        writeChunks(req.content(), 8192, req.content().readableBytes() / 2);
+        // writes not run yet
+        assertFalse(channel.config().isAutoRead());
+        runTasks();
+        assertTrue(channel.config().isAutoRead());
+        writeChunks(req.content(), 8192, req.content().readableBytes());
+        req.release();
+
+        assertEquals(HttpResponseStatus.OK, readResponse().status());
+        try (Volume.Reader reader = Volume.createReader(writer.getVolume())) {
+            assertArrayEquals(data, reader.read(0L).getData());
+        }
+    }
+
+    @Test
+    public void testMoveOnceSealed() throws Exception {
+        when(topology.isLocalNode(any())).thenReturn(true);
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        FullHttpRequest req = HttpUtil.newImageUploadRequest(42L, ImageType.PNG, 1, 1000L, data);
+        writeHead(req);
+        writeChunks(req.content(), 8192, req.content().readableBytes() / 2);
+        runTasks();
+        // sealed in the middle of the upload
+        Volume.Writer sealed = writer;
+        writer = Volume.createWriter(new File(folder.getRoot(), "2"));
+        sealed.close();
+        writeChunks(req.content(), 8192, req.content().readableBytes());
+        req.release();
+
+        FullHttpResponse resp = readResponse();
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        assertEquals("42", resp.headers().get(Const.HTTP_HEADER_IMAGE_ID));
+        try (Volume.Reader reader = Volume.createReader(writer.getVolume())) {
+            Image image = reader.read(0L);
+            assertEquals(42L, image.getIndex().getId());
+            assertEquals(1000L, image.getIndex().getExpireTime());
+            assertArrayEquals(data, image.getData());
+        }
+    }
+
+    private void writeInChunks(FullHttpRequest req, int chunkSize) {
+        writeHead(req);
+        writeChunks(req.content(), chunkSize, req.content().readableBytes());
+        req.release();
+    }
+
+    private void writeHead(FullHttpRequest req) {
+        HttpRequest head = new DefaultHttpRequest(req.protocolVersion(), req.method(), req.uri());
+        head.headers().set(req.headers());
+        head.headers().set(Const.HTTP_HEADER_CONTENT_TYPE, req.headers().get(Const.HTTP_HEADER_CONTENT_TYPE));
+        head.headers().setInt("Content-Length", req.content().readableBytes());
+        channel.writeInbound(head);
+    }
+
+    /**
+     * Write chunks of the given bytes of content, the last chunk ends the request if the content
+     * is all written
+     */
+    private void writeChunks(ByteBuf content, int chunkSize, int bytes) {
+        int end = content.readerIndex() + bytes;
+        while (end - content.readerIndex() > chunkSize) {
+            channel.writeInbound(new DefaultHttpContent(content.readRetainedSlice(chunkSize)));
+        }
+        ByteBuf last = content.readRetainedSlice(end - content.readerIndex());
+        channel.writeInbound(content.isReadable() ?
+                new DefaultHttpContent(last) : new DefaultLastHttpContent(last));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        channel.runPendingTasks();
+    }
+
+    private FullHttpResponse readResponse() throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            runTasks();
+            Object msg = channel.readOutbound();
+            if (msg != null) {
+                return (FullHttpResponse) msg;
+            }
+            Thread.sleep(10L);
+        }
+        fail("No response");
+        return null;
+    }
+}
@@ -0,0 +1,235 @@
+package io.github.huiyu.ceresfs.internal;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.cache.Cache;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.http.ImageBatch;
+import io.github.huiyu.ceresfs.storage.Directory;
+import io.github.huiyu.ceresfs.storage.Facade;
+import io.github.huiyu.ceresfs.storage.Image;
+import io.github.huiyu.ceresfs.storage.ImageIndex;
+import io.github.huiyu.ceresfs.storage.LocationHints;
+import io.github.huiyu.ceresfs.storage.MigrationTable;
+import io.github.huiyu.ceresfs.storage.Store;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class InternalProtocolTest {
+
+    private Disk localDisk;
+    private Cache cache;
+    private Directory directory;
+    private Store store;
+
+    private EventLoopGroup serverGroup;
+    private LocationHints locationHints;
+    private InternalServerHandler handler;
+    private Channel serverChannel;
+    private InternalClientPool clientPool;
+    private InternalClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Node localNode = new Node();
+        localNode.setId((short) 1);
+        localDisk = new Disk((short) 0, "/tmp", 1.0);
+        localDisk.setNode(localNode);
+        localNode.setDisks(Collections.singletonList(localDisk));
+        Node remoteNode = new Node();
+        remoteNode.setId((short) 2);
+        Disk remoteDisk = new Disk((short) 0, "/tmp", 1.0);
+        remoteDisk.setNode(remoteNode);
+
+        Topology topology = mock(Topology.class);
+        when(topology.getLocalNode()).thenReturn(localNode);
+        when(topology.isLocalNode(localNode)).thenReturn(true);
+        when(topology.route(anyLong())).thenReturn(localDisk);
+        when(topology.route(3L)).thenReturn(remoteDisk);
+
+        cache = mock(Cache.class);
+        directory = mock(Directory.class);
+        when(directory.contains(localDisk, 2L)).thenReturn(true);
+        store = mock(Store.class);
+        Configuration config = mock(Configuration.class);
+        when(config.getImageZeroCopyThreshold()).thenReturn(-1);
+        Facade facade = new Facade(config, topology, cache, directory, store);
+        locationHints = new LocationHints(topology, directory,
+                mock(MigrationTable.class), null);
+        handler = new InternalServerHandler(topology, facade, directory,
+                store, locationHints);
+
+        serverGroup = new NioEventLoopGroup(1);
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(InternalProtocol.newFrameDecoder()).addLast(handler);
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        clientPool = new InternalClientPool(2);
+        client = clientPool.getOrCreate("127.0.0.1", port);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clientPool.close();
+        serverChannel.close().sync();
+        serverGroup.shutdownGracefully();
+        handler.destroy();
+        locationHints.destroy();
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        ImageIndex saved = new ImageIndex();
+        saved.setId(1L);
+        ArgumentCaptor<ByteBuffer> data = ArgumentCaptor.forClass(ByteBuffer.class);
+        when(store.save(eq(localDisk), eq(1L), eq(ImageType.PNG), data.capture(), eq(100L),
+                eq(1)))
+                .then(invocation -> {
+                    // copy before the frame is released
+                    ByteBuffer copy = ByteBuffer.allocate(data.getValue().remaining());
+                    copy.put(data.getValue().duplicate()).flip();
+                    data.getAllValues().set(0, copy);
+                    return CompletableFuture.completedFuture(saved);
+                });
+
+        InternalResponse resp = client.put(1L, ImageType.PNG, 1, 100L,
+                Unpooled.wrappedBuffer(new byte[]{1, 2, 3})).get(5, TimeUnit.SECONDS);
+        assertEquals(InternalProtocol.OK, resp.getStatus());
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), data.getAllValues().get(0));
+        verify(directory).save(localDisk, saved);
+
+        assertEquals(InternalProtocol.EXISTS, client.put(2L, ImageType.PNG, 1, -1L,
+                Unpooled.wrappedBuffer(new byte[]{1})).get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(InternalProtocol.NOT_OWNER, client.put(3L, ImageType.PNG, 1, -1L,
+                Unpooled.wrappedBuffer(new byte[]{1})).get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void testGetAndDelete() throws Exception {
+        ImageIndex index = new ImageIndex();
+        index.setId(1L);
+        index.setType(ImageType.JPG);
+        index.setExpireTime(1000L);
+        when(cache.get(1L)).thenReturn(new Image(index, new byte[]{4, 5}));
+
+        InternalResponse found = client.get(1L).get(5, TimeUnit.SECONDS);
+        assertEquals(InternalProtocol.OK, found.getStatus());
+        assertEquals(ImageType.JPG, found.getType());
+        assertEquals(1000L, found.getExpireTime());
+        assertArrayEquals(new byte[]{4, 5}, ByteBufUtil.getBytes(found.getData()));
+        assertEquals(InternalProtocol.NOT_FOUND,
+                client.get(4L).get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(InternalProtocol.NOT_OWNER,
+                client.get(3L).get(5, TimeUnit.SECONDS).getStatus());
+
+        assertEquals(InternalProtocol.OK, client.delete(4L).get(5, TimeUnit.SECONDS).getStatus());
+        // looked up by both get and delete
+        verify(directory, times(2)).get(localDisk, 4L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatches() throws Exception {
+        when(store.saveAll(eq(localDisk), any(), any())).then(invocation ->
+                CompletableFuture.completedFuture(invocation.getArguments()[1]));
+        InternalResponse resp = client.putAll(
+                Arrays.asList(1L, 2L, 3L),
+                Arrays.asList(ImageType.PNG, ImageType.PNG, ImageType.PNG),
+                Arrays.asList(-1L, -1L, -1L),
+                1,
+                Arrays.asList(Unpooled.wrappedBuffer(new byte[]{1}),
+                        Unpooled.wrappedBuffer(new byte[]{2}),
+                        Unpooled.wrappedBuffer(new byte[]{3})))
+                .get(5, TimeUnit.SECONDS);
+        Map<Long, ImageBatch.Entry> entries = entries(resp);
+        assertEquals(ImageBatch.SAVED, entries.get(1L).getStatus());
+        assertEquals(ImageBatch.EXISTS, entries.get(2L).getStatus());
+        assertEquals(ImageBatch.ERROR, entries.get(3L).getStatus());
+        ArgumentCaptor<List> indexes = ArgumentCaptor.forClass(List.class);
+        verify(store).saveAll(eq(localDisk), indexes.capture(), any());
+        assertEquals(1, indexes.getValue().size());
+
+        ImageIndex index = new ImageIndex();
+        index.setId(1L);
+        index.setType(ImageType.PNG);
+        when(cache.get(1L)).thenReturn(new Image(index, new byte[]{1}));
+        entries = entries(client.getAll(Arrays.asList(1L, 4L)).get(5, TimeUnit.SECONDS));
+        assertEquals(ImageBatch.FOUND, entries.get(1L).getStatus());
+        assertArrayEquals(new byte[]{1}, entries.get(1L).getData());
+        assertEquals(ImageBatch.NOT_FOUND, entries.get(4L).getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFilter() throws Exception {
+        doAnswer(invocation -> {
+            Consumer<Long> consumer = (Consumer<Long>) invocation.getArguments()[1];
+            for (long id = 0; id < 100; id++) {
+                consumer.accept(id * 2);
+            }
+            return null;
+        }).when(directory).forEachId(eq(localDisk), any());
+
+        InternalResponse resp = client.filter().get(5, TimeUnit.SECONDS);
+        assertEquals(InternalProtocol.OK, resp.getStatus());
+        BloomFilter<Long> filter = BloomFilter.readFrom(
+                new ByteBufInputStream(resp.getContent()), Funnels.longFunnel());
+        int falsePositives = 0;
+        for (long id = 0; id < 100; id++) {
+            assertTrue(filter.mightContain(id * 2));
+            if (filter.mightContain(id * 2 + 1)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 10);
+    }
+
+    private static Map<Long, ImageBatch.Entry> entries(InternalResponse resp) {
+        assertEquals(InternalProtocol.OK, resp.getStatus());
+        Map<Long, ImageBatch.Entry> entries = new HashMap<>();
+        for (ImageBatch.Entry entry : ImageBatch.decode(resp.getContent())) {
+            assertNull(entries.put(entry.getId(), entry));
+        }
+        return entries;
+    }
+}
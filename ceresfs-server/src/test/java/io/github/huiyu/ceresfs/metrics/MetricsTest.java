@@ -0,0 +1,160 @@
+package io.github.huiyu.ceresfs.metrics;
+
+import io.github.huiyu.ceresfs.CeresFSServerHandler;
+import io.github.huiyu.ceresfs.Const;
+import io.github.huiyu.ceresfs.util.HttpUtil;
+
+import org.junit.Test;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void testWrite() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("test_total", "Test counter", "a", "x\"y");
+        counter.add(3);
+        assertSame(counter, metrics.counter("test_total", "Test counter", "a", "x\"y"));
+        metrics.gauge("test_gauge", "Test gauge", () -> 0.5);
+        Metrics.Timer timer = metrics.timer("test_seconds", "Test timer");
+        timer.record(1000);
+        timer.record(3000);
+
+        StringBuilder sb = new StringBuilder();
+        metrics.write(sb);
+        String text = sb.toString();
+        assertTrue(text.contains("# TYPE test_total counter\n"));
+        assertTrue(text.contains("test_total{a=\"x\\\"y\"} 3\n"));
+        assertTrue(text.contains("# HELP test_gauge Test gauge\n"));
+        assertTrue(text.contains("test_gauge 0.5\n"));
+        assertTrue(text.contains("# TYPE test_seconds summary\n"));
+        // values are kept at 2 significant digits
+        assertTrue(text.contains("test_seconds{quantile=\"0.5\"} 0.0010"));
+        assertTrue(text.contains("test_seconds_sum 0.004\n"));
+        assertTrue(text.contains("test_seconds_count 2\n"));
+
+        // quantiles are of values since the last scrape
+        sb.setLength(0);
+        metrics.write(sb);
+        assertTrue(sb.toString().contains("test_seconds{quantile=\"0.5\"} NaN\n"));
+        assertTrue(sb.toString().contains("test_seconds_count 2\n"));
+
+        try {
+            metrics.timer("test_total", "Not a counter");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpMetricsHandler(metrics, "/image"::equals));
+        channel.writeInbound(HttpUtil.newRequest(HttpMethod.GET, "/image?id=1"));
+        channel.writeInbound(HttpUtil.newRequest(HttpMethod.GET, "/foo"));
+        FullHttpResponse ok = HttpUtil.newResponse(HttpResponseStatus.OK, new byte[10]);
+        channel.writeOutbound(ok);
+        channel.writeOutbound(HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND));
+
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", "/image", "status", "200").get());
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", HttpMetricsHandler.UNKNOWN_ROUTE, "status", "404").get());
+        assertEquals(10, metrics.counter("ceresfs_http_sent_bytes_total", "",
+                "route", "/image").get());
+        assertEquals(1, metrics.timer("ceresfs_http_request_seconds", "",
+                "route", "/image", "method", "GET").getCount());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testHttpOutOfOrder() throws Exception {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpMetricsHandler(metrics, "/image"::equals));
+        FullHttpRequest image = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        image.headers().set(Const.HTTP_TOKEN_NAME, "1");
+        FullHttpRequest foo = HttpUtil.newRequest(HttpMethod.GET, "/foo");
+        foo.headers().set(Const.HTTP_TOKEN_NAME, "2");
+        channel.writeInbound(image, foo);
+        FullHttpResponse notFound = HttpUtil.newResponse(HttpResponseStatus.NOT_FOUND);
+        notFound.headers().set(Const.HTTP_TOKEN_NAME, "2");
+        channel.writeOutbound(notFound);
+        FullHttpResponse ok = HttpUtil.newResponse(HttpResponseStatus.OK, new byte[10]);
+        ok.headers().set(Const.HTTP_TOKEN_NAME, "1");
+        channel.writeOutbound(ok);
+
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", "/image", "status", "200").get());
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", HttpMetricsHandler.UNKNOWN_ROUTE, "status", "404").get());
+        assertEquals(10, metrics.counter("ceresfs_http_sent_bytes_total", "",
+                "route", "/image").get());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testHttpNotFoundOfToken() throws Exception {
+        Metrics metrics = new Metrics();
+        CeresFSServerHandler handler = new CeresFSServerHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpMetricsHandler(metrics, handler::isRouted), handler);
+        FullHttpRequest foo = HttpUtil.newRequest(HttpMethod.GET, "/foo");
+        foo.headers().set(Const.HTTP_TOKEN_NAME, "1");
+        channel.writeInbound(foo);
+
+        FullHttpResponse notFound = channel.readOutbound();
+        assertEquals(HttpResponseStatus.NOT_FOUND, notFound.status());
+        assertEquals("1", notFound.headers().get(Const.HTTP_TOKEN_NAME));
+        notFound.release();
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", HttpMetricsHandler.UNKNOWN_ROUTE, "status", "404").get());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testHttpWithoutTokenWhileReading() throws Exception {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpMetricsHandler(metrics, "/image"::equals),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        FullHttpRequest req = (FullHttpRequest) msg;
+                        // answer /foo at once without token, like the aggregator rejecting it
+                        if (req.uri().equals("/foo")) {
+                            ctx.writeAndFlush(HttpUtil.newResponse(
+                                    HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE));
+                        }
+                        req.release();
+                    }
+                });
+        FullHttpRequest image = HttpUtil.newRequest(HttpMethod.GET, "/image?id=1");
+        image.headers().set(Const.HTTP_TOKEN_NAME, "1");
+        FullHttpRequest foo = HttpUtil.newRequest(HttpMethod.GET, "/foo");
+        foo.headers().set(Const.HTTP_TOKEN_NAME, "2");
+        channel.writeInbound(image, foo);
+        FullHttpResponse ok = HttpUtil.newResponse(HttpResponseStatus.OK, new byte[10]);
+        ok.headers().set(Const.HTTP_TOKEN_NAME, "1");
+        channel.writeOutbound(ok);
+
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", HttpMetricsHandler.UNKNOWN_ROUTE, "status", "413").get());
+        assertEquals(1, metrics.counter("ceresfs_http_responses_total", "",
+                "route", "/image", "status", "200").get());
+        assertEquals(0, metrics.counter("ceresfs_http_responses_total", "",
+                "route", "/image", "status", "413").get());
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DirectoryRebuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRebuild() throws Exception {
+        File path = folder.newFolder();
+        Disk disk = new Disk((short) 1, path.getAbsolutePath(), 1.0);
+
+        long time = System.currentTimeMillis();
+        File oldVolume = new File(path, String.valueOf(time));
+        File newVolume = new File(path, String.valueOf(time + 1));
+        long deletedOffset;
+        try (Volume.Writer writer = Volume.createWriter(oldVolume)) {
+            writer.write(1L, ImageType.JPG, new byte[100], -1L);
+            writer.write(2L, ImageType.JPG, new byte[200], -1L);
+            writer.write(3L, ImageType.JPG, new byte[300], -1L);
+            deletedOffset = (ImageIndex.FIXED_LENGTH + 100) + (ImageIndex.FIXED_LENGTH + 200);
+            writer.markDeleted(deletedOffset);
+        }
+        Thread.sleep(5L);
+        try (Volume.Writer writer = Volume.createWriter(newVolume)) {
+            // newer copy of image 1
+            writer.write(1L, ImageType.PNG, new byte[10], -1L);
+            writer.write(4L, ImageType.JPG, new byte[400], -1L);
+        }
+
+        Configuration config = mock(Configuration.class);
+        when(config.getVolumeMaxSize()).thenReturn(1024L * 1024L);
+        when(config.getVolumeWriteParallelism()).thenReturn(1);
+        PooledVolumeContainer container = new PooledVolumeContainer(config);
+        MappedDirectory directory = new MappedDirectory();
+        new DirectoryRebuilder(config, container, directory).rebuild(Collections.singletonList(disk));
+
+        ImageIndex index = directory.get(disk, 1L);
+        assertEquals(time + 1, index.getVolume());
+        assertEquals(ImageType.PNG, index.getType());
+        assertEquals(10, index.getSize());
+
+        index = directory.get(disk, 2L);
+        assertEquals(time, index.getVolume());
+        assertEquals(ImageIndex.FIXED_LENGTH + 100, index.getOffset());
+
+        assertNull(directory.get(disk, 3L));
+        assertEquals(4L, directory.get(disk, 4L).getId());
+        assertEquals(3L, directory.size(disk));
+        directory.destroy();
+    }
+
+    @Test
+    public void testRebuildFailed() throws Exception {
+        File path = folder.newFolder();
+        Disk disk = new Disk((short) 1, path.getAbsolutePath(), 1.0);
+
+        long time = System.currentTimeMillis();
+        File goodVolume = new File(path, String.valueOf(time));
+        File badVolume = new File(path, String.valueOf(time + 1));
+        try (Volume.Writer writer = Volume.createWriter(goodVolume)) {
+            writer.write(1L, ImageType.JPG, new byte[100], -1L);
+        }
+        try (Volume.Writer writer = Volume.createWriter(badVolume)) {
+            writer.write(2L, ImageType.JPG, new byte[100], -1L);
+        }
+        // hint can't be opened
+        File hint = Volume.getHintFile(badVolume);
+        hint.delete();
+        assertTrue(hint.mkdir());
+
+        Configuration config = mock(Configuration.class);
+        when(config.getVolumeMaxSize()).thenReturn(1024L * 1024L);
+        when(config.getVolumeWriteParallelism()).thenReturn(1);
+        PooledVolumeContainer container = new PooledVolumeContainer(config);
+        MappedDirectory directory = new MappedDirectory();
+        try {
+            new DirectoryRebuilder(config, container, directory)
+                    .rebuild(Collections.singletonList(disk));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(badVolume.toString()));
+            assertFalse(e.getMessage().contains(goodVolume.toString()));
+        }
+        // other volumes are still scanned
+        assertNotNull(directory.get(disk, 1L));
+        directory.destroy();
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.cache.Cache;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FacadeTest {
+
+    private Cache cache;
+    private Directory directory;
+    private Store store;
+    private Facade facade;
+    private Disk disk;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration config = mock(Configuration.class);
+        when(config.getImageZeroCopyThreshold()).thenReturn(1024);
+        cache = mock(Cache.class);
+        directory = mock(Directory.class);
+        store = mock(Store.class);
+        facade = new Facade(config, mock(Topology.class), cache, directory, store);
+        disk = new Disk((short) 0, "/tmp", 1.0);
+    }
+
+    @Test
+    public void testReadCached() throws Exception {
+        Image image = createImage(1L, 10);
+        when(cache.get(1L)).thenReturn(image);
+
+        Facade.ReadResult result = facade.read(disk, 1L);
+        assertFalse(result.isRegion());
+        assertSame(image, result.getImage());
+        verifyZeroInteractions(directory, store);
+    }
+
+    @Test
+    public void testReadSmallImage() throws Exception {
+        Image image = createImage(1L, 10);
+        when(directory.get(disk, 1L)).thenReturn(image.getIndex());
+        when(store.get(disk, image.getIndex())).thenReturn(image);
+
+        Facade.ReadResult result = facade.read(disk, 1L);
+        assertSame(image, result.getImage());
+        verify(cache).put(image);
+    }
+
+    @Test
+    public void testReadLargeImage() throws Exception {
+        Image image = createImage(1L, 2048);
+        ImageRegion region = new ImageRegion(image.getIndex(), new File("/tmp/0"));
+        when(directory.get(disk, 1L)).thenReturn(image.getIndex());
+        when(store.locate(disk, image.getIndex())).thenReturn(region);
+
+        Facade.ReadResult result = facade.read(disk, 1L);
+        assertTrue(result.isRegion());
+        assertSame(region, result.getRegion());
+        verify(store, never()).get(any(), any());
+        verify(cache, never()).put(any());
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        Image image = createImage(1L, 10);
+        when(directory.get(disk, 1L)).thenReturn(image.getIndex());
+
+        facade.delete(disk, 1L);
+        verify(store).delete(disk, image.getIndex());
+        verify(directory).delete(disk, 1L);
+        verify(cache).evict(1L);
+    }
+
+    private Image createImage(long id, int size) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setSize(size);
+        index.setType(ImageType.JPG);
+        return new Image(index, new byte[size]);
+    }
+}
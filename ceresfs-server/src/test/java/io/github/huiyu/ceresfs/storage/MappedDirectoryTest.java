@@ -0,0 +1,107 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.topology.Disk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MappedDirectoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws Exception {
+        Disk disk = createDisk();
+        MappedDirectory directory = new MappedDirectory();
+        ImageIndex index = createIndex(10001L);
+        directory.save(disk, index);
+
+        ImageIndex actual = directory.get(disk, 10001L);
+        assertImageIndexEquals(index, actual);
+        assertTrue(directory.contains(disk, 10001L));
+
+        // update
+        index.setOffset(2L);
+        directory.save(disk, index);
+        actual = directory.get(disk, 10001L);
+        assertImageIndexEquals(index, actual);
+        assertEquals(1L, directory.size(disk));
+
+        directory.delete(disk, 10001L);
+        assertNull(directory.get(disk, 10001L));
+        assertFalse(directory.contains(disk, 10001L));
+        assertEquals(0L, directory.size(disk));
+        directory.destroy();
+    }
+
+    @Test
+    public void testResizeAndReopen() throws Exception {
+        Disk disk = createDisk();
+        MappedDirectory directory = new MappedDirectory();
+        int count = 200000;
+        for (long id = 0; id < count; id++) {
+            directory.save(disk, createIndex(id));
+        }
+        for (long id = 0; id < count; id += 2) {
+            directory.delete(disk, id);
+        }
+        directory.destroy();
+
+        directory = new MappedDirectory();
+        assertEquals(count / 2, directory.size(disk));
+        for (long id = 0; id < count; id++) {
+            ImageIndex index = directory.get(disk, id);
+            if (id % 2 == 0) {
+                assertNull(index);
+            } else {
+                assertImageIndexEquals(createIndex(id), index);
+            }
+        }
+
+        Set<Long> ids = new HashSet<>();
+        directory.forEachId(disk, ids::add);
+        assertEquals(count / 2, ids.size());
+        directory.destroy();
+    }
+
+    private Disk createDisk() throws Exception {
+        File path = folder.newFolder();
+        Disk disk = new Disk();
+        disk.setPath(path.getPath());
+        disk.setWeight(1.0);
+        return disk;
+    }
+
+    private ImageIndex createIndex(long id) {
+        ImageIndex index = new ImageIndex();
+        index.setId(id);
+        index.setVolume(System.currentTimeMillis());
+        index.setOffset(id * 64L);
+        index.setSize((int) id);
+        index.setType(ImageType.PNG);
+        index.setTime(id + 1);
+        index.setExpireTime(-1L);
+        index.setReplication((byte) 1);
+        return index;
+    }
+
+    private void assertImageIndexEquals(ImageIndex expect, ImageIndex actual) {
+        assertEquals(expect.getId(), actual.getId());
+        assertEquals(expect.getOffset(), actual.getOffset());
+        assertEquals(expect.getType(), actual.getType());
+        assertEquals(expect.getFlag(), actual.getFlag());
+        assertEquals(expect.getSize(), actual.getSize());
+        assertEquals(expect.getTime(), actual.getTime());
+        assertEquals(expect.getExpireTime(), actual.getExpireTime());
+        assertEquals(expect.getReplication(), actual.getReplication());
+    }
+}
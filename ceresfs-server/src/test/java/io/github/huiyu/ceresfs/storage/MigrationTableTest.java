@@ -0,0 +1,63 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MigrationTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws Exception {
+        Configuration config = mock(Configuration.class);
+        Disk localDisk = new Disk((short) 0, folder.newFolder().getPath(), 1.0);
+        when(config.getDisks()).thenReturn(Collections.singletonList(localDisk));
+        when(config.getMigrationExpire()).thenReturn(500L);
+        when(config.getMigrationExpireTimeUnit()).thenReturn(TimeUnit.MILLISECONDS);
+
+        Node remoteNode = new Node();
+        remoteNode.setId((short) 2);
+        Disk remoteDisk = new Disk((short) 3, "/tmp", 1.0);
+        remoteDisk.setNode(remoteNode);
+
+        MigrationTable table = new MigrationTable(config);
+        table.afterPropertiesSet();
+        table.record(1L, remoteDisk);
+        table.destroy();
+
+        // persisted
+        table = new MigrationTable(config);
+        table.afterPropertiesSet();
+        try {
+            MigrationTable.Location location = table.locate(1L);
+            assertEquals(2, location.getNodeId());
+            assertEquals(3, location.getDiskId());
+            assertNull(table.locate(2L));
+
+            Topology topology = mock(Topology.class);
+            when(topology.getAllNodes()).thenReturn(Arrays.asList(new Node(), remoteNode));
+            LocationHints hints = new LocationHints(topology, null, table, null);
+            assertSame(remoteNode, hints.movedTo(1L));
+            assertNull(hints.movedTo(2L));
+
+            Thread.sleep(600);
+            assertNull(table.locate(1L));
+        } finally {
+            table.destroy();
+        }
+    }
+}
@@ -120,6 +120,31 @@ public class PooledVolumeContainerTest {
         assertTrue(reader.isClosed());
     }
 
+    @Test
+    public void testReaderMappedOnceSealed() throws Exception {
+        String disk = tempFolder.newFolder().getAbsolutePath();
+        Configuration config = mockConfig(1024L, 1);
+        when(config.getVolumeReadMode()).thenReturn(Volume.ReadMode.MAPPED);
+        PooledVolumeContainer container = new PooledVolumeContainer(config);
+
+        Volume.Writer writer = container.getActiveWriter(disk);
+        File volume = writer.getVolume();
+        writer.write(1L, ImageType.JPG, new byte[100], -1L);
+        Volume.Reader reader = container.getReader(volume);
+        assertFalse(reader.isMapped());
+        // a read in flight while sealing
+        assertTrue(reader.retain());
+
+        container.closeWriter(volume);
+        assertTrue(reader.isClosed());
+        assertEquals(1L, reader.read(0L).getIndex().getId());
+        reader.release();
+        Volume.Reader mapped = container.getReader(volume);
+        assertTrue(mapped.isMapped());
+        assertSame(mapped, container.getReader(volume));
+        container.destroy();
+    }
+
     @Test
     public void testCloseVolume() throws Exception {
         long fileName = System.currentTimeMillis();
@@ -0,0 +1,145 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.internal.InternalClient;
+import io.github.huiyu.ceresfs.internal.InternalClientPool;
+import io.github.huiyu.ceresfs.internal.InternalProtocol;
+import io.github.huiyu.ceresfs.internal.InternalResponse;
+import io.github.huiyu.ceresfs.metrics.Metrics;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ReplicatorTest {
+
+    private Topology topology;
+    private Directory directory;
+    private Store store;
+    private InternalClientPool clientPool;
+    private InternalClient client2;
+    private InternalClient client3;
+    private Disk localDisk;
+    private List<Disk> replicas;
+    private ImageIndex saved;
+
+    private Replicator replicator;
+
+    @Before
+    public void setUp() throws Exception {
+        localDisk = newDisk(1);
+        replicas = Arrays.asList(localDisk, newDisk(2), newDisk(3));
+
+        topology = mock(Topology.class);
+        when(topology.isLocalNode(localDisk.getNode())).thenReturn(true);
+        directory = mock(Directory.class);
+        store = mock(Store.class);
+        saved = new ImageIndex();
+        saved.setId(1L);
+        when(store.save(eq(localDisk), eq(1L), eq(ImageType.PNG), any(ByteBuffer.class),
+                eq(-1L), eq(3))).thenReturn(CompletableFuture.completedFuture(saved));
+
+        clientPool = mock(InternalClientPool.class);
+        client2 = mock(InternalClient.class);
+        client3 = mock(InternalClient.class);
+        when(clientPool.getOrCreate("node2", 9002)).thenReturn(client2);
+        when(clientPool.getOrCreate("node3", 9003)).thenReturn(client3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (replicator != null) {
+            replicator.destroy();
+        }
+    }
+
+    private static Disk newDisk(int nodeId) {
+        Node node = new Node();
+        node.setId((short) nodeId);
+        node.setHostAddress("node" + nodeId);
+        node.setInternalPort(9000 + nodeId);
+        Disk disk = new Disk((short) 0, "/tmp", 1.0);
+        disk.setNode(node);
+        return disk;
+    }
+
+    private Replicator newReplicator(Replicator.WriteQuorum quorum, boolean async) {
+        Configuration config = mock(Configuration.class);
+        when(config.getReplicationWriteQuorum()).thenReturn(quorum);
+        when(config.isReplicationAsync()).thenReturn(async);
+        replicator = new Replicator(config, topology, mock(Facade.class), directory, store,
+                clientPool, new Metrics());
+        return replicator;
+    }
+
+    private static CompletableFuture<InternalResponse> response(byte status) {
+        InternalResponse resp = mock(InternalResponse.class);
+        when(resp.getStatus()).thenReturn(status);
+        return CompletableFuture.completedFuture(resp);
+    }
+
+    private static void put(InternalClient client, CompletableFuture<InternalResponse> future) {
+        when(client.put(eq(1L), eq(ImageType.PNG), eq(3), eq(-1L), any(ByteBuf.class)))
+                .thenReturn(future);
+    }
+
+    @Test
+    public void testMajority() throws Exception {
+        CompletableFuture<InternalResponse> pending = new CompletableFuture<>();
+        put(client2, response(InternalProtocol.OK));
+        put(client3, pending);
+        ByteBuf data = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+
+        CompletableFuture<Void> future = newReplicator(Replicator.WriteQuorum.MAJORITY, false)
+                .write(replicas, 1L, ImageType.PNG, -1L, 3, data);
+        assertTrue(future.isDone());
+        assertFalse(future.isCompletedExceptionally());
+        verify(directory).save(localDisk, saved);
+        // kept for the copy still in flight
+        assertEquals(2, data.refCnt());
+
+        pending.complete(response(InternalProtocol.OK).join());
+        assertEquals(1, data.refCnt());
+    }
+
+    @Test
+    public void testQuorumUnreachable() throws Exception {
+        put(client2, response(InternalProtocol.OK));
+        put(client3, response(InternalProtocol.ERROR));
+        ByteBuf data = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+
+        CompletableFuture<Void> future = newReplicator(Replicator.WriteQuorum.ALL, false)
+                .write(replicas, 1L, ImageType.PNG, -1L, 3, data);
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(1, data.refCnt());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        put(client2, new CompletableFuture<>());
+        put(client3, new CompletableFuture<>());
+        ByteBuf data = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+
+        CompletableFuture<Void> future = newReplicator(Replicator.WriteQuorum.ALL, true)
+                .write(replicas, 1L, ImageType.PNG, -1L, 3, data);
+        assertTrue(future.isDone());
+        assertFalse(future.isCompletedExceptionally());
+        verify(client2).put(eq(1L), eq(ImageType.PNG), eq(3), eq(-1L), any(ByteBuf.class));
+        verify(client3).put(eq(1L), eq(ImageType.PNG), eq(3), eq(-1L), any(ByteBuf.class));
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.huiyu.ceresfs.storage;
+
+import io.github.huiyu.ceresfs.ImageType;
+import io.github.huiyu.ceresfs.config.Configuration;
+import io.github.huiyu.ceresfs.topology.Disk;
+import io.github.huiyu.ceresfs.topology.Node;
+import io.github.huiyu.ceresfs.topology.Topology;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class VolumeScrubberTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScrub() throws Exception {
+        File sealed = new File(folder.getRoot(), "1");
+        File active = new File(folder.getRoot(), "2");
+        for (File file : Arrays.asList(sealed, active)) {
+            try (Volume.Writer writer = Volume.createWriter(file)) {
+                for (long id = 1; id <= 3; id++) {
+                    writer.write(id, ImageType.JPG, new byte[100], -1L);
+                }
+                writer.markDeleted(328L);
+            }
+            // corrupt the second and the deleted third image
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(164L + 100L);
+                raf.write(1);
+                raf.seek(328L + 100L);
+                raf.write(1);
+            }
+        }
+
+        Disk disk = new Disk((short) 0, folder.getRoot().getPath(), 1.0);
+        Node node = new Node();
+        node.setDisks(Arrays.asList(disk));
+        Topology topology = mock(Topology.class);
+        when(topology.getLocalNode()).thenReturn(node);
+        VolumeContainer container = mock(VolumeContainer.class);
+        when(container.getAllVolumes(disk.getPath())).thenReturn(Arrays.asList(sealed, active));
+        when(container.isActive(active)).thenReturn(true);
+        Configuration config = mock(Configuration.class);
+        when(config.getVolumeScrubRate()).thenReturn(1024L * 1024L);
+
+        VolumeScrubber scrubber = new VolumeScrubber(config, topology, container);
+        scrubber.scrub();
+        assertEquals(1L, scrubber.getCorrupted());
+    }
+}
@@ -56,7 +56,9 @@ public class VolumeStoreTest {
         // automatic create new volume file
         store.save(disk, 1L, ImageType.JPG, new byte[(int) (SIZE_1MB / 2L)]).get();
         assertEquals(2,
-                Stream.of(volumeDir.listFiles()).filter(file -> file.length() > 0).count());
+                Stream.of(volumeDir.listFiles())
+                        .filter(file -> file.getName().matches("\\d*"))
+                        .filter(file -> file.length() > 0).count());
         store.destroy();
     }
 }
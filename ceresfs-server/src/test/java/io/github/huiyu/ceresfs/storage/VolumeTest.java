@@ -10,6 +10,17 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.*;
 
@@ -99,6 +110,396 @@ public class VolumeTest {
         }
     }
 
+    @Test
+    public void testMappedRead() throws IOException {
+        long currentTime = System.currentTimeMillis();
+        File file = new File(folder.getRoot(), String.valueOf(currentTime));
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(createImage(i, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[i]));
+            }
+        }
+
+        try (Volume.Reader reader = Volume.createReader(file, Volume.ReadMode.MAPPED)) {
+            assertTrue(reader.isMapped());
+            long pos = 0L;
+            for (int i = 0; i < 10; i++) {
+                Image image = reader.read(pos);
+                assertEquals(i, image.getIndex().getId());
+                assertEquals(i, image.getData().length);
+                pos += ImageIndex.FIXED_LENGTH + i;
+            }
+            assertNull(reader.read(pos));
+        }
+    }
+
+    @Test
+    public void testConcurrentRead() throws Exception {
+        long currentTime = System.currentTimeMillis();
+        File file = new File(folder.getRoot(), String.valueOf(currentTime));
+        int count = 100;
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[100];
+                Arrays.fill(data, (byte) i);
+                writer.write(createImage(i, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, data));
+            }
+        }
+
+        for (Volume.ReadMode mode : Volume.ReadMode.values()) {
+            try (Volume.Reader reader = Volume.createReader(file, mode)) {
+                IntStream.range(0, count * 10).parallel().forEach(n -> {
+                    int i = n % count;
+                    try {
+                        Image image = reader.read(i * (ImageIndex.FIXED_LENGTH + 100L));
+                        assertEquals(i, image.getIndex().getId());
+                        assertEquals((byte) i, image.getData()[99]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        long currentTime = System.currentTimeMillis();
+        File file = new File(folder.getRoot(), String.valueOf(currentTime));
+        int count = 1000;
+        List<CompletableFuture<Image>> futures = new ArrayList<>();
+        for (Volume.FsyncPolicy policy : Volume.FsyncPolicy.values()) {
+            try (Volume.Writer writer = Volume.createWriter(file, policy)) {
+                IntStream.range(0, count).parallel().forEach(i -> {
+                    Image image = createImage(i, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[i % 100]);
+                    CompletableFuture<Image> future = writer.append(image);
+                    synchronized (futures) {
+                        futures.add(future);
+                    }
+                });
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+                writer.sync();
+            }
+        }
+
+        // reopened writer appends to the end, so no image overlaps
+        assertEquals(count * 3, futures.size());
+        try (Volume.Reader reader = Volume.createReader(file)) {
+            for (CompletableFuture<Image> future : futures) {
+                ImageIndex index = future.get().getIndex();
+                Image image = reader.read(index.getOffset());
+                assertEquals(index.getId(), image.getIndex().getId());
+                assertEquals(index.getId() % 100, image.getData().length);
+            }
+        }
+    }
+
+    @Test
+    public void testAppendAfterClose() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        Volume.Writer writer = Volume.createWriter(file);
+        writer.close();
+        try {
+            writer.write(createImage(1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[10]));
+            fail();
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHint() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        File hint = Volume.getHintFile(file);
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(createImage(i, ImageIndex.FLAG_NORMAL, ImageType.JPG, i, new byte[i]));
+            }
+            writer.markDeleted(3 * ImageIndex.FIXED_LENGTH + 3);
+        }
+        assertEquals(10 * Volume.HINT_LENGTH, hint.length());
+
+        // lose the last hints, as if crashed between image and hint writing
+        try (RandomAccessFile raf = new RandomAccessFile(hint, "rw")) {
+            raf.setLength(7 * Volume.HINT_LENGTH + 5);
+        }
+        List<ImageIndex> indexes = new ArrayList<>();
+        Volume.forEachIndex(file, indexes::add);
+        assertEquals(10, indexes.size());
+
+        // reopened writer appends missing hints
+        Volume.createWriter(file).close();
+        assertEquals(10 * Volume.HINT_LENGTH, hint.length());
+
+        indexes.clear();
+        Volume.forEachIndex(file, indexes::add);
+        assertEquals(10, indexes.size());
+        long offset = 0L;
+        for (int i = 0; i < 10; i++) {
+            ImageIndex index = indexes.get(i);
+            assertEquals(i, index.getId());
+            assertEquals(offset, index.getOffset());
+            assertEquals(i, index.getSize());
+            assertEquals(i, index.getExpireTime());
+            assertEquals(ImageType.JPG, index.getType());
+            assertEquals(i == 3 ? ImageIndex.FLAG_DELETED : ImageIndex.FLAG_NORMAL, index.getFlag());
+            offset += ImageIndex.FIXED_LENGTH + i;
+        }
+    }
+
+    @Test
+    public void testAppendBuffer() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        ByteBuffer data = ByteBuffer.allocateDirect(5000);
+        for (int i = 0; i < 5000; i++) {
+            data.put((byte) i);
+        }
+        data.flip().position(1000);
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            List<CompletableFuture<ImageIndex>> futures = new ArrayList<>();
+            for (long id = 1; id <= 3; id++) {
+                ImageIndex index = createImage(id, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, null)
+                        .getIndex();
+                futures.add(writer.append(index, data));
+            }
+            // buffer of caller is untouched
+            assertEquals(1000, data.position());
+
+            try (Volume.Reader reader = Volume.createReader(file)) {
+                for (CompletableFuture<ImageIndex> future : futures) {
+                    ImageIndex index = future.get();
+                    assertEquals(4000, index.getSize());
+                    Image image = reader.read(index.getOffset());
+                    assertEquals(index.getId(), image.getIndex().getId());
+                    for (int i = 0; i < 4000; i++) {
+                        assertEquals((byte) (i + 1000), image.getData()[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAppendAll() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        // more images than a single gathering write
+        int count = 1200;
+        List<ImageIndex> indexes = new ArrayList<>();
+        List<ByteBuffer> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            indexes.add(createImage(i, ImageIndex.FLAG_NORMAL, ImageType.PNG, -1L, null).getIndex());
+            data.add(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8)}));
+        }
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            writer.write(createImage(-1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[10]));
+            List<ImageIndex> saved = writer.appendAll(indexes, data).get();
+            assertEquals(count, saved.size());
+            assertEquals(74L + count * 66L, writer.length());
+        }
+
+        List<ImageIndex> hinted = new ArrayList<>();
+        Volume.forEachIndex(file, hinted::add);
+        assertEquals(count + 1, hinted.size());
+        try (Volume.Reader reader = Volume.createReader(file, Volume.ReadMode.CHANNEL, true)) {
+            for (int i = 0; i < count; i++) {
+                ImageIndex index = indexes.get(i);
+                assertEquals(74L + i * 66L, index.getOffset());
+                assertEquals(index.getOffset(), hinted.get(i + 1).getOffset());
+                Image image = reader.read(index.getOffset());
+                assertEquals(i, image.getIndex().getId());
+                assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, image.getData());
+            }
+        }
+    }
+
+    @Test
+    public void testAppendAllFailed() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        int count = 1200;
+        List<ImageIndex> indexes = new ArrayList<>();
+        List<ByteBuffer> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            indexes.add(createImage(i, ImageIndex.FLAG_NORMAL, ImageType.PNG, -1L, null).getIndex());
+            data.add(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8)}));
+        }
+        // the second gathering write of the group fails
+        int[] writes = {0};
+        Volume.Listener listener = new Volume.Listener() {
+            @Override
+            public void onWrite(int images, long bytes, long nanos) {
+                if (++writes[0] == 3) {
+                    throw new UncheckedIOException(new IOException("Disk failure"));
+                }
+            }
+        };
+        try (Volume.Writer writer = Volume.createWriter(file, Volume.FsyncPolicy.BATCH, listener)) {
+            writer.write(createImage(-1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[10]));
+            try {
+                writer.appendAll(indexes, data).join();
+                fail();
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof UncheckedIOException);
+            }
+            // the group is dropped as a whole
+            assertEquals(74L, writer.length());
+            assertEquals(74L, file.length());
+
+            // retried, the images are written once
+            writer.appendAll(indexes, data).get();
+            assertEquals(74L + count * 66L, writer.length());
+        }
+        List<ImageIndex> hinted = new ArrayList<>();
+        Volume.forEachIndex(file, hinted::add);
+        assertEquals(count + 1, hinted.size());
+        assertEquals(74L, hinted.get(1).getOffset());
+    }
+
+    @Test
+    public void testReserve() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            writer.write(createImage(1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[10]));
+
+            Volume.Slot slot = writer.reserve(createImage(2L, ImageIndex.FLAG_NORMAL,
+                    ImageType.PNG, 100L, null).getIndex(), 4096);
+            Volume.Slot aborted = writer.reserve(createImage(3L, ImageIndex.FLAG_NORMAL,
+                    ImageType.PNG, -1L, null).getIndex(), 512);
+            // appended meanwhile
+            writer.write(createImage(4L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, new byte[20]));
+
+            slot.write(ByteBuffer.wrap(data, 0, 600));
+            slot.write(ByteBuffer.wrap(data, 600, 400));
+            try {
+                slot.write(ByteBuffer.allocate(4000));
+                fail();
+            } catch (IOException e) {
+            }
+            ImageIndex index = slot.commit();
+            assertEquals(1000, index.getSize());
+            assertEquals(ImageIndex.FLAG_NORMAL, index.getFlag());
+            aborted.write(ByteBuffer.wrap(data, 0, 100));
+            aborted.abort();
+
+            try (Volume.Reader reader = Volume.createReader(file)) {
+                Image image = reader.read(index.getOffset());
+                assertEquals(2L, image.getIndex().getId());
+                assertEquals(100L, image.getIndex().getExpireTime());
+                assertArrayEquals(data, image.getData());
+            }
+        }
+
+        // volume is walkable by both hints and headers
+        List<ImageIndex> indexes = new ArrayList<>();
+        Volume.forEachIndex(file, index -> {
+            if (index.getFlag() == ImageIndex.FLAG_NORMAL) {
+                indexes.add(index);
+            }
+        });
+        assertEquals(Arrays.asList(1L, 2L, 4L),
+                indexes.stream().map(ImageIndex::getId).collect(Collectors.toList()));
+
+        Volume.getHintFile(file).delete();
+        List<Long> ids = new ArrayList<>();
+        try (Volume.Reader reader = Volume.createReader(file)) {
+            Image image;
+            while ((image = reader.next()) != null) {
+                if (image.getIndex().getFlag() == ImageIndex.FLAG_NORMAL) {
+                    ids.add(image.getIndex().getId());
+                }
+            }
+        }
+        assertEquals(Arrays.asList(1L, 2L, 4L), ids);
+    }
+
+    @Test
+    public void testReserveAfterClose() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        Volume.Writer writer = Volume.createWriter(file);
+        Volume.Slot slot = writer.reserve(createImage(1L, ImageIndex.FLAG_NORMAL,
+                ImageType.JPG, -1L, null).getIndex(), 100);
+        writer.close();
+        try {
+            slot.commit();
+            fail();
+        } catch (ClosedChannelException e) {
+        }
+        try {
+            writer.reserve(createImage(2L, ImageIndex.FLAG_NORMAL,
+                    ImageType.JPG, -1L, null).getIndex(), 100);
+            fail();
+        } catch (ClosedChannelException e) {
+        }
+    }
+
+    @Test
+    public void testVerifyOnRead() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            writer.write(createImage(1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, data));
+            writer.write(createImage(2L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, data));
+            // flag is not covered by checksum
+            writer.markDeleted(0L);
+        }
+        // flip a byte of the second image
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(1064L + 64L + 500L);
+            raf.write(8);
+        }
+
+        try (Volume.Reader reader = Volume.createReader(file, Volume.ReadMode.CHANNEL, true)) {
+            assertArrayEquals(data, reader.read(0L).getData());
+            try {
+                reader.read(1064L);
+                fail();
+            } catch (CorruptedImageException e) {
+                assertEquals(2L, e.getId());
+                assertEquals(1064L, e.getPosition());
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            int[] throttled = {0};
+            assertEquals(1L, reader.verify(0L, buffer, n -> throttled[0] += n).getId());
+            assertEquals(1000, throttled[0]);
+            try {
+                reader.verify(1064L, buffer, n -> {
+                });
+                fail();
+            } catch (CorruptedImageException e) {
+                assertEquals(2L, e.getId());
+            }
+        }
+        // not verified by default
+        try (Volume.Reader reader = Volume.createReader(file)) {
+            assertEquals(8, reader.read(1064L).getData()[500]);
+        }
+    }
+
+    @Test
+    public void testCloseRetainedReader() throws Exception {
+        File file = new File(folder.getRoot(), String.valueOf(System.currentTimeMillis()));
+        byte[] data = new byte[100];
+        try (Volume.Writer writer = Volume.createWriter(file)) {
+            writer.write(createImage(1L, ImageIndex.FLAG_NORMAL, ImageType.JPG, -1L, data));
+        }
+        Volume.Reader reader = Volume.createReader(file);
+        assertTrue(reader.retain());
+        reader.close();
+        assertTrue(reader.isClosed());
+        // still open for the reference held
+        assertEquals(1L, reader.read(0L).getIndex().getId());
+        reader.release();
+        assertFalse(reader.retain());
+        try {
+            reader.read(0L);
+            fail();
+        } catch (ClosedChannelException e) {
+        }
+    }
+
     private Image createImage(long id, byte flag, ImageType type, long expireTime, byte[] data) {
         ImageIndex index = new ImageIndex();
         index.setId(id);
@@ -0,0 +1,31 @@
+package io.github.huiyu.ceresfs.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+
+    @Test
+    public void testCheckValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        // direct buffer in two pieces
+        crc.reset();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        buffer.limit(4);
+        crc.update(buffer);
+        assertEquals(4, buffer.position());
+        buffer.limit(data.length);
+        crc.update(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+}